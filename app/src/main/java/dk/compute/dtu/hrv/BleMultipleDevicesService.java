@@ -16,11 +16,14 @@
 
 package dk.compute.dtu.hrv;
 
+import android.app.Notification;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
@@ -28,24 +31,65 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Binder;
-import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.Message;
+import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
 
-import dk.compute.dtu.hrv.ntp.SntpClient;
+import dk.compute.dtu.hrv.core.bus.BusConsumerThread;
+import dk.compute.dtu.hrv.core.bus.BusMetrics;
+import dk.compute.dtu.hrv.core.bus.DataBus;
+import dk.compute.dtu.hrv.core.bus.DataEvent;
+import dk.compute.dtu.hrv.core.bus.EventHandler;
+import dk.compute.dtu.hrv.core.bus.Subscription;
+import dk.compute.dtu.hrv.core.capture.RawCaptureDecoder;
+import dk.compute.dtu.hrv.core.capture.RawCaptureWriter;
+import dk.compute.dtu.hrv.core.decode.BodyLocation;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+import dk.compute.dtu.hrv.core.ntp.SntpClient;
+import dk.compute.dtu.hrv.core.pipeline.PersistStage;
+import dk.compute.dtu.hrv.core.pipeline.PipelineSpec;
+import dk.compute.dtu.hrv.core.pipeline.PublishStage;
+import dk.compute.dtu.hrv.core.pipeline.SamplePipeline;
+import dk.compute.dtu.hrv.core.pipeline.SkipStage;
+import dk.compute.dtu.hrv.core.pipeline.Stage;
+import dk.compute.dtu.hrv.core.replay.ReplaySource;
+import dk.compute.dtu.hrv.core.replay.SessionReplay;
+import dk.compute.dtu.hrv.core.scan.DiscoveryStats;
+import dk.compute.dtu.hrv.core.session.SessionCatalog;
+import dk.compute.dtu.hrv.core.session.SessionFiles;
+import dk.compute.dtu.hrv.core.session.SessionInfo;
+import dk.compute.dtu.hrv.core.session.SessionWriter;
+import dk.compute.dtu.hrv.core.stream.StreamPublisher;
+import dk.compute.dtu.hrv.core.stream.StreamServer;
+import dk.compute.dtu.hrv.core.synchrony.SynchronyConsumer;
+import dk.compute.dtu.hrv.core.synchrony.SynchronyEngine;
+import dk.compute.dtu.hrv.core.trace.SampleTracer;
+import dk.compute.dtu.hrv.core.upload.UploadLog;
+import dk.compute.dtu.hrv.core.upload.UploadQueue;
+import dk.compute.dtu.hrv.dashboard.DeviceHistory;
+import dk.compute.dtu.hrv.scan.ScanScheduler;
+import dk.compute.dtu.hrv.sensor.BleHeartRateSensor;
 import dk.compute.dtu.hrv.sensor.BleSensor;
 import dk.compute.dtu.hrv.sensor.BleSensors;
+import dk.compute.dtu.hrv.sensor.HeartRateState;
 import dk.compute.dtu.hrv.storage.SimpleStorageWorker;
+import dk.compute.dtu.hrv.storage.StorageDispatcher;
+import dk.compute.dtu.hrv.storage.StorageShard;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -59,6 +103,8 @@ public class BleMultipleDevicesService extends Service {
     private BluetoothAdapter adapter;
     private int connectionState = STATE_DISCONNECTED;
     private HashMap<String, BluetoothGatt> deviceMap = new HashMap<>();
+    private HashMap<String, BluetoothGattCallbackExecutor> executors = new HashMap<>();
+    private final Set<String> notifying = Collections.synchronizedSet(new HashSet<String>());
 
     private static final int STATE_DISCONNECTED = 0;
     private static final int STATE_CONNECTING = 1;
@@ -73,20 +119,132 @@ public class BleMultipleDevicesService extends Service {
     public final static String EXTRA_CHARACTERISTIC_UUID = INTENT_PREFIX+".EXTRA_CHARACTERISTIC_UUI";
     public final static String EXTRA_DATA = INTENT_PREFIX+".EXTRA_DATA";
     public final static String EXTRA_TEXT = INTENT_PREFIX+".EXTRA_TEXT";
-
-    // Storage
-    private Map<String, Handler> storageHandlers = new HashMap<>();
+    public final static String EXTRA_DEVICE_ADDRESS = INTENT_PREFIX+".EXTRA_DEVICE_ADDRESS";
+    public final static String EXTRA_TIMESTAMP = INTENT_PREFIX+".EXTRA_TIMESTAMP";
+    public final static String ACTION_BULK_CONNECT_FINISHED = INTENT_PREFIX+".ACTION_BULK_CONNECT_FINISHED";
+    public final static String ACTION_CONTACT_CHANGED = INTENT_PREFIX+".ACTION_CONTACT_CHANGED";
+    // One of the HeartRateSample.CONTACT_ states
+    public final static String EXTRA_CONTACT = INTENT_PREFIX+".EXTRA_CONTACT";
+    // Start commands of the foreground recording
+    public final static String ACTION_START_RECORDING = INTENT_PREFIX+".ACTION_START_RECORDING";
+    public final static String ACTION_STOP_RECORDING = INTENT_PREFIX+".ACTION_STOP_RECORDING";
+    public final static String EXTRA_DEVICE_ADDRESSES = INTENT_PREFIX+".EXTRA_DEVICE_ADDRESSES";
+    // Replay of recorded files, e.g. from adb for regression runs
+    public final static String ACTION_REPLAY = INTENT_PREFIX+".ACTION_REPLAY";
+    // Paths of raw captures or RR files
+    public final static String EXTRA_REPLAY_FILES = INTENT_PREFIX+".EXTRA_REPLAY_FILES";
+    // Multiple of the recorded speed, 0 replays as fast as possible
+    public final static String EXTRA_REPLAY_SPEED = INTENT_PREFIX+".EXTRA_REPLAY_SPEED";
+    public final static String EXTRA_REPLAY_STORE = INTENT_PREFIX+".EXTRA_REPLAY_STORE";
+    // Upload of the sessions to a collection server, stopped without a URL
+    public final static String ACTION_UPLOAD = INTENT_PREFIX+".ACTION_UPLOAD";
+    public final static String EXTRA_UPLOAD_URL = INTENT_PREFIX+".EXTRA_UPLOAD_URL";
+    // Whether sessions being recorded are sent as they grow
+    public final static String EXTRA_UPLOAD_LIVE = INTENT_PREFIX+".EXTRA_UPLOAD_LIVE";
+    // Upload rate cap in bytes per second, 0 for none
+    public final static String EXTRA_UPLOAD_RATE = INTENT_PREFIX+".EXTRA_UPLOAD_RATE";
+    // Recording options for devices connected from now on, each only changed when its extra is given
+    public final static String ACTION_CONFIGURE = INTENT_PREFIX+".ACTION_CONFIGURE";
+    public final static String EXTRA_RAW_CAPTURE = INTENT_PREFIX+".EXTRA_RAW_CAPTURE";
+    public final static String EXTRA_SERIES_STORAGE = INTENT_PREFIX+".EXTRA_SERIES_STORAGE";
+    // Spec of the sample pipeline, empty for none
+    public final static String EXTRA_SAMPLE_PIPELINE = INTENT_PREFIX+".EXTRA_SAMPLE_PIPELINE";
+    // Whether samples are traced, turning it off writes the trace
+    public final static String EXTRA_TRACING = INTENT_PREFIX+".EXTRA_TRACING";
+
+    // Bulk connect, devices in each pipeline stage at the same time
+    private static final int[] PIPELINE_LIMITS = { 2, 4, 4 };
+    private static final long PIPELINE_STAGE_TIMEOUT = 15000;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private ConnectionPipeline pipeline;
+
+    // Typed in-process events for storage, UI and metrics
+    private static final int BUS_CAPACITY = 4096;
+    private static final long METRICS_INTERVAL = 60000;
+    private final DataBus bus = new DataBus(BUS_CAPACITY);
+    private BusConsumerThread storageConsumer;
+    private BusConsumerThread metricsConsumer;
+
+    // Storage, sharded over a few threads so one stalled sink does not hold up the others
+    private static final int STORAGE_SHARDS = Math.min(4, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    // Wait for the storage consumer to hand over its last events when stopping
+    private static final long STORAGE_SHUTDOWN_TIMEOUT = 2000;
+    private StorageDispatcher storageDispatcher;
     private boolean store_data = true;
-    private boolean file_open = false;
-    Looper looper = null;
+    // Record the raw notification payloads instead of the CSV files
+    private boolean raw_capture = false;
+    private final Map<String, RawCaptureWriter> rawCaptures = new HashMap<>();
+    // Write heart rate and RR files in the block format instead of CSV
+    private boolean series_storage = false;
+
+    // Per sample latency from the GATT callback to the disk, off unless enabled
+    private static final int TRACE_CAPACITY = 8192;
+    private final SampleTracer tracer = new SampleTracer(TRACE_CAPACITY);
+
+    // Live samples for clients on this device, or on the local network once opted in, e.g. a coach's laptop
+    public static final int STREAM_PORT = 8765;
+    private StreamServer streamServer;
+    private BusConsumerThread streamConsumer;
+    private boolean streamingToNetwork = false;
+
+    // Rolling RR synchrony between all connected devices, pairs spread over the cores once there are many
+    private final SynchronyEngine synchrony = new SynchronyEngine(SynchronyEngine.DEFAULT_PERIOD,
+            SynchronyEngine.DEFAULT_WINDOW, SynchronyEngine.DEFAULT_MAX_LAG,
+            Runtime.getRuntime().availableProcessors());
+    private BusConsumerThread synchronyConsumer;
+
+    // Per session sample pipelines, null to decode and publish directly
+    private volatile PipelineSpec samplePipelineSpec;
+    private final Map<String, SamplePipeline> samplePipelines =
+            Collections.synchronizedMap(new HashMap<String, SamplePipeline>());
+
+    // Store and forward of the recorded sessions to a collection server
+    private volatile UploadQueue uploadQueue;
+    private UploadLog uploadLog;
+    private final Runnable kickUpload = new Runnable() {
+        @Override
+        public void run() {
+            final UploadQueue queue = uploadQueue;
+            if (queue != null)
+                queue.kick();
+        }
+    };
+
+    // Recorded sessions played back through the live path, one replay at a time
+    private SessionReplay replay;
+    private Thread replayThread;
+
+    // Foreground recording, independent of the activity binding
+    private static final int NOTIFICATION_ID = 1;
+    private volatile boolean recording = false;
+    private PowerManager.WakeLock wakeLock;
+
+    // Devices of the running recording, reattached by a background scan when lost
+    private static final int HEART_RATE_SERVICE_UUID16 = 0x180d;
+    private final Set<String> sessionDevices = Collections.synchronizedSet(new HashSet<String>());
+    private final Set<String> lostDevices = Collections.synchronizedSet(new HashSet<String>());
+    private ScanScheduler reattachScanner;
+    // Time from losing a device until its first sample after reattaching
+    private final DiscoveryStats reattachStats = new DiscoveryStats();
 
     // Synchronisation
-    private long time_offset = 0;
+    private volatile long time_offset = 0;
 
     // Implements callback methods for GATT events that the app cares about.
     // For example, connection change and services discovered.
     public class BluetoothGattCallbackExecutor extends BluetoothGattExecutor {
         String deviceAddress;
+        // Only touched from this device's callbacks
+        final HeartRateState heartRate = new HeartRateState();
+        // When the device was lost during a recording, 0 while attached
+        long lostAt = 0;
+        // Time the current notification was handed to the callback, see SampleTracer.now()
+        long arrivedNanos = 0;
+        // Stages of this session when a pipeline spec is set, fed from the device's callbacks
+        SamplePipeline samples;
+        // Whether a publish stage of samples puts them on the bus, otherwise they are published directly
+        boolean samplesPublished;
+
         public BluetoothGattCallbackExecutor(String deviceAddress) {
             this.deviceAddress = deviceAddress;
         }
@@ -99,34 +257,49 @@ public class BleMultipleDevicesService extends Service {
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 intentAction = ACTION_GATT_CONNECTED;
                 connectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
+                broadcastUpdate(intentAction, deviceAddress);
                 Log.i(TAG, "Connected to GATT server.");
 
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        gatt.discoverServices());
-
-                // Setup storage class
-                try {
-                    SimpleStorageWorker storageWorker = new SimpleStorageWorker(getApplicationContext());
-                    // Create a Handler and give it the worker instance to handle the messages
-                    storageHandlers.put(deviceAddress, new Handler(looper, storageWorker));
-                } catch (Exception e) {
-                    e.printStackTrace();
+                if (pipeline != null && pipeline.manages(deviceAddress)) {
+                    // Discovery is started by the pipeline when a slot is free
+                    pipeline.complete(deviceAddress, ConnectionPipeline.STAGE_CONNECT, true);
+                } else {
+                    // Attempts to discover services after successful connection.
+                    Log.i(TAG, "Attempting to start service discovery:" +
+                            gatt.discoverServices());
                 }
 
-                if (store_data)
-                    openFile(deviceAddress);
+                // The storage consumer opens the files unless the raw capture or the pipeline takes over
+                final boolean captured = store_data && raw_capture && openRawCapture(deviceAddress);
+                final boolean persisted = openSamplePipeline(this, store_data && !captured);
+                bus.publishConnected(deviceAddress, now(), store_data && !captured && !persisted);
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 intentAction = ACTION_GATT_DISCONNECTED;
                 connectionState = STATE_DISCONNECTED;
+                notifying.remove(deviceAddress);
+                heartRate.reset();
                 Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+                broadcastUpdate(intentAction, deviceAddress);
+
+                if (pipeline != null && pipeline.manages(deviceAddress))
+                    pipeline.complete(deviceAddress, ConnectionPipeline.STAGE_CONNECT, false);
 
                 // Close files
-                if (store_data)
-                    closeFile(deviceAddress);
+                closeRawCapture(deviceAddress);
+                closeSamplePipeline(this);
+                bus.publishDisconnected(deviceAddress, now());
+
+                if (recording && sessionDevices.contains(deviceAddress)) {
+                    if (lostAt == 0)
+                        lostAt = SystemClock.elapsedRealtime();
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onDeviceLost(deviceAddress);
+                        }
+                    });
+                }
             }
         }
 
@@ -135,10 +308,26 @@ public class BleMultipleDevicesService extends Service {
             super.onServicesDiscovered(gatt, status);
 
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED, deviceAddress);
+                // Nobody else enables a reattached device if the activity is gone
+                if (lostAt != 0 && (pipeline == null || !pipeline.manages(deviceAddress)))
+                    enableSensor(deviceAddress, BleSensors.getSensor(BleHeartRateSensor.getServiceUUIDString()), true);
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
+            if (pipeline != null && pipeline.manages(deviceAddress))
+                pipeline.complete(deviceAddress, ConnectionPipeline.STAGE_DISCOVER,
+                        status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            super.onDescriptorWrite(gatt, descriptor, status);
+
+            // Enabling notifications ends with the descriptor write
+            if (isIdle() && pipeline != null && pipeline.manages(deviceAddress))
+                pipeline.complete(deviceAddress, ConnectionPipeline.STAGE_ENABLE,
+                        status == BluetoothGatt.GATT_SUCCESS);
         }
 
         @Override
@@ -147,50 +336,73 @@ public class BleMultipleDevicesService extends Service {
                                          int status) {
             super.onCharacteristicRead(gatt, characteristic, status);
 
+            // Enabling may end with a read, e.g. of the body sensor location
+            if (isIdle() && pipeline != null && pipeline.manages(deviceAddress))
+                pipeline.complete(deviceAddress, ConnectionPipeline.STAGE_ENABLE, true);
+
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                final BleSensor<?> sensor = BleSensors.getSensor(characteristic.getService().getUuid().toString());
-                if (sensor != null) {
-                    if (sensor.onCharacteristicRead(characteristic)) {
-                        return;
-                    }
+                if (BleHeartRateSensor.getBodyLocationUUIDString().equals(characteristic.getUuid().toString())) {
+                    heartRate.onBodyLocation(characteristic.getValue());
+                    Log.d(TAG, "Sensor body location of " + deviceAddress + ": "
+                            + BodyLocation.name(heartRate.getBodyLocation()));
+                    return;
                 }
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic, deviceAddress);
+                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic, this);
             }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
+            arrivedNanos = SampleTracer.now();
             super.onCharacteristicChanged(gatt, characteristic);
 
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic, deviceAddress);
+            final RawCaptureWriter capture;
+            synchronized (rawCaptures) {
+                capture = rawCaptures.get(deviceAddress);
+            }
+            if (capture != null) {
+                try {
+                    // 16 bit UUIDs sit in bits 32..47 of the Bluetooth base UUID
+                    final int uuid = (int) (characteristic.getUuid().getMostSignificantBits() >>> 32) & 0xffff;
+                    capture.write(uuid, characteristic.getValue(), SystemClock.elapsedRealtime() + time_offset);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic, this);
         }
     }
 
-    // Construct an executor for generic GATT actions
-    BluetoothGattCallbackExecutor executor = new BluetoothGattCallbackExecutor("Default");
-
-    private void broadcastUpdate(final String action) {
+    private void broadcastUpdate(final String action, final String deviceAddress) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_DEVICE_ADDRESS, deviceAddress);
         sendBroadcast(intent);
     }
 
+    /**
+     * Decodes heart rate measurements into the device's own state, so that
+     * devices calling back concurrently never share a sample.
+     */
     private void broadcastUpdate(final String action,
                                  final BluetoothGattCharacteristic characteristic,
-                                 final String deviceAddress) {
+                                 final BluetoothGattCallbackExecutor executor) {
+        final String deviceAddress = executor.deviceAddress;
         final Intent intent = new Intent(action);
         intent.putExtra(EXTRA_SERVICE_UUID, characteristic.getService().getUuid().toString());
         intent.putExtra(EXTRA_CHARACTERISTIC_UUID, characteristic.getUuid().toString());
+        intent.putExtra(EXTRA_DEVICE_ADDRESS, deviceAddress);
+        intent.putExtra(EXTRA_TIMESTAMP, SystemClock.elapsedRealtime());
 
         final BleSensor<?> sensor = BleSensors.getSensor(characteristic.getService().getUuid().toString());
-        if (sensor != null) {
+        if (BleHeartRateSensor.getDataUUIDString().equals(characteristic.getUuid().toString())) {
+            final byte[] value = characteristic.getValue();
+            if (!onHeartRateMeasurement(executor, value, 0, value == null ? 0 : value.length, now(), intent))
+                return;
+        } else if (sensor != null) {
             sensor.onCharacteristicChanged(characteristic);
-            final String text = sensor.getDataString();
-            intent.putExtra(EXTRA_TEXT, text);
-            sendBroadcast(intent);
-
-            Log.d(TAG, text);
-            storeData(deviceAddress, (int[]) sensor.getData());
+            intent.putExtra(EXTRA_TEXT, sensor.getDataString());
         } else {
             // For all other profiles, writes the data formatted in HEX.
             final byte[] data = characteristic.getValue();
@@ -204,6 +416,78 @@ public class BleMultipleDevicesService extends Service {
         sendBroadcast(intent);
     }
 
+    /**
+     * Decodes a heart rate measurement of the device and publishes it, live or replayed.
+     *
+     * @param timestamp Time of the measurement, see {@link #now()}.
+     * @param intent Broadcast the measurement is added to.
+     * @return false if the measurement is too short.
+     */
+    private boolean onHeartRateMeasurement(BluetoothGattCallbackExecutor executor, byte[] value, int offset,
+                                           int length, long timestamp, Intent intent) {
+        final String deviceAddress = executor.deviceAddress;
+        final HeartRateState state = executor.heartRate;
+        if (!state.onMeasurement(value, offset, length)) {
+            Log.d(TAG, "Heart rate measurement too short");
+            return false;
+        }
+        final HeartRateSample sample = state.getSample();
+        final String text = state.getDataString();
+        intent.putExtra(EXTRA_TEXT, text);
+        intent.putExtra(EXTRA_DATA, sample.toArray());
+        intent.putExtra(EXTRA_CONTACT, sample.contact);
+
+        Log.d(TAG, text);
+        if (executor.lostAt != 0) {
+            final long latency = SystemClock.elapsedRealtime() - executor.lostAt;
+            executor.lostAt = 0;
+            reattachStats.add(latency);
+            Log.i(TAG, "Reattached " + deviceAddress + " after " + latency + " ms, " + reattachStats);
+        }
+        if (state.updateContact())
+            onContactChanged(deviceAddress, sample.contact, timestamp);
+        final SamplePipeline samples = executor.samples;
+        if (samples != null) {
+            samples.offer(value, offset, length, timestamp);
+            if (executor.samplesPublished)
+                return true;
+        }
+        final long parsedNanos = SampleTracer.now();
+        final long sequence = bus.publishSample(deviceAddress, timestamp, sample);
+        if (tracer.isEnabled() && executor.arrivedNanos != 0) {
+            tracer.mark(deviceAddress, sequence, SampleTracer.STAGE_ARRIVED, executor.arrivedNanos);
+            tracer.mark(deviceAddress, sequence, SampleTracer.STAGE_PARSED, parsedNanos);
+            tracer.mark(deviceAddress, sequence, SampleTracer.STAGE_ENQUEUED);
+        }
+        return true;
+    }
+
+    /**
+     * Publishes and broadcasts as {@link #ACTION_CONTACT_CHANGED} a change of the sensor contact of a device.
+     */
+    private void onContactChanged(String deviceAddress, int contact, long timestamp) {
+        Log.i(TAG, "Sensor contact of " + deviceAddress + ": " + contact);
+        bus.publishContact(deviceAddress, timestamp, contact);
+        final Intent intent = new Intent(ACTION_CONTACT_CHANGED);
+        intent.putExtra(EXTRA_DEVICE_ADDRESS, deviceAddress);
+        intent.putExtra(EXTRA_CONTACT, contact);
+        sendBroadcast(intent);
+    }
+
+    /**
+     * @return Current time in ms, corrected by the NTP offset once known.
+     */
+    private long now() {
+        return SystemClock.elapsedRealtime() + time_offset;
+    }
+
+    /**
+     * @return The in-process event bus carrying connections, samples, contact and clock changes.
+     */
+    public DataBus getBus() {
+        return bus;
+    }
+
     public class LocalBinder extends Binder {
         public BleMultipleDevicesService getService() {
             return BleMultipleDevicesService.this;
@@ -218,10 +502,445 @@ public class BleMultipleDevicesService extends Service {
     @Override
     public boolean onUnbind(Intent intent) {
         // After using a given device, you should make sure that BluetoothGatt.close() is called
-        // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
-        close();
-        return super.onUnbind(intent);
+        // such that resources are cleaned up properly. While recording the connections outlive
+        // the UI, otherwise close() is invoked when the UI is disconnected from the Service.
+        if (!recording)
+            close();
+        return true;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null) {
+            // Restarted after the process was killed
+            resumeRecording();
+        } else if (ACTION_START_RECORDING.equals(intent.getAction())) {
+            startRecording(intent.getStringArrayExtra(EXTRA_DEVICE_ADDRESSES));
+        } else if (ACTION_STOP_RECORDING.equals(intent.getAction())) {
+            stopRecording();
+            stopSelf();
+        } else if (ACTION_REPLAY.equals(intent.getAction())) {
+            final String[] paths = intent.getStringArrayExtra(EXTRA_REPLAY_FILES);
+            final List<File> files = new ArrayList<>();
+            if (paths != null) {
+                for (String path : paths)
+                    files.add(new File(path));
+            }
+            startReplay(files, intent.getDoubleExtra(EXTRA_REPLAY_SPEED, 1),
+                    intent.getBooleanExtra(EXTRA_REPLAY_STORE, false));
+        } else if (ACTION_UPLOAD.equals(intent.getAction())) {
+            final String url = intent.getStringExtra(EXTRA_UPLOAD_URL);
+            if (url == null)
+                stopUpload();
+            else
+                startUpload(url, intent.getBooleanExtra(EXTRA_UPLOAD_LIVE, false),
+                        intent.getLongExtra(EXTRA_UPLOAD_RATE, 0));
+        } else if (ACTION_CONFIGURE.equals(intent.getAction())) {
+            configure(intent);
+        }
+        return START_STICKY;
+    }
+
+    /**
+     * Applies the recording options given as extras of an {@link #ACTION_CONFIGURE} intent.
+     */
+    private void configure(Intent intent) {
+        if (intent.hasExtra(EXTRA_RAW_CAPTURE))
+            setRawCapture(intent.getBooleanExtra(EXTRA_RAW_CAPTURE, false));
+        if (intent.hasExtra(EXTRA_SERIES_STORAGE))
+            setSeriesStorage(intent.getBooleanExtra(EXTRA_SERIES_STORAGE, false));
+        if (intent.hasExtra(EXTRA_SAMPLE_PIPELINE)) {
+            final String spec = intent.getStringExtra(EXTRA_SAMPLE_PIPELINE);
+            try {
+                setSamplePipeline(spec == null || spec.isEmpty() ? null : spec);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Sample pipeline " + spec + ": " + e.getMessage());
+            }
+        }
+        if (intent.hasExtra(EXTRA_TRACING)) {
+            final boolean tracing = intent.getBooleanExtra(EXTRA_TRACING, false);
+            if (!tracing && isTracing())
+                exportTrace();
+            setTracing(tracing);
+        }
+        Log.d(TAG, "Raw capture " + raw_capture + ", series storage " + series_storage
+                + ", sample pipeline " + getSamplePipeline() + ", tracing " + isTracing());
+    }
+
+    /**
+     * Connects the devices and keeps them connected and stored in the foreground,
+     * whether or not an activity is bound.
+     */
+    public void startRecording(String[] addresses) {
+        if (addresses == null || addresses.length == 0 || !initialize())
+            return;
+
+        if (!recording) {
+            recording = true;
+            final PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+            wakeLock.acquire();
+        }
+        sessionDevices.addAll(Arrays.asList(addresses));
+        startForeground(NOTIFICATION_ID, buildNotification(sessionDevices.size()));
+        Log.d(TAG, "Recording " + addresses.length + " devices");
+        connectAll(addresses);
+    }
+
+    /**
+     * Disconnects the devices and leaves the foreground. The service stays alive
+     * as long as an activity is bound.
+     */
+    public void stopRecording() {
+        // Disconnects from here on are not reattached
+        final boolean wasRecording = recording;
+        recording = false;
+        sessionDevices.clear();
+        lostDevices.clear();
+        if (reattachScanner != null)
+            reattachScanner.stop();
+        disconnect();
+        if (!wasRecording)
+            return;
+        if (tracer.isEnabled())
+            exportTrace();
+        // Give the storage shards time to close the sessions before sending them
+        mainHandler.postDelayed(kickUpload, STORAGE_SHUTDOWN_TIMEOUT);
+        stopForeground(true);
+        if (wakeLock != null && wakeLock.isHeld())
+            wakeLock.release();
+        wakeLock = null;
+        Log.d(TAG, "Recording stopped");
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * Reconnects the devices whose sessions the catalog still holds open, which
+     * means the previous process was killed while recording them.
+     */
+    private void resumeRecording() {
+        if (!initialize())
+            return;
+        final SessionCatalog catalog = getCatalog();
+        final Set<String> addresses = new HashSet<>();
+        if (catalog != null) {
+            try {
+                for (SessionInfo info : catalog.recoverOpen())
+                    addresses.add(info.deviceAddress);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (addresses.isEmpty()) {
+            Log.d(TAG, "Nothing to resume");
+            stopSelf();
+            return;
+        }
+        Log.i(TAG, "Resuming recording of " + addresses);
+        startRecording(addresses.toArray(new String[addresses.size()]));
+    }
+
+    /**
+     * Starts over the background scan for the lost devices of the recording.
+     * Called on the main thread.
+     */
+    private void onDeviceLost(String deviceAddress) {
+        if (!recording || !sessionDevices.contains(deviceAddress) || adapter == null)
+            return;
+        Log.i(TAG, "Lost " + deviceAddress + ", scanning to reattach");
+        lostDevices.add(deviceAddress);
+        if (reattachScanner == null) {
+            reattachScanner = new ScanScheduler(bluetoothManager, HEART_RATE_SERVICE_UUID16,
+                    reattachCallback, mainHandler);
+            reattachScanner.setAddressFilter(lostDevices);
+        }
+        // A fresh start counts the lost devices from scratch and scans at full duty
+        reattachScanner.stop();
+        reattachScanner.setExpected(lostDevices.size());
+        reattachScanner.start();
+    }
+
+    // Advertisements of lost devices, on a binder thread
+    private final BluetoothAdapter.LeScanCallback reattachCallback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    reattach(device.getAddress());
+                }
+            });
+        }
+    };
+
+    private void reattach(String deviceAddress) {
+        if (!recording || !lostDevices.remove(deviceAddress))
+            return;
+        Log.i(TAG, "Seen " + deviceAddress + " again, reconnecting");
+        if (lostDevices.isEmpty())
+            reattachScanner.stop();
+        connect(deviceAddress);
+    }
+
+    /**
+     * @return Time from losing a device during a recording until its first sample after reattaching.
+     */
+    public DiscoveryStats getReattachStats() {
+        return reattachStats;
+    }
+
+    /**
+     * Plays raw captures or RR files back through the decoder, the bus and its
+     * consumers as if the devices were connected, on a background thread.
+     * Replayed samples keep their recorded timestamps, so a replay stores and
+     * computes the same whatever the speed. Broadcasts are only sent while
+     * paced, an unpaced replay would flood the activity.
+     *
+     * @param speed Multiple of the recorded speed, or {@link SessionReplay#UNPACED}.
+     * @param store Whether storage records the replayed devices as new sessions.
+     * @return false if a replay is running or a file could not be opened.
+     */
+    public synchronized boolean startReplay(List<File> files, double speed, final boolean store) {
+        if (isReplaying() || files.isEmpty())
+            return false;
+        final List<ReplaySource> sources = new ArrayList<>();
+        try {
+            for (File file : files)
+                sources.add(SessionReplay.openSource(file));
+        } catch (IOException e) {
+            e.printStackTrace();
+            for (ReplaySource source : sources) {
+                try {
+                    source.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return false;
+        }
+        startPipeline();
+
+        final SessionReplay session = new SessionReplay(sources, speed, ElapsedRealtimeClock.INSTANCE);
+        final boolean broadcast = speed > SessionReplay.UNPACED;
+        // Each replayed device decodes into its own state, apart from live devices
+        final Map<String, BluetoothGattCallbackExecutor> devices = new HashMap<>();
+        final SessionReplay.Sink sink = new SessionReplay.Sink() {
+            @Override
+            public void onStart(String deviceAddress, long timestamp) {
+                final BluetoothGattCallbackExecutor executor = new BluetoothGattCallbackExecutor(deviceAddress);
+                devices.put(deviceAddress, executor);
+                final boolean persisted = openSamplePipeline(executor, store);
+                bus.publishConnected(deviceAddress, timestamp, store && !persisted);
+            }
+
+            @Override
+            public void onNotification(ReplaySource source) {
+                if (source.getUuid() != RawCaptureDecoder.UUID_HEART_RATE_MEASUREMENT)
+                    return;
+                final BluetoothGattCallbackExecutor executor = devices.get(source.getDeviceAddress());
+                executor.arrivedNanos = SampleTracer.now();
+                final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+                intent.putExtra(EXTRA_SERVICE_UUID, BleHeartRateSensor.getServiceUUIDString());
+                intent.putExtra(EXTRA_CHARACTERISTIC_UUID, BleHeartRateSensor.getDataUUIDString());
+                intent.putExtra(EXTRA_DEVICE_ADDRESS, executor.deviceAddress);
+                intent.putExtra(EXTRA_TIMESTAMP, SystemClock.elapsedRealtime());
+                if (onHeartRateMeasurement(executor, source.getValue(), 0, source.getLength(),
+                        source.getTimestamp(), intent) && broadcast)
+                    sendBroadcast(intent);
+            }
+
+            @Override
+            public void onEnd(String deviceAddress, long timestamp) {
+                closeSamplePipeline(devices.remove(deviceAddress));
+                bus.publishDisconnected(deviceAddress, timestamp);
+            }
+        };
+        replay = session;
+        replayThread = new Thread("replay") {
+            @Override
+            public void run() {
+                try {
+                    session.run(sink);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    // Close the sessions of devices cut short by a stop or error
+                    for (BluetoothGattCallbackExecutor executor : devices.values()) {
+                        closeSamplePipeline(executor);
+                        bus.publishDisconnected(executor.deviceAddress, session.getClock().elapsedRealtime());
+                    }
+                    Log.i(TAG, session.toString());
+                }
+            }
+        };
+        replayThread.start();
+        Log.d(TAG, "Replaying " + files.size() + " files at speed " + speed);
+        return true;
+    }
+
+    /**
+     * Ends the running replay after the current notification.
+     */
+    public synchronized void stopReplay() {
+        if (replay != null)
+            replay.stop();
+    }
+
+    public synchronized boolean isReplaying() {
+        return replayThread != null && replayThread.isAlive();
+    }
+
+    /**
+     * Serves the samples and the rolling RMSSD of all devices as NDJSON, over
+     * WebSocket or as a plain HTTP response. Clients that fall behind lose
+     * frames instead of slowing the service down.
+     *
+     * @param port Port to listen on, 0 for any free port.
+     * @param network Whether other hosts may connect, otherwise only this
+     *                device, e.g. through adb forward.
+     * @return The port listened on, or -1 if the server could not start.
+     */
+    public synchronized int startStreaming(int port, boolean network) {
+        if (streamServer != null)
+            return streamServer.getPort();
+        startPipeline();
+        final StreamServer server = new StreamServer(network ? StreamServer.anyAddress() : null, port);
+        try {
+            server.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        streamServer = server;
+        // Dropping, so that the bus never waits for the network
+        streamConsumer = new BusConsumerThread(bus.subscribe("stream", Subscription.DROP),
+                new StreamPublisher(server, DeviceHistory.RMSSD_BEATS));
+        streamConsumer.start();
+        streamingToNetwork = network;
+        Log.d(TAG, "Streaming on port " + server.getPort() + (network ? " to the network" : " to localhost"));
+        return server.getPort();
+    }
+
+    public synchronized void stopStreaming() {
+        if (streamServer == null)
+            return;
+        streamConsumer.shutdown();
+        streamServer.stop();
+        streamConsumer = null;
+        streamServer = null;
+    }
+
+    public synchronized boolean isStreaming() {
+        return streamServer != null;
+    }
+
+    public synchronized boolean isStreamingToNetwork() {
+        return streamServer != null && streamingToNetwork;
+    }
+
+    /**
+     * Sends the recorded sessions to a collection server in the background,
+     * resuming from the offsets the server acknowledged before. Replaces a
+     * running upload.
+     *
+     * @param url URL the batches are POSTed to.
+     * @param live Whether sessions being recorded are sent as they grow.
+     * @param bytesPerSecond Upload rate cap, 0 for none.
+     * @return Whether the upload started.
+     */
+    public synchronized boolean startUpload(String url, boolean live, long bytesPerSecond) {
+        stopUpload();
+        startPipeline();
+        final SessionCatalog catalog = getCatalog();
+        if (catalog == null)
+            return false;
+        try {
+            final URL collector = new URL(url);
+            uploadLog = UploadLog.open(catalog.getDirectory());
+            uploadQueue = new UploadQueue(catalog, uploadLog, collector);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        uploadQueue.setLive(live);
+        uploadQueue.setBytesPerSecond(bytesPerSecond);
+        uploadQueue.start();
+        Log.d(TAG, "Uploading to " + url);
+        return true;
+    }
+
+    public synchronized void stopUpload() {
+        if (uploadQueue == null)
+            return;
+        mainHandler.removeCallbacks(kickUpload);
+        uploadQueue.stop();
+        try {
+            uploadLog.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        uploadQueue = null;
+        uploadLog = null;
+    }
+
+    public synchronized boolean isUploading() {
+        return uploadQueue != null;
+    }
+
+    /**
+     * @return The group synchrony index of the connected devices in [0, 1),
+     *         NaN until two devices shared a full window.
+     */
+    public double getGroupSynchrony() {
+        return synchrony.getGroupSynchrony();
+    }
+
+    /**
+     * Sets whether the samples are traced from the GATT callback to the disk.
+     * Enabling drops the previous trace.
+     */
+    public void setTracing(boolean enabled) {
+        if (enabled && !tracer.isEnabled())
+            tracer.clear();
+        tracer.setEnabled(enabled);
+    }
+
+    public boolean isTracing() {
+        return tracer.isEnabled();
+    }
+
+    /**
+     * Writes the trace so far as Chrome trace JSON next to the sessions.
+     *
+     * @return The trace file, or null if it could not be written.
+     */
+    public File exportTrace() {
+        final File file = SimpleStorageWorker.exportTrace(tracer);
+        if (file != null)
+            Log.d(TAG, "Trace written to " + file.getAbsolutePath());
+        return file;
+    }
+
+    private Notification buildNotification(int devices) {
+        final PendingIntent content = PendingIntent.getActivity(this, 0,
+                new Intent(this, MultipleDeviceServicesActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        final PendingIntent stop = PendingIntent.getService(this, 0,
+                new Intent(this, BleMultipleDevicesService.class).setAction(ACTION_STOP_RECORDING),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        return new Notification.Builder(this)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(getString(R.string.notification_recording))
+                .setContentText(getString(R.string.notification_devices, devices))
+                .setCategory(Notification.CATEGORY_SERVICE)
+                .setPriority(Notification.PRIORITY_LOW)
+                .setOngoing(true)
+                .setContentIntent(content)
+                .addAction(0, getString(R.string.menu_stop), stop)
+                .build();
     }
 
     /**
@@ -241,16 +960,40 @@ public class BleMultipleDevicesService extends Service {
 	        return;
 	    }
 
-        executor.enable(sensor, enabled);
         Log.d(TAG, String.format("Number of devices connected: %d", deviceMap.size()));
         for (String address: deviceMap.keySet()){
-            BluetoothGatt gatt = deviceMap.get(address);
-            executor.execute(gatt);
-            Log.d(TAG, "Enabling heart rate for: " + address);
+            // Devices in a bulk connect are enabled by the pipeline
+            if (pipeline != null && pipeline.manages(address))
+                continue;
+            enableSensor(address, sensor, enabled);
         }
 
 	}
 
+    /**
+     * Enables or disables notification for a single device through its own executor.
+     * Devices that already notify are skipped when enabling.
+     *
+     * @return false if the device is not connected.
+     */
+    private boolean enableSensor(String address, BleSensor<?> sensor, boolean enabled) {
+        final BluetoothGatt gatt = deviceMap.get(address);
+        final BluetoothGattCallbackExecutor executor = executors.get(address);
+        if (gatt == null || executor == null)
+            return false;
+
+        if (enabled) {
+            if (!notifying.add(address))
+                return true;
+        } else {
+            notifying.remove(address);
+        }
+        executor.enable(sensor, enabled);
+        executor.execute(gatt);
+        Log.d(TAG, (enabled ? "Enabling " : "Disabling ") + sensor.getName() + " for: " + address);
+        return true;
+    }
+
 	private final IBinder mBinder = new LocalBinder();
 
     /**
@@ -277,12 +1020,7 @@ public class BleMultipleDevicesService extends Service {
             }
         }
 
-        if (looper == null) {
-            // New handler thread for storage
-            HandlerThread handlerThread = new HandlerThread("storageThread");
-            handlerThread.start();
-            looper = handlerThread.getLooper();
-        }
+        startPipeline();
 
         if (time_offset == 0)
             new getSynchronizationOffset().execute("dk.pool.ntp.org");
@@ -290,6 +1028,51 @@ public class BleMultipleDevicesService extends Service {
         return true;
     }
 
+    /**
+     * Starts the storage and metrics consumers of the bus, once.
+     */
+    private synchronized void startPipeline() {
+        if (storageDispatcher == null) {
+            // Storage must not lose samples, metrics may
+            storageDispatcher = new StorageDispatcher(getApplicationContext(), STORAGE_SHARDS, tracer);
+            storageDispatcher.setSeriesStorage(series_storage);
+            storageConsumer = new BusConsumerThread(bus.subscribe("storage", Subscription.BLOCK),
+                    storageDispatcher);
+            storageConsumer.start();
+            final BusMetrics metrics = new BusMetrics(bus);
+            metricsConsumer = new BusConsumerThread(bus.subscribe("metrics", Subscription.DROP), new EventHandler() {
+                private long lastReport = SystemClock.elapsedRealtime();
+
+                @Override
+                public void onEvent(DataEvent event, long sequence, boolean endOfBatch) {
+                    metrics.onEvent(event, sequence, endOfBatch);
+                    final long now = SystemClock.elapsedRealtime();
+                    if (endOfBatch && now - lastReport >= METRICS_INTERVAL) {
+                        lastReport = now;
+                        Log.d(TAG, metrics.report());
+                        for (StorageShard shard : storageDispatcher.getShards())
+                            Log.d(TAG, shard.toString());
+                        final StreamServer server = streamServer;
+                        if (server != null)
+                            Log.d(TAG, server.toString());
+                        final UploadQueue queue = uploadQueue;
+                        if (queue != null)
+                            Log.d(TAG, queue.toString());
+                        Log.d(TAG, synchrony.toString());
+                        synchronized (samplePipelines) {
+                            for (SamplePipeline samples : samplePipelines.values())
+                                Log.d(TAG, samples.toString());
+                        }
+                    }
+                }
+            });
+            metricsConsumer.start();
+            synchronyConsumer = new BusConsumerThread(bus.subscribe("synchrony", Subscription.DROP),
+                    new SynchronyConsumer(synchrony));
+            synchronyConsumer.start();
+        }
+    }
+
     /**
      * Connects to the GATT server hosted on the Bluetooth LE device.
      *
@@ -326,7 +1109,9 @@ public class BleMultipleDevicesService extends Service {
         // We want to directly connect to the device, so we are setting the autoConnect
         // parameter to false.
         Log.d(TAG, "Trying to create a new connection.");
-        deviceMap.put(address, device.connectGatt(this, false, new BluetoothGattCallbackExecutor(address)));
+        final BluetoothGattCallbackExecutor executor = new BluetoothGattCallbackExecutor(address);
+        executors.put(address, executor);
+        deviceMap.put(address, device.connectGatt(this, false, executor));
 
         connectionState = STATE_CONNECTING;
         return true;
@@ -361,18 +1146,50 @@ public class BleMultipleDevicesService extends Service {
             gatt.close();
 
         deviceMap.clear();
+        executors.clear();
+        notifying.clear();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        // Close files
-        if (store_data) {
-            for (String deviceAddress : deviceMap.keySet()) {
-                closeFile(deviceAddress);
-                storageHandlers.get(deviceAddress).removeCallbacksAndMessages(SimpleStorageWorker.class);
+        final Thread replaying = replayThread;
+        if (replaying != null) {
+            stopReplay();
+            try {
+                replaying.join(STORAGE_SHUTDOWN_TIMEOUT);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
             }
         }
+        // Close files, the storage consumer handles the events before it stops
+        for (String deviceAddress : deviceMap.keySet()) {
+            closeRawCapture(deviceAddress);
+            closeSamplePipeline(executors.get(deviceAddress));
+            bus.publishDisconnected(deviceAddress, now());
+        }
+        if (storageConsumer != null) {
+            storageConsumer.shutdown();
+            try {
+                storageConsumer.join(STORAGE_SHUTDOWN_TIMEOUT);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            storageDispatcher.shutdown();
+        }
+        if (metricsConsumer != null)
+            metricsConsumer.shutdown();
+        if (synchronyConsumer != null)
+            synchronyConsumer.shutdown();
+        synchrony.shutdown();
+        stopStreaming();
+        stopUpload();
+
+        if (wakeLock != null && wakeLock.isHeld())
+            wakeLock.release();
+        recording = false;
+        if (reattachScanner != null)
+            reattachScanner.stop();
 
         // Disconnect and close connections
         disconnect();
@@ -405,11 +1222,69 @@ public class BleMultipleDevicesService extends Service {
             return;
         }
 
-        executor.update(sensor);
-        for (BluetoothGatt gatt: deviceMap.values())
-            executor.execute(gatt);
+        for (String address: deviceMap.keySet()) {
+            final BluetoothGattCallbackExecutor executor = executors.get(address);
+            executor.update(sensor);
+            executor.execute(deviceMap.get(address));
+        }
     }
 
+    /**
+     * Connects a group of devices and enables heart rate notifications on them,
+     * staging connect, discovery and enable with bounded parallelism. Completion is
+     * broadcast as {@link #ACTION_BULK_CONNECT_FINISHED} with the stage timings in
+     * {@link #EXTRA_TEXT}.
+     *
+     * @param addresses The device addresses to connect.
+     */
+    public void connectAll(String[] addresses) {
+        if (adapter == null || addresses == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or unspecified addresses.");
+            return;
+        }
+        if (pipeline == null)
+            pipeline = new ConnectionPipeline(mainHandler, pipelineStages, PIPELINE_LIMITS,
+                    PIPELINE_STAGE_TIMEOUT);
+        pipeline.start(addresses);
+    }
+
+    private final ConnectionPipeline.Stages pipelineStages = new ConnectionPipeline.Stages() {
+        @Override
+        public boolean start(int stage, String address) {
+            switch (stage) {
+                case ConnectionPipeline.STAGE_CONNECT:
+                    return connect(address);
+                case ConnectionPipeline.STAGE_DISCOVER:
+                    final BluetoothGatt gatt = deviceMap.get(address);
+                    return gatt != null && gatt.discoverServices();
+                case ConnectionPipeline.STAGE_ENABLE:
+                    final BleSensor<?> sensor = BleSensors.getSensor(BleHeartRateSensor.getServiceUUIDString());
+                    return enableSensor(address, sensor, true);
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void cancel(int stage, String address) {
+            // A connect still pending in the stack would connect the device outside the pipeline
+            if (stage != ConnectionPipeline.STAGE_CONNECT)
+                return;
+            final BluetoothGatt gatt = deviceMap.get(address);
+            if (gatt != null)
+                gatt.disconnect();
+        }
+
+        @Override
+        public void onFinished(ConnectionPipeline finished, String report) {
+            if (pipeline == finished)
+                pipeline = null;
+            final Intent intent = new Intent(ACTION_BULK_CONNECT_FINISHED);
+            intent.putExtra(EXTRA_TEXT, report);
+            sendBroadcast(intent);
+        }
+    };
+
     /**
      * Retrieves a list of supported GATT services on the connected device. This should be
      * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
@@ -422,41 +1297,152 @@ public class BleMultipleDevicesService extends Service {
         return deviceMap.values().iterator().next().getServices();
     }
 
-    private void openFile(String deviceAddress){
-        Log.d(TAG, "Creating new file for device: " + deviceAddress);
-        Message msg = storageHandlers.get(deviceAddress).obtainMessage(SimpleStorageWorker.MSG_OPEN);
-        Bundle b = new Bundle();
-        b.putString("Prefix", deviceAddress);
-        msg.setData(b);
-        msg.sendToTarget();
+    /**
+     * @return The storage shards with their queue metrics, empty before initialization.
+     */
+    public List<StorageShard> getStorageShards() {
+        return storageDispatcher == null ? Collections.<StorageShard>emptyList() : storageDispatcher.getShards();
+    }
+
+    /**
+     * @return The session catalog, or null if external storage is not available.
+     */
+    public SessionCatalog getCatalog() {
+        return storageDispatcher == null ? null : storageDispatcher.getCatalog();
+    }
+
+    /**
+     * Sets whether devices connected from now on record the raw notification
+     * payloads instead of the heart rate and RR files.
+     */
+    public void setRawCapture(boolean enabled) {
+        raw_capture = enabled;
+    }
+
+    public boolean isRawCapture() {
+        return raw_capture;
+    }
+
+    /**
+     * Sets whether sessions opened from now on store the heart rate and RR
+     * files in the compressed block format instead of CSV.
+     */
+    public void setSeriesStorage(boolean enabled) {
+        series_storage = enabled;
+        if (storageDispatcher != null)
+            storageDispatcher.setSeriesStorage(enabled);
+    }
+
+    public boolean isSeriesStorage() {
+        return series_storage;
+    }
+
+    /**
+     * Sets the stages that the samples of devices connected from now on go
+     * through, see {@link PipelineSpec}; null decodes and publishes them
+     * directly. A persist stage takes over the session files from the
+     * storage consumer. Without a publish stage the samples are still
+     * published directly, so the bus consumers do not go quiet.
+     *
+     * @throws IllegalArgumentException If the spec is malformed.
+     */
+    public void setSamplePipeline(String spec) {
+        samplePipelineSpec = spec == null ? null : PipelineSpec.parse(spec);
+    }
+
+    public String getSamplePipeline() {
+        final PipelineSpec spec = samplePipelineSpec;
+        return spec == null ? null : spec.toString();
+    }
+
+    /**
+     * Builds the sample pipeline of a session if a spec is set.
+     *
+     * @param store Whether the session is recorded.
+     * @return Whether a persist stage records the session.
+     */
+    private boolean openSamplePipeline(BluetoothGattCallbackExecutor executor, final boolean store) {
+        closeSamplePipeline(executor);
+        final PipelineSpec spec = samplePipelineSpec;
+        if (spec == null)
+            return false;
+        final SessionCatalog catalog = getCatalog();
+        final boolean[] persisted = new boolean[1];
+        final boolean[] published = new boolean[1];
+        try {
+            executor.samples = spec.build(executor.deviceAddress, new PipelineSpec.StageFactory() {
+                @Override
+                public Stage create(String name, String deviceAddress) {
+                    if (PublishStage.NAME.equals(name)) {
+                        published[0] = true;
+                        return new PublishStage(bus);
+                    }
+                    if (PersistStage.NAME.equals(name)) {
+                        // Sessions not recorded keep the rest of the pipeline
+                        if (!store || catalog == null)
+                            return new SkipStage(name);
+                        persisted[0] = true;
+                        return new PersistStage(new SessionWriter(catalog, series_storage
+                                ? SessionFiles.SERIES_EXTENSION : SessionFiles.EXTENSION), catalog.getDirectory());
+                    }
+                    return null;
+                }
+            }, SamplePipeline.DEFAULT_QUEUE_CAPACITY, 1);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Sample pipeline " + spec + ": " + e.getMessage());
+            return false;
+        }
+        executor.samplesPublished = published[0];
+        samplePipelines.put(executor.deviceAddress, executor.samples);
+        return persisted[0];
     }
 
-    public void closeFile(String deviceAddress){
-        storageHandlers.get(deviceAddress).obtainMessage(SimpleStorageWorker.MSG_CLOSE).sendToTarget();
+    /**
+     * Finishes the sample pipeline of a session, if any, so that its last
+     * samples are published before the disconnect.
+     */
+    private void closeSamplePipeline(BluetoothGattCallbackExecutor executor) {
+        if (executor == null || executor.samples == null)
+            return;
+        final SamplePipeline samples = executor.samples;
+        executor.samples = null;
+        samples.close();
+        samplePipelines.remove(executor.deviceAddress);
+        Log.d(TAG, samples.toString());
     }
 
-    private void storeData(String deviceAddress, int[] data){
-        // Write to file
-        if (store_data){
-            int heart_rate = data[0];
-            int[] rr = Arrays.copyOfRange(data, 1, data.length);
-            long timestamp = SystemClock.elapsedRealtime() + time_offset;
+    /**
+     * @return Whether the raw capture of the device was opened.
+     */
+    private boolean openRawCapture(String deviceAddress){
+        final RawCaptureWriter capture = SimpleStorageWorker.openRawCapture(deviceAddress);
+        if (capture == null)
+            return false;
+        synchronized (rawCaptures) {
+            rawCaptures.put(deviceAddress, capture);
+        }
+        return true;
+    }
 
-            Log.d(TAG, "Writing from device: " + deviceAddress);
-            Message msg = storageHandlers.get(deviceAddress).obtainMessage(SimpleStorageWorker.MSG_WRITE);
-            Bundle bundle = new Bundle();
-            bundle.putInt("heart_rate", heart_rate);
-            bundle.putIntArray("rr", rr);
-            bundle.putLong("timestamp", timestamp);
-            msg.setData(bundle);
-            msg.sendToTarget();
+    private void closeRawCapture(String deviceAddress){
+        final RawCaptureWriter capture;
+        synchronized (rawCaptures) {
+            capture = rawCaptures.remove(deviceAddress);
+        }
+        if (capture == null)
+            return;
+        try {
+            Log.d(TAG, "Closing " + capture.getFile() + ", " + capture.getRecordCount() + " records");
+            capture.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
     private class getSynchronizationOffset extends AsyncTask<String, Void, long[]> {
         @Override
         protected long[] doInBackground(String... urls) {
-            SntpClient client = new SntpClient();
+            SntpClient client = new SntpClient(ElapsedRealtimeClock.INSTANCE);
             int timeout = 60*1000;
             if (client.requestTime(urls[0], timeout)) {
                 long[] result = new long[2];
@@ -464,6 +1450,8 @@ public class BleMultipleDevicesService extends Service {
                 result[1] = client.getNtpTimeReference();
                 return result;
             }
+            if (client.getError() != null)
+                Log.d(TAG, "request time failed: " + client.getError());
             return null;
         }
 
@@ -476,6 +1464,7 @@ public class BleMultipleDevicesService extends Service {
                 long ntpTime = result[0];
                 long ntpTimeRef = result[1];
                 time_offset = ntpTime - ntpTimeRef;
+                bus.publishClock(now(), time_offset);
                 long now = time_offset + SystemClock.elapsedRealtime();
                 Log.d(TAG, String.format("NTP time: %d\nNTP ref: %d\nNow: %d\nOffset: %d",
                         ntpTime, ntpTimeRef, now, time_offset));
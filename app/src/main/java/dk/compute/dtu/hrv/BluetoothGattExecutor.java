@@ -6,8 +6,7 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothProfile;
 
-import java.util.LinkedList;
-
+import dk.compute.dtu.hrv.core.gatt.GattActionQueue;
 import dk.compute.dtu.hrv.sensor.BleSensor;
 
 
@@ -17,7 +16,7 @@ import dk.compute.dtu.hrv.sensor.BleSensor;
  */
 public class BluetoothGattExecutor extends BluetoothGattCallback {
 
-    public interface ServiceAction {
+    public interface ServiceAction extends GattActionQueue.Action<BluetoothGatt> {
         public static final ServiceAction NULL = new ServiceAction() {
             @Override
             public boolean execute(BluetoothGatt bluetoothGatt) {
@@ -25,18 +24,9 @@ public class BluetoothGattExecutor extends BluetoothGattCallback {
                 return true;
             }
         };
-
-        /***
-         * Executes action.
-         * @param bluetoothGatt
-         * @return true - if action was executed instantly. false if action is waiting for
-         *         feedback.
-         */
-        public boolean execute(BluetoothGatt bluetoothGatt);
     }
 
-    private final LinkedList<BluetoothGattExecutor.ServiceAction> queue = new LinkedList<ServiceAction>();
-    private volatile ServiceAction currentAction;
+    private final GattActionQueue<BluetoothGatt> queue = new GattActionQueue<BluetoothGatt>();
 
     public void update(final BleSensor sensor) {
         queue.add(sensor.update());
@@ -49,36 +39,29 @@ public class BluetoothGattExecutor extends BluetoothGattCallback {
         }
     }
 
+    /**
+     * Returns whether all queued actions have been executed and acknowledged.
+     */
+    public boolean isIdle() {
+        return queue.isIdle();
+    }
+
     public void execute(BluetoothGatt gatt) {
-        if (currentAction != null)
-            return;
-
-        boolean next = !queue.isEmpty();
-        while (next) {
-            final BluetoothGattExecutor.ServiceAction action = queue.pop();
-            currentAction = action;
-            if (!action.execute(gatt))
-                break;
-
-            currentAction = null;
-            next = !queue.isEmpty();
-        }
+        queue.execute(gatt);
     }
 
     @Override
     public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
         super.onDescriptorWrite(gatt, descriptor, status);
 
-        currentAction = null;
-        execute(gatt);
+        queue.onActionCompleted(gatt);
     }
 
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicWrite(gatt, characteristic, status);
 
-        currentAction = null;
-        execute(gatt);
+        queue.onActionCompleted(gatt);
     }
 
     @Override
@@ -92,7 +75,6 @@ public class BluetoothGattExecutor extends BluetoothGattCallback {
     public void onCharacteristicRead(BluetoothGatt gatt,
                                      BluetoothGattCharacteristic characteristic,
                                      int status) {
-        currentAction = null;
-        execute(gatt);
+        queue.onActionCompleted(gatt);
     }
 }
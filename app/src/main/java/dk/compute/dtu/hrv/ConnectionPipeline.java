@@ -0,0 +1,226 @@
+package dk.compute.dtu.hrv;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+
+/**
+ * Moves a group of devices through connect, service discovery and enabling of
+ * notifications. Each stage runs at most a fixed number of devices at a time, so
+ * a device can be discovering while the next one is still connecting, without
+ * flooding the Bluetooth stack with requests.
+ *
+ * Stage completions may be reported from any thread; the pipeline itself runs
+ * on the thread of its handler. The time spent in each stage is recorded per
+ * device and summarised when every device has either finished or failed.
+ */
+public class ConnectionPipeline {
+    private final static String TAG = ConnectionPipeline.class.getSimpleName();
+
+    public static final int STAGE_CONNECT = 0;
+    public static final int STAGE_DISCOVER = 1;
+    public static final int STAGE_ENABLE = 2;
+    private static final int STAGES = 3;
+
+    private static final String[] STAGE_NAMES = { "connect", "discover", "enable" };
+
+    public interface Stages {
+        /**
+         * Starts a stage for a device. Completion is reported through
+         * {@link ConnectionPipeline#complete(String, int, boolean)}.
+         *
+         * @return false if the stage could not be started.
+         */
+        public boolean start(int stage, String address);
+
+        /**
+         * Called when a stage timed out, to abandon what it started, e.g. a
+         * pending connect that would otherwise still complete later.
+         */
+        public void cancel(int stage, String address);
+
+        /**
+         * Called when every device has finished or failed.
+         *
+         * @param report Per stage timing summary.
+         */
+        public void onFinished(ConnectionPipeline pipeline, String report);
+    }
+
+    private class Device {
+        final String address;
+        int stage = -1;
+        boolean running = false;
+        boolean failed = false;
+        final long[] started = new long[STAGES];
+        final long[] finished = new long[STAGES];
+
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, "Timeout in stage " + STAGE_NAMES[stage] + " for " + address);
+                stages.cancel(stage, address);
+                onComplete(Device.this, stage, false);
+            }
+        };
+
+        Device(String address) {
+            this.address = address;
+        }
+    }
+
+    private final Handler handler;
+    private final Stages stages;
+    private final int[] limits;
+    private final long stageTimeout;
+
+    private final LinkedHashMap<String, Device> devices = new LinkedHashMap<>();
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Device>[] waiting = new ArrayDeque[STAGES];
+    private final int[] running = new int[STAGES];
+    private int remaining = 0;
+    private long startTime;
+    // A stage failing as it starts completes inside pump(), which may finish before its caller checks
+    private boolean finished = false;
+
+    /**
+     * @param limits Maximum number of devices in each stage at the same time.
+     * @param stageTimeout Time in ms after which a stage is considered failed.
+     */
+    public ConnectionPipeline(Handler handler, Stages stages, int[] limits, long stageTimeout) {
+        this.handler = handler;
+        this.stages = stages;
+        this.limits = limits.clone();
+        this.stageTimeout = stageTimeout;
+        for (int i = 0; i < STAGES; i++)
+            waiting[i] = new ArrayDeque<>();
+    }
+
+    /**
+     * Queues the devices for the first stage. Must be called on the handler thread.
+     */
+    public void start(String[] addresses) {
+        startTime = SystemClock.elapsedRealtime();
+        for (String address : addresses) {
+            if (devices.containsKey(address))
+                continue;
+            final Device device = new Device(address);
+            synchronized (this) {
+                devices.put(address, device);
+            }
+            waiting[STAGE_CONNECT].add(device);
+            remaining++;
+            finished = false;
+        }
+        pump();
+        if (remaining == 0)
+            finish();
+    }
+
+    /**
+     * Returns whether the device is still moving through the pipeline.
+     */
+    public synchronized boolean manages(String address) {
+        final Device device = devices.get(address);
+        return device != null && !device.failed && device.finished[STAGES - 1] == 0;
+    }
+
+    /**
+     * Reports the outcome of a stage. Can be called from any thread.
+     */
+    public void complete(final String address, final int stage, final boolean success) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Device device = devices.get(address);
+                if (device != null)
+                    onComplete(device, stage, success);
+            }
+        });
+    }
+
+    private void onComplete(Device device, int stage, boolean success) {
+        if (!device.running || device.stage != stage)
+            return;
+
+        handler.removeCallbacks(device.timeout);
+        device.running = false;
+        running[stage]--;
+        synchronized (this) {
+            device.finished[stage] = SystemClock.elapsedRealtime();
+            device.failed = !success;
+        }
+
+        if (!success) {
+            Log.w(TAG, "Stage " + STAGE_NAMES[stage] + " failed for " + device.address);
+            remaining--;
+        } else if (stage + 1 < STAGES) {
+            waiting[stage + 1].add(device);
+        } else {
+            remaining--;
+        }
+
+        pump();
+        if (remaining == 0)
+            finish();
+    }
+
+    private void pump() {
+        // Later stages first, so devices close to recording are not held back
+        for (int stage = STAGES - 1; stage >= 0; stage--) {
+            while (running[stage] < limits[stage] && !waiting[stage].isEmpty()) {
+                final Device device = waiting[stage].poll();
+                device.stage = stage;
+                device.running = true;
+                device.started[stage] = SystemClock.elapsedRealtime();
+                running[stage]++;
+                handler.postDelayed(device.timeout, stageTimeout);
+                if (!stages.start(stage, device.address))
+                    onComplete(device, stage, false);
+            }
+        }
+    }
+
+    private void finish() {
+        if (finished)
+            return;
+        finished = true;
+        final String report = getReport();
+        Log.i(TAG, report);
+        stages.onFinished(this, report);
+    }
+
+    /**
+     * Summarises the time spent in each stage by the devices that completed it.
+     */
+    public String getReport() {
+        final StringBuilder report = new StringBuilder();
+        int ready = 0;
+        for (Device device : devices.values())
+            if (!device.failed && device.finished[STAGES - 1] != 0)
+                ready++;
+        report.append(String.format("%d of %d devices ready in %d ms", ready, devices.size(),
+                SystemClock.elapsedRealtime() - startTime));
+
+        for (int stage = 0; stage < STAGES; stage++) {
+            int count = 0;
+            long total = 0;
+            long max = 0;
+            for (Device device : devices.values()) {
+                if (device.finished[stage] == 0 || (device.failed && device.stage == stage))
+                    continue;
+                final long duration = device.finished[stage] - device.started[stage];
+                count++;
+                total += duration;
+                max = Math.max(max, duration);
+            }
+            if (count > 0)
+                report.append(String.format("\n%s: mean %d ms, max %d ms (%d devices)",
+                        STAGE_NAMES[stage], total / count, max, count));
+        }
+        return report.toString();
+    }
+}
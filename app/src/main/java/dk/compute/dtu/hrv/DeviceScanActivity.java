@@ -26,13 +26,18 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.ListView;
 import android.widget.Toast;
 
+import java.util.List;
+
 import dk.compute.dtu.hrv.adapters.BleDevicesAdapter;
+import dk.compute.dtu.hrv.scan.ScanAggregator;
+import dk.compute.dtu.hrv.scan.ScanScheduler;
 
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
@@ -40,11 +45,15 @@ import dk.compute.dtu.hrv.adapters.BleDevicesAdapter;
 public class DeviceScanActivity extends ListActivity {
 
     private static final int REQUEST_ENABLE_BT = 1;
-    private static final long SCAN_PERIOD = 500;
+    private static final int HEART_RATE_SERVICE_UUID16 = 0x180d;
+    // Upper bound on list refreshes while scanning
+    private static final long PUBLISH_INTERVAL = 500;
 
     private BleDevicesAdapter leDeviceListAdapter;
+    private BluetoothManager bluetoothManager;
     private BluetoothAdapter bluetoothAdapter;
-    private Scanner scanner;
+    private ScanScheduler scanner;
+    private ScanAggregator scanAggregator;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -61,8 +70,7 @@ public class DeviceScanActivity extends ListActivity {
 
         // Initializes a Bluetooth adapter.  For API level 18 and above, get a reference to
         // BluetoothAdapter through BluetoothManager.
-        final BluetoothManager bluetoothManager =
-                (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+        bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
         bluetoothAdapter = bluetoothManager.getAdapter();
 
         // Checks if Bluetooth is supported on the device.
@@ -93,17 +101,16 @@ public class DeviceScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
-                leDeviceListAdapter.clear();
+                scanAggregator.clear();
                 if (scanner == null) {
-                    scanner = new Scanner(bluetoothAdapter, mLeScanCallback);
-                    scanner.startScanning();
+                    startScanning();
 
                     invalidateOptionsMenu();
                 }
                 break;
             case R.id.menu_stop:
                 if (scanner != null) {
-                    scanner.stopScanning();
+                    scanner.stop();
                     scanner = null;
 
                     invalidateOptionsMenu();
@@ -146,7 +153,7 @@ public class DeviceScanActivity extends ListActivity {
         super.onPause();
 
         if (scanner != null) {
-            scanner.stopScanning();
+            scanner.stop();
             scanner = null;
         }
     }
@@ -167,82 +174,26 @@ public class DeviceScanActivity extends ListActivity {
         if (leDeviceListAdapter == null) {
             leDeviceListAdapter = new BleDevicesAdapter(getBaseContext());
             setListAdapter(leDeviceListAdapter);
+            scanAggregator = new ScanAggregator(HEART_RATE_SERVICE_UUID16, PUBLISH_INTERVAL,
+                    new Handler(), scanListener);
         }
 
-        if (scanner == null) {
-            scanner = new Scanner(bluetoothAdapter, mLeScanCallback);
-            scanner.startScanning();
-        }
+        if (scanner == null)
+            startScanning();
 
         invalidateOptionsMenu();
     }
 
-    // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
-
-                @Override
-                public void onLeScan(final BluetoothDevice device, final int rssi, byte[] scanRecord) {
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            leDeviceListAdapter.addDevice(device, rssi);
-                            leDeviceListAdapter.notifyDataSetChanged();
-                        }
-                    });
-                }
-            };
-
-    private static class Scanner extends Thread {
-        private final BluetoothAdapter bluetoothAdapter;
-        private final BluetoothAdapter.LeScanCallback mLeScanCallback;
-
-        private volatile boolean isScanning = false;
-
-        Scanner(BluetoothAdapter adapter, BluetoothAdapter.LeScanCallback callback) {
-            bluetoothAdapter = adapter;
-            mLeScanCallback = callback;
-        }
-
-        public boolean isScanning() {
-            return isScanning;
-        }
-
-        public void startScanning() {
-            synchronized (this) {
-                isScanning = true;
-                start();
-            }
-        }
-
-        public void stopScanning() {
-            synchronized (this) {
-                isScanning = false;
-                bluetoothAdapter.stopLeScan(mLeScanCallback);
-            }
-        }
+    private void startScanning() {
+        scanner = new ScanScheduler(bluetoothManager, HEART_RATE_SERVICE_UUID16, scanAggregator, new Handler());
+        scanner.start();
+    }
 
+    // Snapshots of the scan results, published on the UI thread at a capped rate.
+    private final ScanAggregator.Listener scanListener = new ScanAggregator.Listener() {
         @Override
-        public void run() {
-            try {
-                while (true) {
-                    synchronized (this) {
-                        if (!isScanning)
-                            break;
-
-                        bluetoothAdapter.startLeScan(mLeScanCallback);
-                    }
-
-                    sleep(SCAN_PERIOD);
-
-                    synchronized (this) {
-                        bluetoothAdapter.stopLeScan(mLeScanCallback);
-                    }
-                }
-            } catch (InterruptedException ignore) {
-            } finally {
-                bluetoothAdapter.stopLeScan(mLeScanCallback);
-            }
+        public void onScanSnapshot(List<ScanAggregator.ScanEntry> snapshot) {
+            leDeviceListAdapter.setDevices(snapshot);
         }
-    }
-}
\ No newline at end of file
+    };
+}
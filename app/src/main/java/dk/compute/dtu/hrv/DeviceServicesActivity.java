@@ -235,6 +235,8 @@ public class DeviceServicesActivity extends Activity {
         connectionState = (TextView) findViewById(R.id.connection_state);
         dataField = (TextView) findViewById(R.id.data_value);
 		heartRateField = (TextView) findViewById(R.id.heartrate_value);
+		// Synchrony needs more than one device
+		findViewById(R.id.synchrony_row).setVisibility(View.GONE);
 
 		demoButton = (Button) findViewById(R.id.demo);
 
@@ -0,0 +1,21 @@
+package dk.compute.dtu.hrv;
+
+import android.os.SystemClock;
+
+import dk.compute.dtu.hrv.core.time.Clock;
+
+/**
+ * {@link Clock} backed by {@link SystemClock#elapsedRealtime()}, which keeps counting in deep sleep.
+ */
+public class ElapsedRealtimeClock implements Clock {
+
+    public static final ElapsedRealtimeClock INSTANCE = new ElapsedRealtimeClock();
+
+    private ElapsedRealtimeClock() {
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+}
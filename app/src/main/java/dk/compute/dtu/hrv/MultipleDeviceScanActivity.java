@@ -26,25 +26,39 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.ListView;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import dk.compute.dtu.hrv.adapters.BleDevicesAdapter;
+import dk.compute.dtu.hrv.scan.ScanAggregator;
+import dk.compute.dtu.hrv.scan.ScanScheduler;
+import dk.compute.dtu.hrv.scan.StrapFilter;
 
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
  */
 public class MultipleDeviceScanActivity extends ListActivity {
 
+    // Optional number of straps the caller looks for, scanning backs off once all were seen
+    public static final String EXTRAS_EXPECTED_DEVICES = "EXPECTED_DEVICES";
+
     private static final int REQUEST_ENABLE_BT = 1;
-    private static final long SCAN_PERIOD = 500;
+    private static final int HEART_RATE_SERVICE_UUID16 = 0x180d;
+    // Upper bound on list refreshes while scanning
+    private static final long PUBLISH_INTERVAL = 500;
 
     private BleDevicesAdapter leDeviceListAdapter;
+    private BluetoothManager bluetoothManager;
     private BluetoothAdapter bluetoothAdapter;
-    private Scanner scanner;
+    private ScanScheduler scanner;
+    private ScanAggregator scanAggregator;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -61,8 +75,7 @@ public class MultipleDeviceScanActivity extends ListActivity {
 
         // Initializes a Bluetooth adapter.  For API level 18 and above, get a reference to
         // BluetoothAdapter through BluetoothManager.
-        final BluetoothManager bluetoothManager =
-                (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+        bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
         bluetoothAdapter = bluetoothManager.getAdapter();
 
         // Checks if Bluetooth is supported on the device.
@@ -79,10 +92,12 @@ public class MultipleDeviceScanActivity extends ListActivity {
         if (scanner == null || !scanner.isScanning()) {
             menu.findItem(R.id.menu_stop).setVisible(false);
             menu.findItem(R.id.menu_scan).setVisible(true);
+            menu.findItem(R.id.menu_connect_all).setVisible(false);
             menu.findItem(R.id.menu_refresh).setActionView(null);
         } else {
             menu.findItem(R.id.menu_stop).setVisible(true);
             menu.findItem(R.id.menu_scan).setVisible(false);
+            menu.findItem(R.id.menu_connect_all).setVisible(true);
             menu.findItem(R.id.menu_refresh).setActionView(
                     R.layout.actionbar_indeterminate_progress);
         }
@@ -93,17 +108,16 @@ public class MultipleDeviceScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
-                leDeviceListAdapter.clear();
+                scanAggregator.clear();
                 if (scanner == null) {
-                    scanner = new Scanner(bluetoothAdapter, mLeScanCallback);
-                    scanner.startScanning();
+                    startScanning();
 
                     invalidateOptionsMenu();
                 }
                 break;
             case R.id.menu_stop:
                 if (scanner != null) {
-                    scanner.stopScanning();
+                    scanner.stop();
                     scanner = null;
 
                     invalidateOptionsMenu();
@@ -113,10 +127,35 @@ public class MultipleDeviceScanActivity extends ListActivity {
                     finish();
                 }
                 break;
+            case R.id.menu_connect_all:
+                connectAll(StrapFilter.defaultFilter());
+                break;
         }
         return true;
     }
 
+    /**
+     * Returns all scanned devices accepted by the filter to be connected in bulk.
+     */
+    private void connectAll(StrapFilter filter) {
+        final ArrayList<String> addresses = new ArrayList<>();
+        for (int i = 0; i < leDeviceListAdapter.getCount(); i++) {
+            final ScanAggregator.ScanEntry entry = leDeviceListAdapter.getEntry(i);
+            if (filter.matches(entry))
+                addresses.add(entry.address);
+        }
+        if (addresses.isEmpty()) {
+            Toast.makeText(this, R.string.no_matching_devices, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        final Intent intent = new Intent();
+        intent.putExtra(MultipleDeviceServicesActivity.EXTRAS_DEVICE_ADDRESSES,
+                addresses.toArray(new String[addresses.size()]));
+        setResult(Activity.RESULT_OK, intent);
+        finish();
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -150,7 +189,7 @@ public class MultipleDeviceScanActivity extends ListActivity {
         super.onPause();
 
         if (scanner != null) {
-            scanner.stopScanning();
+            scanner.stop();
             scanner = null;
         }
     }
@@ -172,82 +211,27 @@ public class MultipleDeviceScanActivity extends ListActivity {
         if (leDeviceListAdapter == null) {
             leDeviceListAdapter = new BleDevicesAdapter(getBaseContext());
             setListAdapter(leDeviceListAdapter);
+            scanAggregator = new ScanAggregator(HEART_RATE_SERVICE_UUID16, PUBLISH_INTERVAL,
+                    new Handler(), scanListener);
         }
 
-        if (scanner == null) {
-            scanner = new Scanner(bluetoothAdapter, mLeScanCallback);
-            scanner.startScanning();
-        }
+        if (scanner == null)
+            startScanning();
 
         invalidateOptionsMenu();
     }
 
-    // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
-
-                @Override
-                public void onLeScan(final BluetoothDevice device, final int rssi, byte[] scanRecord) {
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            leDeviceListAdapter.addDevice(device, rssi);
-                            leDeviceListAdapter.notifyDataSetChanged();
-                        }
-                    });
-                }
-            };
-
-    private static class Scanner extends Thread {
-        private final BluetoothAdapter bluetoothAdapter;
-        private final BluetoothAdapter.LeScanCallback mLeScanCallback;
-
-        private volatile boolean isScanning = false;
-
-        Scanner(BluetoothAdapter adapter, BluetoothAdapter.LeScanCallback callback) {
-            bluetoothAdapter = adapter;
-            mLeScanCallback = callback;
-        }
-
-        public boolean isScanning() {
-            return isScanning;
-        }
-
-        public void startScanning() {
-            synchronized (this) {
-                isScanning = true;
-                start();
-            }
-        }
-
-        public void stopScanning() {
-            synchronized (this) {
-                isScanning = false;
-                bluetoothAdapter.stopLeScan(mLeScanCallback);
-            }
-        }
+    private void startScanning() {
+        scanner = new ScanScheduler(bluetoothManager, HEART_RATE_SERVICE_UUID16, scanAggregator, new Handler());
+        scanner.setExpected(getIntent().getIntExtra(EXTRAS_EXPECTED_DEVICES, 0));
+        scanner.start();
+    }
 
+    // Snapshots of the scan results, published on the UI thread at a capped rate.
+    private final ScanAggregator.Listener scanListener = new ScanAggregator.Listener() {
         @Override
-        public void run() {
-            try {
-                while (true) {
-                    synchronized (this) {
-                        if (!isScanning)
-                            break;
-
-                        bluetoothAdapter.startLeScan(mLeScanCallback);
-                    }
-
-                    sleep(SCAN_PERIOD);
-
-                    synchronized (this) {
-                        bluetoothAdapter.stopLeScan(mLeScanCallback);
-                    }
-                }
-            } catch (InterruptedException ignore) {
-            } finally {
-                bluetoothAdapter.stopLeScan(mLeScanCallback);
-            }
+        public void onScanSnapshot(List<ScanAggregator.ScanEntry> snapshot) {
+            leDeviceListAdapter.setDevices(snapshot);
         }
-    }
-}
\ No newline at end of file
+    };
+}
@@ -26,22 +26,29 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.ExpandableListView;
 import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import dk.compute.dtu.hrv.adapters.BleServicesAdapter;
 import dk.compute.dtu.hrv.adapters.BleServicesAdapter.OnServiceItemClickListener;
+import dk.compute.dtu.hrv.core.pipeline.PipelineSpec;
+import dk.compute.dtu.hrv.dashboard.DeviceDashboard;
+import dk.compute.dtu.hrv.demo.DemoRrPlotActivity;
 import dk.compute.dtu.hrv.sensor.BleHeartRateSensor;
 import dk.compute.dtu.hrv.sensor.BleSensor;
 import dk.compute.dtu.hrv.sensor.BleSensors;
 
+import java.io.File;
 import java.util.List;
 
 /**
@@ -55,12 +62,19 @@ public class MultipleDeviceServicesActivity extends Activity {
 
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
+    public static final String EXTRAS_DEVICE_ADDRESSES = "DEVICE_ADDRESSES";
     public static final String START_SCAN_ACTION = "START_SCAN";
 
+    // Straps in the last bulk selection, the scan looks for as many next time
+    private static final String PREF_EXPECTED_DEVICES = "expected_devices";
+    // The synchrony index moves with the beats, once a second is enough
+    private static final long SYNCHRONY_REFRESH = 1000;
+
     private TextView connectionState;
     private TextView dataField;
-    private TextView heartRateField;
-    private TextView intervalField;
+    private DeviceDashboard dashboard;
+    private TextView synchronyField;
+    private final Handler handler = new Handler();
     private TextView deviceAddress;
     private Button demoButton;
 
@@ -75,6 +89,17 @@ public class MultipleDeviceServicesActivity extends Activity {
 
 	private OnServiceItemClickListener serviceListener;
 
+    // Shows the group synchrony index of the service while the activity is in front
+    private final Runnable synchronyUpdater = new Runnable() {
+        @Override
+        public void run() {
+            final double index = bleService == null ? Double.NaN : bleService.getGroupSynchrony();
+            synchronyField.setText(Double.isNaN(index) ? getString(R.string.no_data)
+                    : String.format("%.2f", index));
+            handler.postDelayed(this, SYNCHRONY_REFRESH);
+        }
+    };
+
     // Code to manage Service lifecycle.
     private final ServiceConnection serviceConnection = new ServiceConnection() {
 
@@ -86,6 +111,7 @@ public class MultipleDeviceServicesActivity extends Activity {
             } else {
                 Log.d(TAG, "Connected and BLE working");
             }
+            dashboard.attach(bleService.getBus());
         }
 
         @Override
@@ -119,8 +145,12 @@ public class MultipleDeviceServicesActivity extends Activity {
                 if (gattServices != null)
                     gattServiceAdapter = new BleServicesAdapter(getApplicationContext(), gattServices);
 				enableHeartRateSensor();
+            } else if (BleMultipleDevicesService.ACTION_BULK_CONNECT_FINISHED.equals(action)) {
+                Toast.makeText(MultipleDeviceServicesActivity.this,
+                        intent.getStringExtra(BleMultipleDevicesService.EXTRA_TEXT), Toast.LENGTH_LONG).show();
             } else if (BleService.ACTION_DATA_AVAILABLE.equals(action)) {
-				displayData(intent.getStringExtra(BleService.EXTRA_SERVICE_UUID), intent.getStringExtra(BleService.EXTRA_TEXT));
+				displayData(intent.getStringExtra(BleService.EXTRA_SERVICE_UUID),
+                        intent.getStringExtra(BleService.EXTRA_TEXT));
 
             }
         }
@@ -161,8 +191,6 @@ public class MultipleDeviceServicesActivity extends Activity {
     private void clearUI() {
         gattServicesList.setAdapter((SimpleExpandableListAdapter) null);
         dataField.setText(R.string.no_data);
-		heartRateField.setText(R.string.no_data);
-		intervalField.setText(R.string.no_data);
     }
 
 	public void setServiceListener(OnServiceItemClickListener listener) {
@@ -181,7 +209,18 @@ public class MultipleDeviceServicesActivity extends Activity {
         deviceAddress = (TextView) findViewById(R.id.device_address);
         connectionState = (TextView) findViewById(R.id.connection_state);
         dataField = (TextView) findViewById(R.id.data_value);
-		heartRateField = (TextView) findViewById(R.id.heartrate_value);
+        gattServicesList = (ExpandableListView) findViewById(R.id.gatt_services_list);
+        // The dashboard replaces the single heart rate field
+        findViewById(R.id.heartrate_row).setVisibility(View.GONE);
+        dashboard = new DeviceDashboard(this, (ViewGroup) findViewById(R.id.device_tiles));
+        synchronyField = (TextView) findViewById(R.id.synchrony_value);
+        demoButton = (Button) findViewById(R.id.demo);
+        demoButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                startActivity(new Intent(MultipleDeviceServicesActivity.this, DemoRrPlotActivity.class));
+            }
+        });
 
         startService(new Intent(this, BleMultipleDevicesService.class));
     }
@@ -190,6 +229,8 @@ public class MultipleDeviceServicesActivity extends Activity {
     protected void onResume() {
         super.onResume();
         registerReceiver(gattUpdateReceiver, makeGattUpdateIntentFilter());
+        dashboard.start();
+        handler.post(synchronyUpdater);
 
         final Intent gattServiceIntent = new Intent(this, BleMultipleDevicesService.class);
         bindService(gattServiceIntent, serviceConnection, BIND_AUTO_CREATE);
@@ -199,6 +240,9 @@ public class MultipleDeviceServicesActivity extends Activity {
     protected void onPause() {
         super.onPause();
         unregisterReceiver(gattUpdateReceiver);
+        dashboard.stop();
+        dashboard.detach();
+        handler.removeCallbacks(synchronyUpdater);
         unbindService(serviceConnection);
     }
 
@@ -206,8 +250,11 @@ public class MultipleDeviceServicesActivity extends Activity {
     protected void onDestroy() {
         super.onDestroy();
 
-        Log.d(TAG, "Stopping service");
-        stopService(new Intent(this, BleMultipleDevicesService.class));
+        // A recording keeps running in the foreground without the activity
+        if (bleService == null || !bleService.isRecording()) {
+            Log.d(TAG, "Stopping service");
+            stopService(new Intent(this, BleMultipleDevicesService.class));
+        }
         bleService = null;
     }
 
@@ -215,6 +262,16 @@ public class MultipleDeviceServicesActivity extends Activity {
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.gatt_services, menu);
         menu.findItem(R.id.menu_scan).setVisible(true);
+        final boolean streaming = bleService != null && bleService.isStreaming();
+        final boolean network = streaming && bleService.isStreamingToNetwork();
+        menu.findItem(R.id.menu_stream).setChecked(streaming && !network);
+        menu.findItem(R.id.menu_stream_network).setChecked(network);
+        // Recording options apply to devices connected from now on
+        menu.findItem(R.id.menu_raw_capture).setChecked(bleService != null && bleService.isRawCapture());
+        menu.findItem(R.id.menu_series_storage).setChecked(bleService != null && bleService.isSeriesStorage());
+        menu.findItem(R.id.menu_sample_pipeline).setChecked(bleService != null
+                && bleService.getSamplePipeline() != null);
+        menu.findItem(R.id.menu_tracing).setChecked(bleService != null && bleService.isTracing());
         if (isConnected) {
             menu.findItem(R.id.menu_connect).setVisible(false);
             menu.findItem(R.id.menu_disconnect).setVisible(true);
@@ -231,7 +288,7 @@ public class MultipleDeviceServicesActivity extends Activity {
             case R.id.menu_connect:
                 return true;
             case R.id.menu_disconnect:
-                bleService.disconnect();
+                bleService.stopRecording();
                 return true;
             case android.R.id.home:
                 onBackPressed();
@@ -239,10 +296,69 @@ public class MultipleDeviceServicesActivity extends Activity {
             case R.id.menu_scan:
                 startScanning();
                 return true;
+            case R.id.menu_stream:
+                toggleStreaming(false);
+                return true;
+            case R.id.menu_stream_network:
+                toggleStreaming(true);
+                return true;
+            case R.id.menu_raw_capture:
+                if (bleService != null)
+                    bleService.setRawCapture(!bleService.isRawCapture());
+                invalidateOptionsMenu();
+                return true;
+            case R.id.menu_series_storage:
+                if (bleService != null)
+                    bleService.setSeriesStorage(!bleService.isSeriesStorage());
+                invalidateOptionsMenu();
+                return true;
+            case R.id.menu_sample_pipeline:
+                if (bleService != null)
+                    bleService.setSamplePipeline(bleService.getSamplePipeline() == null ? PipelineSpec.DEFAULT : null);
+                invalidateOptionsMenu();
+                return true;
+            case R.id.menu_tracing:
+                toggleTracing();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Stops a running stream, or starts one for this device only or, when
+     * chosen explicitly, for the network.
+     */
+    private void toggleStreaming(boolean network) {
+        if (bleService == null)
+            return;
+        if (bleService.isStreaming()) {
+            bleService.stopStreaming();
+        } else {
+            final int port = bleService.startStreaming(BleMultipleDevicesService.STREAM_PORT, network);
+            Toast.makeText(this, port < 0 ? getString(R.string.stream_failed)
+                    : getString(network ? R.string.stream_started_network : R.string.stream_started, port),
+                    Toast.LENGTH_LONG).show();
+        }
+        invalidateOptionsMenu();
+    }
+
+    /**
+     * Starts tracing the samples, or stops and writes the trace so far.
+     */
+    private void toggleTracing() {
+        if (bleService == null)
+            return;
+        if (bleService.isTracing()) {
+            bleService.setTracing(false);
+            final File trace = bleService.exportTrace();
+            Toast.makeText(this, trace == null ? getString(R.string.trace_failed)
+                    : getString(R.string.trace_written, trace.getAbsolutePath()), Toast.LENGTH_LONG).show();
+        } else {
+            bleService.setTracing(true);
+        }
+        invalidateOptionsMenu();
+    }
+
     private void updateConnectionState(final int resourceId) {
         runOnUiThread(new Runnable() {
             @Override
@@ -252,14 +368,13 @@ public class MultipleDeviceServicesActivity extends Activity {
         });
     }
 
-    private void displayData(String uuid, String data) {
-		if (data != null) {
-			if (uuid.equals(BleHeartRateSensor.getServiceUUIDString())) {
-				heartRateField.setText(data);
-			} else {
-				dataField.setText(data);
-			}
-		}
+    private void displayData(String uuid, String text) {
+        // Heart rate is read by the dashboard from the data bus
+        if (uuid.equals(BleHeartRateSensor.getServiceUUIDString()))
+            return;
+        if (text != null) {
+            dataField.setText(text);
+        }
     }
 
 	private boolean enableHeartRateSensor() {
@@ -275,17 +390,13 @@ public class MultipleDeviceServicesActivity extends Activity {
 				.getUuid()
 				.toString());
 
-		if (heartRateSensor != null)
-			bleService.enableSensor(heartRateSensor, false);
-
 		if (sensor == null) {
 			bleService.readCharacteristic(characteristic);
 			return true;
 		}
 
-		if (sensor == heartRateSensor)
-			return true;
-
+		// Devices that already notify are skipped by the service, so enabling
+		// again picks up the device that was just discovered
 		heartRateSensor = sensor;
 		bleService.enableSensor(sensor, true);
 
@@ -298,11 +409,25 @@ public class MultipleDeviceServicesActivity extends Activity {
         intentFilter.addAction(BleService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BleService.ACTION_GATT_SERVICES_DISCOVERED);
         intentFilter.addAction(BleService.ACTION_DATA_AVAILABLE);
+        intentFilter.addAction(BleMultipleDevicesService.ACTION_BULK_CONNECT_FINISHED);
         return intentFilter;
     }
 
+    /**
+     * Starts the recording through the service's start command, so it continues
+     * when the activity goes away.
+     */
+    private void startRecording(String[] deviceAddresses) {
+        final Intent intent = new Intent(this, BleMultipleDevicesService.class);
+        intent.setAction(BleMultipleDevicesService.ACTION_START_RECORDING);
+        intent.putExtra(BleMultipleDevicesService.EXTRA_DEVICE_ADDRESSES, deviceAddresses);
+        startService(intent);
+    }
+
     private void startScanning(){
         Intent startScanIntent = new Intent(this, MultipleDeviceScanActivity.class);
+        startScanIntent.putExtra(MultipleDeviceScanActivity.EXTRAS_EXPECTED_DEVICES,
+                getPreferences(Context.MODE_PRIVATE).getInt(PREF_EXPECTED_DEVICES, 0));
         startActivityForResult(startScanIntent, 1);
     }
 
@@ -311,10 +436,18 @@ public class MultipleDeviceServicesActivity extends Activity {
         super.onActivityResult(requestCode, resultCode, data);
         if (requestCode == 1){
             if (resultCode == Activity.RESULT_OK){
+                String[] deviceAddresses = data.getStringArrayExtra(EXTRAS_DEVICE_ADDRESSES);
+                if (deviceAddresses != null) {
+                    Log.d(TAG, "Connecting to " + deviceAddresses.length + " devices");
+                    getPreferences(Context.MODE_PRIVATE).edit()
+                            .putInt(PREF_EXPECTED_DEVICES, deviceAddresses.length).apply();
+                    startRecording(deviceAddresses);
+                    return;
+                }
                 String deviceName = data.getStringExtra(EXTRAS_DEVICE_NAME);
                 String deviceAddress = data.getStringExtra(EXTRAS_DEVICE_ADDRESS);
                 Log.d(TAG, "Connecting to: " + deviceName + " at " + deviceAddress);
-                bleService.connect(deviceAddress);
+                startRecording(new String[] {deviceAddress});
             }
         }
     }
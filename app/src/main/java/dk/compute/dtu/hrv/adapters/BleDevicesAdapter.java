@@ -9,36 +9,41 @@ import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 
-/** Adapter for holding devices found through scanning.
+import dk.compute.dtu.hrv.scan.ScanAggregator.ScanEntry;
+
+/** Adapter for holding devices found through scanning. It shows the latest
+ *  snapshot published by a {@code ScanAggregator}.
  *  Created by steven on 9/5/13.
  *  Modified by olli on 3/28/2014.
  */
 public class BleDevicesAdapter extends BaseAdapter {
     private final LayoutInflater inflater;
 
-    private final ArrayList<BluetoothDevice> leDevices;
-    private final HashMap<BluetoothDevice, Integer> rssiMap = new HashMap<BluetoothDevice, Integer>();
+    private List<ScanEntry> leDevices;
 
     public BleDevicesAdapter(Context context) {
-        leDevices = new ArrayList<BluetoothDevice>();
+        leDevices = new ArrayList<ScanEntry>();
         inflater = LayoutInflater.from(context);
     }
 
-    public void addDevice(BluetoothDevice device, int rssi) {
-        if (!leDevices.contains(device)) {
-            leDevices.add(device);
-        }
-        rssiMap.put(device, rssi);
+    public void setDevices(List<ScanEntry> snapshot) {
+        leDevices = snapshot;
+        notifyDataSetChanged();
     }
 
     public BluetoothDevice getDevice(int position) {
+        return leDevices.get(position).device;
+    }
+
+    public ScanEntry getEntry(int position) {
         return leDevices.get(position);
     }
 
     public void clear() {
-        leDevices.clear();
+        leDevices = new ArrayList<ScanEntry>();
+        notifyDataSetChanged();
     }
 
     @Override
@@ -71,14 +76,14 @@ public class BleDevicesAdapter extends BaseAdapter {
             viewHolder = (ViewHolder) view.getTag();
         }
 
-        BluetoothDevice device = leDevices.get(i);
-        final String deviceName = device.getName();
+        ScanEntry entry = leDevices.get(i);
+        final String deviceName = entry.name;
         if (deviceName != null && deviceName.length() > 0)
             viewHolder.deviceName.setText(deviceName);
         else
             viewHolder.deviceName.setText(dk.compute.dtu.hrv.R.string.unknown_device);
-        viewHolder.deviceAddress.setText(device.getAddress());
-        viewHolder.deviceRssi.setText(""+rssiMap.get(device)+" dBm");
+        viewHolder.deviceAddress.setText(entry.address);
+        viewHolder.deviceRssi.setText(""+entry.rssi+" dBm");
 
         return view;
     }
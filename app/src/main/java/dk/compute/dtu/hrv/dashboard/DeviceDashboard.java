@@ -0,0 +1,138 @@
+package dk.compute.dtu.hrv.dashboard;
+
+import android.content.Context;
+import android.view.Choreographer;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import dk.compute.dtu.hrv.core.bus.DataBus;
+import dk.compute.dtu.hrv.core.bus.DataEvent;
+import dk.compute.dtu.hrv.core.bus.EventHandler;
+import dk.compute.dtu.hrv.core.bus.Subscription;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+
+/**
+ * One {@link DeviceTileView} per connected strap inside a container view.
+ *
+ * Events are read from a dropping {@link DataBus} subscription on each
+ * {@code Choreographer} frame and only update the {@link DeviceHistory} of their
+ * device. The same frame then invalidates the tiles whose history changed, so
+ * the UI cost follows the frame rate instead of the number of notifications.
+ *
+ * Only used from the main thread.
+ */
+public class DeviceDashboard implements Choreographer.FrameCallback, EventHandler {
+
+    // Events handled per frame at most, the rest waits for the next frame
+    private static final int EVENTS_PER_FRAME = 1024;
+
+    private final Context context;
+    private final ViewGroup container;
+
+    private final HashMap<String, DeviceTileView> tiles = new HashMap<>();
+    private final ArrayList<DeviceTileView> tileList = new ArrayList<>();
+
+    private Subscription subscription;
+    private boolean running = false;
+
+    public DeviceDashboard(Context context, ViewGroup container) {
+        this.context = context;
+        this.container = container;
+    }
+
+    /**
+     * Subscribes to the events of the bus. The UI may fall behind, so events it
+     * cannot keep up with are dropped rather than holding back the producer.
+     */
+    public void attach(DataBus bus) {
+        detach();
+        subscription = bus.subscribe("dashboard", Subscription.DROP);
+    }
+
+    public void detach() {
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
+        }
+    }
+
+    @Override
+    public void onEvent(DataEvent event, long sequence, boolean endOfBatch) {
+        if (event.deviceAddress == null)
+            return;
+
+        switch (event.type) {
+            case DataEvent.TYPE_CONNECTED:
+                getTile(event.deviceAddress).getHistory().setConnected(true);
+                break;
+            case DataEvent.TYPE_DISCONNECTED:
+                getTile(event.deviceAddress).getHistory().setConnected(false);
+                break;
+            case DataEvent.TYPE_HEART_RATE:
+                getTile(event.deviceAddress).getHistory().setHeartRate(event.value);
+                break;
+            case DataEvent.TYPE_RR:
+                getTile(event.deviceAddress).getHistory().addInterval(event.value);
+                break;
+            case DataEvent.TYPE_CONTACT:
+                getTile(event.deviceAddress).getHistory().setContact(
+                        event.contact != HeartRateSample.CONTACT_LOST);
+                break;
+        }
+    }
+
+    private DeviceTileView getTile(String deviceAddress) {
+        DeviceTileView tile = tiles.get(deviceAddress);
+        if (tile == null) {
+            tile = new DeviceTileView(context, new DeviceHistory(deviceAddress));
+            tiles.put(deviceAddress, tile);
+            tileList.add(tile);
+            container.addView(tile, new LinearLayout.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+        }
+        return tile;
+    }
+
+    public void clear() {
+        container.removeAllViews();
+        tiles.clear();
+        tileList.clear();
+    }
+
+    /**
+     * Starts the frame tick, call from {@code onResume}.
+     */
+    public void start() {
+        if (running)
+            return;
+        running = true;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Stops the frame tick, call from {@code onPause}.
+     */
+    public void stop() {
+        running = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running)
+            return;
+
+        if (subscription != null)
+            subscription.poll(this, EVENTS_PER_FRAME);
+
+        for (int i = 0; i < tileList.size(); i++) {
+            final DeviceTileView tile = tileList.get(i);
+            if (tile.getHistory().takeDirty())
+                tile.invalidate();
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+}
@@ -0,0 +1,142 @@
+package dk.compute.dtu.hrv.dashboard;
+
+import dk.compute.dtu.hrv.core.analytics.RunningRmssd;
+import dk.compute.dtu.hrv.core.analytics.StreamingDfa;
+import dk.compute.dtu.hrv.core.analytics.WindowedEntropy;
+import dk.compute.dtu.hrv.core.buffer.IntRingBuffer;
+import dk.compute.dtu.hrv.core.buffer.MinMaxDecimator;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+
+/**
+ * Recent heart rate and RR history of one device, fed from the data bus
+ * and read by its {@link DeviceTileView} on the next frame tick. Keeps a running
+ * RMSSD over the last {@link #RMSSD_BEATS} successive differences and sample
+ * entropy and DFA alpha1 over the last {@link #NONLINEAR_BEATS} beats.
+ * Intervals are kept in ms.
+ *
+ * Only used from the main thread.
+ */
+public class DeviceHistory {
+
+    public static final int CAPACITY = 1024;
+    public static final int RMSSD_BEATS = 30;
+    // About five minutes of beats for the nonlinear indices
+    public static final int NONLINEAR_BEATS = 300;
+    // Sample entropy tolerance in ms
+    public static final double ENTROPY_TOLERANCE = 20;
+
+    private final String deviceAddress;
+
+    private final IntRingBuffer intervals = new IntRingBuffer(CAPACITY);
+    private final RunningRmssd rmssd = new RunningRmssd(RMSSD_BEATS);
+    private final WindowedEntropy entropy = new WindowedEntropy(NONLINEAR_BEATS, 2, ENTROPY_TOLERANCE);
+    private final StreamingDfa dfa = new StreamingDfa(NONLINEAR_BEATS, StreamingDfa.defaultSizes());
+
+    private int heartRate = -1;
+    private boolean connected = true;
+    private boolean contact = true;
+    private boolean dirty = true;
+
+    public DeviceHistory(String deviceAddress) {
+        this.deviceAddress = deviceAddress;
+    }
+
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    public void setHeartRate(int heartRate) {
+        this.heartRate = heartRate;
+        dirty = true;
+    }
+
+    /**
+     * Adds one RR interval as sent by the strap, in 1/1024 s.
+     */
+    public void addInterval(int value) {
+        // Intervals measured without skin contact are noise
+        if (!contact || value <= 0)
+            return;
+
+        final int interval = (int) Math.round(HeartRateSample.toMillis(value));
+        intervals.add(interval);
+        rmssd.add(interval);
+        entropy.add(interval);
+        dfa.add(interval);
+        dirty = true;
+    }
+
+    public void setConnected(boolean connected) {
+        this.connected = connected;
+        if (!connected)
+            breakSegment();
+        dirty = true;
+    }
+
+    public void setContact(boolean contact) {
+        if (this.contact && !contact)
+            breakSegment();
+        this.contact = contact;
+        dirty = true;
+    }
+
+    public boolean hasContact() {
+        return contact;
+    }
+
+    private void breakSegment() {
+        rmssd.breakSegment();
+        // Windows must not span the gap
+        entropy.reset();
+        dfa.reset();
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public int getHeartRate() {
+        return heartRate;
+    }
+
+    /**
+     * @return The RMSSD in ms over the recent beats, or -1 if there are not enough beats yet.
+     */
+    public int getRmssd() {
+        final double value = rmssd.get();
+        return value < 0 ? -1 : (int) Math.round(value);
+    }
+
+    /**
+     * @return Sample entropy over the recent beats, NaN if not available yet.
+     */
+    public double getSampleEntropy() {
+        return entropy.sampleEntropy();
+    }
+
+    /**
+     * @return Short term DFA exponent over the recent beats, NaN if not available yet.
+     */
+    public double getDfaAlpha1() {
+        return dfa.alpha1();
+    }
+
+    /**
+     * Returns whether the history changed since the last call and clears the flag.
+     */
+    public boolean takeDirty() {
+        final boolean wasDirty = dirty;
+        dirty = false;
+        return wasDirty;
+    }
+
+    /**
+     * Min/max decimates the stored intervals in ms, oldest first, into at most
+     * {@code buckets} buckets.
+     *
+     * @return Number of buckets filled.
+     */
+    public int decimate(int buckets, int[] min, int[] max) {
+        return MinMaxDecimator.decimate(intervals, buckets, min, max);
+    }
+}
@@ -0,0 +1,145 @@
+package dk.compute.dtu.hrv.dashboard;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.view.View;
+
+/**
+ * Dashboard tile of one strap: heart rate, RMSSD, DFA alpha1, sample entropy and a sparkline of the RR
+ * history decimated to one min/max segment per pixel column.
+ *
+ * The tile never updates itself; {@link DeviceDashboard} invalidates it from the
+ * frame tick when its history changed. Drawing reuses preallocated buffers.
+ */
+public class DeviceTileView extends View {
+
+    private static final float TEXT_AREA = 0.4f;
+
+    private final DeviceHistory history;
+
+    private final Paint labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint valuePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint linePaint = new Paint();
+
+    private final char[] digits = new char[12];
+
+    private int[] min = new int[0];
+    private int[] max = new int[0];
+    private float[] lines = new float[0];
+
+    public DeviceTileView(Context context, DeviceHistory history) {
+        super(context);
+        this.history = history;
+
+        final float density = context.getResources().getDisplayMetrics().density;
+        labelPaint.setTextSize(12 * density);
+        labelPaint.setColor(Color.GRAY);
+        valuePaint.setTextSize(28 * density);
+        linePaint.setStrokeWidth(1);
+        setMinimumHeight((int) (64 * density));
+    }
+
+    public DeviceHistory getHistory() {
+        return history;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        final int buckets = Math.max(w - (int) (w * TEXT_AREA), 0);
+        min = new int[buckets];
+        max = new int[buckets];
+        lines = new float[buckets * 4];
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        final int color = history.isConnected() && history.hasContact() ? Color.BLACK : Color.LTGRAY;
+        valuePaint.setColor(color);
+        linePaint.setColor(color);
+
+        final float height = getHeight();
+        final float textX = getPaddingLeft();
+        canvas.drawText(history.getDeviceAddress(), textX, labelPaint.getTextSize(), labelPaint);
+        drawNumber(canvas, history.getHeartRate(), textX, height - labelPaint.getTextSize(), valuePaint);
+
+        final float rmssdX = textX + valuePaint.getTextSize() * 2.5f;
+        canvas.drawText("RMSSD ms", rmssdX, labelPaint.getTextSize(), labelPaint);
+        drawNumber(canvas, history.getRmssd(), rmssdX, height - labelPaint.getTextSize(), valuePaint);
+
+        // Nonlinear indices as small labels between the numbers
+        final float indexY = labelPaint.getTextSize() * 2.2f;
+        canvas.drawText("a1", textX, indexY, labelPaint);
+        drawHundredths(canvas, history.getDfaAlpha1(), textX + labelPaint.getTextSize() * 1.5f, indexY, labelPaint);
+        canvas.drawText("SampEn", rmssdX, indexY, labelPaint);
+        drawHundredths(canvas, history.getSampleEntropy(), rmssdX + labelPaint.getTextSize() * 4, indexY, labelPaint);
+
+        drawSparkline(canvas, getWidth() * TEXT_AREA, height);
+    }
+
+    private void drawNumber(Canvas canvas, int value, float x, float y, Paint paint) {
+        if (value < 0) {
+            canvas.drawText("-", x, y, paint);
+            return;
+        }
+        // Format without allocating a String per frame
+        int start = digits.length;
+        do {
+            digits[--start] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        canvas.drawText(digits, start, digits.length - start, x, y, paint);
+    }
+
+    private void drawHundredths(Canvas canvas, double value, float x, float y, Paint paint) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || value < 0) {
+            canvas.drawText("-", x, y, paint);
+            return;
+        }
+        int hundredths = (int) Math.round(value * 100);
+        int start = digits.length;
+        for (int i = 0; i < 3 || hundredths > 0; i++) {
+            if (i == 2)
+                digits[--start] = '.';
+            digits[--start] = (char) ('0' + hundredths % 10);
+            hundredths /= 10;
+        }
+        canvas.drawText(digits, start, digits.length - start, x, y, paint);
+    }
+
+    private void drawSparkline(Canvas canvas, float left, float height) {
+        final int buckets = history.decimate(min.length, min, max);
+        if (buckets < 2)
+            return;
+
+        int lo = Integer.MAX_VALUE;
+        int hi = Integer.MIN_VALUE;
+        for (int i = 0; i < buckets; i++) {
+            lo = Math.min(lo, min[i]);
+            hi = Math.max(hi, max[i]);
+        }
+        final float top = getPaddingTop() + 2;
+        final float bottom = height - getPaddingBottom() - 2;
+        final float scale = (bottom - top) / Math.max(hi - lo, 1);
+
+        // One vertical segment per column, stretched to meet the previous column
+        // so the line stays connected
+        int n = 0;
+        for (int i = 0; i < buckets; i++) {
+            int a = min[i];
+            int b = max[i];
+            if (i > 0) {
+                a = Math.min(a, max[i - 1]);
+                b = Math.max(b, min[i - 1]);
+            }
+            final float x = left + i;
+            lines[n++] = x;
+            lines[n++] = bottom - (a - lo) * scale;
+            lines[n++] = x;
+            lines[n++] = bottom - (b - lo) * scale + 1;
+        }
+        canvas.drawLines(lines, 0, n, linePaint);
+    }
+}
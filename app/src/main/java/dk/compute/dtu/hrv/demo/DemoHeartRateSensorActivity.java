@@ -51,6 +51,18 @@ public class DemoHeartRateSensorActivity extends DemoSensorActivity {
 		view.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
 	}
 
+	@Override
+	protected void onPause() {
+		super.onPause();
+		// Runs on the GL thread
+		view.queueEvent(new Runnable() {
+			@Override
+			public void run() {
+				renderer.stopFrameStats();
+			}
+		});
+	}
+
 	@Override
 	public void onDataRecieved(BleSensor<?> sensor, String text) {
 		if (sensor instanceof BleHeartRateSensor) {
@@ -103,24 +115,32 @@ public class DemoHeartRateSensorActivity extends DemoSensorActivity {
 		private final String TAG = PolygonRenderer.class
 				.getSimpleName();
 
-		// Number of points or vertices we want to use
-		private final static int VERTS = 4;
+		// Duration of the transition from one beat radius to the next
+		private final static long ANIMATION_MS = 250;
 
-		// A raw native buffer to hold the point coordinates
-		private FloatBuffer mFVertexBuffer;
+		// Fallback beat to beat interval when no valid value has been seen
+		private final static int DEFAULT_INTERVAL = 700;
+
+		// A raw native buffer to hold the point coordinates of the unit polygon
+		private final FloatBuffer mFVertexBuffer;
 
 		// A raw native buffer to hold indices
 		// allowing a reuse of points.
-		private ShortBuffer mIndexBuffer;
-
-		private int numOfIndecies = 0;
+		private final ShortBuffer mIndexBuffer;
 
-		private long prevtime = SystemClock.uptimeMillis();
+		private final int numOfIndecies;
 
 		private int sides = 32;
 
 		private int[] interval = { 0, 0, 0 };
-		private int previousInterval = 0;
+		private int previousInterval = DEFAULT_INTERVAL;
+
+		// Beat animation, guarded by this renderer
+		private float fromScale;
+		private float toScale;
+		private long animationStart;
+
+		private final FrameStats frameStats = new FrameStats(TAG);
 
 		public void setInterval(int[] interval) {
 			if (this.interval[1] >= 0 && interval[1] > 0) {
@@ -129,44 +149,80 @@ public class DemoHeartRateSensorActivity extends DemoSensorActivity {
 			this.interval[0] = interval[0]; // heart rate
 			this.interval[1] = interval[1]; // beat to beat interval
 			this.interval[2] = 0;			// empty
+
+			final float target = radiusOf(interval[1]);
+			final long now = SystemClock.uptimeMillis();
+			synchronized (this) {
+				// Start the next transition from wherever the current one is
+				fromScale = scaleAt(now);
+				toScale = target;
+				animationStart = now;
+			}
 		}
 		
+		/**
+		 * Stops the frame statistics, call on the GL thread.
+		 */
+		public void stopFrameStats() {
+			frameStats.stop();
+		}
+
 		public PolygonRenderer(Context context) {
-			prepareBuffers(sides, interval[1]);
+			// The geometry is a unit polygon built once, each beat only changes its scale
+			RegularPolygon t = new RegularPolygon(0, 0, 0, 1, sides);
+			this.mFVertexBuffer = t.getVertexBuffer();
+			this.mIndexBuffer = t.getIndexBuffer();
+			this.numOfIndecies = t.getNumberOfIndecies();
+			this.mFVertexBuffer.position(0);
+			this.mIndexBuffer.position(0);
+
+			fromScale = toScale = radiusOf(interval[1]);
 		}
 
-		private void prepareBuffers(int sides, float radius) {
-			Log.d(TAG,"radius: "+radius +" previous: "+previousInterval);
+		private float radiusOf(float radius) {
 			// Is it a valid value?
-			if (radius < 0) {
+			if (radius <= 0) {
 				radius = previousInterval;
 			}
 			
 			// Double check if the previous value was valid
-			if (radius < 0) {
-				radius = 700;
+			if (radius <= 0) {
+				radius = DEFAULT_INTERVAL;
 			}
-			Log.d(TAG,"final radius: "+radius);
-			
-			radius = ( ( radius / 1000 ) - 0.7f ) * 2;
 			
-			RegularPolygon t = new RegularPolygon(0, 0, 0, radius, sides);
-			this.mFVertexBuffer = t.getVertexBuffer();
-			this.mIndexBuffer = t.getIndexBuffer();
-			this.numOfIndecies = t.getNumberOfIndecies();
-			this.mFVertexBuffer.position(0);
-			this.mIndexBuffer.position(0);
+			return ( ( radius / 1000 ) - 0.7f ) * 2;
+		}
+
+		private synchronized float scaleAt(long time) {
+			final long elapsed = time - animationStart;
+			if (elapsed >= ANIMATION_MS)
+				return toScale;
+
+			// Ease out so the polygon settles smoothly on the new beat
+			final float t = 1.0f - (float) elapsed / ANIMATION_MS;
+			return toScale + (fromScale - toScale) * t * t;
+		}
+
+		private synchronized boolean isAnimating(long time) {
+			return time - animationStart < ANIMATION_MS;
 		}
 
 		// overriden method
 		protected void draw(GL10 gl) {
+			frameStats.begin();
 			long curtime = SystemClock.uptimeMillis();
 
-			this.prepareBuffers(sides, interval[1]);
+			final float scale = scaleAt(curtime);
+			gl.glScalef(scale, scale, 1.0f);
 			gl.glColor4f(96/255.0f, 246/255.0f, 255/255.0f, 1.0f);
 			gl.glVertexPointer(3, GL10.GL_FLOAT, 0, mFVertexBuffer);
 			gl.glDrawElements(GL10.GL_TRIANGLES, this.numOfIndecies,
 					GL10.GL_UNSIGNED_SHORT, mIndexBuffer);
+
+			// Keep rendering until the transition has finished
+			if (isAnimating(curtime))
+				view.requestRender();
+			frameStats.end();
 		}
 	}
 
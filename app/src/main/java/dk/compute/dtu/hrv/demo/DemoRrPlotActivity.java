@@ -0,0 +1,99 @@
+package dk.compute.dtu.hrv.demo;
+
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.opengl.GLSurfaceView;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import dk.compute.dtu.hrv.BleMultipleDevicesService;
+import dk.compute.dtu.hrv.R;
+
+/**
+ * Live RR tachogram and Poincare plot of every device recorded by
+ * {@code BleMultipleDevicesService}. The activity only listens to the service
+ * broadcasts, so opening it does not affect the connections.
+ */
+public class DemoRrPlotActivity extends Activity {
+    private final static String TAG = DemoRrPlotActivity.class.getSimpleName();
+
+    public static final String EXTRAS_WINDOW_MINUTES = "WINDOW_MINUTES";
+    private static final int DEFAULT_WINDOW_MINUTES = 5;
+
+    private GLSurfaceView view;
+    private RrPlotRenderer renderer;
+
+    private final BroadcastReceiver dataReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String deviceAddress = intent.getStringExtra(BleMultipleDevicesService.EXTRA_DEVICE_ADDRESS);
+            final int[] data = intent.getIntArrayExtra(BleMultipleDevicesService.EXTRA_DATA);
+            if (deviceAddress == null || data == null)
+                return;
+
+            final long arrival = intent.getLongExtra(BleMultipleDevicesService.EXTRA_TIMESTAMP,
+                    SystemClock.elapsedRealtime());
+            view.queueEvent(new Runnable() {
+                @Override
+                public void run() {
+                    renderer.addBeats(deviceAddress, data, arrival);
+                }
+            });
+        }
+    };
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.demo_opengl);
+        view = (GLSurfaceView) findViewById(R.id.gl);
+
+        getActionBar().setTitle(R.string.title_demo_rr_plot);
+        getActionBar().setDisplayHomeAsUpEnabled(true);
+        ((TextView) findViewById(R.id.text)).setText(R.string.label_rr_plot);
+
+        final int windowMinutes = getIntent().getIntExtra(EXTRAS_WINDOW_MINUTES, DEFAULT_WINDOW_MINUTES);
+        renderer = new RrPlotRenderer(windowMinutes);
+        view.setRenderer(renderer);
+        // The tachogram scrolls, so render every frame
+        view.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        view.onResume();
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(BleMultipleDevicesService.ACTION_DATA_AVAILABLE);
+        registerReceiver(dataReceiver, filter);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        unregisterReceiver(dataReceiver);
+        // Runs on the GL thread before it pauses
+        view.queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                renderer.stopFrameStats();
+            }
+        });
+        view.onPause();
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch(item.getItemId()) {
+            case android.R.id.home:
+                onBackPressed();
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+}
@@ -0,0 +1,69 @@
+package dk.compute.dtu.hrv.demo;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Frame time and allocation counters for the demo renderers. Every
+ * {@link #REPORT_FRAMES} frames the mean and worst draw time and the number of
+ * objects allocated per frame on the GL thread are logged. Counting runs from
+ * the first frame until {@link #stop}.
+ */
+class FrameStats {
+
+    private static final int REPORT_FRAMES = 120;
+
+    private final String tag;
+
+    private int frames = 0;
+    private long totalNanos = 0;
+    private long maxNanos = 0;
+    private long frameStart;
+    private int allocStart;
+    private boolean counting = false;
+
+    FrameStats(String tag) {
+        this.tag = tag;
+    }
+
+    public void begin() {
+        if (!counting) {
+            // Counts allocations made by the calling (GL) thread only
+            Debug.startAllocCounting();
+            counting = true;
+        }
+        if (frames == 0)
+            allocStart = Debug.getThreadAllocCount();
+        frameStart = System.nanoTime();
+    }
+
+    public void end() {
+        final long nanos = System.nanoTime() - frameStart;
+        totalNanos += nanos;
+        if (nanos > maxNanos)
+            maxNanos = nanos;
+
+        if (++frames == REPORT_FRAMES) {
+            final int allocs = Debug.getThreadAllocCount() - allocStart;
+            Log.d(tag, String.format("%d frames: mean %.3f ms, max %.3f ms, %.1f allocations/frame",
+                    frames, totalNanos / 1e6 / frames, maxNanos / 1e6, (float) allocs / frames));
+            frames = 0;
+            totalNanos = 0;
+            maxNanos = 0;
+        }
+    }
+
+    /**
+     * Stops the allocation counting and drops the partial report. The next
+     * frame starts counting again.
+     */
+    public void stop() {
+        if (counting) {
+            Debug.stopAllocCounting();
+            counting = false;
+        }
+        frames = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+    }
+}
@@ -0,0 +1,201 @@
+package dk.compute.dtu.hrv.demo;
+
+import android.opengl.GLSurfaceView;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+import javax.microedition.khronos.opengles.GL11;
+
+/**
+ * Renders a scrolling RR tachogram and a Poincare plot for up to
+ * {@link #MAX_DEVICES} devices overlaid in different colours.
+ *
+ * Beats are streamed into one {@link VertexRingBuffer} per device and plot, so
+ * a frame only uploads the vertices added since the previous one. The tachogram
+ * scrolls by translating the projection, the stored vertices never move.
+ *
+ * All methods run on the GL thread, post beats with
+ * {@code GLSurfaceView.queueEvent}.
+ */
+public class RrPlotRenderer implements GLSurfaceView.Renderer {
+    private final static String TAG = RrPlotRenderer.class.getSimpleName();
+
+    public static final int MAX_DEVICES = 10;
+
+    // Shortest beat to beat interval we reserve room for (240 bpm)
+    private static final int MIN_INTERVAL = 250;
+
+    // Range of the RR axes in ms
+    private static final float RR_MIN = 300;
+    private static final float RR_MAX = 1500;
+
+    private static final float[][] COLORS = {
+            { 96/255.0f, 246/255.0f, 255/255.0f },
+            { 255/255.0f, 99/255.0f, 71/255.0f },
+            { 154/255.0f, 205/255.0f, 50/255.0f },
+            { 255/255.0f, 215/255.0f, 0/255.0f },
+            { 186/255.0f, 85/255.0f, 211/255.0f },
+            { 255/255.0f, 140/255.0f, 0/255.0f },
+            { 30/255.0f, 144/255.0f, 255/255.0f },
+            { 255/255.0f, 105/255.0f, 180/255.0f },
+            { 0/255.0f, 250/255.0f, 154/255.0f },
+            { 245/255.0f, 245/255.0f, 245/255.0f },
+    };
+
+    private static class DeviceTrace {
+        final VertexRingBuffer tachogram;
+        final VertexRingBuffer poincare;
+        final float[] color;
+        // In ms
+        float lastInterval = -1;
+
+        DeviceTrace(int capacity, float[] color) {
+            tachogram = new VertexRingBuffer(capacity);
+            poincare = new VertexRingBuffer(capacity);
+            this.color = color;
+        }
+    }
+
+    private final HashMap<String, DeviceTrace> traces = new HashMap<>();
+    private final DeviceTrace[] traceList = new DeviceTrace[MAX_DEVICES];
+    private int traceCount = 0;
+
+    private final float windowSeconds;
+    private final int capacity;
+
+    // Vertex times are seconds relative to this, so floats keep ms precision
+    private final long baseTime = SystemClock.elapsedRealtime();
+
+    private int width;
+    private int height;
+
+    private final FrameStats frameStats = new FrameStats(TAG);
+
+    /**
+     * @param windowMinutes Number of minutes of history shown.
+     */
+    public RrPlotRenderer(int windowMinutes) {
+        windowSeconds = windowMinutes * 60;
+        capacity = windowMinutes * 60 * 1000 / MIN_INTERVAL;
+    }
+
+    /**
+     * Adds the beats of one heart rate notification.
+     *
+     * @param deviceAddress Device the beats came from.
+     * @param data Heart rate followed by the RR intervals in 1/1024 s, as sent by the sensor.
+     * @param arrival {@code SystemClock.elapsedRealtime()} when the notification arrived.
+     */
+    public void addBeats(String deviceAddress, int[] data, long arrival) {
+        DeviceTrace trace = traces.get(deviceAddress);
+        if (trace == null) {
+            if (traceCount == MAX_DEVICES) {
+                Log.w(TAG, "Ignoring beats from " + deviceAddress + ", plot is full");
+                return;
+            }
+            trace = new DeviceTrace(capacity, COLORS[traceCount]);
+            traces.put(deviceAddress, trace);
+            traceList[traceCount++] = trace;
+        }
+
+        // The last interval ends at arrival, earlier ones are placed back in time
+        float time = (arrival - baseTime) / 1000.0f;
+        for (int i = data.length - 1; i >= 1; i--)
+            if (data[i] > 0)
+                time -= HeartRateSample.toMillis(data[i]) / 1000.0f;
+
+        for (int i = 1; i < data.length; i++) {
+            if (data[i] <= 0)
+                continue;
+
+            final float interval = (float) HeartRateSample.toMillis(data[i]);
+            time += interval / 1000.0f;
+            trace.tachogram.append(time, time, interval);
+            if (trace.lastInterval > 0)
+                trace.poincare.append(time, trace.lastInterval, interval);
+            trace.lastInterval = interval;
+        }
+    }
+
+    /**
+     * Stops the frame statistics, call on the GL thread when the view pauses.
+     */
+    public void stopFrameStats() {
+        frameStats.stop();
+    }
+
+    @Override
+    public void onSurfaceCreated(GL10 gl, EGLConfig eglConfig) {
+        gl.glDisable(GL10.GL_DITHER);
+        gl.glDisable(GL10.GL_DEPTH_TEST);
+        gl.glClearColor(.1f, .1f, .1f, 1);
+        gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
+        gl.glLineWidth(2.0f);
+        gl.glPointSize(4.0f);
+
+        // Buffer objects do not survive a new context
+        for (int i = 0; i < traceCount; i++) {
+            traceList[i].tachogram.invalidate();
+            traceList[i].poincare.invalidate();
+        }
+    }
+
+    @Override
+    public void onSurfaceChanged(GL10 gl, int w, int h) {
+        width = w;
+        height = h;
+    }
+
+    @Override
+    public void onDrawFrame(GL10 gl10) {
+        frameStats.begin();
+        final GL11 gl = (GL11) gl10;
+        final float now = (SystemClock.elapsedRealtime() - baseTime) / 1000.0f;
+        final float since = now - windowSeconds;
+
+        gl.glClear(GL10.GL_COLOR_BUFFER_BIT);
+        for (int i = 0; i < traceCount; i++) {
+            final DeviceTrace trace = traceList[i];
+            trace.tachogram.expire(since);
+            trace.poincare.expire(since);
+            trace.tachogram.upload(gl);
+            trace.poincare.upload(gl);
+        }
+
+        // Tachogram on the left two thirds, scrolled so that now is the right edge
+        final int plotWidth = width * 2 / 3;
+        gl.glViewport(0, 0, plotWidth, height);
+        gl.glMatrixMode(GL10.GL_PROJECTION);
+        gl.glLoadIdentity();
+        gl.glOrthof(-windowSeconds, 0, RR_MIN, RR_MAX, -1, 1);
+        gl.glMatrixMode(GL10.GL_MODELVIEW);
+        gl.glLoadIdentity();
+        gl.glTranslatef(-now, 0, 0);
+        for (int i = 0; i < traceCount; i++) {
+            final DeviceTrace trace = traceList[i];
+            gl.glColor4f(trace.color[0], trace.color[1], trace.color[2], 1.0f);
+            trace.tachogram.draw(gl, GL10.GL_LINE_STRIP);
+        }
+
+        // Square Poincare plot in the remaining third
+        final int size = Math.min(width - plotWidth, height);
+        gl.glViewport(plotWidth, (height - size) / 2, size, size);
+        gl.glMatrixMode(GL10.GL_PROJECTION);
+        gl.glLoadIdentity();
+        gl.glOrthof(RR_MIN, RR_MAX, RR_MIN, RR_MAX, -1, 1);
+        gl.glMatrixMode(GL10.GL_MODELVIEW);
+        gl.glLoadIdentity();
+        for (int i = 0; i < traceCount; i++) {
+            final DeviceTrace trace = traceList[i];
+            gl.glColor4f(trace.color[0], trace.color[1], trace.color[2], 1.0f);
+            trace.poincare.draw(gl, GL10.GL_POINTS);
+        }
+        frameStats.end();
+    }
+}
@@ -0,0 +1,137 @@
+package dk.compute.dtu.hrv.demo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import javax.microedition.khronos.opengles.GL11;
+
+/**
+ * Fixed size ring of 2D vertices mirrored into a GL vertex buffer object.
+ * Appending a vertex only marks its slot dirty, and {@link #upload(GL11)} sends
+ * the dirty slots with {@code glBufferSubData}, so a new beat costs a few bytes
+ * of transfer instead of a rebuilt array.
+ *
+ * The buffer holds one extra slot that mirrors slot 0. When the live range wraps
+ * around, the first segment is drawn through the mirror so a line strip stays
+ * connected across the seam.
+ *
+ * Must only be used from the GL thread.
+ */
+class VertexRingBuffer {
+
+    private static final int COMPONENTS = 2;
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int BYTES_PER_VERTEX = COMPONENTS * BYTES_PER_FLOAT;
+
+    private final int capacity;
+    private final FloatBuffer vertices;
+    private final float[] times;
+
+    private int tail = 0;
+    private int count = 0;
+
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private int dirtyTo = -1;
+
+    private final int[] vbo = new int[1];
+
+    VertexRingBuffer(int capacity) {
+        this.capacity = capacity;
+        this.times = new float[capacity];
+        vertices = ByteBuffer.allocateDirect((capacity + 1) * BYTES_PER_VERTEX)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Adds a vertex, overwriting the oldest one when the ring is full.
+     *
+     * @param time Time stamp of the vertex, used by {@link #expire(float)}.
+     */
+    public void append(float time, float x, float y) {
+        if (count == capacity) {
+            tail = (tail + 1) % capacity;
+            count--;
+        }
+        final int slot = (tail + count) % capacity;
+        times[slot] = time;
+        put(slot, x, y);
+        if (slot == 0)
+            put(capacity, x, y);
+        count++;
+    }
+
+    /**
+     * Drops vertices older than {@code minTime} from the drawn range.
+     */
+    public void expire(float minTime) {
+        while (count > 0 && times[tail] < minTime) {
+            tail = (tail + 1) % capacity;
+            count--;
+        }
+    }
+
+    private void put(int slot, float x, float y) {
+        vertices.put(slot * COMPONENTS, x);
+        vertices.put(slot * COMPONENTS + 1, y);
+        if (slot < dirtyFrom)
+            dirtyFrom = slot;
+        if (slot > dirtyTo)
+            dirtyTo = slot;
+    }
+
+    /**
+     * Sends the slots written since the last upload to the vertex buffer object,
+     * creating it on first use.
+     */
+    public void upload(GL11 gl) {
+        if (vbo[0] == 0) {
+            gl.glGenBuffers(1, vbo, 0);
+            gl.glBindBuffer(GL11.GL_ARRAY_BUFFER, vbo[0]);
+            vertices.position(0);
+            gl.glBufferData(GL11.GL_ARRAY_BUFFER, (capacity + 1) * BYTES_PER_VERTEX,
+                    vertices, GL11.GL_DYNAMIC_DRAW);
+        } else if (dirtyTo >= dirtyFrom) {
+            gl.glBindBuffer(GL11.GL_ARRAY_BUFFER, vbo[0]);
+            vertices.position(dirtyFrom * COMPONENTS);
+            gl.glBufferSubData(GL11.GL_ARRAY_BUFFER, dirtyFrom * BYTES_PER_VERTEX,
+                    (dirtyTo - dirtyFrom + 1) * BYTES_PER_VERTEX, vertices);
+        }
+        vertices.position(0);
+        dirtyFrom = Integer.MAX_VALUE;
+        dirtyTo = -1;
+        gl.glBindBuffer(GL11.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Forgets the vertex buffer object, e.g. after the GL context was lost. The
+     * next upload recreates it from the client side copy.
+     */
+    public void invalidate() {
+        vbo[0] = 0;
+    }
+
+    /**
+     * Draws the live range in age order with the given primitive mode.
+     */
+    public void draw(GL11 gl, int mode) {
+        if (count == 0 || vbo[0] == 0)
+            return;
+
+        gl.glBindBuffer(GL11.GL_ARRAY_BUFFER, vbo[0]);
+        gl.glVertexPointer(COMPONENTS, GL11.GL_FLOAT, 0, 0);
+        if (tail + count <= capacity) {
+            gl.glDrawArrays(mode, tail, count);
+        } else {
+            // Oldest part up to the end of the ring, continued through the mirror of slot 0
+            gl.glDrawArrays(mode, tail, capacity - tail + 1);
+            gl.glDrawArrays(mode, 0, tail + count - capacity);
+        }
+        gl.glBindBuffer(GL11.GL_ARRAY_BUFFER, 0);
+    }
+}
@@ -0,0 +1,194 @@
+package dk.compute.dtu.hrv.scan;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Collects advertisements from a LE scan, deduplicated by device address, and
+ * publishes a sorted snapshot at most once per publish interval.
+ *
+ * Each advertisement costs one hash lookup and an exponentially weighted moving
+ * average of the RSSI. Advertisements that do not list the requested service
+ * UUID are dropped before they reach the map.
+ */
+public class ScanAggregator implements BluetoothAdapter.LeScanCallback {
+
+    // Weight of a new RSSI reading in the moving average
+    private static final float RSSI_ALPHA = 0.3f;
+
+    // Advertising data types carrying service UUIDs
+    private static final int AD_UUID16_INCOMPLETE = 0x02;
+    private static final int AD_UUID16_COMPLETE = 0x03;
+    private static final int AD_UUID128_INCOMPLETE = 0x06;
+    private static final int AD_UUID128_COMPLETE = 0x07;
+
+    /** One device of a published snapshot. Snapshots are never modified afterwards. */
+    public static class ScanEntry {
+        public final BluetoothDevice device;
+        public final String address;
+        public final String name;
+        public final int rssi;
+        public final long lastSeen;
+
+        ScanEntry(BluetoothDevice device, String name, int rssi, long lastSeen) {
+            this.device = device;
+            this.address = device.getAddress();
+            this.name = name;
+            this.rssi = rssi;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the handler thread with the devices sorted by descending RSSI.
+         */
+        public void onScanSnapshot(List<ScanEntry> snapshot);
+    }
+
+    private static class Record {
+        final BluetoothDevice device;
+        String name;
+        float rssi;
+        long lastSeen;
+
+        Record(BluetoothDevice device, int rssi) {
+            this.device = device;
+            this.rssi = rssi;
+        }
+    }
+
+    private static final Comparator<ScanEntry> BY_RSSI = new Comparator<ScanEntry>() {
+        @Override
+        public int compare(ScanEntry lhs, ScanEntry rhs) {
+            return rhs.rssi < lhs.rssi ? -1 : (rhs.rssi == lhs.rssi ? 0 : 1);
+        }
+    };
+
+    private final HashMap<String, Record> records = new HashMap<>();
+    private final int serviceUuid16;
+    private final long publishInterval;
+    private final Handler handler;
+    private final Listener listener;
+
+    private boolean publishPending = false;
+    private long lastPublish = 0;
+
+    private final Runnable publishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            publish();
+        }
+    };
+
+    /**
+     * @param serviceUuid16 16 bit service UUID that advertisements must list, or -1 to accept all.
+     * @param publishInterval Minimum time between snapshots in ms.
+     * @param handler Handler of the thread the listener is called on.
+     */
+    public ScanAggregator(int serviceUuid16, long publishInterval, Handler handler, Listener listener) {
+        this.serviceUuid16 = serviceUuid16;
+        this.publishInterval = publishInterval;
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    @Override
+    public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        if (serviceUuid16 >= 0 && !hasServiceUuid(scanRecord, serviceUuid16))
+            return;
+
+        final String address = device.getAddress();
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            Record record = records.get(address);
+            if (record == null) {
+                record = new Record(device, rssi);
+                records.put(address, record);
+            } else {
+                record.rssi += RSSI_ALPHA * (rssi - record.rssi);
+            }
+            record.lastSeen = now;
+            if (record.name == null)
+                record.name = device.getName();
+
+            if (publishPending)
+                return;
+            publishPending = true;
+            final long delay = Math.max(0, lastPublish + publishInterval - now);
+            handler.postDelayed(publishRunnable, delay);
+        }
+    }
+
+    private void publish() {
+        final ArrayList<ScanEntry> snapshot;
+        synchronized (this) {
+            publishPending = false;
+            lastPublish = SystemClock.elapsedRealtime();
+            snapshot = new ArrayList<>(records.size());
+            for (Record record : records.values())
+                snapshot.add(new ScanEntry(record.device, record.name, Math.round(record.rssi), record.lastSeen));
+        }
+        Collections.sort(snapshot, BY_RSSI);
+        listener.onScanSnapshot(snapshot);
+    }
+
+    /**
+     * Forgets all devices seen so far.
+     */
+    public void clear() {
+        synchronized (this) {
+            records.clear();
+            publishPending = false;
+            handler.removeCallbacks(publishRunnable);
+        }
+        listener.onScanSnapshot(Collections.<ScanEntry>emptyList());
+    }
+
+    /**
+     * Returns whether the advertising data lists the given 16 bit service UUID,
+     * either directly or as a Bluetooth base UUID.
+     */
+    public static boolean hasServiceUuid(byte[] scanRecord, int uuid16) {
+        if (scanRecord == null)
+            return false;
+
+        int offset = 0;
+        while (offset + 1 < scanRecord.length) {
+            final int length = scanRecord[offset] & 0xff;
+            if (length == 0)
+                break;
+            final int type = scanRecord[offset + 1] & 0xff;
+            final int end = Math.min(offset + 1 + length, scanRecord.length);
+            switch (type) {
+                case AD_UUID16_INCOMPLETE:
+                case AD_UUID16_COMPLETE:
+                    for (int i = offset + 2; i + 1 < end; i += 2) {
+                        if (((scanRecord[i] & 0xff) | (scanRecord[i + 1] & 0xff) << 8) == uuid16)
+                            return true;
+                    }
+                    break;
+                case AD_UUID128_INCOMPLETE:
+                case AD_UUID128_COMPLETE:
+                    // Little endian, the 16 bit alias sits in bytes 12 and 13
+                    for (int i = offset + 2; i + 15 < end; i += 16) {
+                        if (((scanRecord[i + 12] & 0xff) | (scanRecord[i + 13] & 0xff) << 8) == uuid16)
+                            return true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            offset = end;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,189 @@
+package dk.compute.dtu.hrv.scan;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import dk.compute.dtu.hrv.core.scan.DiscoveryStats;
+import dk.compute.dtu.hrv.core.scan.ScanDutyCycle;
+
+/**
+ * Runs a LE scan in windows chosen by a {@link ScanDutyCycle}, on the thread
+ * of the given handler, and forwards the advertisements to a callback.
+ *
+ * The cycle follows the number of open GATT connections and whether new
+ * devices with the requested service are still turning up, so scanning for a
+ * late strap leaves radio time to the straps already connected. The time until
+ * each of those devices was first seen is kept as {@link DiscoveryStats}.
+ */
+public class ScanScheduler implements BluetoothAdapter.LeScanCallback {
+    private final static String TAG = ScanScheduler.class.getSimpleName();
+
+    private final BluetoothManager bluetoothManager;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final int serviceUuid16;
+    private final BluetoothAdapter.LeScanCallback callback;
+    private final Handler handler;
+
+    private final ScanDutyCycle cycle = new ScanDutyCycle();
+    private final DiscoveryStats stats = new DiscoveryStats();
+
+    // Touched from the scan callbacks, guarded by itself
+    private final HashSet<String> seen = new HashSet<>();
+    private int discoveredInWindow = 0;
+
+    private int expected = 0;
+    private volatile Set<String> addresses = null;
+    private long startTime;
+    private boolean scanning = false;
+    private boolean radioOn = false;
+
+    private final Runnable beginWindow = new Runnable() {
+        @Override
+        public void run() {
+            beginWindow();
+        }
+    };
+
+    private final Runnable endWindow = new Runnable() {
+        @Override
+        public void run() {
+            endWindow();
+        }
+    };
+
+    /**
+     * @param serviceUuid16 16 bit service UUID of the devices counted as discovered, or -1 for all.
+     * @param callback Receives every advertisement.
+     * @param handler Handler of the thread the scan is scheduled on.
+     */
+    public ScanScheduler(BluetoothManager bluetoothManager, int serviceUuid16,
+                         BluetoothAdapter.LeScanCallback callback, Handler handler) {
+        this.bluetoothManager = bluetoothManager;
+        this.bluetoothAdapter = bluetoothManager.getAdapter();
+        this.serviceUuid16 = serviceUuid16;
+        this.callback = callback;
+        this.handler = handler;
+    }
+
+    /**
+     * @param expected Number of devices looked for, the scan backs off once all
+     *                 were found. 0 if unknown.
+     */
+    public void setExpected(int expected) {
+        this.expected = expected;
+    }
+
+    /**
+     * Restricts the scan to known devices: only their advertisements are
+     * forwarded and counted. The set may change while scanning and must be
+     * safe to read from the scan callbacks.
+     *
+     * @param addresses The device addresses, or null for all devices.
+     */
+    public void setAddressFilter(Set<String> addresses) {
+        this.addresses = addresses;
+    }
+
+    public void start() {
+        if (scanning)
+            return;
+        scanning = true;
+        synchronized (seen) {
+            seen.clear();
+            discoveredInWindow = 0;
+        }
+        stats.clear();
+        cycle.reset();
+        startTime = SystemClock.elapsedRealtime();
+        beginWindow();
+    }
+
+    public void stop() {
+        if (!scanning)
+            return;
+        scanning = false;
+        handler.removeCallbacks(beginWindow);
+        handler.removeCallbacks(endWindow);
+        if (radioOn) {
+            bluetoothAdapter.stopLeScan(this);
+            radioOn = false;
+        }
+        Log.d(TAG, "Scan stopped, " + stats);
+    }
+
+    public boolean isScanning() {
+        return scanning;
+    }
+
+    /**
+     * @return Discovery latencies since the last start.
+     */
+    public DiscoveryStats getStats() {
+        return stats;
+    }
+
+    private void beginWindow() {
+        if (!scanning)
+            return;
+        if (!radioOn)
+            radioOn = bluetoothAdapter.startLeScan(this);
+        handler.postDelayed(endWindow, cycle.getWindow());
+    }
+
+    private void endWindow() {
+        if (!scanning)
+            return;
+        final int discovered;
+        final int found;
+        synchronized (seen) {
+            discovered = discoveredInWindow;
+            discoveredInWindow = 0;
+            found = seen.size();
+        }
+        cycle.next(discovered, found, expected, getConnectionCount());
+
+        final long idle = cycle.getIdle();
+        if (idle == 0) {
+            // Keep the scan running instead of restarting it
+            beginWindow();
+            return;
+        }
+        if (radioOn) {
+            bluetoothAdapter.stopLeScan(this);
+            radioOn = false;
+        }
+        Log.d(TAG, "Scan window " + cycle.getWindow() + " ms, idle " + idle + " ms, found " + found);
+        handler.postDelayed(beginWindow, idle);
+    }
+
+    private int getConnectionCount() {
+        final List<BluetoothDevice> connected = bluetoothManager.getConnectedDevices(BluetoothProfile.GATT);
+        return connected == null ? 0 : connected.size();
+    }
+
+    @Override
+    public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        final Set<String> filter = addresses;
+        if (filter != null && !filter.contains(device.getAddress()))
+            return;
+        callback.onLeScan(device, rssi, scanRecord);
+
+        if (serviceUuid16 >= 0 && !ScanAggregator.hasServiceUuid(scanRecord, serviceUuid16))
+            return;
+        synchronized (seen) {
+            if (!seen.add(device.getAddress()))
+                return;
+            discoveredInWindow++;
+        }
+        stats.add(SystemClock.elapsedRealtime() - startTime);
+    }
+}
@@ -0,0 +1,41 @@
+package dk.compute.dtu.hrv.scan;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Selects the straps a bulk connect should pick up from a scan snapshot.
+ */
+public class StrapFilter {
+
+    public static final String DEFAULT_NAME_PREFIX = "Polar";
+    public static final int DEFAULT_MIN_RSSI = -90;
+
+    private final String namePrefix;
+    private final int minRssi;
+    private final Set<String> allowList;
+
+    /**
+     * @param namePrefix Required start of the device name, or null to accept any name.
+     * @param minRssi Weakest smoothed RSSI in dBm accepted.
+     * @param allowList Addresses accepted, or an empty set to accept all addresses.
+     */
+    public StrapFilter(String namePrefix, int minRssi, Set<String> allowList) {
+        this.namePrefix = namePrefix;
+        this.minRssi = minRssi;
+        this.allowList = allowList == null ? Collections.<String>emptySet() : new HashSet<>(allowList);
+    }
+
+    public static StrapFilter defaultFilter() {
+        return new StrapFilter(DEFAULT_NAME_PREFIX, DEFAULT_MIN_RSSI, null);
+    }
+
+    public boolean matches(ScanAggregator.ScanEntry entry) {
+        if (entry.rssi < minRssi)
+            return false;
+        if (namePrefix != null && (entry.name == null || !entry.name.startsWith(namePrefix)))
+            return false;
+        return allowList.isEmpty() || allowList.contains(entry.address);
+    }
+}
@@ -4,24 +4,25 @@ package dk.compute.dtu.hrv.sensor;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.util.Log;
 
+import java.util.Arrays;
+
+import dk.compute.dtu.hrv.BluetoothGattExecutor;
+import dk.compute.dtu.hrv.core.decode.BodyLocation;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+
 /**
  * Created by  by olli on 3/28/2014.
+ *
+ * The decoded values of this shared instance serve the single device screens.
+ * With several devices each keeps its own {@link HeartRateState}.
  */
 public class BleHeartRateSensor extends BleSensor<int[]> {
 
     private final static String TAG = BleHeartRateSensor.class.getSimpleName();
 
     private static final String UUID_SENSOR_BODY_LOCATION = "00002a38-0000-1000-8000-00805f9b34fb";
-    
-    private static final int SENSOR_BODY_LOCATION_OTHER = 0;
-    private static final int SENSOR_BODY_LOCATION_CHEST = 1;
-    private static final int SENSOR_BODY_LOCATION_WRIST = 2;
-    private static final int SENSOR_BODY_LOCATION_FINGER = 3;
-    private static final int SENSOR_BODY_LOCATION_HAND = 4;
-    private static final int SENSOR_BODY_LOCATION_EAR = 5;
-    private static final int SENSOR_BODY_LOCATION_FOOT = 6;
-    
-    private int location = -1;
+
+    private final HeartRateState state = new HeartRateState();
     
 	BleHeartRateSensor() {
 		super();
@@ -49,6 +50,10 @@ public class BleHeartRateSensor extends BleSensor<int[]> {
 	public static String getDataUUIDString() {
 		return "00002a37-0000-1000-8000-00805f9b34fb";
 	}
+
+	public static String getBodyLocationUUIDString() {
+		return UUID_SENSOR_BODY_LOCATION;
+	}
 	
 	@Override
 	public String getConfigUUID() {
@@ -71,145 +76,47 @@ public class BleHeartRateSensor extends BleSensor<int[]> {
         if ( !c.getUuid().toString().equals(UUID_SENSOR_BODY_LOCATION) )
             return false;
 
-        location = c.getProperties();
-        Log.d(TAG, "Sensor body location: " + location);
+        state.onBodyLocation(c.getValue());
+        Log.d(TAG, "Sensor body location: " + BodyLocation.name(state.getBodyLocation()));
         return true;
     }
 
+    /**
+     * Enabling also reads the body sensor location once.
+     */
+    @Override
+    public BluetoothGattExecutor.ServiceAction[] enable(boolean enable) {
+        final BluetoothGattExecutor.ServiceAction[] actions = super.enable(enable);
+        if (!enable)
+            return actions;
+        final BluetoothGattExecutor.ServiceAction[] result = Arrays.copyOf(actions, actions.length + 1);
+        result[actions.length] = read(UUID_SENSOR_BODY_LOCATION);
+        return result;
+    }
+
+    /**
+     * @return One of the {@link BodyLocation} values, or -1 if not read yet.
+     */
+    public int getBodyLocation() {
+        return state.getBodyLocation();
+    }
+
+    /**
+     * @return The last decoded measurement, including sensor contact and energy expended.
+     */
+    public HeartRateSample getSample() {
+        return state.getSample();
+    }
+
 	@Override
 	public String getDataString() {
-		final int[] data = getData();
-		return "heart rate=" + data[0] + "\ninterval=" + data[1];
+		return state.getDataString();
 	}
 
 	@Override
 	public int[] parse(BluetoothGattCharacteristic c) {
-
-		double heartRate = extractHeartRate(c);
-//		double contact = extractContact(c);
-//		double energy = extractEnergyExpended(c);
-		Integer[] interval = extractBeatToBeatInterval(c);
-		
-		int[] result = null;
-		if (interval != null) {
-			result = new int[interval.length + 1];
-		} else {
-			result = new int[2];
-			result[1] = -1;
-		}
-		result[0] = (int) heartRate;
-		
-		if (interval != null) {
-			for (int i = 0; i < interval.length; i++) {
-				result[i+1] = interval[i];
-			}
-		}
-		
-		return result;
-	}
-
-	private static double extractHeartRate(
-			BluetoothGattCharacteristic characteristic) {
-
-		int flag = characteristic.getProperties();
-		Log.d(TAG, "Heart rate flag: " + flag);
-		int format = -1;
-		// Heart rate bit number format
-		if ((flag & 0x01) != 0) {
-			format = BluetoothGattCharacteristic.FORMAT_UINT16;
-			Log.d(TAG, "Heart rate format UINT16.");
-		} else {
-			format = BluetoothGattCharacteristic.FORMAT_UINT8;
-			Log.d(TAG, "Heart rate format UINT8.");
-		}
-		final int heartRate = characteristic.getIntValue(format, 1);
-		Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-		return heartRate;
-	}
-	
-	private static double extractContact(
-			BluetoothGattCharacteristic characteristic) {
-
-		int flag = characteristic.getProperties();
-		int format = -1;
-		// Sensor contact status
-		if ((flag & 0x02) != 0) {
-			Log.d(TAG, "Heart rate sensor contact info exists");
-			if ((flag & 0x04) != 0) {
-				Log.d(TAG, "Heart rate sensor contact is ON");
-			} else {
-				Log.d(TAG, "Heart rate sensor contact is OFF");
-			}
-		} else  {
-			Log.d(TAG, "Heart rate sensor contact info doesn't exists");
-		}
-		//final int heartRate = characteristic.getIntValue(format, 1);
-		//Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-		return 0.0d;
-	}
-	
-	private static double extractEnergyExpended(
-			BluetoothGattCharacteristic characteristic) {
-
-		int flag = characteristic.getProperties();
-		int format = -1;
-		// Energy calculation status
-		if ((flag & 0x08) != 0) {
-			Log.d(TAG, "Heart rate energy calculation exists.");
-		} else {
-			Log.d(TAG, "Heart rate energy calculation doesn't exists.");
-		}
-		//final int heartRate = characteristic.getIntValue(format, 1);
-		//Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-		return 0.0d;
+		if (!state.onMeasurement(c.getValue()))
+			Log.d(TAG, "Heart rate measurement too short");
+		return state.getSample().toArray();
 	}
-	
-	private static Integer[] extractBeatToBeatInterval(
-			BluetoothGattCharacteristic characteristic) {
-
-        int flag = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-        int format = -1;
-        int energy = -1;
-        int offset = 1; // This depends on hear rate value format and if there is energy data
-        int rr_count = 0;
-        
-        if ((flag & 0x01) != 0) {
-            format = BluetoothGattCharacteristic.FORMAT_UINT16;
-            Log.d(TAG, "Heart rate format UINT16.");
-            offset = 3;
-        } else {
-            format = BluetoothGattCharacteristic.FORMAT_UINT8;
-            Log.d(TAG, "Heart rate format UINT8.");
-            offset = 2;
-        }
-        if ((flag & 0x08) != 0) {
-            // calories present
-            energy = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-            offset += 2;
-            Log.d(TAG, "Received energy: {}"+ energy);
-        }
-        if ((flag & 0x16) != 0){
-            // RR stuff.
-            Log.d(TAG, "RR stuff found at offset: "+ offset);
-            Log.d(TAG, "RR length: "+ (characteristic.getValue()).length);
-            rr_count = ((characteristic.getValue()).length - offset) / 2;
-            Log.d(TAG, "RR length: "+ (characteristic.getValue()).length);
-            Log.d(TAG, "rr_count: "+ rr_count);
-			if (rr_count > 0) {
-				Integer[] mRr_values = new Integer[rr_count];
-				for (int i = 0; i < rr_count; i++) {
-					mRr_values[i] = characteristic.getIntValue(
-							BluetoothGattCharacteristic.FORMAT_UINT16, offset);
-					offset += 2;
-					Log.d(TAG, "Received RR: " + mRr_values[i]);
-				}
-				return mRr_values;
-			}
-        }
-        Log.d(TAG, "No RR data on this update: ");
-        return null;
-	}
-
-
-
 }
@@ -79,7 +79,11 @@ public abstract class BleSensor<T> {
             @Override
             public boolean execute(BluetoothGatt bluetoothGatt) {
                 final BluetoothGattCharacteristic characteristic = getCharacteristic(bluetoothGatt, uuid);
-                bluetoothGatt.readCharacteristic(characteristic);
+                // Without a read in flight no callback would release the queue
+                if (characteristic == null || !bluetoothGatt.readCharacteristic(characteristic)) {
+                    Log.i(TAG, "Cannot read characteristic with uuid: " + uuid);
+                    return true;
+                }
                 return false;
             }
         };
@@ -0,0 +1,105 @@
+package dk.compute.dtu.hrv.sensor;
+
+import dk.compute.dtu.hrv.core.decode.BodyLocation;
+import dk.compute.dtu.hrv.core.decode.HeartRateDecoder;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+
+/**
+ * Heart rate state of one device: the latest measurement, the body sensor
+ * location and the last reported sensor contact. The values are decoded by the
+ * stateless {@link HeartRateDecoder}, so each device owns one of these and
+ * touches it only from its own GATT callbacks. Devices thus decode in parallel
+ * without sharing or locking anything.
+ */
+public class HeartRateState {
+
+    private HeartRateSample sample = new HeartRateSample();
+    // Decoded into first, the decoder clears it even when the value is too short
+    private HeartRateSample scratch = new HeartRateSample();
+    private boolean hasSample = false;
+
+    // One of the BodyLocation values, -1 until read
+    private int location = -1;
+
+    // Last contact state reported by updateContact
+    private int contact = HeartRateSample.CONTACT_UNSUPPORTED;
+
+    /**
+     * Decodes a heart rate measurement value.
+     *
+     * @return false if the value is too short, the previous sample is kept then.
+     */
+    public boolean onMeasurement(byte[] value) {
+        return onMeasurement(value, 0, value == null ? 0 : value.length);
+    }
+
+    /**
+     * Decodes length bytes of value from offset, e.g. a replayed notification.
+     */
+    public boolean onMeasurement(byte[] value, int offset, int length) {
+        if (!HeartRateDecoder.decode(value, offset, length, scratch))
+            return false;
+        final HeartRateSample decoded = scratch;
+        scratch = sample;
+        sample = decoded;
+        hasSample = true;
+        return true;
+    }
+
+    public void onBodyLocation(byte[] value) {
+        location = HeartRateDecoder.decodeBodyLocation(value);
+    }
+
+    /**
+     * Takes over the contact state of the latest sample.
+     *
+     * @return Whether it changed since the last call, unsupported contact never changes.
+     */
+    public boolean updateContact() {
+        if (!hasSample || sample.contact == HeartRateSample.CONTACT_UNSUPPORTED || sample.contact == contact)
+            return false;
+        contact = sample.contact;
+        return true;
+    }
+
+    /**
+     * Forgets the contact state, e.g. after a disconnect, so that the next
+     * sample reports it again.
+     */
+    public void reset() {
+        contact = HeartRateSample.CONTACT_UNSUPPORTED;
+        hasSample = false;
+    }
+
+    /**
+     * @return The latest measurement, reused by later ones.
+     */
+    public HeartRateSample getSample() {
+        return sample;
+    }
+
+    public boolean hasSample() {
+        return hasSample;
+    }
+
+    /**
+     * @return One of the {@link BodyLocation} values, or -1 if not read yet.
+     */
+    public int getBodyLocation() {
+        return location;
+    }
+
+    public String getDataString() {
+        if (!hasSample)
+            return "";
+        final int[] rr = sample.rr;
+        String text = "heart rate=" + sample.heartRate + "\ninterval=" + (sample.rrCount > 0 ? rr[0] : -1);
+        if (sample.contact != HeartRateSample.CONTACT_UNSUPPORTED)
+            text += "\ncontact=" + (sample.hasContact() ? "yes" : "no");
+        if (sample.energyExpended != HeartRateSample.ENERGY_ABSENT)
+            text += "\nenergy=" + sample.energyExpended + " kJ";
+        if (location >= 0)
+            text += "\nlocation=" + BodyLocation.name(location);
+        return text;
+    }
+}
@@ -1,58 +1,84 @@
 package dk.compute.dtu.hrv.storage;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
-import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Locale;
 
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
-import android.os.Bundle;
 import android.os.Environment;
 import android.os.Message;
 import android.util.Log;
 import android.os.Handler;
+import android.os.SystemClock;
+
+import dk.compute.dtu.hrv.core.capture.RawCaptureWriter;
+import dk.compute.dtu.hrv.core.session.SessionCatalog;
+import dk.compute.dtu.hrv.core.session.SessionFiles;
+import dk.compute.dtu.hrv.core.session.SessionWriter;
+import dk.compute.dtu.hrv.core.trace.ChromeTraceWriter;
+import dk.compute.dtu.hrv.core.trace.SampleTracer;
 
 public class SimpleStorageWorker implements Handler.Callback {
 	String TAG = this.getClass().getSimpleName();
-	private File hr_file;
-	private File rr_file;
-    private Writer hr_writer = null;
-    private Writer rr_writer = null;
+    private final SessionWriter writer;
+    private final SampleTracer tracer;
+    private String deviceAddress;
+
+    // Files are forced to disk this often, in ms
+    public static final long SYNC_INTERVAL = 5000;
+    private long lastSync;
+    // Trace ids of the samples written since the last sync
+    private long[] unsynced = new long[64];
+    private int unsyncedCount = 0;
 
     private Context _context;
-    private boolean _writable = false;
     public static final int MSG_OPEN = 0;
     public static final int MSG_WRITE = 1;
     public static final int MSG_CLOSE = 2;
     
-    public SimpleStorageWorker(Context context) throws Exception{
+    /**
+     * @param catalog Catalog the sessions are recorded in, or null.
+     * @param tracer Tracer to mark written and synced samples in, or null.
+     * @param extension Format of the heart rate and RR files, {@link SessionFiles#EXTENSION}
+     *                  or {@link SessionFiles#SERIES_EXTENSION}.
+     */
+    public SimpleStorageWorker(Context context, SessionCatalog catalog, SampleTracer tracer,
+                               String extension) throws Exception{
     	_context = context;
+        writer = new SessionWriter(catalog, extension);
+        this.tracer = tracer;
+    }
+
+    /**
+     * Opens the session catalog of the archive on external storage.
+     *
+     * @return The catalog, or null if storage is not available.
+     */
+    public static SessionCatalog openCatalog() {
+        try {
+            return SessionCatalog.open(new File(Environment.getExternalStorageDirectory(), SessionFiles.DIRECTORY));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
     
 	@Override
 	public boolean handleMessage(Message msg) {
-        Bundle b = msg.getData();
 		switch(msg.what) {
             case MSG_OPEN:
-                String prefix = b.getString("Prefix");
-
-                rr_file = newFile("rr", prefix);
-                rr_writer = newWriter(rr_file);
-                hr_file = newFile("hr", prefix);
-                hr_writer = newWriter(hr_file);
+                open((String) msg.obj);
                 break;
             case MSG_WRITE:
-                store(b.getInt("heart_rate"), b.getIntArray("rr"), b.getLong("timestamp"));
+                StoredSample sample = (StoredSample) msg.obj;
+                store(sample.heartRate, sample.rr, sample.contact, sample.energy, sample.timestamp);
+                trace(sample.traceId);
                 break;
             case MSG_CLOSE:
-                close(rr_file, rr_writer);
-                close(hr_file, hr_writer);
+                close();
                 break;
             default:
                 break;
@@ -61,95 +87,118 @@ public class SimpleStorageWorker implements Handler.Callback {
 		return false;
 	}
 
-	public void store(int heart_rate, int[] rr, long timestamp) {
-		if (_writable){
-				write(heart_rate, timestamp, hr_writer);
-				write(rr, timestamp, rr_writer);
-		}
-	}
-	
-	public File newFile(String prefix, String deviceAddress){
-			if (isExternalStorageWritable()){
-				String currentDateandTime = new SimpleDateFormat("yyyyMMdd_HHmmss",Locale.GERMANY).format(new Date());
-				File f = new File(Environment.getExternalStorageDirectory(), "HRV");
-                if (f.mkdirs() || f.isDirectory()) {
-                    f = new File(f, prefix + "_" + deviceAddress.replace(":", "") + "_" + currentDateandTime + ".csv");
-                    Log.d(TAG, "Opening new file: " + f.getAbsolutePath());
-                }
-                return f;
-			} else {
-                Log.d(TAG, "External storage not writable");
-            }
-        return null;
-	}
+    /**
+     * Creates a raw capture log for the device in the archive on external storage.
+     *
+     * @return The capture, or null if storage is not available.
+     */
+    public static RawCaptureWriter openRawCapture(String deviceAddress) {
+        try {
+            File directory = new File(Environment.getExternalStorageDirectory(), SessionFiles.DIRECTORY);
+            if (!directory.mkdirs() && !directory.isDirectory())
+                return null;
+            long start = System.currentTimeMillis();
+            File file = new File(directory, SessionFiles.fileName(SessionFiles.PREFIX_RAW, deviceAddress,
+                    new Date(start), SessionFiles.RAW_EXTENSION));
+            return new RawCaptureWriter(file, deviceAddress, start);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-    public Writer newWriter(File file){
-        if (file != null) {
-            try {
-                Log.d(TAG, "Creating Writer for " + file.getAbsoluteFile());
-                Writer writer = new BufferedWriter(new FileWriter(file, false));
-                _writable = true;
-                return writer;
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Writes the trace of tracer next to the sessions on external storage.
+     *
+     * @return The trace file, or null if it could not be written.
+     */
+    public static File exportTrace(SampleTracer tracer) {
+        try {
+            File directory = new File(Environment.getExternalStorageDirectory(), SessionFiles.DIRECTORY);
+            if (!directory.mkdirs() && !directory.isDirectory())
                 return null;
-            }
+            File file = new File(directory, SessionFiles.traceFileName(new Date()));
+            ChromeTraceWriter.write(tracer, file);
+            return file;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
         }
-        return null;
     }
 
-	public void write(int[] data, long timestamp, Writer writer){
-		if (_writable){
-            if (writer != null) {
-                try {
-                    //Log.d(TAG, "Saving data to: " + file.getAbsolutePath());
-                    for (int d : data) {
-                        writer.write(String.format("%d", timestamp));
-                        writer.write(String.format(";%d", d));
-                        writer.write("\n");
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            } else {
-                Log.d(TAG, "Writer is null");
-            }
-		}
+    public void open(String deviceAddress) {
+        this.deviceAddress = deviceAddress;
+        if (!isExternalStorageWritable())
+            return;
+        try {
+            File directory = new File(Environment.getExternalStorageDirectory(), SessionFiles.DIRECTORY);
+            writer.open(directory, deviceAddress, new Date());
+            lastSync = SystemClock.elapsedRealtime();
+            unsyncedCount = 0;
+            Log.d(TAG, "Opening new file: " + writer.getRrFile().getAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+	public void store(int heart_rate, int[] rr, int contact, int energy, long timestamp) {
+        try {
+            writer.store(heart_rate, rr, contact, energy, timestamp);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 	}
 
-    public void write(int data, long timestamp, Writer writer){
-        if (_writable){
-            if (writer != null) {
-                try {
-                    writer.write(String.format("%d", timestamp));
-                    writer.write(String.format(";%d", data));
-                    writer.write("\n");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            } else {
-                Log.d(TAG, "Writer is null");
-            }
+    // Marks the sample as written, and every SYNC_INTERVAL forces the files to disk
+    private void trace(long traceId) {
+        if (!writer.isOpen())
+            return;
+        final boolean tracing = tracer != null && tracer.isEnabled();
+        if (tracing) {
+            tracer.mark(deviceAddress, traceId, SampleTracer.STAGE_WRITTEN);
+            if (unsyncedCount == unsynced.length)
+                unsynced = Arrays.copyOf(unsynced, unsynced.length * 2);
+            unsynced[unsyncedCount++] = traceId;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        if (now - lastSync < SYNC_INTERVAL)
+            return;
+        lastSync = now;
+        try {
+            writer.sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
         }
+        if (tracing) {
+            final long synced = SampleTracer.now();
+            for (int i = 0; i < unsyncedCount; i++)
+                tracer.mark(deviceAddress, unsynced[i], SampleTracer.STAGE_SYNCED, synced);
+        }
+        unsyncedCount = 0;
     }
-	
-	public void close(File file, Writer writer){
+
+	public void close(){
+        if (!writer.isOpen())
+            return;
         try {
-            Log.d(TAG, "Closing " + file.getAbsoluteFile());
-            writer.flush();
+            Log.d(TAG, "Closing " + writer.getRrFile().getAbsoluteFile());
             writer.close();
-            _writable = false;
         } catch (IOException e) {
             e.printStackTrace();
         }
+        scanFile(writer.getRrFile());
+        scanFile(writer.getHeartRateFile());
+	}
 
+    private void scanFile(File file) {
         if (file != null){ // File never opened
             _context.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(file)));
-		}
-	}
+        }
+    }
 	
 	public boolean writable(){
-		return _writable;
+		return writer.isOpen();
 	}
 	
     /* Checks if external storage is available for read and write */
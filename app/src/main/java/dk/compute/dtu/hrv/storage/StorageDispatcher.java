@@ -0,0 +1,210 @@
+package dk.compute.dtu.hrv.storage;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import dk.compute.dtu.hrv.core.bus.DataEvent;
+import dk.compute.dtu.hrv.core.bus.EventHandler;
+import dk.compute.dtu.hrv.core.session.SessionCatalog;
+import dk.compute.dtu.hrv.core.session.SessionFiles;
+import dk.compute.dtu.hrv.core.trace.SampleTracer;
+
+/**
+ * Storage consumer of the data bus. Opens a session per device on connect,
+ * reassembles each heart rate event and the RR events following it into one
+ * sample, and hands it to the device's {@link SimpleStorageWorker}. Closes the
+ * session on disconnect.
+ *
+ * The workers run on a fixed set of {@link StorageShard}s. Each session goes to
+ * the shard with the fewest recording devices, so a slow device or card stall
+ * only delays the devices sharing its thread.
+ *
+ * Runs on the storage subscription's consumer thread, which should block the
+ * bus rather than lose samples.
+ */
+public class StorageDispatcher implements EventHandler {
+    private final static String TAG = StorageDispatcher.class.getSimpleName();
+
+    private final Context context;
+    private final StorageShard[] shards;
+    private final SampleTracer tracer;
+    private SessionCatalog catalog;
+    // Format of the heart rate and RR files of new sessions
+    private volatile String extension = SessionFiles.EXTENSION;
+
+    private final HashMap<String, Device> devices = new HashMap<>();
+
+    private static class Device {
+        // Shard and worker handler of the current session
+        StorageShard shard;
+        Handler handler;
+        boolean recording;
+
+        // Sample being reassembled
+        boolean pending;
+        int heartRate;
+        int contact;
+        int energy;
+        long timestamp;
+        long traceId;
+        int[] rr = new int[9];
+        int rrCount;
+        int rrExpected;
+    }
+
+    /**
+     * @param shards Number of storage threads.
+     * @param tracer Tracer the workers mark written and synced samples in.
+     */
+    public StorageDispatcher(Context context, int shards, SampleTracer tracer) {
+        this.context = context;
+        this.tracer = tracer;
+        this.shards = new StorageShard[Math.max(shards, 1)];
+        for (int i = 0; i < this.shards.length; i++)
+            this.shards[i] = new StorageShard(i);
+    }
+
+    /**
+     * @return The shards, whose metrics may be read from any thread.
+     */
+    public List<StorageShard> getShards() {
+        return Collections.unmodifiableList(Arrays.asList(shards));
+    }
+
+    /**
+     * Stops the storage threads once they handled the queued messages. Call
+     * after the consumer thread stopped.
+     */
+    public void shutdown() {
+        for (StorageShard shard : shards)
+            shard.quit();
+    }
+
+    /**
+     * Sets whether sessions opened from now on write the heart rate and RR
+     * files in the compressed block format instead of CSV.
+     */
+    public void setSeriesStorage(boolean enabled) {
+        extension = enabled ? SessionFiles.SERIES_EXTENSION : SessionFiles.EXTENSION;
+    }
+
+    private StorageShard leastLoaded() {
+        StorageShard best = shards[0];
+        for (int i = 1; i < shards.length; i++) {
+            final StorageShard shard = shards[i];
+            if (shard.getDevices() < best.getDevices()
+                    || (shard.getDevices() == best.getDevices() && shard.getQueueDepth() < best.getQueueDepth()))
+                best = shard;
+        }
+        return best;
+    }
+
+    /**
+     * @return The session catalog, or null if external storage is not available.
+     */
+    public synchronized SessionCatalog getCatalog() {
+        if (catalog == null)
+            catalog = SimpleStorageWorker.openCatalog();
+        return catalog;
+    }
+
+    @Override
+    public void onEvent(DataEvent event, long sequence, boolean endOfBatch) {
+        switch (event.type) {
+            case DataEvent.TYPE_CONNECTED:
+                onConnected(event.deviceAddress, event.value == 1);
+                break;
+            case DataEvent.TYPE_DISCONNECTED:
+                onDisconnected(event.deviceAddress);
+                break;
+            case DataEvent.TYPE_HEART_RATE:
+                onHeartRate(event, sequence);
+                break;
+            case DataEvent.TYPE_RR:
+                onInterval(event);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onConnected(String deviceAddress, boolean record) {
+        Device device = devices.get(deviceAddress);
+        if (device == null) {
+            device = new Device();
+            devices.put(deviceAddress, device);
+        }
+        if (device.recording || !record)
+            return;
+
+        // A new worker per session, the previous one may still be closing on another shard
+        final StorageShard shard = leastLoaded();
+        try {
+            device.handler = shard.createHandler(new SimpleStorageWorker(context, getCatalog(), tracer, extension));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+        Log.d(TAG, "Creating new file for device: " + deviceAddress + " on shard " + shard.getIndex());
+        device.shard = shard;
+        device.shard.assign();
+        device.recording = true;
+        device.pending = false;
+        shard.send(device.handler.obtainMessage(SimpleStorageWorker.MSG_OPEN, deviceAddress));
+    }
+
+    private void onDisconnected(String deviceAddress) {
+        final Device device = devices.get(deviceAddress);
+        if (device == null || !device.recording)
+            return;
+        flush(device);
+        device.recording = false;
+        device.shard.send(device.handler.obtainMessage(SimpleStorageWorker.MSG_CLOSE));
+        device.shard.release();
+    }
+
+    private void onHeartRate(DataEvent event, long sequence) {
+        final Device device = devices.get(event.deviceAddress);
+        if (device == null || !device.recording)
+            return;
+        flush(device);
+        device.pending = true;
+        device.heartRate = event.value;
+        device.contact = event.contact;
+        device.energy = event.energy;
+        device.timestamp = event.timestamp;
+        device.traceId = sequence;
+        device.rrCount = 0;
+        device.rrExpected = event.count;
+        if (device.rrExpected == 0)
+            flush(device);
+    }
+
+    private void onInterval(DataEvent event) {
+        final Device device = devices.get(event.deviceAddress);
+        if (device == null || !device.pending)
+            return;
+        if (device.rrCount == device.rr.length)
+            device.rr = Arrays.copyOf(device.rr, device.rr.length * 2);
+        device.rr[device.rrCount++] = event.value;
+        if (device.rrCount == device.rrExpected)
+            flush(device);
+    }
+
+    private void flush(Device device) {
+        if (!device.pending)
+            return;
+        device.pending = false;
+        // Same layout as before: the intervals, or -1 if there were none
+        final int[] rr = device.rrCount == 0 ? new int[] {-1} : Arrays.copyOf(device.rr, device.rrCount);
+        device.shard.send(device.handler.obtainMessage(SimpleStorageWorker.MSG_WRITE,
+                new StoredSample(device.heartRate, rr, device.contact, device.energy, device.timestamp,
+                        device.traceId)));
+    }
+}
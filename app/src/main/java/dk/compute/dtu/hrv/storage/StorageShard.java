@@ -0,0 +1,126 @@
+package dk.compute.dtu.hrv.storage;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One storage thread and the devices assigned to it, with the metrics of its
+ * message queue. A stalled device only holds up the devices of its own shard.
+ */
+public class StorageShard {
+
+    private final int index;
+    private final HandlerThread thread;
+
+    // Written from the dispatcher thread only
+    private volatile int devices = 0;
+
+    // The maxima have a single writer each, the dispatcher and the shard thread
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger maxQueued = new AtomicInteger();
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    StorageShard(int index) {
+        this.index = index;
+        thread = new HandlerThread("storageThread-" + index);
+        thread.start();
+    }
+
+    /**
+     * @return A handler on this shard's thread passing the messages to callback.
+     */
+    Handler createHandler(final Handler.Callback callback) {
+        return new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                final long start = System.nanoTime();
+                try {
+                    return callback.handleMessage(msg);
+                } finally {
+                    final long elapsed = System.nanoTime() - start;
+                    queued.decrementAndGet();
+                    handled.incrementAndGet();
+                    busyNanos.addAndGet(elapsed);
+                    if (elapsed > maxNanos.get())
+                        maxNanos.set(elapsed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a message obtained from one of this shard's handlers.
+     */
+    void send(Message msg) {
+        final int depth = queued.incrementAndGet();
+        if (depth > maxQueued.get())
+            maxQueued.set(depth);
+        msg.sendToTarget();
+    }
+
+    void assign() {
+        devices++;
+    }
+
+    void release() {
+        devices--;
+    }
+
+    /**
+     * Stops the thread once the queued messages are handled.
+     */
+    void quit() {
+        thread.quitSafely();
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return Devices currently recording on this shard.
+     */
+    public int getDevices() {
+        return devices;
+    }
+
+    /**
+     * @return Messages sent but not yet handled.
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueued.get();
+    }
+
+    public long getHandled() {
+        return handled.get();
+    }
+
+    /**
+     * @return Mean time spent handling a message in microseconds.
+     */
+    public long getMeanHandleMicros() {
+        final long count = handled.get();
+        return count == 0 ? 0 : busyNanos.get() / count / 1000;
+    }
+
+    public long getMaxHandleMicros() {
+        return maxNanos.get() / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "shard " + index + ": devices=" + devices + " queue=" + getQueueDepth()
+                + " max=" + getMaxQueueDepth() + " handled=" + getHandled()
+                + " mean=" + getMeanHandleMicros() + "us max=" + getMaxHandleMicros() + "us";
+    }
+}
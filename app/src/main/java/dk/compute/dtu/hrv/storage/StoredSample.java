@@ -0,0 +1,24 @@
+package dk.compute.dtu.hrv.storage;
+
+/**
+ * One heart rate measurement handed to a {@link SimpleStorageWorker}.
+ */
+class StoredSample {
+    final int heartRate;
+    // The intervals, or -1 if the measurement had none
+    final int[] rr;
+    final int contact;
+    final int energy;
+    final long timestamp;
+    // Id of the sample in the latency trace
+    final long traceId;
+
+    StoredSample(int heartRate, int[] rr, int contact, int energy, long timestamp, long traceId) {
+        this.heartRate = heartRate;
+        this.rr = rr;
+        this.contact = contact;
+        this.energy = energy;
+        this.timestamp = timestamp;
+        this.traceId = traceId;
+    }
+}
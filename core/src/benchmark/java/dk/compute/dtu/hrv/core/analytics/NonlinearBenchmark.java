@@ -0,0 +1,92 @@
+package dk.compute.dtu.hrv.core.analytics;
+
+import java.util.Random;
+
+/**
+ * Times {@link WindowedEntropy} and {@link StreamingDfa} against the naive
+ * {@link NonlinearHrv} versions over 5 minute and 1 hour windows of a
+ * synthetic RR stream: how much a beat costs when the indices are updated on
+ * every beat. StreamingNonlinearTest checks that both give the same values.
+ */
+public class NonlinearBenchmark {
+
+    // Windows in minutes, at the mean rate of the synthetic stream
+    private static final int[] WINDOW_MINUTES = {5, 60};
+    private static final int BEATS_PER_MINUTE = 70;
+    private static final int M = 2;
+    // Tolerance in ms
+    private static final double R = 20;
+    // Windows recomputed naively per case, the 1 hour ones take a while
+    private static final int NAIVE_UPDATES = 20;
+
+    private NonlinearBenchmark() {
+    }
+
+    /**
+     * Usage: {@code NonlinearBenchmark}.
+     */
+    public static void main(String[] args) {
+        for (int minutes : WINDOW_MINUTES) {
+            final int window = minutes * BEATS_PER_MINUTE;
+            final int[] x = generate(window * 4);
+            final int[] sizes = StreamingDfa.defaultSizes();
+
+            // Streaming, every beat, twice to warm up the JIT
+            long streamNanos = 0;
+            for (int run = 0; run < 2; run++)
+                streamNanos = runStreaming(x, window, sizes);
+
+            // Naive, over the window ending at evenly spread beats
+            final int step = (x.length - window) / NAIVE_UPDATES;
+            long naiveNanos = 0;
+            double sink = 0;
+            int updates = 0;
+            for (int end = window; end <= x.length; end += step) {
+                final int from = end - window;
+                final long start = System.nanoTime();
+                sink += NonlinearHrv.sampleEntropy(x, from, window, M, R)
+                        + NonlinearHrv.approximateEntropy(x, from, window, M, R)
+                        + NonlinearHrv.dfaAlpha(x, from, window, sizes);
+                naiveNanos += System.nanoTime() - start;
+                updates++;
+            }
+            if (sink == 42)
+                System.out.println();
+            System.out.println(String.format("%2d min window (%d beats): streaming %.2f us/beat, naive %.1f ms/beat",
+                    minutes, window, streamNanos / 1000.0 / x.length, naiveNanos / 1e6 / updates));
+        }
+    }
+
+    /**
+     * @return The ns taken to add every beat and read all four indices after it.
+     */
+    private static long runStreaming(int[] x, int window, int[] sizes) {
+        final WindowedEntropy entropy = new WindowedEntropy(window - M, M, R);
+        final StreamingDfa dfa = new StreamingDfa(window, sizes);
+        double sink = 0;
+        final long start = System.nanoTime();
+        for (int value : x) {
+            entropy.add(value);
+            dfa.add(value);
+            sink += entropy.sampleEntropy() + entropy.approximateEntropy() + dfa.alpha1() + dfa.alpha2();
+        }
+        final long nanos = System.nanoTime() - start;
+        if (sink == 42)
+            System.out.println();
+        return nanos;
+    }
+
+    // RR in ms with a respiratory and a slow rhythm, noise and integer rounding
+    private static int[] generate(int beats) {
+        final Random random = new Random(42);
+        final int[] x = new int[beats];
+        double t = 0;
+        for (int i = 0; i < beats; i++) {
+            final double rr = 60000.0 / BEATS_PER_MINUTE + 40 * Math.sin(2 * Math.PI * 0.25 * t)
+                    + 30 * Math.sin(2 * Math.PI * 0.03 * t) + 20 * random.nextGaussian();
+            x[i] = (int) Math.round(rr);
+            t += rr / 1000;
+        }
+        return x;
+    }
+}
@@ -0,0 +1,99 @@
+package dk.compute.dtu.hrv.core.pipeline;
+
+import java.util.Random;
+
+import dk.compute.dtu.hrv.core.bus.DataBus;
+import dk.compute.dtu.hrv.core.decode.HeartRateDecoder;
+
+/**
+ * Runs synthetic heart rate notifications through pipeline specs, fused and
+ * split across threads, one notification per batch and in batches, and
+ * prints the time per notification and the metrics of each stage.
+ *
+ * The notifications carry contact and one or two intervals, with an
+ * occasional ectopic beat for the validation and correction to work on.
+ */
+public class PipelineBenchmark {
+
+    private static final String[] SPECS = {
+            PipelineSpec.DEFAULT,
+            "decode,publish|validate,correct,timing,rmssd",
+            "decode|publish|validate,correct|timing,rmssd"
+    };
+    private static final int[] BATCHES = {1, 16};
+    private static final String DEVICE_ADDRESS = "00:22:D0:00:00:01";
+
+    private PipelineBenchmark() {
+    }
+
+    /**
+     * Usage: {@code PipelineBenchmark [notifications]}, 1000000 by default.
+     */
+    public static void main(String[] args) {
+        final int notifications = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final byte[][] values = generate(notifications);
+        System.out.println(String.format("%d notifications, %d cores", notifications,
+                Runtime.getRuntime().availableProcessors()));
+        // Warm up the JIT
+        run(PipelineSpec.parse(PipelineSpec.DEFAULT), values, 16);
+        for (String text : SPECS) {
+            final PipelineSpec spec = PipelineSpec.parse(text);
+            for (int batch : BATCHES) {
+                final long start = System.nanoTime();
+                final SamplePipeline pipeline = run(spec, values, batch);
+                final long nanos = System.nanoTime() - start;
+                System.out.println(String.format("%s, %d per batch: %.0f ns/notification", spec, batch,
+                        (double) nanos / notifications));
+                for (StageMetrics metrics : pipeline.getMetrics())
+                    System.out.println("  " + metrics);
+            }
+        }
+    }
+
+    private static SamplePipeline run(PipelineSpec spec, byte[][] values, int batch) {
+        final DataBus bus = new DataBus(4096);
+        final SamplePipeline pipeline = spec.build(DEVICE_ADDRESS, new PipelineSpec.StageFactory() {
+            @Override
+            public Stage create(String name, String deviceAddress) {
+                return PublishStage.NAME.equals(name) ? new PublishStage(bus) : null;
+            }
+        }, SamplePipeline.DEFAULT_QUEUE_CAPACITY, batch);
+        long timestamp = 0;
+        for (byte[] value : values) {
+            timestamp += 1000;
+            pipeline.offer(value, 0, value.length, timestamp);
+        }
+        pipeline.close();
+        return pipeline;
+    }
+
+    private static byte[][] generate(int notifications) {
+        final Random random = new Random(42);
+        final byte[][] values = new byte[notifications][];
+        double beat = 0;
+        for (int n = 0; n < notifications; n++) {
+            final long now = (n + 1) * 1000L;
+            final int[] rr = new int[4];
+            int count = 0;
+            while (count < rr.length) {
+                double interval = 850 + 40 * Math.sin(2 * Math.PI * 0.25 * beat / 1000) + 15 * random.nextGaussian();
+                if (random.nextInt(200) == 0)
+                    interval *= 0.6;
+                if (beat + interval > now)
+                    break;
+                beat += interval;
+                rr[count++] = (int) Math.round(interval * 1024 / 1000);
+            }
+            final byte[] value = new byte[2 + 2 * count];
+            value[0] = (byte) (HeartRateDecoder.FLAG_CONTACT_SUPPORTED | HeartRateDecoder.FLAG_CONTACT_DETECTED
+                    | HeartRateDecoder.FLAG_RR_INTERVALS);
+            value[1] = (byte) 70;
+            for (int i = 0; i < count; i++) {
+                value[2 + 2 * i] = (byte) rr[i];
+                value[3 + 2 * i] = (byte) (rr[i] >> 8);
+            }
+            values[n] = value;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,157 @@
+package dk.compute.dtu.hrv.core.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import dk.compute.dtu.hrv.core.capture.RawCaptureDecoder;
+import dk.compute.dtu.hrv.core.decode.HeartRateDecoder;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+import dk.compute.dtu.hrv.core.series.SeriesReader;
+import dk.compute.dtu.hrv.core.session.SessionFiles;
+import dk.compute.dtu.hrv.core.session.SessionWriter;
+import dk.compute.dtu.hrv.core.time.Clock;
+
+/**
+ * Replays recorded sessions into CSV and into the block format and compares
+ * the size of the heart rate and RR files, the time to append their samples
+ * and the time to read the RR files back.
+ */
+public class FormatComparison {
+
+    private static final String[] FORMATS = {SessionFiles.EXTENSION, SessionFiles.SERIES_EXTENSION};
+
+    private FormatComparison() {
+    }
+
+    /**
+     * Usage: {@code FormatComparison <output directory> <file>...}, where files
+     * are raw captures or RR files.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: FormatComparison <output directory> <file>...");
+            System.exit(1);
+        }
+        for (String format : FORMATS) {
+            final File directory = new File(args[0], format.substring(1));
+            final List<File> rrFiles = new ArrayList<File>();
+            long samples = 0;
+            long appendNanos = 0;
+            long bytes = 0;
+            for (int i = 1; i < args.length; i++) {
+                final SessionWriter writer = new SessionWriter(null, format);
+                final long[] result = replay(new File(args[i]), directory, writer);
+                samples += result[0];
+                appendNanos += result[1];
+                if (writer.getRrFile() == null)
+                    continue;
+                rrFiles.add(writer.getRrFile());
+                bytes += writer.getRrFile().length() + writer.getHeartRateFile().length();
+            }
+
+            long lines = 0;
+            final long scanStart = System.nanoTime();
+            for (File file : rrFiles)
+                lines += scan(file);
+            final long scanNanos = System.nanoTime() - scanStart;
+
+            System.out.println(String.format("%-8s %9d samples %11d bytes %6.2f bytes/sample,"
+                            + " append %6.1f ns/sample, scan %6.1f ns/line", format, samples, bytes,
+                    (double) bytes / Math.max(samples, 1), (double) appendNanos / Math.max(samples, 1),
+                    (double) scanNanos / Math.max(lines, 1)));
+        }
+    }
+
+    /**
+     * Writes the session of file through writer into directory.
+     *
+     * @return The number of measurements and the ns spent storing them.
+     */
+    private static long[] replay(File file, final File directory, final SessionWriter writer)
+            throws IOException, InterruptedException {
+        final SessionReplay replay = new SessionReplay(Collections.singletonList(SessionReplay.openSource(file)),
+                SessionReplay.UNPACED, Clock.SYSTEM);
+        final HeartRateSample sample = new HeartRateSample();
+        final long[] result = new long[2];
+        final IOException[] error = new IOException[1];
+        replay.run(new SessionReplay.Sink() {
+            private int[] rr = new int[1];
+
+            @Override
+            public void onStart(String deviceAddress, long timestamp) {
+                try {
+                    writer.open(directory, deviceAddress, new Date(timestamp));
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+
+            @Override
+            public void onNotification(ReplaySource source) {
+                if (source.getUuid() != RawCaptureDecoder.UUID_HEART_RATE_MEASUREMENT
+                        || !HeartRateDecoder.decode(source.getValue(), 0, source.getLength(), sample))
+                    return;
+                // Same layout as the recorder: the intervals, or -1 if there were none
+                final int count = Math.max(sample.rrCount, 1);
+                if (rr.length != count)
+                    rr = new int[count];
+                if (sample.rrCount == 0)
+                    rr[0] = -1;
+                else
+                    System.arraycopy(sample.rr, 0, rr, 0, count);
+                final long start = System.nanoTime();
+                try {
+                    writer.store(sample.heartRate, rr, sample.contact, sample.energyExpended,
+                            source.getTimestamp());
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+                result[1] += System.nanoTime() - start;
+                result[0]++;
+            }
+
+            @Override
+            public void onEnd(String deviceAddress, long timestamp) {
+                final long start = System.nanoTime();
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+                result[1] += System.nanoTime() - start;
+            }
+        });
+        if (error[0] != null)
+            throw error[0];
+        return result;
+    }
+
+    // Reads all lines of an RR file, returns their number
+    private static long scan(File file) throws IOException {
+        if (SessionFiles.isSeries(file.getName())) {
+            final SeriesReader reader = new SeriesReader(file);
+            long lines = 0;
+            for (int block = 0; block < reader.getBlockCount(); block++) {
+                lines += reader.readBlock(block, new SeriesReader.Visitor() {
+                    @Override
+                    public void onSample(long timestamp, int value) {
+                    }
+                });
+            }
+            return lines;
+        }
+        final CsvLineReader reader = new CsvLineReader(file);
+        long lines = 0;
+        try {
+            while (reader.next())
+                lines++;
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
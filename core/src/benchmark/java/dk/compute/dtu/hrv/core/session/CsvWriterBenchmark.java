@@ -0,0 +1,126 @@
+package dk.compute.dtu.hrv.core.session;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Writes the same samples with {@link CsvChannelWriter} and with the
+ * {@code String.format} writer SessionWriter used before it and prints the
+ * time per line of each. CsvChannelWriterTest checks that the files are
+ * identical.
+ *
+ * The samples are recorder-like heart rates and intervals at increasing
+ * timestamps, followed by the long and int extremes.
+ */
+public class CsvWriterBenchmark {
+
+    private static final int RUNS = 5;
+
+    /**
+     * The writer of SessionWriter before CsvChannelWriter, kept as the reference.
+     */
+    static class LegacyCsvWriter implements ChannelWriter {
+
+        private final Writer writer;
+
+        LegacyCsvWriter(File file) throws IOException {
+            writer = new BufferedWriter(new FileWriter(file, false));
+        }
+
+        @Override
+        public int write(long timestamp, int value) throws IOException {
+            final String time = String.format("%d", timestamp);
+            final String data = String.format(";%d", value);
+            writer.write(time);
+            writer.write(data);
+            writer.write("\n");
+            return time.length() + data.length() + 1;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public void sync() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.flush();
+            writer.close();
+        }
+    }
+
+    private CsvWriterBenchmark() {
+    }
+
+    /**
+     * Usage: {@code CsvWriterBenchmark <directory> [lines]}, 1000000 lines by
+     * default.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: CsvWriterBenchmark <directory> [lines]");
+            System.exit(1);
+        }
+        final File directory = new File(args[0]);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+        final int lines = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        final long[] timestamps = new long[lines];
+        final int[] values = new int[lines];
+        generate(timestamps, values);
+
+        final File legacyFile = new File(directory, "legacy.csv");
+        final File channelFile = new File(directory, "channel.csv");
+        long legacyNanos = Long.MAX_VALUE;
+        long channelNanos = Long.MAX_VALUE;
+        // Best of several runs, the first ones warm up the JIT
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            write(new LegacyCsvWriter(legacyFile), timestamps, values);
+            legacyNanos = Math.min(legacyNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            write(new CsvChannelWriter(channelFile), timestamps, values);
+            channelNanos = Math.min(channelNanos, System.nanoTime() - start);
+        }
+
+        System.out.println(String.format("%d lines, %d bytes: String.format %.0f ns/line, CsvChannelWriter %.0f ns/line",
+                lines, channelFile.length(), (double) legacyNanos / lines, (double) channelNanos / lines));
+    }
+
+    private static void write(ChannelWriter writer, long[] timestamps, int[] values) throws IOException {
+        try {
+            for (int i = 0; i < timestamps.length; i++)
+                writer.write(timestamps[i], values[i]);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void generate(long[] timestamps, int[] values) {
+        final Random random = new Random(42);
+        final long[] extremeTimes = {0, -1, 9, 10, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1};
+        final int[] extremeValues = {0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 99, 100, -100};
+        final int regular = Math.max(0, timestamps.length - extremeTimes.length);
+        long time = 1445000000000L;
+        for (int i = 0; i < regular; i++) {
+            time += random.nextInt(1100);
+            timestamps[i] = time;
+            // Heart rates, intervals in 1/1024 s and the -1 of notifications without intervals
+            final int kind = random.nextInt(3);
+            values[i] = kind == 0 ? 40 + random.nextInt(160) : kind == 1 ? 300 + random.nextInt(1700) : -1;
+        }
+        for (int i = regular; i < timestamps.length; i++) {
+            timestamps[i] = extremeTimes[i - regular];
+            values[i] = extremeValues[i - regular];
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package dk.compute.dtu.hrv.core.synchrony;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Feeds synthetic, partly coupled RR streams of a growing number of devices
+ * through a {@link SynchronyEngine}, sequentially and on all cores, and
+ * prints the time per update and how much faster than real time it runs.
+ *
+ * Each device follows a shared slow rhythm with its own lag and weight, plus
+ * respiration and noise of its own, so the group index lands between the
+ * extremes.
+ */
+public class SynchronyBenchmark {
+
+    private static final int[] DEVICES = {2, 5, 10, 20, 40};
+    // Notifications, and updates, once per second as sent by the straps
+    private static final long NOTIFICATION_INTERVAL = 1000;
+
+    private SynchronyBenchmark() {
+    }
+
+    /**
+     * Usage: {@code SynchronyBenchmark [recorded minutes]}, 60 by default.
+     */
+    public static void main(String[] args) {
+        final long duration = (args.length > 0 ? Long.parseLong(args[0]) : 60) * 60 * 1000;
+        final int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println(String.format("%d min recorded, window %d s, lags +-%d s, %d cores", duration / 60000,
+                SynchronyEngine.DEFAULT_WINDOW * SynchronyEngine.DEFAULT_PERIOD / 1000,
+                SynchronyEngine.DEFAULT_MAX_LAG * SynchronyEngine.DEFAULT_PERIOD / 1000, cores));
+        // Warm up the JIT on the largest case
+        run(DEVICES[DEVICES.length - 1], duration / 4, cores);
+        for (int devices : DEVICES) {
+            final long[] sequential = run(devices, duration, 1);
+            final long[] parallel = run(devices, duration, cores);
+            final int pairs = devices * (devices - 1) / 2;
+            final long updates = duration / NOTIFICATION_INTERVAL;
+            System.out.println(String.format("%3d devices %4d pairs: 1 thread %8.1f us/update (%7.0fx real time),"
+                            + " %2d threads %8.1f us/update (%7.0fx), speedup %.2f, index %.3f", devices, pairs,
+                    sequential[0] / 1000.0 / updates, (double) duration * 1e6 / sequential[0], cores,
+                    parallel[0] / 1000.0 / updates, (double) duration * 1e6 / parallel[0],
+                    (double) sequential[0] / parallel[0], sequential[1] / 1000.0));
+        }
+    }
+
+    /**
+     * @return The ns spent in the engine and the final group index times 1000.
+     */
+    private static long[] run(int devices, long duration, int parallelism) {
+        final SynchronyEngine engine = new SynchronyEngine(SynchronyEngine.DEFAULT_PERIOD,
+                SynchronyEngine.DEFAULT_WINDOW, SynchronyEngine.DEFAULT_MAX_LAG, parallelism);
+        final Random random = new Random(42);
+        final String[] addresses = new String[devices];
+        final double[] lags = new double[devices];
+        final double[] weights = new double[devices];
+        final double[] breathing = new double[devices];
+        final double[] beats = new double[devices];
+        for (int i = 0; i < devices; i++) {
+            addresses[i] = String.format("00:22:D0:00:%02X:%02X", i >> 8, i & 0xff);
+            lags[i] = random.nextDouble() * 3000;
+            weights[i] = 0.3 + 0.7 * random.nextDouble();
+            breathing[i] = 0.2 + 0.1 * random.nextDouble();
+            beats[i] = random.nextDouble() * 1000;
+        }
+
+        // Generate first, so that only the engine is timed
+        final int seconds = (int) (duration / NOTIFICATION_INTERVAL);
+        final int[][] intervals = new int[devices][];
+        final int[][] counts = new int[devices][seconds];
+        for (int i = 0; i < devices; i++) {
+            int[] rrs = new int[seconds * 2];
+            int n = 0;
+            for (int second = 0; second < seconds; second++) {
+                final long now = (second + 1) * NOTIFICATION_INTERVAL;
+                // Beats that ended since the last notification
+                while (true) {
+                    final double t = (beats[i] - lags[i]) / 1000;
+                    final double rr = 850 + 60 * weights[i] * Math.sin(2 * Math.PI * 0.05 * t)
+                            + 25 * Math.sin(2 * Math.PI * breathing[i] * t) + 15 * random.nextGaussian();
+                    if (beats[i] + rr > now)
+                        break;
+                    beats[i] += rr;
+                    if (n == rrs.length)
+                        rrs = Arrays.copyOf(rrs, n * 2);
+                    rrs[n++] = (int) Math.round(rr * 1024 / 1000);
+                    counts[i][second]++;
+                }
+            }
+            intervals[i] = rrs;
+        }
+
+        final int[] positions = new int[devices];
+        final long start = System.nanoTime();
+        for (int second = 0; second < seconds; second++) {
+            final long now = (second + 1) * NOTIFICATION_INTERVAL;
+            for (int i = 0; i < devices; i++) {
+                for (int j = 0; j < counts[i][second]; j++)
+                    engine.addInterval(addresses[i], now, intervals[i][positions[i]++]);
+            }
+            engine.update();
+        }
+        final long nanos = System.nanoTime() - start;
+        engine.shutdown();
+        return new long[] {nanos, Math.round(engine.getGroupSynchrony() * 1000)};
+    }
+}
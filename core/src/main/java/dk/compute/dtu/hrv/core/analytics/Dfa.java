@@ -0,0 +1,69 @@
+package dk.compute.dtu.hrv.core.analytics;
+
+/**
+ * Shared pieces of the detrended fluctuation analysis.
+ */
+class Dfa {
+
+    private Dfa() {
+    }
+
+    /**
+     * Sum of squared residuals of the least squares line through
+     * {@code profile[0..n)} against t = 0..n-1.
+     */
+    static double residual(double[] profile, int n) {
+        double sy = 0;
+        double sty = 0;
+        double syy = 0;
+        for (int t = 0; t < n; t++) {
+            final double y = profile[t] - profile[0];
+            sy += y;
+            sty += t * y;
+            syy += y * y;
+        }
+        return residual(n, sy, sty, syy);
+    }
+
+    /**
+     * Residual from the sums of y, t*y and y*y over a box of n points.
+     */
+    static double residual(int n, double sy, double sty, double syy) {
+        final double st = n * (n - 1) / 2.0;
+        final double stt = (n - 1) * n * (2.0 * n - 1) / 6.0;
+        final double sxx = stt - st * st / n;
+        final double sxy = sty - st * sy / n;
+        final double rss = syy - sy * sy / n - (sxx > 0 ? sxy * sxy / sxx : 0);
+        // Guard against negative round off
+        return Math.max(rss, 0);
+    }
+
+    /**
+     * Least squares slope of log F(n) against log n over {@code sizes[from..to)},
+     * skipping sizes with a NaN or zero fluctuation.
+     *
+     * @return The slope, or NaN with fewer than two usable sizes.
+     */
+    static double slope(int[] sizes, double[] f, int from, int to) {
+        int count = 0;
+        double sx = 0;
+        double sy = 0;
+        double sxx = 0;
+        double sxy = 0;
+        for (int i = from; i < to; i++) {
+            if (!(f[i] > 0))
+                continue;
+            final double lx = Math.log(sizes[i]);
+            final double ly = Math.log(f[i]);
+            count++;
+            sx += lx;
+            sy += ly;
+            sxx += lx * lx;
+            sxy += lx * ly;
+        }
+        if (count < 2)
+            return Double.NaN;
+        final double d = count * sxx - sx * sx;
+        return d == 0 ? Double.NaN : (count * sxy - sx * sy) / d;
+    }
+}
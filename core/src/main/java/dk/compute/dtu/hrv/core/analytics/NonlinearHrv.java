@@ -0,0 +1,116 @@
+package dk.compute.dtu.hrv.core.analytics;
+
+/**
+ * Reference O(n^2) implementations of the nonlinear HRV indices, computed
+ * offline over a whole series. {@link WindowedEntropy} and {@link StreamingDfa}
+ * are the bounded cost per beat versions and should agree with these.
+ */
+public class NonlinearHrv {
+
+    private NonlinearHrv() {
+    }
+
+    /**
+     * Sample entropy of {@code count} values starting at {@code from}, using
+     * the same N - m templates for lengths m and m + 1.
+     *
+     * @param m Template length, usually 2.
+     * @param r Tolerance in the unit of the values.
+     * @return SampEn, or NaN when no templates of length m + 1 match.
+     */
+    public static double sampleEntropy(int[] x, int from, int count, int m, double r) {
+        final int templates = count - m;
+        long b = 0;
+        long a = 0;
+        for (int i = 0; i < templates; i++) {
+            for (int j = i + 1; j < templates; j++) {
+                final int length = matchLength(x, from + i, from + j, m + 1, r);
+                if (length >= m)
+                    b++;
+                if (length > m)
+                    a++;
+            }
+        }
+        if (a == 0 || b == 0)
+            return Double.NaN;
+        return -Math.log((double) a / b);
+    }
+
+    /**
+     * Approximate entropy of {@code count} values starting at {@code from},
+     * counting self matches and using the same N - m templates for lengths m
+     * and m + 1.
+     *
+     * @return ApEn, or NaN when there are no templates.
+     */
+    public static double approximateEntropy(int[] x, int from, int count, int m, double r) {
+        final int templates = count - m;
+        if (templates <= 0)
+            return Double.NaN;
+        double phiM = 0;
+        double phiM1 = 0;
+        for (int i = 0; i < templates; i++) {
+            int cm = 0;
+            int cm1 = 0;
+            for (int j = 0; j < templates; j++) {
+                final int length = matchLength(x, from + i, from + j, m + 1, r);
+                if (length >= m)
+                    cm++;
+                if (length > m)
+                    cm1++;
+            }
+            phiM += Math.log((double) cm / templates);
+            phiM1 += Math.log((double) cm1 / templates);
+        }
+        return (phiM - phiM1) / templates;
+    }
+
+    /**
+     * Returns how many leading points of the templates at i and j, up to
+     * {@code length}, are within r of each other.
+     */
+    static int matchLength(int[] x, int i, int j, int length, double r) {
+        for (int k = 0; k < length; k++) {
+            if (Math.abs(x[i + k] - x[j + k]) > r)
+                return k;
+        }
+        return length;
+    }
+
+    /**
+     * Detrended fluctuation F(n) for each box size, over non overlapping boxes
+     * of the integrated series starting at {@code from}.
+     *
+     * @return F(n) per size, NaN for sizes without a complete box.
+     */
+    public static double[] fluctuations(int[] x, int from, int count, int[] sizes) {
+        final double[] f = new double[sizes.length];
+        for (int s = 0; s < sizes.length; s++) {
+            final int n = sizes[s];
+            final int boxes = count / n;
+            if (boxes == 0) {
+                f[s] = Double.NaN;
+                continue;
+            }
+            final double[] profile = new double[n];
+            double y = 0;
+            double residuals = 0;
+            for (int box = 0; box < boxes; box++) {
+                for (int t = 0; t < n; t++) {
+                    y += x[from + box * n + t];
+                    profile[t] = y;
+                }
+                residuals += Dfa.residual(profile, n);
+            }
+            f[s] = Math.sqrt(residuals / (boxes * n));
+        }
+        return f;
+    }
+
+    /**
+     * DFA scaling exponent over the given box sizes.
+     */
+    public static double dfaAlpha(int[] x, int from, int count, int[] sizes) {
+        return Dfa.slope(sizes, fluctuations(x, from, count, sizes), 0, sizes.length);
+    }
+}
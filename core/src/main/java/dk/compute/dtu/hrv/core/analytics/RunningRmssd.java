@@ -0,0 +1,60 @@
+package dk.compute.dtu.hrv.core.analytics;
+
+/**
+ * RMSSD over the last successive differences of a beat to beat interval stream,
+ * updated in O(1) per beat with a running sum of squares. Not thread safe.
+ */
+public class RunningRmssd {
+
+    private final double[] squaredDiffs;
+    private int head = 0;
+    private int count = 0;
+    private double sum = 0;
+    private int lastInterval = -1;
+
+    /**
+     * @param window Number of successive differences averaged.
+     */
+    public RunningRmssd(int window) {
+        squaredDiffs = new double[window];
+    }
+
+    public void add(int interval) {
+        if (lastInterval > 0) {
+            final double diff = interval - lastInterval;
+            if (count == squaredDiffs.length)
+                sum -= squaredDiffs[head];
+            else
+                count++;
+            squaredDiffs[head] = diff * diff;
+            sum += squaredDiffs[head];
+            head = (head + 1) % squaredDiffs.length;
+        }
+        lastInterval = interval;
+    }
+
+    /**
+     * Starts a new segment, the next interval is not differenced against the
+     * previous one. The differences already collected are kept.
+     */
+    public void breakSegment() {
+        lastInterval = -1;
+    }
+
+    public void reset() {
+        head = 0;
+        count = 0;
+        sum = 0;
+        lastInterval = -1;
+    }
+
+    /**
+     * @return The RMSSD in the unit of the intervals, or -1 with fewer than two differences.
+     */
+    public double get() {
+        if (count < 2)
+            return -1;
+        // Guard against negative round off from the running sum
+        return Math.sqrt(Math.max(sum, 0) / count);
+    }
+}
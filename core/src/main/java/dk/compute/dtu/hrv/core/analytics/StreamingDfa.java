@@ -0,0 +1,160 @@
+package dk.compute.dtu.hrv.core.analytics;
+
+/**
+ * Detrended fluctuation analysis over the most recent beats of an RR stream.
+ *
+ * The integrated series is split into non overlapping boxes aligned to the
+ * start of the stream, one box grid per precomputed size. Each size keeps the
+ * running sums of its open box and the residuals of its completed boxes that
+ * fall within the window, so a beat costs O(number of sizes) and reading
+ * alpha costs the same. The mean of the series is not subtracted before
+ * integrating: it only adds a linear term to each box, which the detrending
+ * removes. Not thread safe.
+ */
+public class StreamingDfa {
+
+    /** Box sizes of the short term exponent alpha1. */
+    public static final int SHORT_TERM_MIN = 4;
+    public static final int SHORT_TERM_MAX = 16;
+    /** Box sizes of the long term exponent alpha2. */
+    public static final int LONG_TERM_MAX = 64;
+
+    private final int[] sizes;
+
+    // Running sums of the open box per size, with y relative to the box start
+    private final double[] base;
+    private final double[] sy;
+    private final double[] sty;
+    private final double[] syy;
+    private final int[] filled;
+
+    // Residuals of the completed boxes within the window, a ring per size
+    private final double[][] residuals;
+    private final int[] heads;
+    private final int[] counts;
+    private final double[] residualSums;
+
+    private final double[] f;
+    private double y = 0;
+
+    /**
+     * @param windowBeats Number of recent beats the boxes are taken from.
+     * @param sizes Box sizes in ascending order.
+     */
+    public StreamingDfa(int windowBeats, int[] sizes) {
+        this.sizes = sizes.clone();
+        base = new double[sizes.length];
+        sy = new double[sizes.length];
+        sty = new double[sizes.length];
+        syy = new double[sizes.length];
+        filled = new int[sizes.length];
+        residuals = new double[sizes.length][];
+        for (int s = 0; s < sizes.length; s++)
+            residuals[s] = new double[Math.max(windowBeats / sizes[s], 1)];
+        heads = new int[sizes.length];
+        counts = new int[sizes.length];
+        residualSums = new double[sizes.length];
+        f = new double[sizes.length];
+    }
+
+    /**
+     * Every size from {@link #SHORT_TERM_MIN} to {@link #SHORT_TERM_MAX}, then
+     * roughly logarithmically spaced sizes up to {@link #LONG_TERM_MAX}.
+     */
+    public static int[] defaultSizes() {
+        final int[] sizes = new int[SHORT_TERM_MAX - SHORT_TERM_MIN + 1 + 12];
+        int count = 0;
+        for (int n = SHORT_TERM_MIN; n <= SHORT_TERM_MAX; n++)
+            sizes[count++] = n;
+        final double step = Math.pow((double) LONG_TERM_MAX / SHORT_TERM_MAX, 1.0 / 12);
+        double n = SHORT_TERM_MAX;
+        for (int i = 0; i < 12; i++) {
+            n *= step;
+            final int size = (int) Math.round(n);
+            if (size > sizes[count - 1])
+                sizes[count++] = size;
+        }
+        final int[] result = new int[count];
+        System.arraycopy(sizes, 0, result, 0, count);
+        return result;
+    }
+
+    public int[] getSizes() {
+        return sizes.clone();
+    }
+
+    public void add(int interval) {
+        y += interval;
+        for (int s = 0; s < sizes.length; s++) {
+            final int t = filled[s];
+            if (t == 0)
+                base[s] = y;
+            final double v = y - base[s];
+            sy[s] += v;
+            sty[s] += t * v;
+            syy[s] += v * v;
+            if (++filled[s] == sizes[s])
+                completeBox(s);
+        }
+    }
+
+    private void completeBox(int s) {
+        final double rss = Dfa.residual(sizes[s], sy[s], sty[s], syy[s]);
+        final double[] ring = residuals[s];
+        if (counts[s] == ring.length)
+            residualSums[s] -= ring[heads[s]];
+        else
+            counts[s]++;
+        ring[heads[s]] = rss;
+        residualSums[s] += rss;
+        heads[s] = (heads[s] + 1) % ring.length;
+
+        filled[s] = 0;
+        sy[s] = 0;
+        sty[s] = 0;
+        syy[s] = 0;
+    }
+
+    /**
+     * Forgets all beats, e.g. after a gap in the stream.
+     */
+    public void reset() {
+        y = 0;
+        for (int s = 0; s < sizes.length; s++) {
+            filled[s] = 0;
+            sy[s] = 0;
+            sty[s] = 0;
+            syy[s] = 0;
+            heads[s] = 0;
+            counts[s] = 0;
+            residualSums[s] = 0;
+        }
+    }
+
+    /**
+     * Scaling exponent over the box sizes from minSize to maxSize inclusive.
+     *
+     * @return alpha, or NaN while fewer than two of those sizes have a complete box.
+     */
+    public double alpha(int minSize, int maxSize) {
+        int from = sizes.length;
+        int to = 0;
+        for (int s = 0; s < sizes.length; s++) {
+            if (sizes[s] < minSize || sizes[s] > maxSize)
+                continue;
+            from = Math.min(from, s);
+            to = s + 1;
+            f[s] = counts[s] == 0 ? Double.NaN
+                    : Math.sqrt(Math.max(residualSums[s], 0) / (counts[s] * sizes[s]));
+        }
+        return Dfa.slope(sizes, f, from, Math.max(from, to));
+    }
+
+    public double alpha1() {
+        return alpha(SHORT_TERM_MIN, SHORT_TERM_MAX);
+    }
+
+    public double alpha2() {
+        return alpha(SHORT_TERM_MAX, LONG_TERM_MAX);
+    }
+}
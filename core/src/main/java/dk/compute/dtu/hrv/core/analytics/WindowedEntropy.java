@@ -0,0 +1,192 @@
+package dk.compute.dtu.hrv.core.analytics;
+
+/**
+ * Sample entropy and approximate entropy over a sliding window of the most
+ * recent beats, with a fixed tolerance r.
+ *
+ * Each template of m + 1 beats is kept in an array sorted by its first beat.
+ * A template can only match those whose first beat lies within r of its own,
+ * so adding a template and evicting the oldest one each binary search that
+ * range and update the match counts of the pairs found there instead of
+ * comparing against the whole window. Per template match counts are kept too,
+ * so ApEn follows from a running sum of their logarithms.
+ *
+ * Both indices use the same N - m templates for lengths m and m + 1, like
+ * {@link NonlinearHrv}. Not thread safe.
+ */
+public class WindowedEntropy {
+
+    private final int m;
+    private final double r;
+    private final int window;
+
+    // Beats by sequence number modulo the capacity
+    private final int[] values;
+    private int next = 0;
+
+    // Sequence numbers of the templates in the window, sorted by first beat
+    private final int[] sorted;
+    private int templates = 0;
+
+    // Matching templates of length m and m + 1 per template, including itself
+    private final int[] matchesM;
+    private final int[] matchesM1;
+
+    // Matching pairs within the window
+    private long pairsM = 0;
+    private long pairsM1 = 0;
+
+    private double logSumM = 0;
+    private double logSumM1 = 0;
+
+    /**
+     * @param window Number of templates, i.e. beats minus m, in the window.
+     * @param m Template length, usually 2.
+     * @param r Tolerance in the unit of the intervals.
+     */
+    public WindowedEntropy(int window, int m, double r) {
+        this.window = window;
+        this.m = m;
+        this.r = r;
+        values = new int[window + m + 1];
+        sorted = new int[window];
+        matchesM = new int[window + m + 1];
+        matchesM1 = new int[window + m + 1];
+    }
+
+    public void add(int interval) {
+        values[next % values.length] = interval;
+        next++;
+        if (next <= m)
+            return;
+
+        // The template starting m beats back is complete now
+        if (templates == window)
+            evict(next - m - 1 - window);
+        insert(next - m - 1);
+    }
+
+    private void insert(int template) {
+        final int slot = template % values.length;
+        matchesM[slot] = 1;
+        matchesM1[slot] = 1;
+        final int position = lowerBound(first(template));
+        forEachCandidate(template, true);
+
+        System.arraycopy(sorted, position, sorted, position + 1, templates - position);
+        sorted[position] = template;
+        templates++;
+        logSumM += Math.log(matchesM[slot]);
+        logSumM1 += Math.log(matchesM1[slot]);
+    }
+
+    private void evict(int template) {
+        final int slot = template % values.length;
+        int position = lowerBound(first(template));
+        while (sorted[position] != template)
+            position++;
+        templates--;
+        System.arraycopy(sorted, position + 1, sorted, position, templates - position);
+        logSumM -= Math.log(matchesM[slot]);
+        logSumM1 -= Math.log(matchesM1[slot]);
+
+        forEachCandidate(template, false);
+    }
+
+    /**
+     * Updates the counts of every pair of {@code template} with a template in
+     * the sorted array whose first beat is within r.
+     */
+    private void forEachCandidate(int template, boolean add) {
+        final int slot = template % values.length;
+        final int x = first(template);
+        final int delta = add ? 1 : -1;
+        for (int i = lowerBound(x - r); i < templates; i++) {
+            final int other = sorted[i];
+            if (first(other) > x + r)
+                break;
+            final int length = matchLength(template, other);
+            if (length < m)
+                continue;
+
+            final int otherSlot = other % values.length;
+            logSumM -= Math.log(matchesM[otherSlot]);
+            matchesM[otherSlot] += delta;
+            logSumM += Math.log(matchesM[otherSlot]);
+            matchesM[slot] += delta;
+            pairsM += delta;
+            if (length > m) {
+                logSumM1 -= Math.log(matchesM1[otherSlot]);
+                matchesM1[otherSlot] += delta;
+                logSumM1 += Math.log(matchesM1[otherSlot]);
+                matchesM1[slot] += delta;
+                pairsM1 += delta;
+            }
+        }
+    }
+
+    private int matchLength(int a, int b) {
+        for (int k = 0; k <= m; k++) {
+            final int va = values[(a + k) % values.length];
+            final int vb = values[(b + k) % values.length];
+            if (Math.abs(va - vb) > r)
+                return k;
+        }
+        return m + 1;
+    }
+
+    private int first(int template) {
+        return values[template % values.length];
+    }
+
+    // First position in sorted whose first beat is at least x
+    private int lowerBound(double x) {
+        int lo = 0;
+        int hi = templates;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (first(sorted[mid]) < x)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Forgets all beats, e.g. after a gap in the stream.
+     */
+    public void reset() {
+        next = 0;
+        templates = 0;
+        pairsM = 0;
+        pairsM1 = 0;
+        logSumM = 0;
+        logSumM1 = 0;
+    }
+
+    /**
+     * @return Number of templates currently in the window.
+     */
+    public int size() {
+        return templates;
+    }
+
+    /**
+     * @return SampEn, or NaN while no templates of length m + 1 match.
+     */
+    public double sampleEntropy() {
+        if (pairsM1 == 0 || pairsM == 0)
+            return Double.NaN;
+        return -Math.log((double) pairsM1 / pairsM);
+    }
+
+    /**
+     * @return ApEn, or NaN while the window is empty.
+     */
+    public double approximateEntropy() {
+        if (templates == 0)
+            return Double.NaN;
+        return (logSumM - logSumM1) / templates;
+    }
+}
@@ -0,0 +1,33 @@
+package dk.compute.dtu.hrv.core.batch;
+
+/**
+ * Thresholds deciding which recorded intervals are artifacts. Values are in
+ * the unit the intervals were stored in.
+ */
+public class ArtifactThresholds {
+
+    public static final ArtifactThresholds DEFAULT = new ArtifactThresholds(300, 2000, 0.2);
+
+    /** Intervals outside [minInterval, maxInterval] are dropped. */
+    public final int minInterval;
+    public final int maxInterval;
+    /**
+     * Successive differences larger than this fraction of the previous
+     * interval are left out of RMSSD and pNN50.
+     */
+    public final double maxChange;
+
+    public ArtifactThresholds(int minInterval, int maxInterval, double maxChange) {
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.maxChange = maxChange;
+    }
+
+    public boolean accepts(int interval) {
+        return interval >= minInterval && interval <= maxInterval;
+    }
+
+    public boolean acceptsDifference(int previous, int interval) {
+        return Math.abs(interval - previous) <= maxChange * previous;
+    }
+}
@@ -0,0 +1,309 @@
+package dk.compute.dtu.hrv.core.batch;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import dk.compute.dtu.hrv.core.analytics.StreamingDfa;
+import dk.compute.dtu.hrv.core.analytics.WindowedEntropy;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+import dk.compute.dtu.hrv.core.series.SeriesReader;
+import dk.compute.dtu.hrv.core.session.ContactTimeline;
+import dk.compute.dtu.hrv.core.session.SessionFileName;
+import dk.compute.dtu.hrv.core.session.SessionFiles;
+
+/**
+ * Recomputes the metrics of every session in an archive directory laid out by
+ * {@link SessionFiles}, e.g. after the artifact thresholds changed.
+ *
+ * Every session is a fork join task. A session file is memory mapped once and
+ * split at line boundaries into blocks of about {@link #DEFAULT_BLOCK_BYTES},
+ * i.e. consecutive time blocks, which are parsed in parallel and reduced
+ * pairwise into {@link RrStatistics}, skipping the intervals recorded without
+ * sensor contact. The nonlinear indices, which need the whole series in order,
+ * then run on the merged intervals. Sessions in the block format are split
+ * at their block boundaries instead. Tasks share no mutable state, so
+ * throughput grows with the pool's parallelism until the disk becomes the limit.
+ */
+public class BatchRecompute {
+
+    public static final int DEFAULT_BLOCK_BYTES = 1 << 20;
+    // Windows of the nonlinear indices, as on the dashboard
+    public static final int ENTROPY_BEATS = 300;
+    // 20 ms in the 1/1024 s of the recorded intervals
+    public static final double ENTROPY_TOLERANCE = 20.0 * HeartRateSample.RR_UNITS_PER_SECOND / 1000;
+
+    private final ArtifactThresholds thresholds;
+    private final int blockBytes;
+
+    public BatchRecompute(ArtifactThresholds thresholds) {
+        this(thresholds, DEFAULT_BLOCK_BYTES);
+    }
+
+    public BatchRecompute(ArtifactThresholds thresholds, int blockBytes) {
+        this.thresholds = thresholds;
+        this.blockBytes = blockBytes;
+    }
+
+    /**
+     * Finds the RR files of all sessions in directory.
+     */
+    public static List<File> findSessions(File directory) {
+        final List<File> sessions = new ArrayList<File>();
+        final File[] files = directory.listFiles();
+        if (files == null)
+            return sessions;
+        for (File file : files) {
+            final SessionFileName name = SessionFiles.parse(file.getName());
+            if (name != null && SessionFiles.PREFIX_RR.equals(name.prefix))
+                sessions.add(file);
+        }
+        return sessions;
+    }
+
+    /**
+     * Recomputes all sessions of directory on pool.
+     *
+     * @return One summary per session, ordered by start.
+     */
+    public List<SessionSummary> run(File directory, ForkJoinPool pool) {
+        final List<File> files = findSessions(directory);
+        final List<SessionTask> tasks = new ArrayList<SessionTask>(files.size());
+        for (File file : files)
+            tasks.add(new SessionTask(file));
+
+        final List<SessionSummary> summaries = pool.invoke(new RecursiveTask<List<SessionSummary>>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected List<SessionSummary> compute() {
+                invokeAll(tasks);
+                final List<SessionSummary> result = new ArrayList<SessionSummary>(tasks.size());
+                for (SessionTask task : tasks) {
+                    if (task.getRawResult() != null)
+                        result.add(task.getRawResult());
+                }
+                return result;
+            }
+        });
+        Collections.sort(summaries, SessionSummary.BY_START);
+        return summaries;
+    }
+
+    /**
+     * Writes the summaries as one semicolon separated table.
+     */
+    public static void writeTable(List<SessionSummary> summaries, File file) throws IOException {
+        final Writer writer = new BufferedWriter(new FileWriter(file, false));
+        try {
+            writer.write(SessionSummary.HEADER);
+            writer.write("\n");
+            for (SessionSummary summary : summaries) {
+                writer.write(summary.toCsv());
+                writer.write("\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Summarises one session, or returns null if it cannot be read.
+     */
+    private class SessionTask extends RecursiveTask<SessionSummary> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File file;
+
+        SessionTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        protected SessionSummary compute() {
+            final RrStatistics statistics;
+            try {
+                // The contact file shares the name of the RR file apart from the prefix
+                final ContactTimeline contact = ContactTimeline.read(new File(file.getParentFile(),
+                        SessionFiles.sibling(file.getName(), SessionFiles.PREFIX_CONTACT)));
+                statistics = SessionFiles.isSeries(file.getName()) ? readSeries(contact) : read(contact);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+
+            final StreamingDfa dfa = new StreamingDfa(statistics.getCount(), StreamingDfa.defaultSizes());
+            final WindowedEntropy entropy = new WindowedEntropy(ENTROPY_BEATS, 2, ENTROPY_TOLERANCE);
+            final int[] intervals = statistics.getIntervals();
+            // SampEn of consecutive, non overlapping windows, averaged
+            double entropySum = 0;
+            int entropyWindows = 0;
+            for (int i = 0; i < statistics.getCount(); i++) {
+                dfa.add(intervals[i]);
+                entropy.add(intervals[i]);
+                if ((i + 1) % (ENTROPY_BEATS + 2) == 0) {
+                    final double value = entropy.sampleEntropy();
+                    if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                        entropySum += value;
+                        entropyWindows++;
+                    }
+                    entropy.reset();
+                }
+            }
+
+            final SessionFileName name = SessionFiles.parse(file.getName());
+            return new SessionSummary(file, name.deviceAddress, new Date(name.start), statistics,
+                    dfa.alpha1(), dfa.alpha2(),
+                    entropyWindows == 0 ? Double.NaN : entropySum / entropyWindows);
+        }
+
+        private RrStatistics read(ContactTimeline contact) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final FileChannel channel = raf.getChannel();
+                final long size = channel.size();
+                if (size > Integer.MAX_VALUE)
+                    throw new IOException("Session too large to map: " + file);
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+                // Block boundaries moved forward to the next line start
+                final List<BlockTask> blocks = new ArrayList<BlockTask>();
+                int start = 0;
+                while (start < size) {
+                    final int end = start + blockBytes >= size ? (int) size
+                            : RrCsvParser.nextLine(buffer, start + blockBytes);
+                    blocks.add(new BlockTask(buffer, start, end, contact));
+                    start = end;
+                }
+                if (blocks.isEmpty())
+                    return new RrStatistics(thresholds, contact);
+                return new MergeTask(blocks, 0, blocks.size()).invoke();
+            } finally {
+                // The mapping stays valid after closing the channel
+                raf.close();
+            }
+        }
+
+        private RrStatistics readSeries(ContactTimeline contact) throws IOException {
+            final SeriesReader reader = new SeriesReader(file);
+            final int step = Math.max(1, blockBytes / reader.getBlockSize());
+            final List<BlockTask> blocks = new ArrayList<BlockTask>();
+            for (int start = 0; start < reader.getBlockCount(); start += step)
+                blocks.add(new BlockTask(reader, start, Math.min(start + step, reader.getBlockCount()), contact));
+            if (blocks.isEmpty())
+                return new RrStatistics(thresholds, contact);
+            return new MergeTask(blocks, 0, blocks.size()).invoke();
+        }
+    }
+
+    /**
+     * Reduces the blocks [from, to) pairwise, keeping their order.
+     */
+    private class MergeTask extends RecursiveTask<RrStatistics> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<BlockTask> blocks;
+        private final int from;
+        private final int to;
+
+        MergeTask(List<BlockTask> blocks, int from, int to) {
+            this.blocks = blocks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected RrStatistics compute() {
+            if (to - from == 1)
+                return blocks.get(from).compute();
+            final int middle = (from + to) >>> 1;
+            final MergeTask right = new MergeTask(blocks, middle, to);
+            right.fork();
+            final RrStatistics left = new MergeTask(blocks, from, middle).compute();
+            return left.merge(right.join());
+        }
+    }
+
+    /**
+     * Parses the lines in one byte range of a mapped session, or decodes a
+     * range of blocks of a session in the block format.
+     */
+    private class BlockTask {
+
+        private final ByteBuffer buffer;
+        private final SeriesReader series;
+        private final int from;
+        private final int to;
+        private final ContactTimeline contact;
+
+        BlockTask(MappedByteBuffer mapped, int start, int end, ContactTimeline contact) {
+            this.contact = contact;
+            // Each block reads through its own view of the shared mapping
+            buffer = mapped.duplicate();
+            buffer.limit(end);
+            buffer.position(start);
+            series = null;
+            from = 0;
+            to = 0;
+        }
+
+        BlockTask(SeriesReader series, int from, int to, ContactTimeline contact) {
+            this.contact = contact;
+            this.series = series;
+            this.from = from;
+            this.to = to;
+            buffer = null;
+        }
+
+        RrStatistics compute() {
+            final RrStatistics statistics = new RrStatistics(thresholds, contact);
+            if (series == null) {
+                RrCsvParser.parse(buffer, statistics);
+                return statistics;
+            }
+            final SeriesReader.Visitor visitor = new SeriesReader.Visitor() {
+                @Override
+                public void onSample(long timestamp, int value) {
+                    statistics.add(timestamp, value);
+                }
+            };
+            for (int block = from; block < to; block++)
+                series.readBlock(block, visitor);
+            return statistics;
+        }
+    }
+
+    /**
+     * Usage: {@code BatchRecompute <archive directory> [summary file]}.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: BatchRecompute <archive directory> [summary file]");
+            System.exit(1);
+        }
+        final File directory = new File(args[0]);
+        final File output = new File(args.length > 1 ? args[1] : new File(directory, "summary.csv").getPath());
+
+        final long start = System.nanoTime();
+        final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        final List<SessionSummary> summaries = new BatchRecompute(ArtifactThresholds.DEFAULT).run(directory, pool);
+        pool.shutdown();
+        writeTable(summaries, output);
+        System.out.println(String.format("%d sessions in %d ms on %d threads -> %s", summaries.size(),
+                (System.nanoTime() - start) / 1000000, pool.getParallelism(), output));
+    }
+}
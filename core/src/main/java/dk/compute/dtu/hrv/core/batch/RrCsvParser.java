@@ -0,0 +1,71 @@
+package dk.compute.dtu.hrv.core.batch;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parses the {@code timestamp;value} lines written by
+ * {@link dk.compute.dtu.hrv.core.session.SessionWriter} straight from a
+ * (memory mapped) byte buffer, without decoding to Strings.
+ */
+public class RrCsvParser {
+
+    private RrCsvParser() {
+    }
+
+    /**
+     * Parses the lines between the position and the limit of buffer into out.
+     * The range is expected to start at the beginning of a line.
+     */
+    public static void parse(ByteBuffer buffer, RrStatistics out) {
+        final int limit = buffer.limit();
+        int position = buffer.position();
+        while (position < limit) {
+            long timestamp = 0;
+            long value = 0;
+            boolean negative = false;
+            int field = 0;
+            int digits = 0;
+            boolean valid = true;
+            for (; position < limit; position++) {
+                final byte b = buffer.get(position);
+                if (b == '\n')
+                    break;
+                if (b >= '0' && b <= '9') {
+                    if (field == 0)
+                        timestamp = timestamp * 10 + (b - '0');
+                    else
+                        value = value * 10 + (b - '0');
+                    digits++;
+                } else if (b == ';' && field == 0 && digits > 0) {
+                    field = 1;
+                    digits = 0;
+                } else if (b == '-' && field == 1 && digits == 0 && !negative) {
+                    negative = true;
+                } else if (b != '\r') {
+                    valid = false;
+                }
+            }
+            // Skip the newline
+            position++;
+
+            if (field == 1 && digits > 0 && valid && value <= Integer.MAX_VALUE)
+                out.add(timestamp, (int) (negative ? -value : value));
+            else if (field > 0 || digits > 0 || !valid)
+                out.addMalformed();
+        }
+        buffer.position(limit);
+    }
+
+    /**
+     * Returns the position just after the next newline at or after
+     * {@code from}, or the limit of buffer if there is none.
+     */
+    public static int nextLine(ByteBuffer buffer, int from) {
+        final int limit = buffer.limit();
+        for (int position = from; position < limit; position++) {
+            if (buffer.get(position) == '\n')
+                return position + 1;
+        }
+        return limit;
+    }
+}
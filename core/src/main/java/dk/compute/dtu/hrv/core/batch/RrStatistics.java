@@ -0,0 +1,214 @@
+package dk.compute.dtu.hrv.core.batch;
+
+import java.util.Arrays;
+
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+import dk.compute.dtu.hrv.core.session.ContactTimeline;
+
+/**
+ * Time domain statistics of a run of consecutive intervals, together with the
+ * accepted intervals themselves. Two runs that follow each other merge into
+ * the statistics of the whole, including the successive difference across
+ * their boundary, so blocks of a session can be reduced in any tree shape.
+ * Intervals recorded without sensor contact are skipped and no difference is
+ * taken across such a gap.
+ *
+ * Intervals are added and kept as recorded, in 1/1024 s. The mean, SDNN and
+ * RMSSD are returned in ms, and pNN50 counts differences over 50 ms.
+ */
+public class RrStatistics {
+
+    // In ms
+    private static final int NN50 = 50;
+    private static final double MILLIS_PER_UNIT = HeartRateSample.toMillis(1);
+
+    private final ArtifactThresholds thresholds;
+    private final ContactTimeline contact;
+
+    private int[] intervals = new int[256];
+    private int count = 0;
+    private double sum = 0;
+    private double sumSquares = 0;
+
+    private int differences = 0;
+    private double differenceSquares = 0;
+    private int nn50 = 0;
+    private int rejectedDifferences = 0;
+
+    private int artifacts = 0;
+    private int malformed = 0;
+    private int noContact = 0;
+    // A contact gap before the first, and after the last accepted interval
+    private boolean leadingGap = false;
+    private boolean trailingGap = false;
+
+    private long firstTimestamp = -1;
+    private long lastTimestamp = -1;
+
+    public RrStatistics(ArtifactThresholds thresholds) {
+        this(thresholds, null);
+    }
+
+    /**
+     * @param contact Contact changes of the session, or null if unknown.
+     */
+    public RrStatistics(ArtifactThresholds thresholds, ContactTimeline contact) {
+        this.thresholds = thresholds;
+        this.contact = contact;
+    }
+
+    /**
+     * Adds one recorded line. Intervals of 0 or less mark notifications
+     * without intervals and are skipped.
+     */
+    public void add(long timestamp, int interval) {
+        if (interval <= 0)
+            return;
+        if (firstTimestamp < 0)
+            firstTimestamp = timestamp;
+        lastTimestamp = timestamp;
+
+        if (contact != null && !contact.inContact(timestamp)) {
+            noContact++;
+            if (count == 0)
+                leadingGap = true;
+            trailingGap = true;
+            return;
+        }
+        if (!thresholds.accepts(interval)) {
+            artifacts++;
+            return;
+        }
+        if (count > 0 && !trailingGap)
+            addDifference(intervals[count - 1], interval);
+        trailingGap = false;
+        append(interval);
+    }
+
+    public void addMalformed() {
+        malformed++;
+    }
+
+    private void append(int interval) {
+        if (count == intervals.length)
+            intervals = Arrays.copyOf(intervals, intervals.length * 2);
+        intervals[count++] = interval;
+        sum += interval;
+        sumSquares += (double) interval * interval;
+    }
+
+    private void addDifference(int previous, int interval) {
+        if (!thresholds.acceptsDifference(previous, interval)) {
+            rejectedDifferences++;
+            return;
+        }
+        final int diff = interval - previous;
+        differences++;
+        differenceSquares += (double) diff * diff;
+        if (MILLIS_PER_UNIT * Math.abs(diff) > NN50)
+            nn50++;
+    }
+
+    /**
+     * Appends the statistics of the run directly following this one.
+     *
+     * @return this
+     */
+    public RrStatistics merge(RrStatistics next) {
+        if (count > 0 && next.count > 0 && !trailingGap && !next.leadingGap)
+            addDifference(intervals[count - 1], next.intervals[0]);
+        if (count == 0)
+            leadingGap |= next.leadingGap;
+        trailingGap = next.count > 0 ? next.trailingGap : trailingGap || next.trailingGap;
+
+        if (count + next.count > intervals.length)
+            intervals = Arrays.copyOf(intervals, count + next.count);
+        System.arraycopy(next.intervals, 0, intervals, count, next.count);
+        count += next.count;
+        sum += next.sum;
+        sumSquares += next.sumSquares;
+
+        differences += next.differences;
+        differenceSquares += next.differenceSquares;
+        nn50 += next.nn50;
+        rejectedDifferences += next.rejectedDifferences;
+        artifacts += next.artifacts;
+        malformed += next.malformed;
+        noContact += next.noContact;
+
+        if (firstTimestamp < 0)
+            firstTimestamp = next.firstTimestamp;
+        if (next.lastTimestamp >= 0)
+            lastTimestamp = next.lastTimestamp;
+        return this;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * The accepted intervals in order, in 1/1024 s. Only the first {@link #getCount()} are valid.
+     */
+    public int[] getIntervals() {
+        return intervals;
+    }
+
+    public int getArtifacts() {
+        return artifacts;
+    }
+
+    public int getMalformed() {
+        return malformed;
+    }
+
+    /**
+     * @return Number of intervals skipped because the strap had no contact.
+     */
+    public int getNoContact() {
+        return noContact;
+    }
+
+    public int getRejectedDifferences() {
+        return rejectedDifferences;
+    }
+
+    public long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * @return Mean interval in ms.
+     */
+    public double getMean() {
+        return count == 0 ? Double.NaN : MILLIS_PER_UNIT * sum / count;
+    }
+
+    /**
+     * @return Standard deviation of the intervals in ms.
+     */
+    public double getSdnn() {
+        if (count < 2)
+            return Double.NaN;
+        final double mean = sum / count;
+        return MILLIS_PER_UNIT * Math.sqrt(Math.max(sumSquares - count * mean * mean, 0) / (count - 1));
+    }
+
+    /**
+     * @return Root mean square of the successive differences in ms.
+     */
+    public double getRmssd() {
+        return differences == 0 ? Double.NaN : MILLIS_PER_UNIT * Math.sqrt(differenceSquares / differences);
+    }
+
+    /**
+     * @return Percentage of successive differences over 50 ms.
+     */
+    public double getPnn50() {
+        return differences == 0 ? Double.NaN : 100.0 * nn50 / differences;
+    }
+}
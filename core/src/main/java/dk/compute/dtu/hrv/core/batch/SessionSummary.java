@@ -0,0 +1,56 @@
+package dk.compute.dtu.hrv.core.batch;
+
+import java.io.File;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * One row of the batch summary table: the recomputed metrics of a session.
+ * mean_rr, sdnn and rmssd are in ms, pnn50 in percent.
+ */
+public class SessionSummary {
+
+    public static final String HEADER =
+            "file;address;start;beats;artifacts;no_contact;malformed;duration_ms;mean_rr;sdnn;rmssd;pnn50;dfa_alpha1;dfa_alpha2;sampen";
+
+    /** Orders rows by session start, then address. */
+    public static final Comparator<SessionSummary> BY_START = new Comparator<SessionSummary>() {
+        @Override
+        public int compare(SessionSummary a, SessionSummary b) {
+            final int c = a.start.compareTo(b.start);
+            return c != 0 ? c : a.address.compareTo(b.address);
+        }
+    };
+
+    public final File file;
+    public final String address;
+    public final Date start;
+    public final RrStatistics statistics;
+    public final double dfaAlpha1;
+    public final double dfaAlpha2;
+    public final double sampleEntropy;
+
+    public SessionSummary(File file, String address, Date start, RrStatistics statistics,
+                          double dfaAlpha1, double dfaAlpha2, double sampleEntropy) {
+        this.file = file;
+        this.address = address;
+        this.start = start;
+        this.statistics = statistics;
+        this.dfaAlpha1 = dfaAlpha1;
+        this.dfaAlpha2 = dfaAlpha2;
+        this.sampleEntropy = sampleEntropy;
+    }
+
+    /**
+     * @return The row in the {@link #HEADER} layout, without line terminator.
+     */
+    public String toCsv() {
+        final long duration = statistics.getLastTimestamp() - statistics.getFirstTimestamp();
+        return String.format(Locale.US, "%s;%s;%d;%d;%d;%d;%d;%d;%.2f;%.2f;%.2f;%.2f;%.3f;%.3f;%.3f",
+                file.getName(), address, start.getTime(), statistics.getCount(),
+                statistics.getArtifacts(), statistics.getNoContact(), statistics.getMalformed(), duration,
+                statistics.getMean(), statistics.getSdnn(), statistics.getRmssd(),
+                statistics.getPnn50(), dfaAlpha1, dfaAlpha2, sampleEntropy);
+    }
+}
@@ -0,0 +1,63 @@
+package dk.compute.dtu.hrv.core.buffer;
+
+/**
+ * Fixed capacity ring of ints that overwrites its oldest value when full.
+ * Not thread safe.
+ */
+public class IntRingBuffer {
+
+    private final int[] values;
+    private int head = 0;
+    private int count = 0;
+
+    public IntRingBuffer(int capacity) {
+        values = new int[capacity];
+    }
+
+    public void add(int value) {
+        values[head] = value;
+        head = (head + 1) % values.length;
+        if (count < values.length)
+            count++;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int capacity() {
+        return values.length;
+    }
+
+    /**
+     * @param index 0 for the oldest value, {@code size() - 1} for the newest.
+     */
+    public int get(int index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + count);
+        return values[(head - count + index + values.length) % values.length];
+    }
+
+    public int newest() {
+        return get(count - 1);
+    }
+
+    public void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    /**
+     * Position of the oldest value in {@link #array()}.
+     */
+    public int start() {
+        return (head - count + values.length) % values.length;
+    }
+
+    /**
+     * The backing array, for bulk readers that handle the wrap themselves.
+     */
+    public int[] array() {
+        return values;
+    }
+}
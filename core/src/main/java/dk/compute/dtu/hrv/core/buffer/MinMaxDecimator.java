@@ -0,0 +1,58 @@
+package dk.compute.dtu.hrv.core.buffer;
+
+/**
+ * Reduces a series to one minimum and maximum per output bucket, so a sparkline
+ * can be drawn with one vertical segment per pixel column without losing peaks.
+ */
+public class MinMaxDecimator {
+
+    private MinMaxDecimator() {
+    }
+
+    /**
+     * Decimates all values of a ring buffer, oldest first.
+     *
+     * @see #decimate(int[], int, int, int, int[], int[])
+     */
+    public static int decimate(IntRingBuffer ring, int buckets, int[] min, int[] max) {
+        return decimate(ring.array(), ring.start(), ring.size(), buckets, min, max);
+    }
+
+    /**
+     * Decimates {@code count} values of the ring {@code values}, starting at
+     * {@code start} and wrapping at the end of the array.
+     *
+     * @param buckets Maximum number of buckets, typically the width in pixels.
+     * @param min Receives the minimum of each bucket.
+     * @param max Receives the maximum of each bucket.
+     * @return Number of buckets filled, less than {@code buckets} when there are
+     *         fewer values than buckets.
+     */
+    public static int decimate(int[] values, int start, int count, int buckets, int[] min, int[] max) {
+        if (count == 0 || buckets == 0)
+            return 0;
+
+        final int filled = Math.min(count, buckets);
+        final int length = values.length;
+        int index = start;
+        int taken = 0;
+        for (int b = 0; b < filled; b++) {
+            // Spread the values evenly, the last bucket ends exactly at count
+            final int end = (int) ((long) count * (b + 1) / filled);
+            int lo = Integer.MAX_VALUE;
+            int hi = Integer.MIN_VALUE;
+            for (; taken < end; taken++) {
+                final int v = values[index];
+                if (v < lo)
+                    lo = v;
+                if (v > hi)
+                    hi = v;
+                if (++index == length)
+                    index = 0;
+            }
+            min[b] = lo;
+            max[b] = hi;
+        }
+        return filled;
+    }
+}
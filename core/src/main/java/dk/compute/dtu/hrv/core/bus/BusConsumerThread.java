@@ -0,0 +1,54 @@
+package dk.compute.dtu.hrv.core.bus;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link Subscription} on its own thread until stopped.
+ */
+public class BusConsumerThread extends Thread {
+
+    private static final int BATCH = 64;
+    // Upper bound of a missed wake up
+    private static final long AWAIT_MS = 100;
+
+    private final Subscription subscription;
+    private final EventHandler handler;
+    private volatile boolean running = true;
+
+    public BusConsumerThread(Subscription subscription, EventHandler handler) {
+        super(subscription.getName());
+        this.subscription = subscription;
+        this.handler = handler;
+    }
+
+    /**
+     * Handles events until stopped or the handler throws. The subscription is
+     * cancelled either way, so a dead consumer never holds up the producers.
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                if (subscription.poll(handler, BATCH) == 0)
+                    subscription.await(AWAIT_MS, TimeUnit.MILLISECONDS);
+            }
+            // Hand over what was published before the stop
+            while (subscription.poll(handler, BATCH) > 0) {
+                // drain
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Bus consumer " + getName() + " failed, unsubscribing");
+            e.printStackTrace();
+        } finally {
+            subscription.cancel();
+        }
+    }
+
+    /**
+     * Stops the thread after it handled the events published so far.
+     */
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+}
@@ -0,0 +1,41 @@
+package dk.compute.dtu.hrv.core.bus;
+
+/**
+ * Counts the events on the bus by type and reports the lag and drops of
+ * every subscription.
+ */
+public class BusMetrics implements EventHandler {
+
+    private static final int TYPES = DataEvent.TYPE_CLOCK + 1;
+
+    private final DataBus bus;
+    private final long[] counts = new long[TYPES];
+
+    public BusMetrics(DataBus bus) {
+        this.bus = bus;
+    }
+
+    @Override
+    public void onEvent(DataEvent event, long sequence, boolean endOfBatch) {
+        if (event.type > 0 && event.type < TYPES)
+            counts[event.type]++;
+    }
+
+    /**
+     * Formats the counts so far. Call from the consumer thread.
+     */
+    public String report() {
+        final StringBuilder report = new StringBuilder("events:");
+        for (int type = 1; type < TYPES; type++)
+            report.append(' ').append(DataEvent.typeName(type)).append('=').append(counts[type]);
+        for (Subscription subscription : bus.getSubscriptions()) {
+            report.append("\n").append(subscription.getName())
+                    .append(subscription.getPolicy() == Subscription.BLOCK ? " (block)" : " (drop)")
+                    .append(": consumed=").append(subscription.getConsumed())
+                    .append(" lag=").append(subscription.getLag())
+                    .append(" dropped=").append(subscription.getDropped())
+                    .append(" stalls=").append(subscription.getStalls());
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,156 @@
+package dk.compute.dtu.hrv.core.bus;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+
+/**
+ * Typed in-process event bus in the style of a disruptor: a ring of
+ * preallocated {@link DataEvent}s that producers fill in place and any number
+ * of {@link Subscription}s read behind them at their own pace. Publishing does
+ * not allocate.
+ *
+ * Producers may call from any thread; they are serialised by a lock, which
+ * also keeps the events of one heart rate measurement consecutive. When the
+ * ring is full, producers wait for the slowest {@link Subscription#BLOCK}
+ * subscription, while {@link Subscription#DROP} subscriptions are overrun.
+ * The wait is bounded by {@link #BLOCK_TIMEOUT_MS}; a blocking subscription
+ * still behind then stalls and drops events until it catches up, so a hung
+ * consumer cannot hang the producers, which hold the lock while waiting.
+ */
+public class DataBus {
+
+    /** Longest a producer waits for the blocking subscriptions of a full ring. */
+    public static final long BLOCK_TIMEOUT_MS = 250;
+    // Producer wait between checks of a full ring
+    private static final long BLOCK_PARK_NANOS = 100000;
+
+    private final DataEvent[] ring;
+    private final int mask;
+
+    // Highest sequence handed out to a producer, and highest one published
+    private volatile long claimed = -1;
+    private volatile long cursor = -1;
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    /**
+     * @param capacity Number of events in the ring, rounded up to a power of two.
+     */
+    public DataBus(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        ring = new DataEvent[size];
+        for (int i = 0; i < size; i++)
+            ring[i] = new DataEvent();
+        mask = size - 1;
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    long getCursor() {
+        return cursor;
+    }
+
+    long getClaimed() {
+        return claimed;
+    }
+
+    DataEvent get(long sequence) {
+        return ring[(int) sequence & mask];
+    }
+
+    /**
+     * Subscribes from the next event published on.
+     *
+     * @param policy {@link Subscription#BLOCK} or {@link Subscription#DROP}.
+     */
+    public synchronized Subscription subscribe(String name, int policy) {
+        final Subscription subscription = new Subscription(this, name, policy, cursor);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    void unsubscribe(Subscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * @return A snapshot of the current subscriptions, e.g. for metrics.
+     */
+    public Subscription[] getSubscriptions() {
+        return subscriptions.toArray(new Subscription[0]);
+    }
+
+    public void publishConnected(String deviceAddress, long timestamp, boolean record) {
+        publish(DataEvent.TYPE_CONNECTED, deviceAddress, timestamp, record ? 1 : 0, 0, 0, 0, 0);
+    }
+
+    public void publishDisconnected(String deviceAddress, long timestamp) {
+        publish(DataEvent.TYPE_DISCONNECTED, deviceAddress, timestamp, 0, 0, 0, 0, 0);
+    }
+
+    public void publishContact(String deviceAddress, long timestamp, int contact) {
+        publish(DataEvent.TYPE_CONTACT, deviceAddress, timestamp, 0, 0, contact, 0, 0);
+    }
+
+    public void publishClock(long timestamp, long clockOffset) {
+        publish(DataEvent.TYPE_CLOCK, null, timestamp, 0, 0, 0, 0, clockOffset);
+    }
+
+    /**
+     * Publishes a measurement as one heart rate event directly followed by
+     * one RR event per interval.
+     *
+     * @return The sequence of the heart rate event.
+     */
+    public synchronized long publishSample(String deviceAddress, long timestamp, HeartRateSample sample) {
+        final long sequence = publish(DataEvent.TYPE_HEART_RATE, deviceAddress, timestamp, sample.heartRate, sample.rrCount,
+                sample.contact, sample.energyExpended, 0);
+        for (int i = 0; i < sample.rrCount; i++)
+            publish(DataEvent.TYPE_RR, deviceAddress, timestamp, sample.rr[i], 0, sample.contact, 0, 0);
+        return sequence;
+    }
+
+    private synchronized long publish(int type, String deviceAddress, long timestamp, int value, int count,
+                                      int contact, int energy, long clockOffset) {
+        final long next = claimed + 1;
+        waitForCapacity(next);
+        claimed = next;
+        get(next).set(type, deviceAddress, timestamp, value, count, contact, energy, clockOffset);
+        cursor = next;
+
+        for (Subscription subscription : subscriptions)
+            subscription.wake();
+        return next;
+    }
+
+    // Waits until every blocking subscription has read the event the slot of next still holds, or stalls them
+    private void waitForCapacity(long next) {
+        final long wrap = next - ring.length;
+        long deadline = 0;
+        while (true) {
+            long slowest = Long.MAX_VALUE;
+            for (Subscription subscription : subscriptions) {
+                if (subscription.isGating())
+                    slowest = Math.min(slowest, subscription.getSequence());
+            }
+            if (slowest >= wrap)
+                return;
+            final long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + TimeUnit.MILLISECONDS.toNanos(BLOCK_TIMEOUT_MS);
+            } else if (now - deadline >= 0) {
+                for (Subscription subscription : subscriptions) {
+                    if (subscription.isGating() && subscription.getSequence() < wrap)
+                        subscription.stall();
+                }
+                return;
+            }
+            LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+        }
+    }
+}
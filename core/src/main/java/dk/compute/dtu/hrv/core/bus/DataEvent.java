@@ -0,0 +1,69 @@
+package dk.compute.dtu.hrv.core.bus;
+
+/**
+ * One event on the {@link DataBus}. Events are preallocated in the ring and
+ * overwritten when it wraps, so handlers must copy what they want to keep.
+ * Which fields are set depends on the type.
+ */
+public class DataEvent {
+
+    /** A device connected; value is 1 if its data should be recorded. */
+    public static final int TYPE_CONNECTED = 1;
+    /** A device disconnected. */
+    public static final int TYPE_DISCONNECTED = 2;
+    /**
+     * A heart rate measurement; value is the heart rate, contact and energy
+     * as in HeartRateSample, and count RR events of the same measurement follow.
+     */
+    public static final int TYPE_HEART_RATE = 3;
+    /** One beat to beat interval; value is the interval as sent by the strap. */
+    public static final int TYPE_RR = 4;
+    /** The sensor contact changed; contact is the new state. */
+    public static final int TYPE_CONTACT = 5;
+    /** The wall clock offset changed; clockOffset is the new offset in ms. */
+    public static final int TYPE_CLOCK = 6;
+
+    public int type;
+    public String deviceAddress;
+    public long timestamp;
+    public int value;
+    public int count;
+    public int contact;
+    public int energy;
+    public long clockOffset;
+
+    public void copyFrom(DataEvent other) {
+        type = other.type;
+        deviceAddress = other.deviceAddress;
+        timestamp = other.timestamp;
+        value = other.value;
+        count = other.count;
+        contact = other.contact;
+        energy = other.energy;
+        clockOffset = other.clockOffset;
+    }
+
+    void set(int type, String deviceAddress, long timestamp, int value, int count, int contact, int energy,
+             long clockOffset) {
+        this.type = type;
+        this.deviceAddress = deviceAddress;
+        this.timestamp = timestamp;
+        this.value = value;
+        this.count = count;
+        this.contact = contact;
+        this.energy = energy;
+        this.clockOffset = clockOffset;
+    }
+
+    public static String typeName(int type) {
+        switch (type) {
+            case TYPE_CONNECTED: return "connected";
+            case TYPE_DISCONNECTED: return "disconnected";
+            case TYPE_HEART_RATE: return "heart rate";
+            case TYPE_RR: return "rr";
+            case TYPE_CONTACT: return "contact";
+            case TYPE_CLOCK: return "clock";
+            default: return "unknown";
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package dk.compute.dtu.hrv.core.bus;
+
+/**
+ * Consumer side of a {@link Subscription}.
+ */
+public interface EventHandler {
+    /**
+     * @param event Valid only during the call.
+     * @param sequence Position of the event on the bus.
+     * @param endOfBatch Whether this is the last event available right now.
+     */
+    public void onEvent(DataEvent event, long sequence, boolean endOfBatch);
+}
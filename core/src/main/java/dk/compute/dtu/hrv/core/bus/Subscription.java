@@ -0,0 +1,163 @@
+package dk.compute.dtu.hrv.core.bus;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A consumer's position on the {@link DataBus}. Each subscription reads at
+ * its own pace from a single thread.
+ *
+ * With {@link #BLOCK} the bus never overwrites an event this subscription has
+ * not read, so a slow consumer holds up the producers. With {@link #DROP} the
+ * producers never wait; a consumer that falls a whole ring behind skips to the
+ * oldest event still available and counts the ones it missed.
+ *
+ * A blocking subscription that holds up the producers for longer than the
+ * bus allows stalls: it is read like a dropping one until it is back within
+ * half a ring of the producers, and then blocks again.
+ */
+public class Subscription {
+
+    public static final int BLOCK = 0;
+    public static final int DROP = 1;
+
+    private final DataBus bus;
+    private final String name;
+    private final int policy;
+    // Last sequence read, written by the consumer only
+    private volatile long sequence;
+    private volatile long dropped = 0;
+    private volatile long consumed = 0;
+    private volatile long stalls = 0;
+    // Whether the producers wait for this subscription, false while dropping
+    private volatile boolean gating;
+    private volatile Thread waiter;
+    private final DataEvent scratch = new DataEvent();
+
+    Subscription(DataBus bus, String name, int policy, long sequence) {
+        this.bus = bus;
+        this.name = name;
+        this.policy = policy;
+        this.sequence = sequence;
+        gating = policy == BLOCK;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPolicy() {
+        return policy;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    boolean isGating() {
+        return gating;
+    }
+
+    /**
+     * Called by a producer that waited too long for this subscription.
+     */
+    void stall() {
+        gating = false;
+        stalls++;
+    }
+
+    /**
+     * Hands up to max available events to handler.
+     *
+     * @return The number of events handled.
+     */
+    public int poll(EventHandler handler, int max) {
+        final long available = bus.getCursor();
+        long next = sequence + 1;
+        if (next > available)
+            return 0;
+
+        final boolean dropping = !gating;
+        if (dropping && available - next >= bus.getCapacity()) {
+            // Overrun, skip to the oldest event that cannot be overwritten soon
+            final long oldest = available - bus.getCapacity() + 1;
+            dropped += oldest - next;
+            next = oldest;
+        }
+        final long last = Math.min(available, next + max - 1);
+        int handled = 0;
+        for (long s = next; s <= last; s++) {
+            // Copy first, then make sure the slot was not reclaimed meanwhile; a
+            // blocking subscription may stall while it handles an event
+            scratch.copyFrom(bus.get(s));
+            if (bus.getClaimed() - s >= bus.getCapacity()) {
+                dropped += last - s + 1;
+                sequence = last;
+                consumed += handled;
+                rearm();
+                return handled;
+            }
+            handler.onEvent(scratch, s, s == last);
+            sequence = s;
+            handled++;
+        }
+        consumed += handled;
+        if (dropping)
+            rearm();
+        return handled;
+    }
+
+    // A stalled blocking subscription gates the producers again once it caught up
+    private void rearm() {
+        if (policy == BLOCK && bus.getClaimed() - sequence < bus.getCapacity() / 2)
+            gating = true;
+    }
+
+    /**
+     * Waits until events are available or the timeout elapses.
+     */
+    public void await(long timeout, TimeUnit unit) {
+        waiter = Thread.currentThread();
+        try {
+            if (sequence >= bus.getCursor())
+                LockSupport.parkNanos(this, unit.toNanos(timeout));
+        } finally {
+            waiter = null;
+        }
+    }
+
+    void wake() {
+        final Thread thread = waiter;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * @return Events published but not yet read.
+     */
+    public long getLag() {
+        return Math.max(bus.getCursor() - sequence, 0);
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getConsumed() {
+        return consumed;
+    }
+
+    /**
+     * @return How often the producers stopped waiting for this blocking subscription.
+     */
+    public long getStalls() {
+        return stalls;
+    }
+
+    /**
+     * Stops gating the producers and stops receiving events.
+     */
+    public void cancel() {
+        bus.unsubscribe(this);
+    }
+}
@@ -0,0 +1,71 @@
+package dk.compute.dtu.hrv.core.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import dk.compute.dtu.hrv.core.decode.HeartRateDecoder;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+import dk.compute.dtu.hrv.core.session.SessionWriter;
+
+/**
+ * Runs the normal parsing path offline over a raw capture and writes the same
+ * heart rate, RR, contact and energy files the recorder would have written.
+ */
+public class RawCaptureDecoder {
+
+    public static final int UUID_HEART_RATE_MEASUREMENT = 0x2A37;
+
+    private RawCaptureDecoder() {
+    }
+
+    /**
+     * Decodes the heart rate measurements of capture into session files in directory.
+     *
+     * @return The number of measurements decoded.
+     */
+    public static long decode(File capture, File directory) throws IOException {
+        final RawCaptureReader reader = new RawCaptureReader(capture);
+        final SessionWriter writer = new SessionWriter();
+        final HeartRateSample sample = new HeartRateSample();
+        writer.open(directory, reader.getDeviceAddress(), new Date(reader.getStart()));
+        long decoded = 0;
+        try {
+            int[] rr = new int[0];
+            while (reader.next()) {
+                if (reader.getUuid() != UUID_HEART_RATE_MEASUREMENT)
+                    continue;
+                if (!HeartRateDecoder.decode(reader.getValue(), 0, reader.getLength(), sample))
+                    continue;
+                // Same layout as the recorder: the intervals, or -1 if there were none
+                final int count = Math.max(sample.rrCount, 1);
+                if (rr.length != count)
+                    rr = new int[count];
+                if (sample.rrCount == 0)
+                    rr[0] = -1;
+                else
+                    System.arraycopy(sample.rr, 0, rr, 0, count);
+                writer.store(sample.heartRate, rr, sample.contact, sample.energyExpended, reader.getTimestamp());
+                decoded++;
+            }
+        } finally {
+            writer.close();
+        }
+        return decoded;
+    }
+
+    /**
+     * Usage: {@code RawCaptureDecoder <output directory> <capture>...}.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: RawCaptureDecoder <output directory> <capture>...");
+            System.exit(1);
+        }
+        final File directory = new File(args[0]);
+        for (int i = 1; i < args.length; i++) {
+            final long decoded = decode(new File(args[i]), directory);
+            System.out.println(args[i] + ": " + decoded + " measurements");
+        }
+    }
+}
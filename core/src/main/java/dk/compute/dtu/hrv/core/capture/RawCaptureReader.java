@@ -0,0 +1,109 @@
+package dk.compute.dtu.hrv.core.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Iterates the records of a log written by {@link RawCaptureWriter}, reading
+ * through a read only mapping. The payload of the current record is copied
+ * into a reused array. Not thread safe.
+ */
+public class RawCaptureReader {
+
+    private final MappedByteBuffer map;
+    private final String deviceAddress;
+    private final long start;
+
+    private int uuid;
+    private int length;
+    private long timestamp;
+    private byte[] value = new byte[32];
+
+    public RawCaptureReader(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            if (channel.size() < RawCaptureWriter.HEADER_SIZE || channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Not a raw capture: " + file);
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // The mapping stays valid after closing the channel
+            raf.close();
+        }
+
+        if (map.getInt() != RawCaptureWriter.MAGIC)
+            throw new IOException("Not a raw capture: " + file);
+        if (map.getInt() != RawCaptureWriter.VERSION)
+            throw new IOException("Unsupported raw capture version: " + file);
+        start = map.getLong();
+        final char[] address = new char[RawCaptureWriter.ADDRESS_LENGTH];
+        int count = 0;
+        for (int i = 0; i < address.length; i++) {
+            final byte b = map.get();
+            if (b != 0)
+                address[count++] = (char) b;
+        }
+        deviceAddress = new String(address, 0, count);
+        map.position(RawCaptureWriter.HEADER_SIZE);
+    }
+
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    /**
+     * @return Wall clock start of the capture in ms.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return false at the end of the log, including a record cut short by a crash.
+     */
+    public boolean next() {
+        if (map.remaining() < RawCaptureWriter.RECORD_HEADER_SIZE)
+            return false;
+        final int mark = map.position();
+        if (map.getShort() != RawCaptureWriter.RECORD_MARKER) {
+            map.position(mark);
+            return false;
+        }
+        uuid = map.getShort() & 0xffff;
+        length = map.getShort() & 0xffff;
+        timestamp = map.getLong();
+        if (map.remaining() < length) {
+            map.position(mark);
+            return false;
+        }
+        if (length > value.length)
+            value = Arrays.copyOf(value, Math.max(length, value.length * 2));
+        map.get(value, 0, length);
+        return true;
+    }
+
+    public int getUuid() {
+        return uuid;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return The payload of the current record; only the first {@link #getLength()} bytes are valid.
+     */
+    public byte[] getValue() {
+        return value;
+    }
+
+    public int getLength() {
+        return length;
+    }
+}
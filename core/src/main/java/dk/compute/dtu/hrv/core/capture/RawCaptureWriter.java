@@ -0,0 +1,114 @@
+package dk.compute.dtu.hrv.core.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends raw GATT notification payloads of one device to a memory mapped log.
+ *
+ * The file starts with a {@link #HEADER_SIZE} byte header (magic, version,
+ * wall clock start, device address) followed by records of
+ * {@code marker:short, uuid:short, length:short, timestamp:long, payload}.
+ * The payload is copied once, straight into the mapping; the file is mapped
+ * in chunks of {@link #CHUNK_SIZE} bytes as it grows. The kernel writes the
+ * pages back, so records survive the process being killed. The unused
+ * remainder of the last chunk reads as zeros and ends the log; it is
+ * truncated on {@link #close()}. Thread safe.
+ */
+public class RawCaptureWriter {
+
+    static final int MAGIC = 0x48525652;
+    static final int VERSION = 1;
+    static final int ADDRESS_LENGTH = 17;
+    public static final int HEADER_SIZE = 40;
+    static final short RECORD_MARKER = 0x5243;
+    public static final int RECORD_HEADER_SIZE = 14;
+    public static final int CHUNK_SIZE = 1 << 20;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private MappedByteBuffer map;
+    private long position = 0;
+    private long records = 0;
+
+    /**
+     * Creates the log, replacing an existing file.
+     *
+     * @param start Wall clock start in ms, stored in the header.
+     */
+    public RawCaptureWriter(File file, String deviceAddress, long start) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        channel.truncate(0);
+        map(HEADER_SIZE);
+
+        map.putInt(MAGIC);
+        map.putInt(VERSION);
+        map.putLong(start);
+        for (int i = 0; i < ADDRESS_LENGTH; i++)
+            map.put(i < deviceAddress.length() ? (byte) deviceAddress.charAt(i) : 0);
+        map.position(HEADER_SIZE);
+        position = HEADER_SIZE;
+    }
+
+    private void map(int minimum) throws IOException {
+        map = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(CHUNK_SIZE, minimum));
+    }
+
+    /**
+     * Appends one payload.
+     *
+     * @param uuid 16 bit UUID of the characteristic, e.g. 0x2A37.
+     * @param value Raw characteristic value.
+     * @param timestamp Arrival time in ms.
+     */
+    public synchronized void write(int uuid, byte[] value, long timestamp) throws IOException {
+        if (map == null)
+            throw new IOException("Capture closed: " + file);
+        final int length = value == null ? 0 : value.length;
+        final int size = RECORD_HEADER_SIZE + length;
+        if (map.remaining() < size)
+            map(size);
+
+        map.putShort(RECORD_MARKER);
+        map.putShort((short) uuid);
+        map.putShort((short) length);
+        map.putLong(timestamp);
+        if (length > 0)
+            map.put(value);
+        position += size;
+        records++;
+    }
+
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    public synchronized long getSize() {
+        return position;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes the mapping back and cuts the file to the records written.
+     */
+    public synchronized void close() throws IOException {
+        if (map == null)
+            return;
+        map.force();
+        map = null;
+        try {
+            channel.truncate(position);
+        } finally {
+            raf.close();
+        }
+    }
+}
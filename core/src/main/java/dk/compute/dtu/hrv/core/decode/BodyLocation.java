@@ -0,0 +1,26 @@
+package dk.compute.dtu.hrv.core.decode;
+
+/**
+ * Values of the Body Sensor Location characteristic (0x2A38).
+ */
+public class BodyLocation {
+
+    public static final int OTHER = 0;
+    public static final int CHEST = 1;
+    public static final int WRIST = 2;
+    public static final int FINGER = 3;
+    public static final int HAND = 4;
+    public static final int EAR_LOBE = 5;
+    public static final int FOOT = 6;
+
+    private static final String[] NAMES = {"Other", "Chest", "Wrist", "Finger", "Hand", "Ear lobe", "Foot"};
+
+    private BodyLocation() {
+    }
+
+    public static String name(int location) {
+        if (location < 0)
+            return "Unknown";
+        return location < NAMES.length ? NAMES[location] : "Reserved (" + location + ")";
+    }
+}
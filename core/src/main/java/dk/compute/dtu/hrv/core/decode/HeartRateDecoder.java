@@ -0,0 +1,82 @@
+package dk.compute.dtu.hrv.core.decode;
+
+/**
+ * Stateless decoder of the Heart Rate Measurement characteristic (0x2A37).
+ * The value is decoded in a single pass over the raw bytes.
+ */
+public class HeartRateDecoder {
+
+    // Flags of the first byte
+    public static final int FLAG_HEART_RATE_UINT16 = 0x01;
+    public static final int FLAG_CONTACT_DETECTED = 0x02;
+    public static final int FLAG_CONTACT_SUPPORTED = 0x04;
+    public static final int FLAG_ENERGY_EXPENDED = 0x08;
+    public static final int FLAG_RR_INTERVALS = 0x10;
+
+    private HeartRateDecoder() {
+    }
+
+    /**
+     * Decodes a notification value into {@code out}.
+     *
+     * @return false if the value is too short to hold a heart rate.
+     */
+    public static boolean decode(byte[] value, HeartRateSample out) {
+        return decode(value, 0, value == null ? 0 : value.length, out);
+    }
+
+    /**
+     * Decodes {@code length} bytes of {@code value} starting at {@code offset}.
+     *
+     * @return false if the value is too short to hold a heart rate.
+     */
+    public static boolean decode(byte[] value, int offset, int length, HeartRateSample out) {
+        out.clear();
+        final int end = offset + length;
+        if (value == null || length < 2)
+            return false;
+
+        final int flags = value[offset] & 0xff;
+        int position = offset + 1;
+        if ((flags & FLAG_HEART_RATE_UINT16) != 0) {
+            if (length < 3)
+                return false;
+            out.heartRate = uint16(value, position);
+            position += 2;
+        } else {
+            out.heartRate = value[position] & 0xff;
+            position += 1;
+        }
+
+        if ((flags & FLAG_CONTACT_SUPPORTED) != 0)
+            out.contact = (flags & FLAG_CONTACT_DETECTED) != 0
+                    ? HeartRateSample.CONTACT_DETECTED : HeartRateSample.CONTACT_LOST;
+
+        if ((flags & FLAG_ENERGY_EXPENDED) != 0) {
+            if (position + 1 < end)
+                out.energyExpended = uint16(value, position);
+            position += 2;
+        }
+
+        if ((flags & FLAG_RR_INTERVALS) != 0) {
+            for (; position + 1 < end; position += 2)
+                out.addInterval(uint16(value, position));
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the Body Sensor Location characteristic (0x2A38).
+     *
+     * @return One of the {@link BodyLocation} values, or -1 if value is empty.
+     */
+    public static int decodeBodyLocation(byte[] value) {
+        if (value == null || value.length < 1)
+            return -1;
+        return value[0] & 0xff;
+    }
+
+    static int uint16(byte[] value, int offset) {
+        return (value[offset] & 0xff) | (value[offset + 1] & 0xff) << 8;
+    }
+}
@@ -0,0 +1,71 @@
+package dk.compute.dtu.hrv.core.decode;
+
+import java.util.Arrays;
+
+/**
+ * One decoded heart rate measurement. Instances are mutable and meant to be
+ * reused by a single decoding thread.
+ */
+public class HeartRateSample {
+
+    // Sensor contact states, as stored
+    public static final int CONTACT_UNSUPPORTED = -1;
+    public static final int CONTACT_LOST = 0;
+    public static final int CONTACT_DETECTED = 1;
+    public static final int ENERGY_ABSENT = -1;
+    /** Units of the beat to beat intervals per second. */
+    public static final int RR_UNITS_PER_SECOND = 1024;
+
+    // A 20 byte notification holds at most 9 intervals, larger MTUs grow the array
+    private static final int INITIAL_INTERVALS = 9;
+
+    public int heartRate;
+    // Beat to beat intervals as sent by the strap (1/1024 s), not converted
+    public int[] rr = new int[INITIAL_INTERVALS];
+    public int rrCount;
+    // One of the CONTACT_ states
+    public int contact = CONTACT_UNSUPPORTED;
+    // Accumulated energy expended in kJ, or ENERGY_ABSENT
+    public int energyExpended = ENERGY_ABSENT;
+
+    public void clear() {
+        heartRate = 0;
+        rrCount = 0;
+        contact = CONTACT_UNSUPPORTED;
+        energyExpended = ENERGY_ABSENT;
+    }
+
+    /**
+     * @return An interval as sent by the strap, in 1/1024 s, in ms.
+     */
+    public static double toMillis(int interval) {
+        return interval * 1000.0 / RR_UNITS_PER_SECOND;
+    }
+
+    /**
+     * @return false only if the strap reports that it lost skin contact.
+     */
+    public boolean hasContact() {
+        return contact != CONTACT_LOST;
+    }
+
+    void addInterval(int interval) {
+        if (rrCount == rr.length)
+            rr = Arrays.copyOf(rr, rr.length * 2);
+        rr[rrCount++] = interval;
+    }
+
+    /**
+     * Returns the sample in the legacy array layout: the heart rate followed by
+     * the beat to beat intervals, or by -1 if the notification had none.
+     */
+    public int[] toArray() {
+        final int[] result = new int[Math.max(rrCount, 1) + 1];
+        result[0] = heartRate;
+        if (rrCount == 0)
+            result[1] = -1;
+        else
+            System.arraycopy(rr, 0, result, 1, rrCount);
+        return result;
+    }
+}
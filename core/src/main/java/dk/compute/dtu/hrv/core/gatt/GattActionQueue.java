@@ -0,0 +1,69 @@
+package dk.compute.dtu.hrv.core.gatt;
+
+import java.util.LinkedList;
+
+/**
+ * Serialises GATT operations. Only one operation may be outstanding on a
+ * connection, so actions that wait for a callback hold the queue until
+ * {@link #onActionCompleted(Object)} is called.
+ *
+ * @param <G> Connection type the actions run against.
+ */
+public class GattActionQueue<G> {
+
+    public interface Action<G> {
+        /***
+         * Executes action.
+         * @param gatt
+         * @return true - if action was executed instantly. false if action is waiting for
+         *         feedback.
+         */
+        public boolean execute(G gatt);
+    }
+
+    private final LinkedList<Action<G>> queue = new LinkedList<>();
+    private volatile Action<G> currentAction;
+
+    public void add(Action<G> action) {
+        queue.add(action);
+    }
+
+    public void clear() {
+        queue.clear();
+    }
+
+    /**
+     * Returns whether all queued actions have been executed and acknowledged.
+     */
+    public boolean isIdle() {
+        return currentAction == null && queue.isEmpty();
+    }
+
+    /**
+     * Runs queued actions until one waits for feedback or the queue is empty.
+     */
+    public void execute(G gatt) {
+        if (currentAction != null)
+            return;
+
+        boolean next = !queue.isEmpty();
+        while (next) {
+            final Action<G> action = queue.pop();
+            currentAction = action;
+            if (!action.execute(gatt))
+                break;
+
+            currentAction = null;
+            next = !queue.isEmpty();
+        }
+    }
+
+    /**
+     * Releases the queue after the feedback of the current action arrived and
+     * continues with the next one.
+     */
+    public void onActionCompleted(G gatt) {
+        currentAction = null;
+        execute(gatt);
+    }
+}
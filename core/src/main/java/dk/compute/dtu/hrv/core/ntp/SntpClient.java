@@ -14,31 +14,28 @@
  * limitations under the License.
  */
 
-package dk.compute.dtu.hrv.ntp;
-
-import android.os.SystemClock;
-import android.util.Log;
+package dk.compute.dtu.hrv.core.ntp;
 
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 
+import dk.compute.dtu.hrv.core.time.Clock;
+
 /**
  * {@hide}
  *
  * Simple SNTP client class for retrieving network time.
  *
  * Sample usage:
- * <pre>SntpClient client = new SntpClient();
+ * <pre>SntpClient client = new SntpClient(clock);
  * if (client.requestTime("time.foo.com")) {
- *     long now = client.getNtpTime() + SystemClock.elapsedRealtime() - client.getNtpTimeReference();
+ *     long now = client.getNtpTime() + clock.elapsedRealtime() - client.getNtpTimeReference();
  * }
  * </pre>
  */
 public class SntpClient
 {
-    private static final String TAG = "SntpClient";
-
     private static final int REFERENCE_TIME_OFFSET = 16;
     private static final int ORIGINATE_TIME_OFFSET = 24;
     private static final int RECEIVE_TIME_OFFSET = 32;
@@ -56,12 +53,28 @@ public class SntpClient
     // system time computed from NTP server response
     private long mNtpTime;
 
-    // value of SystemClock.elapsedRealtime() corresponding to mNtpTime
+    // value of clock.elapsedRealtime() corresponding to mNtpTime
     private long mNtpTimeReference;
 
     // round trip time in milliseconds
     private long mRoundTripTime;
 
+    // failure of the last request, if any
+    private Exception mError;
+
+    private final Clock clock;
+
+    public SntpClient() {
+        this(Clock.SYSTEM);
+    }
+
+    /**
+     * @param clock Clock the NTP time reference is expressed in.
+     */
+    public SntpClient(Clock clock) {
+        this.clock = clock;
+    }
+
     /**
      * Sends an SNTP request to the given host and processes the response.
      *
@@ -85,7 +98,7 @@ public class SntpClient
 
             // get current time and write it to the request packet
             long requestTime = System.currentTimeMillis();
-            long requestTicks = SystemClock.elapsedRealtime();
+            long requestTicks = clock.elapsedRealtime();
             writeTimeStamp(buffer, TRANSMIT_TIME_OFFSET, requestTime);
 
             socket.send(request);
@@ -93,7 +106,7 @@ public class SntpClient
             // read the response
             DatagramPacket response = new DatagramPacket(buffer, buffer.length);
             socket.receive(response);
-            long responseTicks = SystemClock.elapsedRealtime();
+            long responseTicks = clock.elapsedRealtime();
             long responseTime = requestTime + (responseTicks - requestTicks);
 
             // extract the results
@@ -118,8 +131,9 @@ public class SntpClient
             mNtpTime = responseTime + clockOffset;
             mNtpTimeReference = responseTicks;
             mRoundTripTime = roundTripTime;
+            mError = null;
         } catch (Exception e) {
-            if (true) Log.d(TAG, "request time failed: " + e);
+            mError = e;
             return false;
         } finally {
             if (socket != null) {
@@ -140,7 +154,7 @@ public class SntpClient
     }
 
     /**
-     * Returns the reference clock value (value of SystemClock.elapsedRealtime())
+     * Returns the reference clock value (value of clock.elapsedRealtime())
      * corresponding to the NTP time.
      *
      * @return reference clock corresponding to the NTP time.
@@ -158,6 +172,15 @@ public class SntpClient
         return mRoundTripTime;
     }
 
+    /**
+     * Returns why the last request failed.
+     *
+     * @return the exception of the last failed request, or null if it succeeded.
+     */
+    public Exception getError() {
+        return mError;
+    }
+
     /**
      * Reads an unsigned 32 bit big endian number from the given offset in the buffer.
      */
@@ -0,0 +1,73 @@
+package dk.compute.dtu.hrv.core.pipeline;
+
+/**
+ * Replaces intervals flagged {@link SampleBatch#FLAG_ARTIFACT} by the mean of
+ * the last clean intervals and flags them {@link SampleBatch#FLAG_CORRECTED}.
+ * Artifacts before the first clean intervals and after an invalid one are
+ * left as they are.
+ */
+public class ArtifactCorrectionStage implements Stage {
+
+    public static final String NAME = "correct";
+    public static final int DEFAULT_HISTORY = 4;
+
+    private final int[] history;
+    private int head = 0;
+    private int count = 0;
+    private long sum = 0;
+
+    public ArtifactCorrectionStage() {
+        this(DEFAULT_HISTORY);
+    }
+
+    /**
+     * @param history Number of clean intervals averaged.
+     */
+    public ArtifactCorrectionStage(int history) {
+        this.history = new int[history];
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void process(SampleBatch batch) {
+        for (int i = 0; i < batch.count; i++) {
+            if (batch.types[i] != SampleBatch.TYPE_RR)
+                continue;
+            final int flags = batch.flags[i];
+            if ((flags & SampleBatch.FLAG_INVALID) != 0) {
+                reset();
+            } else if ((flags & SampleBatch.FLAG_ARTIFACT) != 0) {
+                if (count > 0) {
+                    batch.values[i] = (int) ((sum + count / 2) / count);
+                    batch.flags[i] |= SampleBatch.FLAG_CORRECTED;
+                }
+            } else {
+                add(batch.values[i]);
+            }
+        }
+    }
+
+    private void add(int interval) {
+        if (count == history.length)
+            sum -= history[head];
+        else
+            count++;
+        history[head] = interval;
+        sum += interval;
+        head = (head + 1) % history.length;
+    }
+
+    private void reset() {
+        head = 0;
+        count = 0;
+        sum = 0;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,58 @@
+package dk.compute.dtu.hrv.core.pipeline;
+
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+
+/**
+ * Sets the timestamp of each interval to the time of the beat ending it.
+ *
+ * A notification only carries its arrival time, and its intervals end at or
+ * before it. Beat times are chained from interval to interval, which keeps
+ * them exact across notifications; the chain is anchored by counting back
+ * from the arrival time of the notification, again whenever it drifts more
+ * than {@link #MAX_DRIFT} from the arrival times (lost beats, a reconnect).
+ */
+public class BeatTimingStage implements Stage {
+
+    public static final String NAME = "timing";
+    /** In ms. */
+    public static final long MAX_DRIFT = 2000;
+
+    // Time of the last beat in ms, negative before the first
+    private double lastBeat = -1;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void process(SampleBatch batch) {
+        int i = 0;
+        while (i < batch.count) {
+            final int end = batch.groupEnd(i);
+            double total = 0;
+            long arrival = 0;
+            for (int j = i; j < end; j++) {
+                if (batch.types[j] == SampleBatch.TYPE_RR) {
+                    total += HeartRateSample.toMillis(batch.values[j]);
+                    arrival = batch.timestamps[j];
+                }
+            }
+            if (total > 0) {
+                if (lastBeat < 0 || Math.abs(lastBeat + total - arrival) > MAX_DRIFT)
+                    lastBeat = arrival - total;
+                for (int j = i; j < end; j++) {
+                    if (batch.types[j] == SampleBatch.TYPE_RR) {
+                        lastBeat += HeartRateSample.toMillis(batch.values[j]);
+                        batch.timestamps[j] = Math.round(lastBeat);
+                    }
+                }
+            }
+            i = end;
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,40 @@
+package dk.compute.dtu.hrv.core.pipeline;
+
+import dk.compute.dtu.hrv.core.decode.HeartRateDecoder;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+
+/**
+ * Decodes the raw heart rate measurements of a batch into samples.
+ * Notifications too short to hold a heart rate are left out.
+ */
+public class DecodeStage implements Stage {
+
+    public static final String NAME = "decode";
+
+    private final HeartRateSample sample = new HeartRateSample();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void process(SampleBatch batch) {
+        for (int n = 0; n < batch.notifications; n++) {
+            if (!HeartRateDecoder.decode(batch.raw, batch.notificationOffsets[n], batch.notificationLengths[n], sample))
+                continue;
+            final long timestamp = batch.notificationTimestamps[n];
+            batch.addSample(SampleBatch.TYPE_HEART_RATE, timestamp, sample.heartRate, 0, n);
+            if (sample.contact != HeartRateSample.CONTACT_UNSUPPORTED)
+                batch.addSample(SampleBatch.TYPE_CONTACT, timestamp, sample.contact, 0, n);
+            if (sample.energyExpended != HeartRateSample.ENERGY_ABSENT)
+                batch.addSample(SampleBatch.TYPE_ENERGY, timestamp, sample.energyExpended, 0, n);
+            for (int i = 0; i < sample.rrCount; i++)
+                batch.addSample(SampleBatch.TYPE_RR, timestamp, sample.rr[i], 0, n);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
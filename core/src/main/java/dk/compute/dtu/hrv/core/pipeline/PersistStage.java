@@ -0,0 +1,76 @@
+package dk.compute.dtu.hrv.core.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+import dk.compute.dtu.hrv.core.session.SessionWriter;
+
+/**
+ * Stores the valid samples of each notification with a {@link SessionWriter},
+ * in the layout of the recorder. The session is opened with the first batch
+ * and closed with the stage.
+ */
+public class PersistStage implements Stage {
+
+    public static final String NAME = "persist";
+
+    private final SessionWriter writer;
+    private final File directory;
+    private int[] rr = new int[1];
+
+    public PersistStage(SessionWriter writer, File directory) {
+        this.writer = writer;
+        this.directory = directory;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void process(SampleBatch batch) throws IOException {
+        if (!writer.isOpen())
+            writer.open(directory, batch.deviceAddress, new Date());
+        int i = 0;
+        while (i < batch.count) {
+            final int end = batch.groupEnd(i);
+            if (batch.types[i] == SampleBatch.TYPE_HEART_RATE && batch.isValid(i))
+                store(batch, i, end);
+            i = end;
+        }
+    }
+
+    // Stores the heart rate sample start and the samples of its notification up to end
+    private void store(SampleBatch batch, int start, int end) throws IOException {
+        int contact = HeartRateSample.CONTACT_UNSUPPORTED;
+        int energy = HeartRateSample.ENERGY_ABSENT;
+        int intervals = 0;
+        for (int j = start + 1; j < end; j++) {
+            if (batch.types[j] == SampleBatch.TYPE_CONTACT)
+                contact = batch.values[j];
+            else if (batch.types[j] == SampleBatch.TYPE_ENERGY)
+                energy = batch.values[j];
+            else if (batch.types[j] == SampleBatch.TYPE_RR && batch.isValid(j))
+                intervals++;
+        }
+        // Same layout as the recorder: the intervals, or -1 if there were none
+        final int count = Math.max(intervals, 1);
+        if (rr.length != count)
+            rr = new int[count];
+        rr[0] = -1;
+        int k = 0;
+        for (int j = start + 1; j < end; j++) {
+            if (batch.types[j] == SampleBatch.TYPE_RR && batch.isValid(j))
+                rr[k++] = batch.values[j];
+        }
+        writer.store(batch.values[start], rr, contact, energy, batch.timestamps[start]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,126 @@
+package dk.compute.dtu.hrv.core.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Declares the stages of a {@link SamplePipeline} as text, e.g.
+ * {@code "decode,publish|validate,correct,timing,rmssd,persist"}: stage names in
+ * order, ',' between stages fused on one thread and '|' where the batches
+ * move on to a thread of their own.
+ *
+ * Each session builds its own stages from the spec. decode, validate,
+ * correct, timing and rmssd are built in; stages that need the session's
+ * resources, like persist and publish, come from a {@link StageFactory}.
+ *
+ * validate and correct change the samples in place, so publish goes before
+ * them: the bus, and the legacy files its storage consumer writes, keep the
+ * values the strap sent.
+ */
+public class PipelineSpec {
+
+    /**
+     * Every stage but persist, fused on the thread receiving the
+     * notifications, publishing the decoded samples before they are corrected.
+     */
+    public static final String DEFAULT = "decode,publish,validate,correct,timing,rmssd";
+
+    public interface StageFactory {
+        /**
+         * @return The stage named name for the session of deviceAddress, or
+         *         null to fall back to the built in stages.
+         */
+        public Stage create(String name, String deviceAddress);
+    }
+
+    private final String text;
+    private final List<String[]> segments;
+
+    private PipelineSpec(String text, List<String[]> segments) {
+        this.text = text;
+        this.segments = segments;
+    }
+
+    /**
+     * @throws IllegalArgumentException If a segment or stage name is empty.
+     */
+    public static PipelineSpec parse(String text) {
+        final List<String[]> segments = new ArrayList<String[]>();
+        for (String segment : text.split("\\|", -1)) {
+            final String[] names = segment.split(",", -1);
+            for (int i = 0; i < names.length; i++) {
+                names[i] = names[i].trim();
+                if (names[i].isEmpty())
+                    throw new IllegalArgumentException("Empty stage in pipeline: " + text);
+            }
+            segments.add(names);
+        }
+        return new PipelineSpec(text, Collections.unmodifiableList(segments));
+    }
+
+    /**
+     * @return The built in stage of that name, or null.
+     */
+    public static Stage createStandard(String name) {
+        if (DecodeStage.NAME.equals(name))
+            return new DecodeStage();
+        if (ValidateStage.NAME.equals(name))
+            return new ValidateStage();
+        if (ArtifactCorrectionStage.NAME.equals(name))
+            return new ArtifactCorrectionStage();
+        if (BeatTimingStage.NAME.equals(name))
+            return new BeatTimingStage();
+        if (RmssdStage.NAME.equals(name))
+            return new RmssdStage();
+        return null;
+    }
+
+    /**
+     * Builds the stages for the session of deviceAddress and starts the pipeline.
+     *
+     * @param factory Stages beyond the built in ones, may be null.
+     * @throws IllegalArgumentException If a stage name is unknown; the
+     *                                  stages built before it are closed.
+     */
+    public SamplePipeline build(String deviceAddress, StageFactory factory, int queueCapacity,
+                                int batchNotifications) {
+        final List<Stage[]> stages = new ArrayList<Stage[]>(segments.size());
+        final List<Stage> built = new ArrayList<Stage>();
+        try {
+            for (String[] names : segments) {
+                final Stage[] segment = new Stage[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    Stage stage = factory == null ? null : factory.create(names[i], deviceAddress);
+                    if (stage == null)
+                        stage = createStandard(names[i]);
+                    if (stage == null)
+                        throw new IllegalArgumentException("Unknown pipeline stage: " + names[i]);
+                    built.add(stage);
+                    segment[i] = stage;
+                }
+                stages.add(segment);
+            }
+        } catch (RuntimeException e) {
+            // Stages from the factory may hold the session's resources, e.g. open files
+            for (Stage stage : built) {
+                try {
+                    stage.close();
+                } catch (Exception closing) {
+                    closing.printStackTrace();
+                }
+            }
+            throw e;
+        }
+        return new SamplePipeline(deviceAddress, stages, queueCapacity, batchNotifications);
+    }
+
+    public List<String[]> getSegments() {
+        return segments;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
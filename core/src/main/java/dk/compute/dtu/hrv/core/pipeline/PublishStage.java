@@ -0,0 +1,80 @@
+package dk.compute.dtu.hrv.core.pipeline;
+
+import java.util.Arrays;
+
+import dk.compute.dtu.hrv.core.bus.DataBus;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+
+/**
+ * Publishes the valid samples of each notification on a {@link DataBus}, as
+ * one measurement at the arrival time of the notification. Right after
+ * decode, as in {@link PipelineSpec#DEFAULT}, consumers see the same events
+ * as without the pipeline. After validate and correct it would publish the
+ * corrected values and leave out flagged intervals and notifications with
+ * an invalid heart rate, which the bus storage consumer would then write to
+ * the raw session files.
+ */
+public class PublishStage implements Stage {
+
+    public static final String NAME = "publish";
+
+    private final DataBus bus;
+    private final HeartRateSample sample = new HeartRateSample();
+    private long lastSequence = -1;
+
+    public PublishStage(DataBus bus) {
+        this.bus = bus;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void process(SampleBatch batch) {
+        int i = 0;
+        while (i < batch.count) {
+            final int end = batch.groupEnd(i);
+            if (batch.types[i] == SampleBatch.TYPE_HEART_RATE && batch.isValid(i))
+                publish(batch, i, end);
+            i = end;
+        }
+    }
+
+    private void publish(SampleBatch batch, int start, int end) {
+        sample.clear();
+        sample.heartRate = batch.values[start];
+        for (int j = start + 1; j < end; j++) {
+            switch (batch.types[j]) {
+                case SampleBatch.TYPE_CONTACT:
+                    sample.contact = batch.values[j];
+                    break;
+                case SampleBatch.TYPE_ENERGY:
+                    sample.energyExpended = batch.values[j];
+                    break;
+                case SampleBatch.TYPE_RR:
+                    if (!batch.isValid(j))
+                        break;
+                    if (sample.rrCount == sample.rr.length)
+                        sample.rr = Arrays.copyOf(sample.rr, sample.rr.length * 2);
+                    sample.rr[sample.rrCount++] = batch.values[j];
+                    break;
+                default:
+                    break;
+            }
+        }
+        lastSequence = bus.publishSample(batch.deviceAddress, batch.timestamps[start], sample);
+    }
+
+    /**
+     * @return Bus sequence of the last heart rate published, -1 before the first.
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    @Override
+    public void close() {
+    }
+}
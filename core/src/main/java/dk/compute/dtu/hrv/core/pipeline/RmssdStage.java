@@ -0,0 +1,54 @@
+package dk.compute.dtu.hrv.core.pipeline;
+
+import dk.compute.dtu.hrv.core.analytics.RunningRmssd;
+
+/**
+ * Appends to each batch with intervals a {@link SampleBatch#TYPE_RMSSD}
+ * sample with the rolling RMSSD after its last interval, in microseconds.
+ * Invalid intervals and uncorrected artifacts break the differences.
+ */
+public class RmssdStage implements Stage {
+
+    public static final String NAME = "rmssd";
+    public static final int DEFAULT_WINDOW = 30;
+
+    private final RunningRmssd rmssd;
+
+    public RmssdStage() {
+        this(DEFAULT_WINDOW);
+    }
+
+    public RmssdStage(int window) {
+        rmssd = new RunningRmssd(window);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void process(SampleBatch batch) {
+        long timestamp = -1;
+        final int count = batch.count;
+        for (int i = 0; i < count; i++) {
+            if (batch.types[i] != SampleBatch.TYPE_RR)
+                continue;
+            final int flags = batch.flags[i];
+            if ((flags & SampleBatch.FLAG_INVALID) != 0
+                    || (flags & (SampleBatch.FLAG_ARTIFACT | SampleBatch.FLAG_CORRECTED)) == SampleBatch.FLAG_ARTIFACT) {
+                rmssd.breakSegment();
+            } else {
+                rmssd.add(batch.values[i]);
+                timestamp = batch.timestamps[i];
+            }
+        }
+        final double value = rmssd.get();
+        if (timestamp >= 0 && value >= 0)
+            batch.addSample(SampleBatch.TYPE_RMSSD, timestamp, (int) Math.round(value * 1e6 / 1024), 0, -1);
+    }
+
+    @Override
+    public void close() {
+    }
+}
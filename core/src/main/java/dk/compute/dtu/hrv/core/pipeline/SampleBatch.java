@@ -0,0 +1,124 @@
+package dk.compute.dtu.hrv.core.pipeline;
+
+import java.util.Arrays;
+
+/**
+ * Batch of notifications of one device and the samples decoded from them, in
+ * parallel primitive arrays that grow as needed and are reused once the batch
+ * went through a {@link SamplePipeline}.
+ *
+ * The samples of a notification follow in decoding order: its heart rate,
+ * contact and energy if present, then its intervals. Stages change values and
+ * flags in place and may append samples; samples flagged
+ * {@link #FLAG_INVALID} are skipped by the stages that store or publish.
+ */
+public class SampleBatch {
+
+    public static final int TYPE_HEART_RATE = 1;
+    /** Beat to beat interval as sent by the strap, in 1/1024 s. */
+    public static final int TYPE_RR = 2;
+    /** One of the HeartRateSample contact states. */
+    public static final int TYPE_CONTACT = 3;
+    /** Accumulated energy expended in kJ. */
+    public static final int TYPE_ENERGY = 4;
+    /** Rolling RMSSD in microseconds, see {@link RmssdStage}. */
+    public static final int TYPE_RMSSD = 5;
+
+    /** Out of range or measured without contact, not to be used. */
+    public static final int FLAG_INVALID = 1;
+    /** Implausible change from the previous interval. */
+    public static final int FLAG_ARTIFACT = 2;
+    /** Value replaced by an estimate. */
+    public static final int FLAG_CORRECTED = 4;
+
+    private static final int INITIAL_NOTIFICATIONS = 16;
+    private static final int INITIAL_SAMPLES = 64;
+
+    public String deviceAddress;
+    /** Time the batch was started, see System.nanoTime. */
+    public long createdNanos;
+
+    // Raw notifications, their bytes back to back in raw
+    public byte[] raw = new byte[INITIAL_NOTIFICATIONS * 20];
+    public int rawLength;
+    public int notifications;
+    public int[] notificationOffsets = new int[INITIAL_NOTIFICATIONS];
+    public int[] notificationLengths = new int[INITIAL_NOTIFICATIONS];
+    public long[] notificationTimestamps = new long[INITIAL_NOTIFICATIONS];
+
+    // Samples
+    public int count;
+    public int[] types = new int[INITIAL_SAMPLES];
+    /** Notification time in ms, or the reconstructed beat time of intervals. */
+    public long[] timestamps = new long[INITIAL_SAMPLES];
+    public int[] values = new int[INITIAL_SAMPLES];
+    public int[] flags = new int[INITIAL_SAMPLES];
+    /** Index of the notification each sample came from, -1 if none. */
+    public int[] sources = new int[INITIAL_SAMPLES];
+
+    public void clear() {
+        deviceAddress = null;
+        rawLength = 0;
+        notifications = 0;
+        count = 0;
+    }
+
+    public boolean isEmpty() {
+        return notifications == 0 && count == 0;
+    }
+
+    public void addNotification(byte[] value, int offset, int length, long timestamp) {
+        if (notifications == notificationOffsets.length) {
+            final int size = notifications * 2;
+            notificationOffsets = Arrays.copyOf(notificationOffsets, size);
+            notificationLengths = Arrays.copyOf(notificationLengths, size);
+            notificationTimestamps = Arrays.copyOf(notificationTimestamps, size);
+        }
+        if (rawLength + length > raw.length)
+            raw = Arrays.copyOf(raw, Math.max(raw.length * 2, rawLength + length));
+        System.arraycopy(value, offset, raw, rawLength, length);
+        notificationOffsets[notifications] = rawLength;
+        notificationLengths[notifications] = length;
+        notificationTimestamps[notifications] = timestamp;
+        notifications++;
+        rawLength += length;
+    }
+
+    /**
+     * @return The index of the new sample.
+     */
+    public int addSample(int type, long timestamp, int value, int flag, int source) {
+        if (count == types.length) {
+            final int size = count * 2;
+            types = Arrays.copyOf(types, size);
+            timestamps = Arrays.copyOf(timestamps, size);
+            values = Arrays.copyOf(values, size);
+            flags = Arrays.copyOf(flags, size);
+            sources = Arrays.copyOf(sources, size);
+        }
+        types[count] = type;
+        timestamps[count] = timestamp;
+        values[count] = value;
+        flags[count] = flag;
+        sources[count] = source;
+        return count++;
+    }
+
+    /**
+     * @return The index after the last sample decoded from the same
+     *         notification as sample i.
+     */
+    public int groupEnd(int i) {
+        int end = i + 1;
+        while (end < count && sources[end] == sources[i] && sources[i] >= 0)
+            end++;
+        return end;
+    }
+
+    /**
+     * @return Whether sample i is usable, i.e. not flagged invalid.
+     */
+    public boolean isValid(int i) {
+        return (flags[i] & FLAG_INVALID) == 0;
+    }
+}
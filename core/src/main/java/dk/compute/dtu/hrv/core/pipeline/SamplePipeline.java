@@ -0,0 +1,231 @@
+package dk.compute.dtu.hrv.core.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs the {@link SampleBatch}es of one device session through a sequence of
+ * {@link Stage}s.
+ *
+ * The stages are grouped into segments. The stages of a segment are fused:
+ * they run one after the other on the same thread, without handing the batch
+ * over. The first segment runs on the thread that submits. Each further
+ * segment has its own thread, fed through a bounded queue. A full queue
+ * blocks the submitter, so a slow stage holds up its device rather than
+ * losing samples.
+ *
+ * Batches come from a fixed pool and go back to it after the last stage, so
+ * a running pipeline allocates nothing but the growth of the batch arrays.
+ * Every stage has {@link StageMetrics}.
+ */
+public class SamplePipeline {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    // Handed down the segments to stop them
+    private static final SampleBatch END = new SampleBatch();
+
+    private final String deviceAddress;
+    private final int batchNotifications;
+    private final Segment[] segments;
+    private final List<StageMetrics> metrics = new ArrayList<StageMetrics>();
+    private final BlockingQueue<SampleBatch> free;
+    private SampleBatch current;
+    private boolean closed = false;
+
+    private class Segment implements Runnable {
+        final int index;
+        final Stage[] stages;
+        final StageMetrics[] stageMetrics;
+        final BlockingQueue<SampleBatch> input;
+        Thread thread;
+
+        Segment(int index, Stage[] stages, int queueCapacity) {
+            this.index = index;
+            this.stages = stages;
+            stageMetrics = new StageMetrics[stages.length];
+            for (int i = 0; i < stages.length; i++)
+                stageMetrics[i] = new StageMetrics(stages[i].getName(), index);
+            input = index == 0 ? null : new ArrayBlockingQueue<SampleBatch>(queueCapacity);
+        }
+
+        void process(SampleBatch batch) {
+            for (int i = 0; i < stages.length; i++) {
+                final long start = System.nanoTime();
+                boolean failed = false;
+                try {
+                    stages[i].process(batch);
+                } catch (Exception e) {
+                    failed = true;
+                    e.printStackTrace();
+                }
+                final long end = System.nanoTime();
+                stageMetrics[i].record(batch.count, end - start, end - batch.createdNanos, failed);
+            }
+        }
+
+        void closeStages() {
+            for (Stage stage : stages) {
+                try {
+                    stage.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final SampleBatch batch;
+                try {
+                    batch = input.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (batch == END) {
+                    closeStages();
+                    forward(index, END);
+                    return;
+                }
+                process(batch);
+                forward(index, batch);
+            }
+        }
+    }
+
+    /**
+     * @param segments Stages of each segment; the first runs on the submitting thread.
+     * @param queueCapacity Batches queued in front of each further segment.
+     * @param batchNotifications Notifications collected before a batch is
+     *                           submitted on its own, 1 to submit each at once.
+     */
+    public SamplePipeline(String deviceAddress, List<Stage[]> segments, int queueCapacity,
+                          int batchNotifications) {
+        if (segments.isEmpty())
+            throw new IllegalArgumentException("No stages");
+        this.deviceAddress = deviceAddress;
+        this.batchNotifications = Math.max(1, batchNotifications);
+        this.segments = new Segment[segments.size()];
+        for (int i = 0; i < this.segments.length; i++) {
+            this.segments[i] = new Segment(i, segments.get(i), queueCapacity);
+            Collections.addAll(metrics, this.segments[i].stageMetrics);
+        }
+
+        // Every queue full, one batch on each segment thread and one being filled
+        final int pool = (this.segments.length - 1) * (queueCapacity + 1) + 1;
+        free = new ArrayBlockingQueue<SampleBatch>(pool);
+        for (int i = 0; i < pool; i++)
+            free.add(new SampleBatch());
+
+        for (int i = 1; i < this.segments.length; i++) {
+            final Thread thread = new Thread(this.segments[i], "pipeline-" + deviceAddress + "-" + i);
+            this.segments[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    /**
+     * Adds a raw notification to the batch being filled, and submits the
+     * batch when it holds batchNotifications notifications.
+     */
+    public void offer(byte[] value, int offset, int length, long timestamp) {
+        getBatch().addNotification(value, offset, length, timestamp);
+        if (current.notifications >= batchNotifications)
+            flush();
+    }
+
+    /**
+     * @return The batch being filled, for callers that add samples themselves
+     *         and then {@link #flush}. Only valid until then.
+     */
+    public SampleBatch getBatch() {
+        if (closed)
+            throw new IllegalStateException("Pipeline closed");
+        if (current == null) {
+            try {
+                current = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for a batch");
+            }
+            current.clear();
+            current.deviceAddress = deviceAddress;
+            current.createdNanos = System.nanoTime();
+        }
+        return current;
+    }
+
+    /**
+     * Runs the batch being filled through the first segment and hands it on.
+     */
+    public void flush() {
+        final SampleBatch batch = current;
+        if (batch == null || batch.isEmpty())
+            return;
+        current = null;
+        segments[0].process(batch);
+        forward(0, batch);
+    }
+
+    // Passes batch from segment index to the next one, or back to the pool after the last
+    private void forward(int index, SampleBatch batch) {
+        if (index + 1 < segments.length) {
+            try {
+                segments[index + 1].input.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (batch != END) {
+            free.offer(batch);
+        }
+    }
+
+    /**
+     * Submits what is left, waits for every segment to finish and closes the
+     * stages. Call from the submitting thread.
+     */
+    public void close() {
+        if (closed)
+            return;
+        flush();
+        closed = true;
+        segments[0].closeStages();
+        if (segments.length > 1) {
+            forward(0, END);
+            for (int i = 1; i < segments.length; i++) {
+                try {
+                    segments[i].thread.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The metrics of all stages, in pipeline order.
+     */
+    public List<StageMetrics> getMetrics() {
+        return Collections.unmodifiableList(metrics);
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder text = new StringBuilder("pipeline ").append(deviceAddress);
+        for (StageMetrics stage : metrics)
+            text.append("\n  ").append(stage);
+        return text.toString();
+    }
+}
@@ -0,0 +1,27 @@
+package dk.compute.dtu.hrv.core.pipeline;
+
+/**
+ * Stage that does nothing, standing in for a named stage that has nothing
+ * to do in a session, e.g. persist while the session is not recorded.
+ */
+public class SkipStage implements Stage {
+
+    private final String name;
+
+    public SkipStage(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void process(SampleBatch batch) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,29 @@
+package dk.compute.dtu.hrv.core.pipeline;
+
+import java.io.IOException;
+
+/**
+ * One step of a {@link SamplePipeline}. A stage belongs to the pipeline of
+ * one device session and is only called from the thread its segment runs on,
+ * so it may keep state between batches without locking.
+ */
+public interface Stage {
+
+    /**
+     * @return Name used in the metrics.
+     */
+    public String getName();
+
+    /**
+     * Works on the batch in place.
+     *
+     * @throws IOException If the batch could not be handled; the pipeline
+     *                     counts the error and goes on with the next stage.
+     */
+    public void process(SampleBatch batch) throws IOException;
+
+    /**
+     * Called once after the last batch, on the same thread.
+     */
+    public void close() throws IOException;
+}
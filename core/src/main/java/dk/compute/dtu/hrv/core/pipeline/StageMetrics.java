@@ -0,0 +1,115 @@
+package dk.compute.dtu.hrv.core.pipeline;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Throughput and latency of one stage of a {@link SamplePipeline}.
+ *
+ * Busy time is what the stage itself took. Latency runs from the start of the
+ * batch to the end of the stage, so it includes the queues before the stage;
+ * it is kept in power of two microsecond buckets for the percentiles.
+ * Updated by the stage's thread only, readable from any thread.
+ */
+public class StageMetrics {
+
+    private static final int BUCKETS = 32;
+
+    private final String name;
+    private final int segment;
+
+    private volatile long batches = 0;
+    private volatile long samples = 0;
+    private volatile long errors = 0;
+    private volatile long busyNanos = 0;
+    private volatile long maxNanos = 0;
+    // Batches by latency, bucket i holds [2^(i-1), 2^i) us
+    private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+
+    StageMetrics(String name, int segment) {
+        this.name = name;
+        this.segment = segment;
+    }
+
+    void record(int sampleCount, long busy, long latency, boolean failed) {
+        batches++;
+        samples += sampleCount;
+        busyNanos += busy;
+        if (busy > maxNanos)
+            maxNanos = busy;
+        if (failed)
+            errors++;
+        final long micros = Math.max(0, latency / 1000);
+        final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        latencies.lazySet(bucket, latencies.get(bucket) + 1);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Index of the thread segment the stage runs on, 0 for the submitting thread.
+     */
+    public int getSegment() {
+        return segment;
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return Samples per second of busy time, 0 before the first batch.
+     */
+    public double getThroughput() {
+        final long busy = busyNanos;
+        return busy == 0 ? 0 : samples * 1e9 / busy;
+    }
+
+    /**
+     * @return Mean busy time per batch in microseconds.
+     */
+    public double getMeanMicros() {
+        final long count = batches;
+        return count == 0 ? 0 : busyNanos / 1000.0 / count;
+    }
+
+    public double getMaxMicros() {
+        return maxNanos / 1000.0;
+    }
+
+    /**
+     * @param fraction E.g. 0.99.
+     * @return Upper bound in microseconds of the latency of that fraction of the batches.
+     */
+    public long getLatencyPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += latencies.get(i);
+        if (total == 0)
+            return 0;
+        final long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += latencies.get(i);
+            if (seen >= rank)
+                return 1L << i;
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%d]: batches=%d samples=%d errors=%d %.0f samples/s busy=%.1f/%.1f us"
+                        + " latency p50<%d p99<%d us", name, segment, batches, samples, errors, getThroughput(),
+                getMeanMicros(), getMaxMicros(), getLatencyPercentile(0.5), getLatencyPercentile(0.99));
+    }
+}
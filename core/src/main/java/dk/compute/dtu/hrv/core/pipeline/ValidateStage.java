@@ -0,0 +1,69 @@
+package dk.compute.dtu.hrv.core.pipeline;
+
+import dk.compute.dtu.hrv.core.batch.ArtifactThresholds;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+
+/**
+ * Flags implausible samples, with the same rules as the offline
+ * {@link dk.compute.dtu.hrv.core.batch.RrStatistics}: heart rates and
+ * intervals out of range and intervals measured without skin contact are
+ * invalid, intervals changing too much from the previous one are artifacts.
+ */
+public class ValidateStage implements Stage {
+
+    public static final String NAME = "validate";
+    public static final int MIN_HEART_RATE = 20;
+    public static final int MAX_HEART_RATE = 250;
+
+    private final ArtifactThresholds thresholds;
+    private int contact = HeartRateSample.CONTACT_UNSUPPORTED;
+    // Last interval in range, -1 after a gap in contact
+    private int previous = -1;
+
+    public ValidateStage() {
+        this(ArtifactThresholds.DEFAULT);
+    }
+
+    public ValidateStage(ArtifactThresholds thresholds) {
+        this.thresholds = thresholds;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void process(SampleBatch batch) {
+        for (int i = 0; i < batch.count; i++) {
+            final int value = batch.values[i];
+            switch (batch.types[i]) {
+                case SampleBatch.TYPE_HEART_RATE:
+                    if (value < MIN_HEART_RATE || value > MAX_HEART_RATE)
+                        batch.flags[i] |= SampleBatch.FLAG_INVALID;
+                    break;
+                case SampleBatch.TYPE_CONTACT:
+                    contact = value;
+                    break;
+                case SampleBatch.TYPE_RR:
+                    if (contact == HeartRateSample.CONTACT_LOST) {
+                        batch.flags[i] |= SampleBatch.FLAG_INVALID;
+                        previous = -1;
+                    } else if (!thresholds.accepts(value)) {
+                        batch.flags[i] |= SampleBatch.FLAG_INVALID;
+                    } else {
+                        if (previous > 0 && !thresholds.acceptsDifference(previous, value))
+                            batch.flags[i] |= SampleBatch.FLAG_ARTIFACT;
+                        previous = value;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,92 @@
+package dk.compute.dtu.hrv.core.replay;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the {@code timestamp;value} lines of a CSV session file one at a time,
+ * skipping malformed lines. Not thread safe.
+ */
+class CsvLineReader implements SampleCursor {
+
+    private final InputStream in;
+    private long timestamp;
+    private int value;
+    private boolean hasLine = false;
+
+    /**
+     * @param file The file, a missing file reads as empty.
+     */
+    CsvLineReader(File file) throws IOException {
+        in = file.isFile() ? new BufferedInputStream(new FileInputStream(file), 8192) : null;
+    }
+
+    /**
+     * Advances to the next well formed line.
+     *
+     * @return false at the end of the file.
+     */
+    @Override
+    public boolean next() throws IOException {
+        hasLine = false;
+        if (in == null)
+            return false;
+        while (true) {
+            long time = 0;
+            long number = 0;
+            boolean negative = false;
+            int field = 0;
+            int digits = 0;
+            boolean valid = true;
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                if (b >= '0' && b <= '9') {
+                    if (field == 0)
+                        time = time * 10 + (b - '0');
+                    else
+                        number = number * 10 + (b - '0');
+                    digits++;
+                } else if (b == ';' && field == 0 && digits > 0) {
+                    field = 1;
+                    digits = 0;
+                } else if (b == '-' && field == 1 && digits == 0 && !negative) {
+                    negative = true;
+                } else if (b != '\r') {
+                    valid = false;
+                }
+            }
+            if (field == 1 && digits > 0 && valid && number <= Integer.MAX_VALUE) {
+                timestamp = time;
+                value = (int) (negative ? -number : number);
+                hasLine = true;
+                return true;
+            }
+            if (b == -1)
+                return false;
+        }
+    }
+
+    @Override
+    public boolean hasLine() {
+        return hasLine;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public int getValue() {
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null)
+            in.close();
+    }
+}
@@ -0,0 +1,53 @@
+package dk.compute.dtu.hrv.core.replay;
+
+import java.io.File;
+import java.io.IOException;
+
+import dk.compute.dtu.hrv.core.capture.RawCaptureReader;
+
+/**
+ * Replays the notifications of a raw capture as they were received.
+ */
+public class RawCaptureSource implements ReplaySource {
+
+    private final RawCaptureReader reader;
+
+    public RawCaptureSource(File file) throws IOException {
+        reader = new RawCaptureReader(file);
+    }
+
+    @Override
+    public boolean next() {
+        return reader.next();
+    }
+
+    @Override
+    public String getDeviceAddress() {
+        return reader.getDeviceAddress();
+    }
+
+    @Override
+    public int getUuid() {
+        return reader.getUuid();
+    }
+
+    @Override
+    public long getTimestamp() {
+        return reader.getTimestamp();
+    }
+
+    @Override
+    public byte[] getValue() {
+        return reader.getValue();
+    }
+
+    @Override
+    public int getLength() {
+        return reader.getLength();
+    }
+
+    @Override
+    public void close() {
+        // The mapping is released with the reader
+    }
+}
@@ -0,0 +1,25 @@
+package dk.compute.dtu.hrv.core.replay;
+
+import dk.compute.dtu.hrv.core.time.Clock;
+
+/**
+ * Clock showing the recorded time of the notification being replayed, so
+ * anything reading it sees the same times however fast the replay runs.
+ */
+public class ReplayClock implements Clock {
+
+    private volatile long now;
+
+    public ReplayClock(long start) {
+        now = start;
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return now;
+    }
+
+    void set(long now) {
+        this.now = now;
+    }
+}
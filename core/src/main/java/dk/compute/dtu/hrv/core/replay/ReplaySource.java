@@ -0,0 +1,37 @@
+package dk.compute.dtu.hrv.core.replay;
+
+import java.io.IOException;
+
+/**
+ * Recorded notifications of one device, in the order they arrived.
+ */
+public interface ReplaySource {
+
+    /**
+     * Advances to the next notification.
+     *
+     * @return false at the end of the recording.
+     */
+    public boolean next() throws IOException;
+
+    public String getDeviceAddress();
+
+    /**
+     * @return 16 bit UUID of the characteristic that notified.
+     */
+    public int getUuid();
+
+    /**
+     * @return Time of the notification in ms, in the time base of the recorder.
+     */
+    public long getTimestamp();
+
+    /**
+     * @return The value of the current notification; only the first {@link #getLength()} bytes are valid.
+     */
+    public byte[] getValue();
+
+    public int getLength();
+
+    public void close() throws IOException;
+}
@@ -0,0 +1,27 @@
+package dk.compute.dtu.hrv.core.replay;
+
+import java.io.IOException;
+
+/**
+ * Reads the samples of one session file in order, in either format.
+ */
+interface SampleCursor {
+
+    /**
+     * Advances to the next sample.
+     *
+     * @return false at the end of the file.
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @return Whether the last {@link #next()} found a sample.
+     */
+    boolean hasLine();
+
+    long getTimestamp();
+
+    int getValue();
+
+    void close() throws IOException;
+}
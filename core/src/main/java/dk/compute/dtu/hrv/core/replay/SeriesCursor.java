@@ -0,0 +1,45 @@
+package dk.compute.dtu.hrv.core.replay;
+
+import java.io.File;
+import java.io.IOException;
+
+import dk.compute.dtu.hrv.core.series.SeriesReader;
+
+/**
+ * {@link SampleCursor} over a file in the block format.
+ */
+class SeriesCursor implements SampleCursor {
+
+    private final SeriesReader reader;
+    private boolean hasLine = false;
+
+    SeriesCursor(File file) throws IOException {
+        reader = new SeriesReader(file);
+    }
+
+    @Override
+    public boolean next() {
+        hasLine = reader.next();
+        return hasLine;
+    }
+
+    @Override
+    public boolean hasLine() {
+        return hasLine;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return reader.getTimestamp();
+    }
+
+    @Override
+    public int getValue() {
+        return reader.getValue();
+    }
+
+    @Override
+    public void close() {
+        // The mapping is released with the reader
+    }
+}
@@ -0,0 +1,177 @@
+package dk.compute.dtu.hrv.core.replay;
+
+import java.io.File;
+import java.io.IOException;
+
+import dk.compute.dtu.hrv.core.capture.RawCaptureDecoder;
+import dk.compute.dtu.hrv.core.decode.HeartRateDecoder;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+import dk.compute.dtu.hrv.core.session.SessionFileName;
+import dk.compute.dtu.hrv.core.session.SessionFiles;
+
+/**
+ * Replays a session written by {@link dk.compute.dtu.hrv.core.session.SessionWriter}.
+ * Each heart rate line, the RR, energy lines of the same timestamp and the
+ * contact state at that time are encoded back into a Heart Rate Measurement
+ * value, so the replay goes through the same decoder as live notifications.
+ *
+ * Measurements sharing a millisecond cannot be told apart in the files; all
+ * their intervals go with the first.
+ */
+public class SessionFileSource implements ReplaySource {
+
+    // Flags, heart rate, energy and the intervals that fit a default ATT MTU
+    private static final int MAX_VALUE = 1 + 2 + 2 + 2 * 9;
+
+    private final String deviceAddress;
+    private final SampleCursor heartRate;
+    private final SampleCursor rr;
+    private final SampleCursor contact;
+    private final SampleCursor energy;
+
+    private int contactState = HeartRateSample.CONTACT_UNSUPPORTED;
+    private long timestamp;
+    private byte[] value = new byte[MAX_VALUE];
+    private int length;
+
+    /**
+     * @param rrFile The RR file of the session, CSV or series, the other files are found next to it.
+     */
+    public SessionFileSource(File rrFile) throws IOException {
+        final SessionFileName name = SessionFiles.parse(rrFile.getName());
+        if (name == null || !SessionFiles.PREFIX_RR.equals(name.prefix))
+            throw new IOException("Not a session RR file: " + rrFile);
+        deviceAddress = formatAddress(name.deviceAddress);
+        final String suffix = rrFile.getName().substring(SessionFiles.PREFIX_RR.length());
+        final File directory = rrFile.getParentFile();
+        final File hrFile = new File(directory, SessionFiles.PREFIX_HEART_RATE + suffix);
+        if (SessionFiles.isSeries(rrFile.getName())) {
+            rr = new SeriesCursor(rrFile);
+            heartRate = new SeriesCursor(hrFile);
+        } else {
+            rr = new CsvLineReader(rrFile);
+            heartRate = new CsvLineReader(hrFile);
+        }
+        contact = new CsvLineReader(new File(directory, SessionFiles.sibling(rrFile.getName(),
+                SessionFiles.PREFIX_CONTACT)));
+        energy = new CsvLineReader(new File(directory, SessionFiles.sibling(rrFile.getName(),
+                SessionFiles.PREFIX_ENERGY)));
+        heartRate.next();
+        rr.next();
+        contact.next();
+        energy.next();
+    }
+
+    /**
+     * @return The address with colons put back, e.g. {@code 00:22:D0:AA:BB:CC}.
+     */
+    static String formatAddress(String plain) {
+        if (plain.length() != 12)
+            return plain;
+        final StringBuilder address = new StringBuilder(17);
+        for (int i = 0; i < 12; i += 2) {
+            if (i > 0)
+                address.append(':');
+            address.append(plain, i, i + 2);
+        }
+        return address.toString();
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if (!heartRate.hasLine())
+            return false;
+        timestamp = heartRate.getTimestamp();
+        final int bpm = heartRate.getValue();
+        heartRate.next();
+
+        int flags = 0;
+        int position = 1;
+        if (bpm > 0xff) {
+            flags |= HeartRateDecoder.FLAG_HEART_RATE_UINT16;
+            position = putUint16(position, bpm);
+        } else {
+            value[position++] = (byte) bpm;
+        }
+
+        // Contact is only written when it changes
+        while (contact.hasLine() && contact.getTimestamp() <= timestamp) {
+            contactState = contact.getValue();
+            contact.next();
+        }
+        if (contactState != HeartRateSample.CONTACT_UNSUPPORTED) {
+            flags |= HeartRateDecoder.FLAG_CONTACT_SUPPORTED;
+            if (contactState == HeartRateSample.CONTACT_DETECTED)
+                flags |= HeartRateDecoder.FLAG_CONTACT_DETECTED;
+        }
+
+        while (energy.hasLine() && energy.getTimestamp() < timestamp)
+            energy.next();
+        if (energy.hasLine() && energy.getTimestamp() == timestamp) {
+            flags |= HeartRateDecoder.FLAG_ENERGY_EXPENDED;
+            position = putUint16(position, energy.getValue());
+            energy.next();
+        }
+
+        // Lines without a heart rate line cannot be replayed
+        while (rr.hasLine() && rr.getTimestamp() < timestamp)
+            rr.next();
+        while (rr.hasLine() && rr.getTimestamp() == timestamp) {
+            // -1 marks a measurement without intervals
+            final int interval = rr.getValue();
+            if (interval >= 0) {
+                flags |= HeartRateDecoder.FLAG_RR_INTERVALS;
+                position = putUint16(position, interval);
+            }
+            rr.next();
+        }
+
+        value[0] = (byte) flags;
+        length = position;
+        return true;
+    }
+
+    private int putUint16(int position, int v) {
+        if (position + 2 > value.length) {
+            final byte[] grown = new byte[value.length * 2];
+            System.arraycopy(value, 0, grown, 0, position);
+            value = grown;
+        }
+        value[position] = (byte) v;
+        value[position + 1] = (byte) (v >> 8);
+        return position + 2;
+    }
+
+    @Override
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    @Override
+    public int getUuid() {
+        return RawCaptureDecoder.UUID_HEART_RATE_MEASUREMENT;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public byte[] getValue() {
+        return value;
+    }
+
+    @Override
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        heartRate.close();
+        rr.close();
+        contact.close();
+        energy.close();
+    }
+}
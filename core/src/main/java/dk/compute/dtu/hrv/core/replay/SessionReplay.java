@@ -0,0 +1,241 @@
+package dk.compute.dtu.hrv.core.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import dk.compute.dtu.hrv.core.analytics.RunningRmssd;
+import dk.compute.dtu.hrv.core.capture.RawCaptureDecoder;
+import dk.compute.dtu.hrv.core.bus.BusConsumerThread;
+import dk.compute.dtu.hrv.core.bus.DataBus;
+import dk.compute.dtu.hrv.core.bus.DataEvent;
+import dk.compute.dtu.hrv.core.bus.EventHandler;
+import dk.compute.dtu.hrv.core.bus.Subscription;
+import dk.compute.dtu.hrv.core.decode.HeartRateDecoder;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+import dk.compute.dtu.hrv.core.session.SessionFileName;
+import dk.compute.dtu.hrv.core.session.SessionFiles;
+import dk.compute.dtu.hrv.core.time.Clock;
+
+/**
+ * Plays recorded sessions back into a {@link Sink} as if the devices were
+ * notifying again, at a multiple of the recorded speed or as fast as the sink
+ * takes them.
+ *
+ * The order is deterministic: the notifications of all sources merged by
+ * timestamp, ties going to the source listed first. Pacing only decides when
+ * a notification is handed over, and {@link #getClock()} shows the recorded
+ * time of the one being handed over.
+ */
+public class SessionReplay {
+
+    /**
+     * Speed that replays without pauses.
+     */
+    public static final double UNPACED = 0;
+
+    public interface Sink {
+        /**
+         * Called before the first notification of a device.
+         */
+        public void onStart(String deviceAddress, long timestamp);
+
+        /**
+         * The source is positioned on the notification, which is only valid during the call.
+         */
+        public void onNotification(ReplaySource source);
+
+        /**
+         * Called after the last notification of a device, with its time.
+         */
+        public void onEnd(String deviceAddress, long timestamp);
+    }
+
+    private final ReplaySource[] sources;
+    private final double speed;
+    private final Clock wallClock;
+    private final ReplayClock clock = new ReplayClock(0);
+
+    private volatile boolean stopped = false;
+    private volatile long replayed = 0;
+    private volatile long wallTime = 0;
+
+    /**
+     * @param speed Recorded time per wall time, e.g. 1 or 10, or {@link #UNPACED}.
+     * @param wallClock Clock the pauses are measured on.
+     */
+    public SessionReplay(List<ReplaySource> sources, double speed, Clock wallClock) {
+        this.sources = sources.toArray(new ReplaySource[sources.size()]);
+        this.speed = speed;
+        this.wallClock = wallClock;
+    }
+
+    /**
+     * Opens a raw capture or the session of an RR file.
+     */
+    public static ReplaySource openSource(File file) throws IOException {
+        final SessionFileName name = SessionFiles.parse(file.getName());
+        if (file.getName().endsWith(SessionFiles.RAW_EXTENSION))
+            return new RawCaptureSource(file);
+        if (name != null && SessionFiles.PREFIX_RR.equals(name.prefix))
+            return new SessionFileSource(file);
+        throw new IOException("Neither a raw capture nor an RR file: " + file);
+    }
+
+    /**
+     * @return Clock at the recorded time of the current notification.
+     */
+    public ReplayClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Replays all sources on the calling thread and closes them.
+     *
+     * @return The number of notifications handed to sink.
+     */
+    public long run(Sink sink) throws IOException, InterruptedException {
+        final int n = sources.length;
+        final boolean[] pending = new boolean[n];
+        final boolean[] started = new boolean[n];
+        final long wallStart = wallClock.elapsedRealtime();
+        long first = Long.MIN_VALUE;
+        replayed = 0;
+        try {
+            for (int i = 0; i < n; i++)
+                pending[i] = sources[i].next();
+
+            while (!stopped) {
+                int next = -1;
+                for (int i = 0; i < n; i++) {
+                    if (pending[i] && (next < 0 || sources[i].getTimestamp() < sources[next].getTimestamp()))
+                        next = i;
+                }
+                if (next < 0)
+                    break;
+
+                final ReplaySource source = sources[next];
+                final long timestamp = source.getTimestamp();
+                if (first == Long.MIN_VALUE)
+                    first = timestamp;
+                pace(wallStart, timestamp - first);
+                if (stopped)
+                    break;
+
+                clock.set(timestamp);
+                if (!started[next]) {
+                    started[next] = true;
+                    sink.onStart(source.getDeviceAddress(), timestamp);
+                }
+                sink.onNotification(source);
+                replayed++;
+                if (!source.next()) {
+                    pending[next] = false;
+                    sink.onEnd(source.getDeviceAddress(), timestamp);
+                }
+            }
+        } finally {
+            wallTime = wallClock.elapsedRealtime() - wallStart;
+            for (ReplaySource source : sources)
+                source.close();
+        }
+        return replayed;
+    }
+
+    // Waits until offset of recorded time has passed on the wall clock, scaled by speed
+    private void pace(long wallStart, long offset) throws InterruptedException {
+        if (speed <= UNPACED)
+            return;
+        final long due = wallStart + (long) (offset / speed);
+        synchronized (this) {
+            long wait;
+            while (!stopped && (wait = due - wallClock.elapsedRealtime()) > 0)
+                wait(wait);
+        }
+    }
+
+    /**
+     * Ends a running replay after the current notification.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    public long getReplayed() {
+        return replayed;
+    }
+
+    /**
+     * @return Wall time of the last run in ms.
+     */
+    public long getWallTime() {
+        return wallTime;
+    }
+
+    @Override
+    public String toString() {
+        final long time = Math.max(1, wallTime);
+        return "Replayed " + replayed + " notifications in " + wallTime + " ms, "
+                + (replayed * 1000 / time) + "/s";
+    }
+
+    /**
+     * Usage: {@code SessionReplay <speed> <file>...}, where files are raw
+     * captures or RR files and speed 0 replays unpaced. Runs the notifications
+     * through the decoder and the data bus into an RMSSD consumer and prints
+     * the throughput.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: SessionReplay <speed> <file>...");
+            System.exit(1);
+        }
+        final List<ReplaySource> sources = new ArrayList<ReplaySource>();
+        for (int i = 1; i < args.length; i++)
+            sources.add(openSource(new File(args[i])));
+        final SessionReplay replay = new SessionReplay(sources, Double.parseDouble(args[0]), Clock.SYSTEM);
+
+        final DataBus bus = new DataBus(4096);
+        final RunningRmssd rmssd = new RunningRmssd(30);
+        final long[] intervals = new long[1];
+        final BusConsumerThread consumer = new BusConsumerThread(bus.subscribe("analytics", Subscription.BLOCK),
+                new EventHandler() {
+                    @Override
+                    public void onEvent(DataEvent event, long sequence, boolean endOfBatch) {
+                        if (event.type == DataEvent.TYPE_RR) {
+                            rmssd.add(event.value);
+                            intervals[0]++;
+                        }
+                    }
+                });
+        consumer.start();
+
+        final HeartRateSample sample = new HeartRateSample();
+        replay.run(new Sink() {
+            @Override
+            public void onStart(String deviceAddress, long timestamp) {
+                bus.publishConnected(deviceAddress, timestamp, false);
+            }
+
+            @Override
+            public void onNotification(ReplaySource source) {
+                if (source.getUuid() == RawCaptureDecoder.UUID_HEART_RATE_MEASUREMENT
+                        && HeartRateDecoder.decode(source.getValue(), 0, source.getLength(), sample))
+                    bus.publishSample(source.getDeviceAddress(), source.getTimestamp(), sample);
+            }
+
+            @Override
+            public void onEnd(String deviceAddress, long timestamp) {
+                bus.publishDisconnected(deviceAddress, timestamp);
+            }
+        });
+        consumer.shutdown();
+        consumer.join();
+        // RunningRmssd keeps the unit of the strap, 1/1024 s
+        final double value = rmssd.get();
+        System.out.println(replay + ", " + intervals[0] + " intervals, RMSSD "
+                + (value < 0 ? "n/a" : String.format("%.1f ms", value * HeartRateSample.toMillis(1))));
+    }
+}
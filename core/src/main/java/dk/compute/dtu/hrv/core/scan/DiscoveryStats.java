@@ -0,0 +1,59 @@
+package dk.compute.dtu.hrv.core.scan;
+
+import java.util.Arrays;
+
+/**
+ * Latencies of finding devices, e.g. the time from the start of a scan until
+ * each device was first seen. Thread safe.
+ */
+public class DiscoveryStats {
+
+    private long[] latencies = new long[8];
+    private int count = 0;
+
+    public synchronized void add(long latency) {
+        if (count == latencies.length)
+            latencies = Arrays.copyOf(latencies, count * 2);
+        latencies[count++] = latency;
+    }
+
+    public synchronized void clear() {
+        count = 0;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @return Mean latency in ms, or -1 without discoveries.
+     */
+    public synchronized long getMean() {
+        if (count == 0)
+            return -1;
+        long sum = 0;
+        for (int i = 0; i < count; i++)
+            sum += latencies[i];
+        return sum / count;
+    }
+
+    /**
+     * @param fraction Between 0 and 1, e.g. 0.5 for the median.
+     * @return The latency in ms below which the fraction of discoveries fall,
+     *         or -1 without discoveries.
+     */
+    public synchronized long getPercentile(double fraction) {
+        if (count == 0)
+            return -1;
+        final long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(fraction * count) - 1;
+        return sorted[Math.min(count - 1, Math.max(0, index))];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "discovered=" + count + " mean=" + getMean() + "ms median=" + getPercentile(0.5)
+                + "ms p90=" + getPercentile(0.9) + "ms max=" + getPercentile(1) + "ms";
+    }
+}
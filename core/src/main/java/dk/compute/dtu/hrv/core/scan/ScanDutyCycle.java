@@ -0,0 +1,74 @@
+package dk.compute.dtu.hrv.core.scan;
+
+/**
+ * Chooses the next scan window and the idle time after it.
+ *
+ * Scanning shares the radio with the open connections, so the window shrinks
+ * and a pause is added for every connection. Windows without a new device
+ * double the pause up to {@link #MAX_IDLE}, a new device resets it. Once all
+ * expected devices are found the scan only checks in rarely.
+ *
+ * An idle time of 0 means the scan continues into the next window without a
+ * stop and start.
+ */
+public class ScanDutyCycle {
+
+    public static final long MAX_WINDOW = 5000;
+    public static final long MIN_WINDOW = 1000;
+    // Pause added per open connection
+    public static final long CONNECTION_IDLE = 1000;
+    // First pause after a window without discoveries
+    public static final long BACKOFF_IDLE = 1000;
+    public static final long MAX_IDLE = 15000;
+    // Pause once all expected devices were found
+    public static final long SATISFIED_IDLE = 30000;
+
+    private long window = MAX_WINDOW;
+    private long idle = 0;
+
+    /**
+     * Starts over with continuous scanning.
+     */
+    public void reset() {
+        window = MAX_WINDOW;
+        idle = 0;
+    }
+
+    /**
+     * Updates the cycle after a window ended.
+     *
+     * @param discovered Devices seen for the first time in the window.
+     * @param found Devices seen since the scan started.
+     * @param expected Devices the scan looks for, or 0 if unknown.
+     * @param connections Connections open on the adapter.
+     */
+    public void next(int discovered, int found, int expected, int connections) {
+        if (expected > 0 && found >= expected) {
+            window = MIN_WINDOW;
+            idle = SATISFIED_IDLE;
+            return;
+        }
+
+        window = Math.max(MIN_WINDOW, MAX_WINDOW / (1 + connections));
+        final long base = connections * CONNECTION_IDLE;
+        if (discovered > 0)
+            idle = base;
+        else
+            idle = Math.min(MAX_IDLE, Math.max(base, Math.max(BACKOFF_IDLE, idle * 2)));
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    public long getIdle() {
+        return idle;
+    }
+
+    /**
+     * @return Fraction of the time spent scanning.
+     */
+    public double getDutyCycle() {
+        return (double) window / (window + idle);
+    }
+}
@@ -0,0 +1,218 @@
+package dk.compute.dtu.hrv.core.series;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file written by {@link SeriesWriter} through a read only mapping.
+ *
+ * Blocks are decoded with absolute reads, so {@link #readBlock} and the scans
+ * may run on several threads at once. The {@link #next()} cursor is for one
+ * thread only.
+ */
+public class SeriesReader {
+
+    public interface Visitor {
+        public void onSample(long timestamp, int value);
+    }
+
+    private final ByteBuffer map;
+    private final int blockSize;
+    private final int blocks;
+
+    // Cursor over the samples, one decoded block at a time
+    private int cursorBlock = -1;
+    private int cursorIndex = 0;
+    private int cursorCount = 0;
+    private long[] timestamps = new long[0];
+    private int[] values = new int[0];
+
+    public SeriesReader(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            if (channel.size() < SeriesWriter.FILE_HEADER_SIZE || channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Not a series file: " + file);
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // The mapping stays valid after closing the channel
+            raf.close();
+        }
+        if (map.getInt(0) != SeriesWriter.MAGIC)
+            throw new IOException("Not a series file: " + file);
+        if (map.getInt(4) != SeriesWriter.VERSION)
+            throw new IOException("Unsupported series version: " + file);
+        blockSize = map.getInt(8);
+        if (blockSize <= SeriesWriter.BLOCK_HEADER_SIZE)
+            throw new IOException("Bad block size in " + file);
+        blocks = (map.capacity() - SeriesWriter.FILE_HEADER_SIZE) / blockSize;
+    }
+
+    public int getBlockCount() {
+        return blocks;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    private int offset(int block) {
+        return SeriesWriter.FILE_HEADER_SIZE + block * blockSize;
+    }
+
+    /**
+     * @return Samples in the block, 0 if it is damaged.
+     */
+    public int getCount(int block) {
+        final int count = map.getInt(offset(block));
+        final int end = map.getInt(offset(block) + 4);
+        return count > 0 && end > SeriesWriter.BLOCK_HEADER_SIZE && end <= blockSize ? count : 0;
+    }
+
+    public long getMinTimestamp(int block) {
+        return map.getLong(offset(block) + 16);
+    }
+
+    public long getMaxTimestamp(int block) {
+        return map.getLong(offset(block) + 24);
+    }
+
+    public int getMinValue(int block) {
+        return map.getInt(offset(block) + 32);
+    }
+
+    public int getMaxValue(int block) {
+        return map.getInt(offset(block) + 36);
+    }
+
+    /**
+     * @return Samples in the file, from the block headers.
+     */
+    public long getSampleCount() {
+        long count = 0;
+        for (int i = 0; i < blocks; i++)
+            count += getCount(i);
+        return count;
+    }
+
+    /**
+     * Hands the samples of one block to visitor, in the order written.
+     *
+     * @return The number of samples decoded.
+     */
+    public int readBlock(int block, Visitor visitor) {
+        final int count = getCount(block);
+        if (count == 0)
+            return 0;
+        final int base = offset(block);
+        final int end = base + map.getInt(base + 4);
+        // Varints are decoded from here, advanced by varLong
+        final int[] position = {base + SeriesWriter.BLOCK_HEADER_SIZE};
+
+        long timestamp = map.getLong(base + 8);
+        long value = SeriesWriter.unZigZag(varLong(position, end));
+        visitor.onSample(timestamp, (int) value);
+        long delta = 0;
+        int decoded = 1;
+        for (; decoded < count && position[0] < end; decoded++) {
+            final long change = SeriesWriter.unZigZag(varLong(position, end));
+            delta = decoded == 1 ? change : delta + change;
+            timestamp += delta;
+            value += SeriesWriter.unZigZag(varLong(position, end));
+            visitor.onSample(timestamp, (int) value);
+        }
+        return decoded;
+    }
+
+    private long varLong(int[] position, int end) {
+        long value = 0;
+        int shift = 0;
+        int p = position[0];
+        while (p < end) {
+            final byte b = map.get(p++);
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                break;
+            shift += 7;
+        }
+        position[0] = p;
+        return value;
+    }
+
+    /**
+     * Visits the samples with from <= timestamp <= to, skipping the blocks outside.
+     *
+     * @return The number of samples visited.
+     */
+    public long scan(long from, long to, Visitor visitor) {
+        return scan(from, to, Integer.MIN_VALUE, Integer.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Visits the samples inside both the time and the value range, skipping
+     * the blocks whose headers show they hold none.
+     *
+     * @return The number of samples visited.
+     */
+    public long scan(final long from, final long to, final int minValue, final int maxValue,
+                     final Visitor visitor) {
+        final long[] visited = new long[1];
+        final Visitor filter = new Visitor() {
+            @Override
+            public void onSample(long timestamp, int value) {
+                if (timestamp >= from && timestamp <= to && value >= minValue && value <= maxValue) {
+                    visited[0]++;
+                    visitor.onSample(timestamp, value);
+                }
+            }
+        };
+        for (int i = 0; i < blocks; i++) {
+            if (getCount(i) == 0 || getMaxTimestamp(i) < from || getMinTimestamp(i) > to
+                    || getMaxValue(i) < minValue || getMinValue(i) > maxValue)
+                continue;
+            readBlock(i, filter);
+        }
+        return visited[0];
+    }
+
+    /**
+     * Advances the cursor to the next sample.
+     *
+     * @return false after the last sample.
+     */
+    public boolean next() {
+        while (cursorIndex + 1 >= cursorCount) {
+            if (cursorBlock + 1 >= blocks)
+                return false;
+            cursorBlock++;
+            final int count = getCount(cursorBlock);
+            if (timestamps.length < count) {
+                timestamps = new long[count];
+                values = new int[count];
+            }
+            cursorCount = readBlock(cursorBlock, new Visitor() {
+                private int i = 0;
+
+                @Override
+                public void onSample(long timestamp, int value) {
+                    timestamps[i] = timestamp;
+                    values[i++] = value;
+                }
+            });
+            cursorIndex = -1;
+        }
+        cursorIndex++;
+        return true;
+    }
+
+    public long getTimestamp() {
+        return timestamps[cursorIndex];
+    }
+
+    public int getValue() {
+        return values[cursorIndex];
+    }
+}
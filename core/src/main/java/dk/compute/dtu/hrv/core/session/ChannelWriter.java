@@ -0,0 +1,31 @@
+package dk.compute.dtu.hrv.core.session;
+
+import java.io.IOException;
+
+/**
+ * Appends {@code timestamp;value} samples to one session file.
+ */
+public interface ChannelWriter {
+
+    /**
+     * Appends one sample.
+     *
+     * @return The number of bytes the sample adds to the file.
+     */
+    public int write(long timestamp, int value) throws IOException;
+
+    /**
+     * Writes the buffered samples to the file.
+     */
+    public void flush() throws IOException;
+
+    /**
+     * Writes the buffered samples and forces them to the storage device.
+     */
+    public void sync() throws IOException;
+
+    /**
+     * Flushes and closes the file.
+     */
+    public void close() throws IOException;
+}
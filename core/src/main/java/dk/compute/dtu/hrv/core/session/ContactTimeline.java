@@ -0,0 +1,76 @@
+package dk.compute.dtu.hrv.core.session;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+
+/**
+ * Sensor contact changes of a session, read from its contact file, for
+ * skipping the intervals recorded without skin contact. Immutable.
+ */
+public class ContactTimeline {
+
+    private final long[] timestamps;
+    private final boolean[] contact;
+
+    ContactTimeline(long[] timestamps, boolean[] contact) {
+        this.timestamps = timestamps;
+        this.contact = contact;
+    }
+
+    /**
+     * Reads a contact file written by {@link SessionWriter}.
+     *
+     * @return The timeline, or null if the file does not exist.
+     */
+    public static ContactTimeline read(File file) throws IOException {
+        if (!file.isFile())
+            return null;
+        long[] timestamps = new long[16];
+        boolean[] contact = new boolean[16];
+        int count = 0;
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int separator = line.indexOf(';');
+                if (separator < 0)
+                    continue;
+                try {
+                    final long timestamp = Long.parseLong(line.substring(0, separator));
+                    final int state = Integer.parseInt(line.substring(separator + 1).trim());
+                    if (count == timestamps.length) {
+                        timestamps = Arrays.copyOf(timestamps, count * 2);
+                        contact = Arrays.copyOf(contact, count * 2);
+                    }
+                    timestamps[count] = timestamp;
+                    contact[count] = state != HeartRateSample.CONTACT_LOST;
+                    count++;
+                } catch (NumberFormatException e) {
+                    // Skip lines cut short by a crash
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new ContactTimeline(Arrays.copyOf(timestamps, count), Arrays.copyOf(contact, count));
+    }
+
+    /**
+     * @return Whether the strap had contact at timestamp; assumed before the first report.
+     */
+    public boolean inContact(long timestamp) {
+        int index = Arrays.binarySearch(timestamps, timestamp);
+        if (index < 0)
+            index = -index - 2;
+        else
+            // Several changes may share a timestamp, the last one holds
+            while (index + 1 < timestamps.length && timestamps[index + 1] == timestamp)
+                index++;
+        return index < 0 || contact[index];
+    }
+}
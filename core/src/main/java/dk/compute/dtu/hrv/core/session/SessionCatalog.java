@@ -0,0 +1,335 @@
+package dk.compute.dtu.hrv.core.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded catalog of the recorded sessions, kept next to them as
+ * {@link #FILE_NAME}.
+ *
+ * The file is an append only log of fixed size records, each ending in a
+ * CRC32. Opening and closing a session append one record and force it to
+ * disk, so an update either happens completely or, if the write was torn,
+ * is dropped by the CRC check on the next load. Later records of a session
+ * replace earlier ones; the log is compacted on load when mostly superseded.
+ *
+ * All sessions are held in memory, indexed by id, by start and by device
+ * and start, so listing and range queries do not touch the disk. Thread safe.
+ */
+public class SessionCatalog {
+
+    public static final String FILE_NAME = "catalog.bin";
+
+    static final int RECORD_SIZE = 96;
+    private static final int MAGIC = 0x48525643;
+    private static final int TYPE_OPEN = 1;
+    private static final int TYPE_CLOSE = 2;
+    private static final int CRC_OFFSET = RECORD_SIZE - 4;
+    // Compact when the log holds this many times more records than sessions
+    private static final int COMPACT_FACTOR = 2;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long records = 0;
+
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    private final Map<Long, SessionInfo> byId = new HashMap<Long, SessionInfo>();
+    private final TreeSet<SessionInfo> byStart = new TreeSet<SessionInfo>(SessionInfo.BY_START);
+    private final Map<String, TreeSet<SessionInfo>> byDevice = new HashMap<String, TreeSet<SessionInfo>>();
+    private final TreeSet<SessionInfo> open = new TreeSet<SessionInfo>(SessionInfo.BY_START);
+    // Longest closed session, bounds the start range of overlap queries
+    private long maxDuration = 0;
+    private long nextId = 1;
+
+    private SessionCatalog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens or creates the catalog in directory.
+     */
+    public static SessionCatalog open(File directory) throws IOException {
+        if (!directory.mkdirs() && !directory.isDirectory())
+            throw new IOException("Cannot create " + directory);
+        final SessionCatalog catalog = new SessionCatalog(new File(directory, FILE_NAME));
+        catalog.load();
+        return catalog;
+    }
+
+    private void load() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+
+        final long size = channel.size();
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0)
+                break;
+        }
+
+        int valid = 0;
+        while (valid + RECORD_SIZE <= buffer.position()) {
+            final SessionInfo info = decode(buffer, valid);
+            if (info == null)
+                break;
+            index(info);
+            valid += RECORD_SIZE;
+            records++;
+        }
+        if (valid < size) {
+            // Torn or corrupt tail from an interrupted update
+            channel.truncate(valid);
+            channel.force(true);
+        }
+
+        if (records >= COMPACT_MIN_RECORDS && records > COMPACT_FACTOR * byId.size())
+            compact();
+    }
+
+    /**
+     * Records the start of a new session.
+     *
+     * @param start Wall clock start in ms, the same the session files are named after.
+     */
+    public synchronized SessionInfo beginSession(String deviceAddress, long start) throws IOException {
+        final SessionInfo info = new SessionInfo(nextId, deviceAddress, start, -1, 0, 0, 0, 0, 0, 0, 0);
+        append(info);
+        return info;
+    }
+
+    /**
+     * Records the final state of a session, see {@link SessionInfo#close}.
+     */
+    public synchronized void endSession(SessionInfo closed) throws IOException {
+        append(closed);
+    }
+
+    private void append(SessionInfo info) throws IOException {
+        encode(info, record);
+        channel.write(record, records * RECORD_SIZE);
+        channel.force(false);
+        records++;
+        index(info);
+    }
+
+    private void index(SessionInfo info) {
+        final SessionInfo previous = byId.put(info.id, info);
+        if (previous != null) {
+            byStart.remove(previous);
+            byDevice.get(previous.deviceAddress).remove(previous);
+            open.remove(previous);
+        }
+        byStart.add(info);
+        TreeSet<SessionInfo> device = byDevice.get(info.deviceAddress);
+        if (device == null) {
+            device = new TreeSet<SessionInfo>(SessionInfo.BY_START);
+            byDevice.put(info.deviceAddress, device);
+        }
+        device.add(info);
+
+        if (info.isOpen())
+            open.add(info);
+        else
+            maxDuration = Math.max(maxDuration, info.end - info.start);
+        nextId = Math.max(nextId, info.id + 1);
+    }
+
+    /**
+     * @return The directory of the catalog and the session files.
+     */
+    public File getDirectory() {
+        return file.getParentFile();
+    }
+
+    public synchronized SessionInfo get(long id) {
+        return byId.get(id);
+    }
+
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    /**
+     * @return All sessions ordered by start.
+     */
+    public synchronized List<SessionInfo> list() {
+        return new ArrayList<SessionInfo>(byStart);
+    }
+
+    /**
+     * @return The sessions overlapping [from, to], ordered by start. Open
+     *         sessions are taken to last until now.
+     */
+    public synchronized List<SessionInfo> findByTime(long from, long to) {
+        return overlapping(byStart, from, to);
+    }
+
+    /**
+     * @return The sessions of one device overlapping [from, to], ordered by start.
+     */
+    public synchronized List<SessionInfo> findByDevice(String deviceAddress, long from, long to) {
+        final TreeSet<SessionInfo> device = byDevice.get(deviceAddress);
+        if (device == null)
+            return new ArrayList<SessionInfo>();
+        return overlapping(device, from, to);
+    }
+
+    /**
+     * @return The sessions that were never closed, e.g. because the recorder was killed.
+     */
+    public synchronized List<SessionInfo> findOpen() {
+        return new ArrayList<SessionInfo>(open);
+    }
+
+    /**
+     * Closes the sessions left open by a recorder that was killed. Each ends at
+     * the last modification of its RR file, or at its start if there is none.
+     * Counts and heart rate statistics stay as recorded, a batch recomputation
+     * restores them from the files.
+     *
+     * @return The sessions as they were before closing.
+     */
+    public synchronized List<SessionInfo> recoverOpen() throws IOException {
+        final List<SessionInfo> stale = new ArrayList<SessionInfo>(open);
+        final File directory = file.getParentFile();
+        for (SessionInfo info : stale) {
+            // The session was written in either format
+            final String extension = new File(directory, info.getFileName(SessionFiles.PREFIX_RR)).exists()
+                    ? SessionFiles.EXTENSION : SessionFiles.SERIES_EXTENSION;
+            final File rr = new File(directory, info.getFileName(SessionFiles.PREFIX_RR, extension));
+            final File hr = new File(directory, info.getFileName(SessionFiles.PREFIX_HEART_RATE, extension));
+            final long end = Math.max(info.start, rr.lastModified());
+            append(info.close(end, info.rrCount, info.hrCount, info.hrMin, info.hrMax, info.hrSum,
+                    rr.length(), hr.length()));
+        }
+        return stale;
+    }
+
+    private List<SessionInfo> overlapping(TreeSet<SessionInfo> index, long from, long to) {
+        final List<SessionInfo> result = new ArrayList<SessionInfo>();
+        final SessionInfo lowest = probe(from - maxDuration, Long.MIN_VALUE);
+        // Open sessions may have started before any closed session that overlaps
+        for (SessionInfo info : open.headSet(lowest, false)) {
+            if (index.contains(info))
+                result.add(info);
+        }
+        // Closed sessions starting earlier ended before from
+        final NavigableSet<SessionInfo> candidates = index.subSet(lowest, true, probe(to, Long.MAX_VALUE), true);
+        for (SessionInfo info : candidates) {
+            if (info.isOpen() || info.end >= from)
+                result.add(info);
+        }
+        return result;
+    }
+
+    private static SessionInfo probe(long start, long id) {
+        return new SessionInfo(id, null, start, -1, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Rewrites the log with one record per session.
+     */
+    public synchronized void compact() throws IOException {
+        final File temporary = new File(file.getPath() + ".tmp");
+        final RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+        try {
+            final FileChannel target = out.getChannel();
+            target.truncate(0);
+            long position = 0;
+            for (SessionInfo info : byStart) {
+                encode(info, record);
+                target.write(record, position);
+                position += RECORD_SIZE;
+            }
+            target.force(true);
+        } finally {
+            out.close();
+        }
+
+        raf.close();
+        if (!temporary.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        records = byId.size();
+    }
+
+    public synchronized void close() throws IOException {
+        raf.close();
+    }
+
+    private void encode(SessionInfo info, ByteBuffer buffer) {
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putInt(info.isOpen() ? TYPE_OPEN : TYPE_CLOSE);
+        buffer.putLong(info.id);
+        buffer.putLong(encodeAddress(info.deviceAddress));
+        buffer.putLong(info.start);
+        buffer.putLong(info.end);
+        buffer.putLong(info.rrCount);
+        buffer.putLong(info.hrCount);
+        buffer.putInt(info.hrMin);
+        buffer.putInt(info.hrMax);
+        buffer.putLong(info.hrSum);
+        buffer.putLong(info.rrBytes);
+        buffer.putLong(info.hrBytes);
+        buffer.putInt(0);
+        crc.reset();
+        crc.update(buffer.array(), 0, CRC_OFFSET);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+    }
+
+    // Returns null if the record at offset is not intact
+    private SessionInfo decode(ByteBuffer buffer, int offset) {
+        crc.reset();
+        crc.update(buffer.array(), offset, CRC_OFFSET);
+        if (buffer.getInt(offset) != MAGIC || buffer.getInt(offset + CRC_OFFSET) != (int) crc.getValue())
+            return null;
+
+        final long id = buffer.getLong(offset + 8);
+        final String address = decodeAddress(buffer.getLong(offset + 16));
+        final long start = buffer.getLong(offset + 24);
+        final long end = buffer.getLong(offset + 32);
+        final long rrCount = buffer.getLong(offset + 40);
+        final long hrCount = buffer.getLong(offset + 48);
+        final int hrMin = buffer.getInt(offset + 56);
+        final int hrMax = buffer.getInt(offset + 60);
+        final long hrSum = buffer.getLong(offset + 64);
+        final long rrBytes = buffer.getLong(offset + 72);
+        final long hrBytes = buffer.getLong(offset + 80);
+        return new SessionInfo(id, address, start, end, rrCount, hrCount, hrMin, hrMax, hrSum,
+                rrBytes, hrBytes);
+    }
+
+    // Bluetooth addresses are 6 bytes written as colon separated hex
+    static long encodeAddress(String address) {
+        return Long.parseLong(address.replace(":", ""), 16);
+    }
+
+    static String decodeAddress(long value) {
+        final StringBuilder address = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            if (address.length() > 0)
+                address.append(':');
+            final int b = (int) (value >>> shift) & 0xff;
+            address.append(Character.toUpperCase(Character.forDigit(b >>> 4, 16)));
+            address.append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+        }
+        return address.toString();
+    }
+}
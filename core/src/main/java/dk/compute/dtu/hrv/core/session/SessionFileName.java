@@ -0,0 +1,25 @@
+package dk.compute.dtu.hrv.core.session;
+
+/**
+ * The parts of a file name created by {@link SessionFiles#fileName}. Immutable.
+ */
+public class SessionFileName {
+
+    /** One of the {@code PREFIX_} constants of {@link SessionFiles}. */
+    public final String prefix;
+    /** Bluetooth address without colons. */
+    public final String deviceAddress;
+    /** Wall clock start of the session in ms, to the second. */
+    public final long start;
+
+    public SessionFileName(String prefix, String deviceAddress, long start) {
+        this.prefix = prefix;
+        this.deviceAddress = deviceAddress;
+        this.start = start;
+    }
+
+    @Override
+    public String toString() {
+        return prefix + " " + deviceAddress + " " + start;
+    }
+}
@@ -0,0 +1,94 @@
+package dk.compute.dtu.hrv.core.session;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Naming scheme of the recorded files, {@code <prefix>_<address>_<yyyyMMdd_HHmmss>.csv},
+ * {@code .series} for heart rate and RR files in the block format, or {@code .bin} for raw captures.
+ */
+public final class SessionFiles {
+
+    public static final String DIRECTORY = "HRV";
+    public static final String PREFIX_HEART_RATE = "hr";
+    public static final String PREFIX_RR = "rr";
+    public static final String PREFIX_CONTACT = "ct";
+    public static final String PREFIX_ENERGY = "ee";
+    public static final String PREFIX_RAW = "raw";
+    public static final String EXTENSION = ".csv";
+    public static final String RAW_EXTENSION = ".bin";
+    public static final String SERIES_EXTENSION = ".series";
+    public static final String PREFIX_TRACE = "trace";
+    public static final String TRACE_EXTENSION = ".json";
+
+    private static final String DATE_PATTERN = "yyyyMMdd_HHmmss";
+
+    private SessionFiles() {
+    }
+
+    /**
+     * @param prefix {@link #PREFIX_HEART_RATE} or {@link #PREFIX_RR}.
+     * @param deviceAddress Bluetooth address, colons are dropped.
+     * @param start Start of the session.
+     */
+    public static String fileName(String prefix, String deviceAddress, Date start) {
+        return fileName(prefix, deviceAddress, start, EXTENSION);
+    }
+
+    public static String fileName(String prefix, String deviceAddress, Date start, String extension) {
+        return prefix + "_" + deviceAddress.replace(":", "") + "_" + dateFormat().format(start) + extension;
+    }
+
+    /**
+     * @return Whether the file is in the block format of {@link dk.compute.dtu.hrv.core.series.SeriesWriter}.
+     */
+    public static boolean isSeries(String fileName) {
+        return fileName.endsWith(SERIES_EXTENSION);
+    }
+
+    /**
+     * @return The name of the CSV file of another prefix in the same session,
+     *         e.g. the contact file of an RR file in either format.
+     */
+    public static String sibling(String fileName, String prefix) {
+        final int separator = fileName.indexOf('_');
+        final int dot = fileName.lastIndexOf('.');
+        return prefix + fileName.substring(separator, dot) + EXTENSION;
+    }
+
+    /**
+     * @return Name of a latency trace exported at time, not tied to a device.
+     */
+    public static String traceFileName(Date time) {
+        return PREFIX_TRACE + "_" + dateFormat().format(time) + TRACE_EXTENSION;
+    }
+
+    /**
+     * Splits a file name created by {@link #fileName}.
+     *
+     * @return The parts of the name or null if it does not match.
+     */
+    public static SessionFileName parse(String fileName) {
+        final String extension = fileName.endsWith(EXTENSION) ? EXTENSION
+                : fileName.endsWith(RAW_EXTENSION) ? RAW_EXTENSION
+                : fileName.endsWith(SERIES_EXTENSION) ? SERIES_EXTENSION : null;
+        if (extension == null)
+            return null;
+        String[] parts = fileName.substring(0, fileName.length() - extension.length()).split("_");
+        if (parts.length != 4)
+            return null;
+        try {
+            Date start = dateFormat().parse(parts[2] + "_" + parts[3]);
+            return new SessionFileName(parts[0], parts[1], start.getTime());
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    // SimpleDateFormat is not thread safe, so every caller gets its own
+    private static SimpleDateFormat dateFormat() {
+        return new SimpleDateFormat(DATE_PATTERN, Locale.GERMANY);
+    }
+}
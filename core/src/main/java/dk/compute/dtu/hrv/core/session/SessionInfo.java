@@ -0,0 +1,91 @@
+package dk.compute.dtu.hrv.core.session;
+
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * Catalog entry of one recorded session. Immutable, a closed session is a
+ * new instance with the same id.
+ */
+public class SessionInfo {
+
+    /** Orders sessions by start, then id. */
+    public static final Comparator<SessionInfo> BY_START = new Comparator<SessionInfo>() {
+        @Override
+        public int compare(SessionInfo a, SessionInfo b) {
+            if (a.start != b.start)
+                return a.start < b.start ? -1 : 1;
+            return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+        }
+    };
+
+    public final long id;
+    public final String deviceAddress;
+    /** Wall clock start in ms, also encoded in the file names. */
+    public final long start;
+    /** Wall clock end in ms, or -1 while the session is open. */
+    public final long end;
+    public final long rrCount;
+    public final long hrCount;
+    public final int hrMin;
+    public final int hrMax;
+    public final long hrSum;
+    /** Length of the RR file when the session was closed. */
+    public final long rrBytes;
+    /** Length of the heart rate file when the session was closed. */
+    public final long hrBytes;
+
+    public SessionInfo(long id, String deviceAddress, long start, long end, long rrCount, long hrCount,
+                       int hrMin, int hrMax, long hrSum, long rrBytes, long hrBytes) {
+        this.id = id;
+        this.deviceAddress = deviceAddress;
+        this.start = start;
+        this.end = end;
+        this.rrCount = rrCount;
+        this.hrCount = hrCount;
+        this.hrMin = hrMin;
+        this.hrMax = hrMax;
+        this.hrSum = hrSum;
+        this.rrBytes = rrBytes;
+        this.hrBytes = hrBytes;
+    }
+
+    /**
+     * Returns the closed version of this session.
+     */
+    public SessionInfo close(long end, long rrCount, long hrCount, int hrMin, int hrMax, long hrSum,
+                             long rrBytes, long hrBytes) {
+        return new SessionInfo(id, deviceAddress, start, end, rrCount, hrCount, hrMin, hrMax, hrSum,
+                rrBytes, hrBytes);
+    }
+
+    public boolean isOpen() {
+        return end < 0;
+    }
+
+    /**
+     * @return Mean heart rate, or -1 without samples.
+     */
+    public double getHrMean() {
+        return hrCount == 0 ? -1 : (double) hrSum / hrCount;
+    }
+
+    /**
+     * @param prefix {@link SessionFiles#PREFIX_HEART_RATE} or {@link SessionFiles#PREFIX_RR}.
+     */
+    public String getFileName(String prefix) {
+        return SessionFiles.fileName(prefix, deviceAddress, new Date(start));
+    }
+
+    /**
+     * @param extension {@link SessionFiles#EXTENSION} or {@link SessionFiles#SERIES_EXTENSION}.
+     */
+    public String getFileName(String prefix, String extension) {
+        return SessionFiles.fileName(prefix, deviceAddress, new Date(start), extension);
+    }
+
+    @Override
+    public String toString() {
+        return "Session " + id + " " + deviceAddress + " " + start + ".." + end + " rr=" + rrCount;
+    }
+}
@@ -0,0 +1,196 @@
+package dk.compute.dtu.hrv.core.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+import dk.compute.dtu.hrv.core.series.SeriesWriter;
+
+/**
+ * Writes one recording session as a heart rate and an RR interval file of {@code timestamp;value} lines,
+ * and records it in a {@link SessionCatalog} when opened and closed. Sensor contact changes and energy
+ * expended go to two more files in the same format, created when the strap first reports them.
+ *
+ * The heart rate and RR files may instead be written in the compressed block format of
+ * {@link SeriesWriter}; the small contact and energy files stay CSV.
+ */
+public class SessionWriter {
+
+    private final SessionCatalog catalog;
+    private final String extension;
+    private SessionInfo session;
+
+    private File hrFile;
+    private File rrFile;
+    private ChannelWriter hrWriter;
+    private ChannelWriter rrWriter;
+    private ChannelWriter contactWriter;
+    private ChannelWriter energyWriter;
+
+    private File directory;
+    private String deviceAddress;
+    private Date start;
+    private int lastContact;
+
+    private long rrCount;
+    private long hrCount;
+    private int hrMin;
+    private int hrMax;
+    private long hrSum;
+    private long rrBytes;
+    private long hrBytes;
+
+    public SessionWriter() {
+        this(null);
+    }
+
+    /**
+     * @param catalog Catalog to record the sessions in, or null.
+     */
+    public SessionWriter(SessionCatalog catalog) {
+        this(catalog, SessionFiles.EXTENSION);
+    }
+
+    /**
+     * @param extension Format of the heart rate and RR files, {@link SessionFiles#EXTENSION}
+     *                  or {@link SessionFiles#SERIES_EXTENSION}.
+     */
+    public SessionWriter(SessionCatalog catalog, String extension) {
+        this.catalog = catalog;
+        this.extension = extension;
+    }
+
+    /**
+     * Opens the files of a new session inside directory, creating it if needed.
+     */
+    public void open(File directory, String deviceAddress, Date start) throws IOException {
+        if (!directory.mkdirs() && !directory.isDirectory())
+            throw new IOException("Cannot create " + directory);
+
+        rrCount = 0;
+        hrCount = 0;
+        hrMin = Integer.MAX_VALUE;
+        hrMax = Integer.MIN_VALUE;
+        hrSum = 0;
+        rrBytes = 0;
+        hrBytes = 0;
+        lastContact = HeartRateSample.CONTACT_UNSUPPORTED;
+        this.directory = directory;
+        this.deviceAddress = deviceAddress;
+        this.start = start;
+
+        rrFile = new File(directory, SessionFiles.fileName(SessionFiles.PREFIX_RR, deviceAddress, start, extension));
+        rrWriter = newSampleWriter(rrFile);
+        hrFile = new File(directory, SessionFiles.fileName(SessionFiles.PREFIX_HEART_RATE, deviceAddress, start,
+                extension));
+        hrWriter = newSampleWriter(hrFile);
+
+        if (catalog != null)
+            session = catalog.beginSession(deviceAddress, start.getTime());
+    }
+
+    public boolean isOpen() {
+        return hrWriter != null && rrWriter != null;
+    }
+
+    public void store(int heartRate, int[] rr, long timestamp) throws IOException {
+        store(heartRate, rr, HeartRateSample.CONTACT_UNSUPPORTED, HeartRateSample.ENERGY_ABSENT, timestamp);
+    }
+
+    /**
+     * @param contact One of the {@link HeartRateSample} contact states, only changes are written.
+     * @param energy Energy expended in kJ or {@link HeartRateSample#ENERGY_ABSENT}.
+     */
+    public void store(int heartRate, int[] rr, int contact, int energy, long timestamp) throws IOException {
+        if (!isOpen())
+            return;
+        if (contact != lastContact && contact != HeartRateSample.CONTACT_UNSUPPORTED) {
+            if (contactWriter == null)
+                contactWriter = newWriter(SessionFiles.PREFIX_CONTACT);
+            contactWriter.write(timestamp, contact);
+            lastContact = contact;
+        }
+        if (energy != HeartRateSample.ENERGY_ABSENT) {
+            if (energyWriter == null)
+                energyWriter = newWriter(SessionFiles.PREFIX_ENERGY);
+            energyWriter.write(timestamp, energy);
+        }
+
+        hrBytes += hrWriter.write(timestamp, heartRate);
+        hrCount++;
+        hrSum += heartRate;
+        hrMin = Math.min(hrMin, heartRate);
+        hrMax = Math.max(hrMax, heartRate);
+        for (int d : rr) {
+            rrBytes += rrWriter.write(timestamp, d);
+            if (d > 0)
+                rrCount++;
+        }
+    }
+
+    private ChannelWriter newSampleWriter(File file) throws IOException {
+        if (SessionFiles.SERIES_EXTENSION.equals(extension))
+            return new SeriesWriter(file);
+        return new CsvChannelWriter(file);
+    }
+
+    private ChannelWriter newWriter(String prefix) throws IOException {
+        return new CsvChannelWriter(new File(directory, SessionFiles.fileName(prefix, deviceAddress, start)));
+    }
+
+    /**
+     * Forces the lines stored so far to the storage device.
+     */
+    public void sync() throws IOException {
+        ChannelWriter[] writers = {rrWriter, hrWriter, contactWriter, energyWriter};
+        for (ChannelWriter writer : writers) {
+            if (writer != null)
+                writer.sync();
+        }
+    }
+
+    /**
+     * Flushes and closes all files. Safe to call when not open.
+     */
+    public void close() throws IOException {
+        IOException error = null;
+        ChannelWriter[] writers = {rrWriter, hrWriter, contactWriter, energyWriter};
+        for (ChannelWriter writer : writers) {
+            if (writer == null)
+                continue;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        rrWriter = null;
+        hrWriter = null;
+        contactWriter = null;
+        energyWriter = null;
+        if (error != null)
+            throw error;
+
+        if (catalog != null && session != null) {
+            catalog.endSession(session.close(System.currentTimeMillis(), rrCount, hrCount,
+                    hrCount == 0 ? 0 : hrMin, hrCount == 0 ? 0 : hrMax, hrSum, rrBytes, hrBytes));
+            session = null;
+        }
+    }
+
+    /**
+     * @return The catalog entry of the open session, or null.
+     */
+    public SessionInfo getSession() {
+        return session;
+    }
+
+    public File getHeartRateFile() {
+        return hrFile;
+    }
+
+    public File getRrFile() {
+        return rrFile;
+    }
+}
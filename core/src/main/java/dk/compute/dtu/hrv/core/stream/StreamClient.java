@@ -0,0 +1,236 @@
+package dk.compute.dtu.hrv.core.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One connection of a {@link StreamServer}: first the HTTP request, then
+ * either WebSocket frames or a plain NDJSON response body.
+ *
+ * Frames queue in a bounded buffer that the server's selector thread drains.
+ * When the client reads slower than the data comes, whole frames are dropped
+ * and reported to it with the next frame that fits, so the publisher never
+ * waits for a client.
+ */
+class StreamClient {
+
+    static final int STATE_REQUEST = 0;
+    static final int STATE_WEBSOCKET = 1;
+    static final int STATE_HTTP = 2;
+    static final int STATE_CLOSING = 3;
+
+    private static final int MAX_REQUEST = 8192;
+    private static final String HEADER_END = "\r\n\r\n";
+
+    final SocketChannel channel;
+    private final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST);
+    // Guarded by this, in write mode between drains
+    private final ByteBuffer out;
+    private final byte[] header = new byte[WebSocket.MAX_HEADER];
+    private volatile int state = STATE_REQUEST;
+
+    private long frames = 0;
+    private long dropped = 0;
+    private long unreported = 0;
+
+    StreamClient(SocketChannel channel, int capacity) {
+        this.channel = channel;
+        out = ByteBuffer.allocate(capacity);
+    }
+
+    int getState() {
+        return state;
+    }
+
+    /**
+     * Queues a batch of NDJSON lines as one frame, or drops it if the client is behind.
+     *
+     * @return Whether the frame was queued.
+     */
+    synchronized boolean offer(byte[] payload, int length) {
+        if (state != STATE_WEBSOCKET && state != STATE_HTTP)
+            return false;
+        if (unreported > 0) {
+            final byte[] notice = ("{\"type\":\"dropped\",\"frames\":" + unreported + "}\n").getBytes(WebSocket.ASCII);
+            if (out.remaining() < notice.length + length + 2 * WebSocket.MAX_HEADER) {
+                drop();
+                return false;
+            }
+            put(notice, notice.length);
+            unreported = 0;
+        } else if (out.remaining() < length + WebSocket.MAX_HEADER) {
+            drop();
+            return false;
+        }
+        put(payload, length);
+        frames++;
+        return true;
+    }
+
+    private void drop() {
+        dropped++;
+        unreported++;
+    }
+
+    private void put(byte[] payload, int length) {
+        if (state == STATE_WEBSOCKET)
+            out.put(header, 0, WebSocket.header(header, WebSocket.OPCODE_TEXT, length));
+        out.put(payload, 0, length);
+    }
+
+    // Control frames and the handshake answer; a client too far behind to take one is closed
+    private synchronized void putControl(byte[] data, int length) {
+        if (out.remaining() < length) {
+            state = STATE_CLOSING;
+            return;
+        }
+        out.put(data, 0, length);
+    }
+
+    /**
+     * Writes as much of the queue as the socket takes.
+     *
+     * @return Whether bytes are left to write.
+     */
+    synchronized boolean drain() throws IOException {
+        out.flip();
+        try {
+            channel.write(out);
+        } finally {
+            out.compact();
+        }
+        return out.position() > 0;
+    }
+
+    synchronized long getFrames() {
+        return frames;
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Reads what the client sent.
+     *
+     * @return false once the connection should be closed.
+     */
+    boolean read() throws IOException {
+        if (channel.read(in) < 0)
+            return false;
+        if (state == STATE_REQUEST)
+            return readRequest();
+        if (state == STATE_WEBSOCKET)
+            return readFrames();
+        // A plain HTTP client has nothing more to say
+        in.clear();
+        return state != STATE_CLOSING;
+    }
+
+    private boolean readRequest() {
+        final String request = new String(in.array(), 0, in.position(), WebSocket.ASCII);
+        final int end = request.indexOf(HEADER_END);
+        if (end < 0)
+            return in.hasRemaining();
+        in.clear();
+
+        String key = null;
+        boolean upgrade = false;
+        final String[] lines = request.substring(0, end).split("\r\n");
+        if (lines.length == 0 || !lines[0].startsWith("GET ")) {
+            respond("HTTP/1.1 405 Method Not Allowed\r\nConnection: close\r\n\r\n");
+            state = STATE_CLOSING;
+            return true;
+        }
+        for (int i = 1; i < lines.length; i++) {
+            final int colon = lines[i].indexOf(':');
+            if (colon < 0)
+                continue;
+            final String name = lines[i].substring(0, colon).trim();
+            final String value = lines[i].substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Upgrade"))
+                upgrade = value.equalsIgnoreCase("websocket");
+            else if (name.equalsIgnoreCase("Sec-WebSocket-Key"))
+                key = value;
+        }
+
+        if (upgrade && key != null) {
+            respond("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + WebSocket.acceptKey(key) + "\r\n\r\n");
+            state = STATE_WEBSOCKET;
+        } else {
+            // Anything else gets the lines as a response body until it hangs up, e.g. curl
+            respond("HTTP/1.1 200 OK\r\nContent-Type: application/x-ndjson\r\nCache-Control: no-cache\r\n"
+                    + "Connection: close\r\n\r\n");
+            state = STATE_HTTP;
+        }
+        return true;
+    }
+
+    private void respond(String response) {
+        final byte[] bytes = response.getBytes(WebSocket.ASCII);
+        putControl(bytes, bytes.length);
+    }
+
+    // Answers pings and closes, ignores the rest; client frames are always masked
+    private boolean readFrames() {
+        in.flip();
+        try {
+            while (in.remaining() >= 2) {
+                final int start = in.position();
+                final int opcode = in.get() & 0x0f;
+                final int second = in.get() & 0xff;
+                long length = second & 0x7f;
+                final int extra = length == 126 ? 2 : length == 127 ? 8 : 0;
+                if (in.remaining() < extra + 4) {
+                    in.position(start);
+                    break;
+                }
+                if (extra == 2)
+                    length = in.getShort() & 0xffff;
+                else if (extra == 8)
+                    length = in.getLong();
+                if (length > MAX_REQUEST - 14)
+                    return false;
+                if (in.remaining() < 4 + length) {
+                    in.position(start);
+                    break;
+                }
+                final byte[] mask = new byte[4];
+                in.get(mask);
+                final byte[] payload = new byte[(int) length];
+                in.get(payload);
+                for (int i = 0; i < payload.length; i++)
+                    payload[i] ^= mask[i & 3];
+
+                if (opcode == WebSocket.OPCODE_CLOSE) {
+                    control(WebSocket.OPCODE_CLOSE, payload);
+                    state = STATE_CLOSING;
+                    return true;
+                }
+                if (opcode == WebSocket.OPCODE_PING)
+                    control(WebSocket.OPCODE_PONG, payload);
+            }
+        } finally {
+            in.compact();
+        }
+        return true;
+    }
+
+    private void control(int opcode, byte[] payload) {
+        final byte[] frame = new byte[WebSocket.MAX_HEADER + payload.length];
+        final int length = WebSocket.header(frame, opcode, payload.length);
+        System.arraycopy(payload, 0, frame, length, payload.length);
+        putControl(frame, length + payload.length);
+    }
+
+    void close() {
+        state = STATE_CLOSING;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package dk.compute.dtu.hrv.core.stream;
+
+import java.util.HashMap;
+
+import dk.compute.dtu.hrv.core.analytics.RunningRmssd;
+import dk.compute.dtu.hrv.core.bus.DataEvent;
+import dk.compute.dtu.hrv.core.bus.EventHandler;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+
+/**
+ * Bus consumer turning the events into NDJSON lines for a {@link StreamServer},
+ * one line per event with the rolling RMSSD of the device on each interval:
+ *
+ * <pre>
+ * {"type":"hr","device":"00:22:D0:AA:BB:CC","t":1700000000000,"hr":62,"contact":1}
+ * {"type":"rr","device":"00:22:D0:AA:BB:CC","t":1700000000000,"rr":945.31,"rmssd":41.27}
+ * </pre>
+ *
+ * t is in ms since the epoch, hr in beats per minute, rr and rmssd in ms
+ * rounded to hundredths.
+ *
+ * The lines of a bus batch go out as one frame, split when it grows beyond
+ * {@link #MAX_BATCH} bytes. Should run on a dropping subscription, so that
+ * the bus never waits for the network either.
+ */
+public class StreamPublisher implements EventHandler {
+
+    public static final int MAX_BATCH = 16 * 1024;
+
+    private final StreamServer server;
+    private final int rmssdBeats;
+    private final HashMap<String, Device> devices = new HashMap<String, Device>();
+
+    private final StringBuilder line = new StringBuilder(128);
+    private byte[] batch = new byte[MAX_BATCH + 256];
+    private int length = 0;
+
+    private static class Device {
+        final RunningRmssd rmssd;
+        boolean contact = true;
+
+        Device(int beats) {
+            rmssd = new RunningRmssd(beats);
+        }
+    }
+
+    /**
+     * @param rmssdBeats Successive differences of the rolling RMSSD.
+     */
+    public StreamPublisher(StreamServer server, int rmssdBeats) {
+        this.server = server;
+        this.rmssdBeats = rmssdBeats;
+    }
+
+    @Override
+    public void onEvent(DataEvent event, long sequence, boolean endOfBatch) {
+        if (event.deviceAddress != null) {
+            // Metrics are kept up to date with or without clients
+            final Device device = update(event);
+            if (server.hasClients() && format(event, device))
+                append();
+        }
+        if (length > 0 && (endOfBatch || length >= MAX_BATCH)) {
+            server.send(batch, length);
+            length = 0;
+        }
+    }
+
+    private Device update(DataEvent event) {
+        Device device = devices.get(event.deviceAddress);
+        if (device == null) {
+            device = new Device(rmssdBeats);
+            devices.put(event.deviceAddress, device);
+        }
+        switch (event.type) {
+            case DataEvent.TYPE_DISCONNECTED:
+                device.rmssd.breakSegment();
+                break;
+            case DataEvent.TYPE_CONTACT:
+                if (device.contact && event.contact == HeartRateSample.CONTACT_LOST)
+                    device.rmssd.breakSegment();
+                device.contact = event.contact != HeartRateSample.CONTACT_LOST;
+                break;
+            case DataEvent.TYPE_RR:
+                // Intervals measured without skin contact are noise
+                if (device.contact && event.value > 0)
+                    device.rmssd.add(event.value);
+                break;
+            default:
+                break;
+        }
+        return device;
+    }
+
+    /**
+     * @return Whether the event makes a line.
+     */
+    private boolean format(DataEvent event, Device device) {
+        final String type;
+        switch (event.type) {
+            case DataEvent.TYPE_CONNECTED:
+                type = "connected";
+                break;
+            case DataEvent.TYPE_DISCONNECTED:
+                type = "disconnected";
+                break;
+            case DataEvent.TYPE_HEART_RATE:
+                type = "hr";
+                break;
+            case DataEvent.TYPE_RR:
+                type = "rr";
+                break;
+            case DataEvent.TYPE_CONTACT:
+                type = "contact";
+                break;
+            default:
+                return false;
+        }
+        line.setLength(0);
+        line.append("{\"type\":\"").append(type).append("\",\"device\":\"").append(event.deviceAddress)
+                .append("\",\"t\":").append(event.timestamp);
+        if (event.type == DataEvent.TYPE_HEART_RATE) {
+            line.append(",\"hr\":").append(event.value).append(",\"contact\":").append(event.contact);
+            if (event.energy != HeartRateSample.ENERGY_ABSENT)
+                line.append(",\"energy\":").append(event.energy);
+        } else if (event.type == DataEvent.TYPE_RR) {
+            line.append(",\"rr\":").append(hundredths(HeartRateSample.toMillis(event.value)));
+            // The RMSSD of the raw intervals scales to ms like an interval
+            final double rmssd = device.rmssd.get();
+            if (rmssd >= 0)
+                line.append(",\"rmssd\":").append(hundredths(rmssd * HeartRateSample.toMillis(1)));
+        } else if (event.type == DataEvent.TYPE_CONTACT) {
+            line.append(",\"contact\":").append(event.contact);
+        }
+        line.append("}\n");
+        return true;
+    }
+
+    private static double hundredths(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    // Lines are ASCII: numbers and device addresses
+    private void append() {
+        final int size = line.length();
+        if (length + size > batch.length) {
+            final byte[] grown = new byte[Math.max(batch.length * 2, length + size)];
+            System.arraycopy(batch, 0, grown, 0, length);
+            batch = grown;
+        }
+        for (int i = 0; i < size; i++)
+            batch[length + i] = (byte) line.charAt(i);
+        length += size;
+    }
+}
@@ -0,0 +1,245 @@
+package dk.compute.dtu.hrv.core.stream;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Small HTTP server streaming NDJSON batches to every connected client, as
+ * WebSocket text frames or, for clients that do not upgrade, as the body of
+ * a never ending response.
+ *
+ * All socket work happens on one selector thread. {@link #send} only copies
+ * the batch into each client's bounded queue, so the caller never blocks on
+ * the network and a slow client only loses its own frames.
+ *
+ * Listens on the loopback address unless given another one; anyone who can
+ * reach the port can read the stream, so serving the network is up to the
+ * caller.
+ */
+public class StreamServer {
+
+    // Per client queue, about a minute of 20 straps
+    public static final int DEFAULT_CLIENT_BUFFER = 256 * 1024;
+
+    private final InetAddress address;
+    private final int requestedPort;
+    private final int clientBuffer;
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    private final CopyOnWriteArrayList<StreamClient> clients = new CopyOnWriteArrayList<StreamClient>();
+    // Clients with new frames, their write interest is set on the selector thread
+    private final ConcurrentLinkedQueue<StreamClient> pending = new ConcurrentLinkedQueue<StreamClient>();
+
+    private volatile long batches = 0;
+    private volatile long delivered = 0;
+    private volatile long dropped = 0;
+
+    /**
+     * @param address Address to listen on, null for the loopback address. The
+     *                wildcard address of {@link #anyAddress} serves all interfaces.
+     * @param port Port to listen on, 0 for any free port.
+     */
+    public StreamServer(InetAddress address, int port) {
+        this(address, port, DEFAULT_CLIENT_BUFFER);
+    }
+
+    public StreamServer(InetAddress address, int port, int clientBuffer) {
+        this.address = address;
+        this.requestedPort = port;
+        this.clientBuffer = clientBuffer;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running)
+            return;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(address != null ? address : InetAddress.getLoopbackAddress(),
+                requestedPort));
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "streamServer");
+        thread.start();
+    }
+
+    /**
+     * @return The wildcard address, to listen on all interfaces.
+     */
+    public static InetAddress anyAddress() {
+        return new InetSocketAddress(0).getAddress();
+    }
+
+    /**
+     * @return The port listened on, or -1 when stopped.
+     */
+    public int getPort() {
+        final ServerSocketChannel channel = server;
+        return running && channel != null ? channel.socket().getLocalPort() : -1;
+    }
+
+    /**
+     * @return The address listened on, or null when stopped.
+     */
+    public InetAddress getAddress() {
+        final ServerSocketChannel channel = server;
+        return running && channel != null ? channel.socket().getInetAddress() : null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Closes all connections and stops the selector thread.
+     */
+    public void stop() {
+        final Thread stopping;
+        synchronized (this) {
+            if (!running)
+                return;
+            running = false;
+            stopping = thread;
+            selector.wakeup();
+        }
+        try {
+            stopping.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return Whether any client is connected, so the caller may skip encoding.
+     */
+    public boolean hasClients() {
+        return !clients.isEmpty();
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Queues length bytes of payload, one or more complete NDJSON lines, for
+     * every client. Never blocks. Called from one publishing thread.
+     */
+    public void send(byte[] payload, int length) {
+        if (!running)
+            return;
+        batches++;
+        boolean queued = false;
+        for (StreamClient client : clients) {
+            if (client.offer(payload, length)) {
+                delivered++;
+                pending.add(client);
+                queued = true;
+            } else if (client.getState() != StreamClient.STATE_REQUEST) {
+                dropped++;
+            }
+        }
+        if (queued)
+            selector.wakeup();
+    }
+
+    private void loop() {
+        try {
+            while (running) {
+                selector.select();
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else
+                        handle(key);
+                }
+                StreamClient client;
+                while ((client = pending.poll()) != null) {
+                    final SelectionKey key = client.channel.keyFor(selector);
+                    if (key != null && key.isValid())
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (ClosedSelectorException e) {
+            e.printStackTrace();
+        } finally {
+            running = false;
+            for (StreamClient client : clients)
+                client.close();
+            clients.clear();
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        final StreamClient client = new StreamClient(channel, clientBuffer);
+        channel.register(selector, SelectionKey.OP_READ, client);
+        clients.add(client);
+    }
+
+    private void handle(SelectionKey key) {
+        final StreamClient client = (StreamClient) key.attachment();
+        try {
+            boolean open = true;
+            if (key.isReadable())
+                open = client.read();
+            // The handshake answer and control frames were queued by the read
+            final boolean left = open && client.drain();
+            if (!open || (!left && client.getState() == StreamClient.STATE_CLOSING)) {
+                close(key, client);
+                return;
+            }
+            key.interestOps(left ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        } catch (IOException e) {
+            // Usually the peer went away
+            close(key, client);
+        }
+    }
+
+    private void close(SelectionKey key, StreamClient client) {
+        key.cancel();
+        clients.remove(client);
+        client.close();
+    }
+
+    @Override
+    public String toString() {
+        return "StreamServer port " + getPort() + ", " + clients.size() + " clients, " + batches
+                + " batches, " + delivered + " frames delivered, " + dropped + " dropped";
+    }
+}
@@ -0,0 +1,75 @@
+package dk.compute.dtu.hrv.core.stream;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The parts of RFC 6455 a server that only sends needs: the handshake answer
+ * and unmasked frame headers.
+ */
+final class WebSocket {
+
+    static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    static final int OPCODE_TEXT = 0x1;
+    static final int OPCODE_CLOSE = 0x8;
+    static final int OPCODE_PING = 0x9;
+    static final int OPCODE_PONG = 0xA;
+    // FIN, opcode and the longest length field
+    static final int MAX_HEADER = 2 + 8;
+
+    private WebSocket() {
+    }
+
+    /**
+     * @return The Sec-WebSocket-Accept value for the key of a client.
+     */
+    static String acceptKey(String key) {
+        try {
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((key.trim() + GUID).getBytes(ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String base64(byte[] data) {
+        final StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            final int b = (data[i] & 0xff) << 16
+                    | (i + 1 < data.length ? (data[i + 1] & 0xff) << 8 : 0)
+                    | (i + 2 < data.length ? data[i + 2] & 0xff : 0);
+            out.append(BASE64[b >> 18 & 0x3f]).append(BASE64[b >> 12 & 0x3f]);
+            out.append(i + 1 < data.length ? BASE64[b >> 6 & 0x3f] : '=');
+            out.append(i + 2 < data.length ? BASE64[b & 0x3f] : '=');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes the header of a final, unmasked frame into target.
+     *
+     * @return The length of the header.
+     */
+    static int header(byte[] target, int opcode, int length) {
+        target[0] = (byte) (0x80 | opcode);
+        if (length < 126) {
+            target[1] = (byte) length;
+            return 2;
+        }
+        if (length <= 0xffff) {
+            target[1] = 126;
+            target[2] = (byte) (length >> 8);
+            target[3] = (byte) length;
+            return 4;
+        }
+        target[1] = 127;
+        for (int i = 0; i < 8; i++)
+            target[2 + i] = (byte) (i < 4 ? 0 : length >> (8 * (7 - i)));
+        return 10;
+    }
+}
@@ -0,0 +1,168 @@
+package dk.compute.dtu.hrv.core.synchrony;
+
+/**
+ * Beat to beat intervals of one device resampled to a regular grid, so that
+ * the series of different devices line up tick by tick.
+ *
+ * Beats are placed by chaining the intervals, and re-anchored to the
+ * notification time when the chain drifts too far from it. Every tick within
+ * a beat gets its interval in ms (a step interpolation of the heart period).
+ * The ticks are kept in a ring together with running prefix sums of the
+ * values and their squares, so the sum over any window in the ring is O(1).
+ * Not thread safe.
+ */
+public class RrSeries {
+
+    // Re-anchor the beat chain when it is this far off the notification time
+    static final long MAX_DRIFT = 2000;
+    // Intervals outside this range in ms are artifacts and skipped
+    static final int MIN_INTERVAL = 300;
+    static final int MAX_INTERVAL = 2000;
+
+    private final String deviceAddress;
+    private final long period;
+    private final int mask;
+    private final int[] values;
+    private final long[] sums;
+    private final long[] squares;
+    private final long maxGap;
+
+    // Ticks [start, end) are held, minus those overwritten in the ring
+    private long start = 0;
+    private long end = 0;
+    private long lastBeat = -1;
+    private long sum = 0;
+    private long square = 0;
+    // Counts restarts, so pairs notice that their sums are stale
+    private int generation = 0;
+
+    /**
+     * @param period Grid spacing in ms.
+     * @param capacity Ticks kept, rounded up to a power of two.
+     * @param maxGap Longest time in ms without beats that is bridged, a
+     *               longer one starts the series over.
+     */
+    public RrSeries(String deviceAddress, long period, int capacity, long maxGap) {
+        this.deviceAddress = deviceAddress;
+        this.period = period;
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        values = new int[size];
+        sums = new long[size];
+        squares = new long[size];
+        this.maxGap = maxGap;
+    }
+
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    /**
+     * Adds one interval of the device.
+     *
+     * @param timestamp Time of the notification in ms.
+     * @param interval The interval as sent by the strap, in 1/1024 s.
+     */
+    public void add(long timestamp, int interval) {
+        final int ms = (int) ((interval * 1000L + 512) / 1024);
+        if (ms < MIN_INTERVAL || ms > MAX_INTERVAL)
+            return;
+
+        if (lastBeat >= 0 && timestamp - lastBeat > maxGap)
+            restart();
+        long beat = lastBeat + ms;
+        if (lastBeat < 0 || Math.abs(beat - timestamp) > MAX_DRIFT)
+            beat = timestamp;
+        if (lastBeat < 0) {
+            // The first beat only starts the grid
+            start = end = tickAfter(beat);
+        } else {
+            final long last = tickAfter(beat);
+            while (end < last)
+                append(ms);
+        }
+        lastBeat = beat;
+    }
+
+    // First tick at or after time
+    private long tickAfter(long time) {
+        return (time + period - 1) / period;
+    }
+
+    private void append(int value) {
+        final int slot = (int) (end & mask);
+        sum += value;
+        square += (long) value * value;
+        values[slot] = value;
+        sums[slot] = sum;
+        squares[slot] = square;
+        end++;
+    }
+
+    private void restart() {
+        lastBeat = -1;
+        start = end = 0;
+        sum = square = 0;
+        generation++;
+    }
+
+    /**
+     * @return The first tick held, or the oldest one not overwritten yet.
+     */
+    public long getStart() {
+        return Math.max(start, end - values.length);
+    }
+
+    /**
+     * @return The tick after the last one held.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public long getPeriod() {
+        return period;
+    }
+
+    public int getCapacity() {
+        return values.length;
+    }
+
+    /**
+     * @return Whether sums from tick on can still be taken, i.e. the tick
+     *         before it was not overwritten yet.
+     */
+    public boolean canSum(long tick) {
+        return tick <= start || tick - 1 >= end - values.length;
+    }
+
+    /**
+     * @return The heart period in ms at a held tick.
+     */
+    public int get(long tick) {
+        return values[(int) (tick & mask)];
+    }
+
+    /**
+     * @return The sum of the values of ticks [from, to), all held or just before the first.
+     */
+    public long sum(long from, long to) {
+        return prefix(sums, to) - prefix(sums, from);
+    }
+
+    /**
+     * @return The sum of the squared values of ticks [from, to).
+     */
+    public long sumOfSquares(long from, long to) {
+        return prefix(squares, to) - prefix(squares, from);
+    }
+
+    // Sum of the ticks before tick
+    private long prefix(long[] cumulative, long tick) {
+        return tick <= start ? 0 : cumulative[(int) ((tick - 1) & mask)];
+    }
+}
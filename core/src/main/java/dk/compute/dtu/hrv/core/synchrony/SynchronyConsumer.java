@@ -0,0 +1,59 @@
+package dk.compute.dtu.hrv.core.synchrony;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import dk.compute.dtu.hrv.core.bus.DataEvent;
+import dk.compute.dtu.hrv.core.bus.EventHandler;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+
+/**
+ * Feeds the beat to beat intervals on the bus into a {@link SynchronyEngine}
+ * and updates it at most once per {@link #UPDATE_INTERVAL} of event time, at
+ * the end of a batch. Devices leave the engine when they disconnect, and
+ * intervals measured without skin contact are skipped.
+ */
+public class SynchronyConsumer implements EventHandler {
+
+    public static final long UPDATE_INTERVAL = 1000;
+
+    private final SynchronyEngine engine;
+    private final Set<String> noContact = new HashSet<String>();
+    private long latest = Long.MIN_VALUE;
+    private long lastUpdate = -UPDATE_INTERVAL;
+
+    public SynchronyConsumer(SynchronyEngine engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public void onEvent(DataEvent event, long sequence, boolean endOfBatch) {
+        switch (event.type) {
+            case DataEvent.TYPE_RR:
+                if (event.value > 0 && !noContact.contains(event.deviceAddress))
+                    engine.addInterval(event.deviceAddress, event.timestamp, event.value);
+                latest = Math.max(latest, event.timestamp);
+                break;
+            case DataEvent.TYPE_CONTACT:
+                if (event.contact == HeartRateSample.CONTACT_LOST)
+                    noContact.add(event.deviceAddress);
+                else
+                    noContact.remove(event.deviceAddress);
+                break;
+            case DataEvent.TYPE_DISCONNECTED:
+                engine.removeDevice(event.deviceAddress);
+                noContact.remove(event.deviceAddress);
+                break;
+            default:
+                break;
+        }
+        if (endOfBatch && latest - lastUpdate >= UPDATE_INTERVAL) {
+            lastUpdate = latest;
+            engine.update();
+        }
+    }
+
+    public SynchronyEngine getEngine() {
+        return engine;
+    }
+}
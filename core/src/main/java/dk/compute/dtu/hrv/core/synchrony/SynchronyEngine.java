@@ -0,0 +1,333 @@
+package dk.compute.dtu.hrv.core.synchrony;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Rolling physiological synchrony between every pair of devices.
+ *
+ * The RR streams are resampled to a common grid by {@link RrSeries}. For each
+ * pair, the products of the two series at every lag in [-maxLag, maxLag] are
+ * summed over a sliding window. Each tick adds the newest products and
+ * subtracts those that left the window. With the window sums of each series
+ * this gives the Pearson correlation at every lag. All sums are integer, so
+ * they never drift.
+ *
+ * Per pair the engine reports:
+ * - the correlation at lag 0;
+ * - the lagged coherence, i.e. the correlation of largest magnitude over the
+ *   lags, and its lag.
+ * The group synchrony index is the Fisher z mean of the lagged coherence
+ * magnitudes over all pairs with a full window.
+ *
+ * A tick costs O(maxLag) per pair. {@link #update} runs the pairs in parallel
+ * on a ForkJoinPool once there are enough of them, creating the pool only
+ * then. Feed and update from one thread; {@link #getGroupSynchrony} may be
+ * read from any thread.
+ */
+public class SynchronyEngine {
+
+    public static final long DEFAULT_PERIOD = 250;
+    public static final int DEFAULT_WINDOW = 240;
+    public static final int DEFAULT_MAX_LAG = 20;
+    // Ticks a series may get ahead of the slowest pair before that pair restarts
+    public static final int MAX_BACKLOG = 4096;
+    // Beat gap in ms that restarts a series instead of bridging it
+    static final long MAX_GAP = 5000;
+    // Below this many pairs per task the pairs run on the calling thread
+    static final int PAIRS_PER_TASK = 16;
+    // Correlations are clamped below 1 before the Fisher z transform
+    private static final double MAX_R = 0.9999;
+
+    private final long period;
+    private final int window;
+    private final int maxLag;
+    private final int parallelism;
+    // Created by the first update with enough pairs
+    private volatile ForkJoinPool pool;
+    private volatile boolean shutdown = false;
+
+    private final Map<String, RrSeries> series = new LinkedHashMap<String, RrSeries>();
+    private final List<Pair> pairs = new ArrayList<Pair>();
+    private volatile double groupSynchrony = Double.NaN;
+    private long updates = 0;
+
+    /** Synchrony of two devices. */
+    public static class Pair {
+        final RrSeries a;
+        final RrSeries b;
+        // Sum over the window of a(t) * b(t - lag), index lag + maxLag
+        final long[] cross;
+        private final int window;
+        private final int maxLag;
+
+        private int generationA;
+        private int generationB;
+        // Ticks [first, next) were added, [max(first, next - window), next) are in the window
+        private long first = -1;
+        private long next = -1;
+
+        private double correlation = Double.NaN;
+        private double coherence = Double.NaN;
+        private int coherenceLag = 0;
+
+        Pair(RrSeries a, RrSeries b, int window, int maxLag) {
+            this.a = a;
+            this.b = b;
+            this.window = window;
+            this.maxLag = maxLag;
+            cross = new long[2 * maxLag + 1];
+        }
+
+        public String getDeviceA() {
+            return a.getDeviceAddress();
+        }
+
+        public String getDeviceB() {
+            return b.getDeviceAddress();
+        }
+
+        /**
+         * @return Ticks in the window, the full window size once warmed up.
+         */
+        public int getCount() {
+            return next < 0 ? 0 : (int) Math.min(window, next - first);
+        }
+
+        /**
+         * @return Correlation at lag 0, NaN until the window holds data.
+         */
+        public double getCorrelation() {
+            return correlation;
+        }
+
+        /**
+         * @return Correlation of largest magnitude over all lags.
+         */
+        public double getCoherence() {
+            return coherence;
+        }
+
+        /**
+         * @return Lag of {@link #getCoherence} in ms; positive if a follows b.
+         */
+        public long getCoherenceLag() {
+            return coherenceLag * a.getPeriod();
+        }
+
+        /**
+         * Adds the ticks both series have, up to the latest that has b at
+         * every lag.
+         */
+        void advance() {
+            if (generationA != a.getGeneration() || generationB != b.getGeneration())
+                reset();
+            final long end = Math.min(a.getEnd(), b.getEnd() - maxLag);
+            if (next < 0) {
+                // One tick of margin for the prefix sums before the first tick
+                final long start = Math.max(a.getStart(), b.getStart() + maxLag) + 1;
+                if (end <= start)
+                    return;
+                first = next = start;
+            }
+            // Fell behind the rings, e.g. while b stalled, the oldest ticks are gone
+            final long oldest = Math.max(first, next - window);
+            if (!a.canSum(oldest) || !b.canSum(oldest - maxLag)) {
+                reset();
+                advance();
+                return;
+            }
+            final long[] cross = this.cross;
+            for (long t = next; t < end; t++) {
+                final long x = a.get(t);
+                final long old = t - window;
+                final long xOld = old >= first ? a.get(old) : 0;
+                for (int k = -maxLag; k <= maxLag; k++) {
+                    long sum = cross[k + maxLag] + x * b.get(t - k);
+                    if (xOld != 0)
+                        sum -= xOld * b.get(old - k);
+                    cross[k + maxLag] = sum;
+                }
+            }
+            if (end > next)
+                next = end;
+            compute();
+        }
+
+        private void compute() {
+            final int n = getCount();
+            if (n < 2) {
+                correlation = coherence = Double.NaN;
+                return;
+            }
+            final long from = next - n;
+            final long sx = a.sum(from, next);
+            final double vx = (double) n * a.sumOfSquares(from, next) - (double) sx * sx;
+            double best = Double.NaN;
+            int bestLag = 0;
+            for (int k = -maxLag; k <= maxLag; k++) {
+                final long sy = b.sum(from - k, next - k);
+                final double vy = (double) n * b.sumOfSquares(from - k, next - k) - (double) sy * sy;
+                final double covariance = (double) n * cross[k + maxLag] - (double) sx * sy;
+                final double r = vx <= 0 || vy <= 0 ? 0 : covariance / Math.sqrt(vx * vy);
+                if (k == 0)
+                    correlation = r;
+                if (Double.isNaN(best) || Math.abs(r) > Math.abs(best)) {
+                    best = r;
+                    bestLag = k;
+                }
+            }
+            coherence = best;
+            coherenceLag = bestLag;
+        }
+
+        private void reset() {
+            generationA = a.getGeneration();
+            generationB = b.getGeneration();
+            first = next = -1;
+            Arrays.fill(cross, 0);
+            correlation = coherence = Double.NaN;
+        }
+    }
+
+    public SynchronyEngine() {
+        this(DEFAULT_PERIOD, DEFAULT_WINDOW, DEFAULT_MAX_LAG, 1);
+    }
+
+    /**
+     * @param period Grid spacing in ms.
+     * @param window Ticks the correlations are taken over.
+     * @param maxLag Largest lag in ticks, both ways.
+     * @param parallelism Threads the pairs may run on, 1 to run them on the calling thread.
+     */
+    public SynchronyEngine(long period, int window, int maxLag, int parallelism) {
+        this.period = period;
+        this.window = window;
+        this.maxLag = maxLag;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Adds one beat to beat interval of a device, adding the device on its first interval.
+     *
+     * @param interval The interval as sent by the strap, in 1/1024 s.
+     */
+    public void addInterval(String deviceAddress, long timestamp, int interval) {
+        RrSeries device = series.get(deviceAddress);
+        if (device == null) {
+            device = new RrSeries(deviceAddress, period, window + 2 * maxLag + MAX_BACKLOG, MAX_GAP);
+            for (RrSeries other : series.values())
+                pairs.add(new Pair(other, device, window, maxLag));
+            series.put(deviceAddress, device);
+        }
+        device.add(timestamp, interval);
+    }
+
+    /**
+     * Drops a device and its pairs, e.g. when it disconnected.
+     */
+    public void removeDevice(String deviceAddress) {
+        final RrSeries device = series.remove(deviceAddress);
+        if (device == null)
+            return;
+        for (int i = pairs.size() - 1; i >= 0; i--) {
+            final Pair pair = pairs.get(i);
+            if (pair.a == device || pair.b == device)
+                pairs.remove(i);
+        }
+    }
+
+    public int getDeviceCount() {
+        return series.size();
+    }
+
+    /**
+     * @return The pairs, in the order the devices were added. Only valid on the feeding thread.
+     */
+    public List<Pair> getPairs() {
+        return Collections.unmodifiableList(pairs);
+    }
+
+    /**
+     * Brings every pair up to date with the intervals added so far and
+     * recomputes the group synchrony index.
+     */
+    public void update() {
+        if (parallelism <= 1 || pairs.size() < 2 * PAIRS_PER_TASK || shutdown) {
+            advance(0, pairs.size());
+        } else {
+            if (pool == null)
+                pool = new ForkJoinPool(parallelism);
+            pool.invoke(new PairTask(0, pairs.size()));
+        }
+
+        double z = 0;
+        int count = 0;
+        for (Pair pair : pairs) {
+            if (pair.getCount() < window || Double.isNaN(pair.coherence))
+                continue;
+            final double r = Math.min(Math.abs(pair.coherence), MAX_R);
+            z += 0.5 * Math.log((1 + r) / (1 - r));
+            count++;
+        }
+        groupSynchrony = count == 0 ? Double.NaN : Math.tanh(z / count);
+        updates++;
+    }
+
+    private void advance(int from, int to) {
+        for (int i = from; i < to; i++)
+            pairs.get(i).advance();
+    }
+
+    private class PairTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        PairTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PAIRS_PER_TASK) {
+                advance(from, to);
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new PairTask(from, middle), new PairTask(middle, to));
+        }
+    }
+
+    /**
+     * Stops the threads of the pool, if any. Later updates run on the calling
+     * thread.
+     */
+    public void shutdown() {
+        shutdown = true;
+        final ForkJoinPool created = pool;
+        if (created != null)
+            created.shutdown();
+    }
+
+    /**
+     * @return Group synchrony index in [0, 1), NaN until a pair has a full window.
+     */
+    public double getGroupSynchrony() {
+        return groupSynchrony;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("synchrony devices=%d pairs=%d updates=%d index=%.3f", series.size(), pairs.size(),
+                updates, groupSynchrony);
+    }
+}
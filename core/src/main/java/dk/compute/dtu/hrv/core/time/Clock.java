@@ -0,0 +1,19 @@
+package dk.compute.dtu.hrv.core.time;
+
+/**
+ * Monotonic millisecond clock, e.g. {@code SystemClock.elapsedRealtime()} on Android.
+ */
+public interface Clock {
+
+    public static final Clock SYSTEM = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return System.nanoTime() / 1000000L;
+        }
+    };
+
+    /**
+     * @return Milliseconds since an arbitrary fixed point, never going backwards.
+     */
+    public long elapsedRealtime();
+}
@@ -0,0 +1,135 @@
+package dk.compute.dtu.hrv.core.trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exports the records of a {@link SampleTracer} in the Chrome trace event
+ * JSON format, for chrome://tracing or Perfetto.
+ *
+ * Each device is a process and each stage a thread. A sample becomes one
+ * complete event per stage it reached, lasting from the previous stage it
+ * was marked at, so the lanes show where the time between the callback and
+ * the disk goes.
+ */
+public class ChromeTraceWriter {
+
+    public static void write(SampleTracer tracer, File file) throws IOException {
+        final Writer writer = new BufferedWriter(new FileWriter(file, false));
+        try {
+            write(tracer, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return The number of samples written.
+     */
+    public static int write(SampleTracer tracer, Writer writer) throws IOException {
+        final List<String> devices = new ArrayList<String>(tracer.getBuffers().keySet());
+        Collections.sort(devices);
+
+        // Stage times per sample and device, 0 where not marked
+        final List<Map<Long, long[]>> samples = new ArrayList<Map<Long, long[]>>();
+        long origin = Long.MAX_VALUE;
+        for (String device : devices) {
+            final Map<Long, long[]> times = collect(tracer.getBuffers().get(device));
+            samples.add(times);
+            for (long[] stages : times.values()) {
+                for (long nanos : stages) {
+                    if (nanos != 0)
+                        origin = Math.min(origin, nanos);
+                }
+            }
+        }
+
+        final StringBuilder line = new StringBuilder(160);
+        writer.write("{\"traceEvents\":[\n");
+        boolean first = true;
+        int written = 0;
+        for (int i = 0; i < devices.size(); i++) {
+            final int pid = i + 1;
+            line.setLength(0);
+            if (!first)
+                line.append(",\n");
+            first = false;
+            line.append("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":").append(pid)
+                    .append(",\"args\":{\"name\":\"").append(devices.get(i)).append("\"}}");
+            for (int stage = 1; stage < SampleTracer.STAGES; stage++) {
+                line.append(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(pid)
+                        .append(",\"tid\":").append(stage)
+                        .append(",\"args\":{\"name\":\"").append(SampleTracer.stageName(stage)).append("\"}}");
+            }
+            writer.write(line.toString());
+
+            final Map<Long, long[]> times = samples.get(i);
+            final List<Long> ids = new ArrayList<Long>(times.keySet());
+            Collections.sort(ids);
+            for (Long id : ids) {
+                final long[] stages = times.get(id);
+                int previous = -1;
+                for (int stage = 0; stage < SampleTracer.STAGES; stage++) {
+                    if (stages[stage] == 0)
+                        continue;
+                    if (previous >= 0) {
+                        line.setLength(0);
+                        line.append(",\n{\"name\":\"").append(SampleTracer.stageName(stage))
+                                .append("\",\"ph\":\"X\",\"pid\":").append(pid)
+                                .append(",\"tid\":").append(stage).append(",\"ts\":");
+                        appendMicros(line, stages[previous] - origin);
+                        line.append(",\"dur\":");
+                        appendMicros(line, stages[stage] - stages[previous]);
+                        line.append(",\"args\":{\"sample\":").append(id).append("}}");
+                        writer.write(line.toString());
+                    }
+                    previous = stage;
+                }
+                written++;
+            }
+        }
+        writer.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+        return written;
+    }
+
+    private static Map<Long, long[]> collect(TraceBuffer buffer) {
+        final Map<Long, long[]> times = new HashMap<Long, long[]>();
+        buffer.read(new TraceBuffer.Visitor() {
+            @Override
+            public void onRecord(long sample, int stage, long nanos) {
+                if (stage >= SampleTracer.STAGES)
+                    return;
+                long[] stages = times.get(sample);
+                if (stages == null) {
+                    stages = new long[SampleTracer.STAGES];
+                    times.put(sample, stages);
+                }
+                stages[stage] = nanos;
+            }
+        });
+        return times;
+    }
+
+    // Trace event times are in microseconds, keep the nanoseconds as decimals
+    static void appendMicros(StringBuilder target, long nanos) {
+        if (nanos < 0) {
+            target.append('-');
+            nanos = -nanos;
+        }
+        target.append(nanos / 1000).append('.');
+        final long fraction = nanos % 1000;
+        if (fraction < 100)
+            target.append('0');
+        if (fraction < 10)
+            target.append('0');
+        target.append(fraction);
+    }
+}
@@ -0,0 +1,87 @@
+package dk.compute.dtu.hrv.core.trace;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Timestamps each heart rate sample at the stages between the GATT callback
+ * and the disk, in one {@link TraceBuffer} per device. Does nothing while
+ * disabled, so the stages can be marked unconditionally.
+ */
+public class SampleTracer {
+
+    // Stages in the order a sample passes them
+    public static final int STAGE_ARRIVED = 0;
+    public static final int STAGE_PARSED = 1;
+    public static final int STAGE_ENQUEUED = 2;
+    public static final int STAGE_WRITTEN = 3;
+    public static final int STAGE_SYNCED = 4;
+    public static final int STAGES = 5;
+
+    private static final String[] NAMES = {"arrived", "parsed", "enqueued", "written", "synced"};
+
+    private final int capacity;
+    private final ConcurrentHashMap<String, TraceBuffer> buffers = new ConcurrentHashMap<String, TraceBuffer>();
+    private volatile boolean enabled = false;
+
+    /**
+     * @param capacity Records kept per device.
+     */
+    public SampleTracer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public static String stageName(int stage) {
+        return stage >= 0 && stage < STAGES ? NAMES[stage] : "unknown";
+    }
+
+    /**
+     * @return Current time in the unit of the marks.
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records that the sample of the device reached stage at nanos, see {@link #now()}.
+     */
+    public void mark(String deviceAddress, long sample, int stage, long nanos) {
+        if (!enabled || sample < 0)
+            return;
+        TraceBuffer buffer = buffers.get(deviceAddress);
+        if (buffer == null) {
+            final TraceBuffer created = new TraceBuffer(capacity);
+            buffer = buffers.putIfAbsent(deviceAddress, created);
+            if (buffer == null)
+                buffer = created;
+        }
+        buffer.add(sample, stage, nanos);
+    }
+
+    public void mark(String deviceAddress, long sample, int stage) {
+        if (enabled)
+            mark(deviceAddress, sample, stage, now());
+    }
+
+    /**
+     * @return The buffers by device address, live.
+     */
+    public Map<String, TraceBuffer> getBuffers() {
+        return buffers;
+    }
+
+    /**
+     * Drops all records.
+     */
+    public void clear() {
+        buffers.clear();
+    }
+}
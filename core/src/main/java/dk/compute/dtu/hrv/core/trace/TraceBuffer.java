@@ -0,0 +1,75 @@
+package dk.compute.dtu.hrv.core.trace;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ring of stage timestamps of one device. A record is a key packing the
+ * sample id and the stage, and a time in ns; when full the oldest records are
+ * overwritten.
+ *
+ * Any thread may add records without locking. Slots work like a seqlock: the
+ * key is cleared before the time is written and published after it, and a
+ * reader keeps a record only if the key is the same before and after reading
+ * the time, so records being overwritten are skipped rather than torn.
+ */
+public class TraceBuffer {
+
+    static final int STAGE_BITS = 3;
+    private static final long STAGE_MASK = (1 << STAGE_BITS) - 1;
+
+    private final int mask;
+    // Key + 1 of each slot, 0 while empty or being written
+    private final AtomicLongArray keys;
+    private final AtomicLongArray times;
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * @param capacity Number of records, rounded up to a power of two.
+     */
+    public TraceBuffer(int capacity) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        keys = new AtomicLongArray(size);
+        times = new AtomicLongArray(size);
+    }
+
+    /**
+     * @param sample Non negative id of the sample, shared by all its stages.
+     * @param stage One of the {@link SampleTracer} stages.
+     */
+    public void add(long sample, int stage, long nanos) {
+        final int slot = (int) (next.getAndIncrement() & mask);
+        keys.set(slot, 0);
+        times.set(slot, nanos);
+        keys.set(slot, ((sample << STAGE_BITS) | stage) + 1);
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return Records added so far, including overwritten ones.
+     */
+    public long getAdded() {
+        return next.get();
+    }
+
+    public interface Visitor {
+        public void onRecord(long sample, int stage, long nanos);
+    }
+
+    /**
+     * Hands every intact record to visitor, in no particular order.
+     */
+    public void read(Visitor visitor) {
+        for (int slot = 0; slot <= mask; slot++) {
+            final long key = keys.get(slot);
+            final long nanos = times.get(slot);
+            if (key == 0 || keys.get(slot) != key)
+                continue;
+            visitor.onRecord((key - 1) >>> STAGE_BITS, (int) ((key - 1) & STAGE_MASK), nanos);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package dk.compute.dtu.hrv.core.upload;
+
+import java.util.Random;
+
+/**
+ * Exponential retry delay with full jitter: after n consecutive failures the
+ * delay is drawn from [base, min(max, base * 2^n)], so phones that lost the
+ * collector together do not come back in step. Thread safe.
+ */
+public class Backoff {
+
+    private final long base;
+    private final long max;
+    private final Random random = new Random();
+    private int failures = 0;
+
+    /**
+     * @param base Shortest delay in ms.
+     * @param max Longest delay in ms.
+     */
+    public Backoff(long base, long max) {
+        this.base = base;
+        this.max = Math.max(base, max);
+    }
+
+    /**
+     * Counts a failure.
+     *
+     * @return The delay in ms before the next attempt.
+     */
+    public synchronized long next() {
+        final long ceiling = failures >= 30 ? max : Math.min(max, base << failures);
+        failures++;
+        return base + (long) (random.nextDouble() * (ceiling - base));
+    }
+
+    public synchronized void reset() {
+        failures = 0;
+    }
+
+    /**
+     * @return Failures since the last success.
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+}
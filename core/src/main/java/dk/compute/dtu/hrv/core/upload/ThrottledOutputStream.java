@@ -0,0 +1,60 @@
+package dk.compute.dtu.hrv.core.upload;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Caps the rate written to the wrapped stream. Writes go out in slices of at
+ * most a tenth of a second worth of bytes, and sleep whenever the bytes
+ * written since the stream was opened are ahead of the rate.
+ */
+class ThrottledOutputStream extends FilterOutputStream {
+
+    private final long bytesPerSecond;
+    private final int slice;
+    private final long start = System.nanoTime();
+    private long written = 0;
+
+    /**
+     * @param bytesPerSecond Rate cap, 0 for none.
+     */
+    ThrottledOutputStream(OutputStream out, long bytesPerSecond) {
+        super(out);
+        this.bytesPerSecond = bytesPerSecond;
+        slice = bytesPerSecond <= 0 ? Integer.MAX_VALUE : (int) Math.max(1, Math.min(65536, bytesPerSecond / 10));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        throttle(1);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int offset, int length) throws IOException {
+        while (length > 0) {
+            final int n = Math.min(length, slice);
+            throttle(n);
+            out.write(b, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private void throttle(int length) throws IOException {
+        written += length;
+        if (bytesPerSecond <= 0)
+            return;
+        final long due = written * 1000L / bytesPerSecond - (System.nanoTime() - start) / 1000000L;
+        if (due <= 0)
+            return;
+        try {
+            Thread.sleep(due);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
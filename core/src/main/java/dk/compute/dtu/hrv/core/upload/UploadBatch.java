@@ -0,0 +1,139 @@
+package dk.compute.dtu.hrv.core.upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Body of one upload request: byte ranges of session files, gzip compressed
+ * as a whole so that the redundancy between files and sessions is shared.
+ * The body is a gzip file and is sent as {@link #CONTENT_TYPE}, not with a
+ * gzip content encoding, so that no HTTP layer inflates it on the way.
+ *
+ * After a magic and a version each part is the file name, the offset of the
+ * range in the file, its length, whether it ends a file that will not grow
+ * any more, and the bytes. An empty name ends the batch.
+ */
+public class UploadBatch {
+
+    public static final int MAGIC = 0x48525550; // "HRUP"
+    public static final int VERSION = 1;
+    public static final String CONTENT_TYPE = "application/gzip";
+
+    private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    private final DataOutputStream out;
+    private final List<Part> parts = new ArrayList<Part>();
+    private long rawBytes = 0;
+    private byte[] body = null;
+
+    /** A range of one file, without its bytes. */
+    public static class Part {
+        public final String name;
+        public final long offset;
+        public final int length;
+        public final boolean last;
+
+        public Part(String name, long offset, int length, boolean last) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.last = last;
+        }
+
+        public long getEnd() {
+            return offset + length;
+        }
+    }
+
+    public UploadBatch() throws IOException {
+        out = new DataOutputStream(new GZIPOutputStream(compressed, 8192));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Appends bytes [offset, offset + length) of the file name.
+     *
+     * @param last Whether the range ends the file for good.
+     */
+    public void add(String name, long offset, byte[] data, int length, boolean last) throws IOException {
+        if (body != null)
+            throw new IllegalStateException("Batch finished");
+        out.writeUTF(name);
+        out.writeLong(offset);
+        out.writeInt(length);
+        out.writeBoolean(last);
+        out.write(data, 0, length);
+        parts.add(new Part(name, offset, length, last));
+        rawBytes += length;
+    }
+
+    /**
+     * @return The compressed body, ends the batch.
+     */
+    public byte[] finish() throws IOException {
+        if (body == null) {
+            out.writeUTF("");
+            out.close();
+            body = compressed.toByteArray();
+        }
+        return body;
+    }
+
+    public List<Part> getParts() {
+        return parts;
+    }
+
+    public boolean isEmpty() {
+        return parts.isEmpty();
+    }
+
+    /**
+     * @return Bytes of file content in the batch, before compression.
+     */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    public interface Visitor {
+        /**
+         * @param data Holds the bytes of the part in [0, length), only valid during the call.
+         */
+        public void onPart(Part part, byte[] data) throws IOException;
+    }
+
+    /**
+     * Decodes a compressed body, for the collector side.
+     *
+     * @return The number of parts.
+     */
+    public static int read(InputStream body, Visitor visitor) throws IOException {
+        final DataInputStream in = new DataInputStream(new GZIPInputStream(body, 8192));
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not an upload batch");
+        final int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported version " + version);
+        byte[] data = new byte[8192];
+        int count = 0;
+        while (true) {
+            final String name = in.readUTF();
+            if (name.isEmpty())
+                return count;
+            final Part part = new Part(name, in.readLong(), in.readInt(), in.readBoolean());
+            if (part.length < 0 || part.offset < 0)
+                throw new IOException("Bad part " + name);
+            if (data.length < part.length)
+                data = new byte[part.length];
+            in.readFully(data, 0, part.length);
+            visitor.onPart(part, data);
+            count++;
+        }
+    }
+}
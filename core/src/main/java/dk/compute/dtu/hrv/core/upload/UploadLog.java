@@ -0,0 +1,198 @@
+package dk.compute.dtu.hrv.core.upload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Durable record of how much of each session file the collector has
+ * acknowledged, kept next to the sessions as {@link #FILE_NAME}.
+ *
+ * Like the {@link dk.compute.dtu.hrv.core.session.SessionCatalog} it is an
+ * append only log of fixed size records ending in a CRC32, forced to disk on
+ * every acknowledgement, so an upload resumes after a restart from the last
+ * offset the collector confirmed. Later records of a file replace earlier
+ * ones; the log is compacted on load when mostly superseded. Thread safe.
+ */
+public class UploadLog {
+
+    public static final String FILE_NAME = "upload.bin";
+
+    static final int RECORD_SIZE = 72;
+    static final int MAX_NAME = 48;
+    private static final int MAGIC = 0x4852554c; // "HRUL", distinct from the batches
+    private static final int CRC_OFFSET = RECORD_SIZE - 4;
+    private static final int COMPACT_FACTOR = 4;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long records = 0;
+
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    // Acknowledged offset by file name
+    private final Map<String, Long> offsets = new HashMap<String, Long>();
+    private final Set<String> complete = new HashSet<String>();
+
+    private UploadLog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens or creates the log in directory.
+     */
+    public static UploadLog open(File directory) throws IOException {
+        if (!directory.mkdirs() && !directory.isDirectory())
+            throw new IOException("Cannot create " + directory);
+        final UploadLog log = new UploadLog(new File(directory, FILE_NAME));
+        log.load();
+        return log;
+    }
+
+    private void load() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+
+        final long size = channel.size();
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0)
+                break;
+        }
+
+        int valid = 0;
+        while (valid + RECORD_SIZE <= buffer.position()) {
+            if (!decode(buffer, valid))
+                break;
+            valid += RECORD_SIZE;
+            records++;
+        }
+        if (valid < size) {
+            // Torn or corrupt tail from an interrupted update
+            channel.truncate(valid);
+            channel.force(true);
+        }
+
+        if (records >= COMPACT_MIN_RECORDS && records > COMPACT_FACTOR * offsets.size())
+            compact();
+    }
+
+    /**
+     * @return The number of bytes of the file the collector has, 0 if none.
+     */
+    public synchronized long getOffset(String name) {
+        final Long offset = offsets.get(name);
+        return offset == null ? 0 : offset;
+    }
+
+    /**
+     * @return Whether the collector has all of the file, which will not grow any more.
+     */
+    public synchronized boolean isComplete(String name) {
+        return complete.contains(name);
+    }
+
+    /**
+     * Records that the collector has the first offset bytes of the file.
+     *
+     * @param complete Whether that is the whole file of a closed session.
+     */
+    public synchronized void acknowledge(String name, long offset, boolean complete) throws IOException {
+        if (name.length() > MAX_NAME)
+            throw new IOException("Name too long: " + name);
+        final Long previous = offsets.get(name);
+        if (previous != null && previous == offset && this.complete.contains(name) == complete)
+            return;
+        encode(name, offset, complete);
+        channel.write(record, records * RECORD_SIZE);
+        channel.force(false);
+        records++;
+        put(name, offset, complete);
+    }
+
+    private void put(String name, long offset, boolean complete) {
+        offsets.put(name, offset);
+        if (complete)
+            this.complete.add(name);
+        else
+            this.complete.remove(name);
+    }
+
+    public synchronized int size() {
+        return offsets.size();
+    }
+
+    /**
+     * Rewrites the log with one record per file.
+     */
+    public synchronized void compact() throws IOException {
+        final File temporary = new File(file.getPath() + ".tmp");
+        final RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+        try {
+            final FileChannel target = out.getChannel();
+            target.truncate(0);
+            long position = 0;
+            for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+                encode(entry.getKey(), entry.getValue(), complete.contains(entry.getKey()));
+                target.write(record, position);
+                position += RECORD_SIZE;
+            }
+            target.force(true);
+        } finally {
+            out.close();
+        }
+
+        raf.close();
+        if (!temporary.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        records = offsets.size();
+    }
+
+    public synchronized void close() throws IOException {
+        raf.close();
+    }
+
+    private void encode(String name, long offset, boolean complete) {
+        final byte[] bytes = name.getBytes(ASCII);
+        record.clear();
+        record.putInt(MAGIC);
+        record.putInt(complete ? 1 : 0);
+        record.putLong(offset);
+        record.putInt(bytes.length);
+        record.put(bytes);
+        while (record.position() < CRC_OFFSET)
+            record.put((byte) 0);
+        crc.reset();
+        crc.update(record.array(), 0, CRC_OFFSET);
+        record.putInt((int) crc.getValue());
+        record.flip();
+    }
+
+    // Returns false if the record at offset is not intact
+    private boolean decode(ByteBuffer buffer, int offset) {
+        crc.reset();
+        crc.update(buffer.array(), offset, CRC_OFFSET);
+        if (buffer.getInt(offset) != MAGIC || buffer.getInt(offset + CRC_OFFSET) != (int) crc.getValue())
+            return false;
+        final int length = buffer.getInt(offset + 16);
+        if (length < 0 || length > MAX_NAME)
+            return false;
+        final String name = new String(buffer.array(), offset + 20, length, ASCII);
+        put(name, buffer.getLong(offset + 8), buffer.getInt(offset + 4) != 0);
+        return true;
+    }
+}
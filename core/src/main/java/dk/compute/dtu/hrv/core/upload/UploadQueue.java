@@ -0,0 +1,411 @@
+package dk.compute.dtu.hrv.core.upload;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dk.compute.dtu.hrv.core.series.SeriesWriter;
+import dk.compute.dtu.hrv.core.session.SessionCatalog;
+import dk.compute.dtu.hrv.core.session.SessionFiles;
+import dk.compute.dtu.hrv.core.session.SessionInfo;
+
+/**
+ * Ships the session files of a {@link SessionCatalog} to an HTTP collector
+ * in the background, as {@link UploadBatch}es of up to
+ * {@link #setMaxBatchBytes} bytes POSTed to one URL.
+ *
+ * The collector answers every batch with {@code <name> <offset>} lines, the
+ * number of bytes it now has of each file in the batch, and those offsets are
+ * kept in an {@link UploadLog}, so the queue resumes where the collector
+ * stopped after a lost connection or a restart. A 409 answer means the
+ * collector has a different offset than the one sent, e.g. after losing data;
+ * the queue takes over its offsets and sends again from there. Other failures
+ * are retried after a {@link Backoff}.
+ *
+ * Closed sessions are sent in full. Open sessions, if enabled with
+ * {@link #setLive}, are sent up to the last byte that will not change any
+ * more: the last complete CSV line, or the last block before the one the
+ * {@link SeriesWriter} is still rewriting.
+ */
+public class UploadQueue {
+
+    public static final int DEFAULT_MAX_BATCH = 1 << 20;
+    public static final long DEFAULT_POLL_INTERVAL = 60 * 1000;
+    public static final int STATUS_CONFLICT = 409;
+
+    static final int CONNECT_TIMEOUT = 15 * 1000;
+    static final int READ_TIMEOUT = 60 * 1000;
+    private static final long BACKOFF_BASE = 1000;
+    private static final long BACKOFF_MAX = 10 * 60 * 1000;
+    // Longest tail searched for the end of the last CSV line
+    private static final int MAX_LINE_SEARCH = 4096;
+
+    private final SessionCatalog catalog;
+    private final UploadLog log;
+    private final URL url;
+    private final Backoff backoff = new Backoff(BACKOFF_BASE, BACKOFF_MAX);
+
+    private volatile boolean live = false;
+    private volatile int maxBatchBytes = DEFAULT_MAX_BATCH;
+    private volatile long bytesPerSecond = 0;
+    private volatile long pollInterval = DEFAULT_POLL_INTERVAL;
+
+    private Thread thread;
+    private volatile HttpURLConnection connection;
+    private volatile boolean running = false;
+    private boolean kicked = false;
+    private byte[] chunk = new byte[0];
+
+    private volatile long batches = 0;
+    private volatile long rawBytes = 0;
+    private volatile long sentBytes = 0;
+    private volatile long failures = 0;
+    private volatile long conflicts = 0;
+
+    /** The unsent range of one file. */
+    static class Pending {
+        final String name;
+        final File file;
+        final long offset;
+        final long end;
+        final boolean last;
+
+        Pending(String name, File file, long offset, long end, boolean last) {
+            this.name = name;
+            this.file = file;
+            this.offset = offset;
+            this.end = end;
+            this.last = last;
+        }
+    }
+
+    /**
+     * @param log Offsets acknowledged by the collector at url.
+     */
+    public UploadQueue(SessionCatalog catalog, UploadLog log, URL url) {
+        this.catalog = catalog;
+        this.log = log;
+        this.url = url;
+    }
+
+    /**
+     * Sets whether sessions still being recorded are sent as they grow.
+     */
+    public void setLive(boolean live) {
+        this.live = live;
+    }
+
+    /**
+     * @param bytes Most file bytes per batch, before compression.
+     */
+    public void setMaxBatchBytes(int bytes) {
+        maxBatchBytes = Math.max(1, bytes);
+    }
+
+    /**
+     * @param bytesPerSecond Upload rate cap of the compressed batches, 0 for none.
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @param interval Time in ms between looks for new data while nothing is pending.
+     */
+    public void setPollInterval(long interval) {
+        pollInterval = interval;
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "uploadQueue");
+        thread.start();
+    }
+
+    /**
+     * Looks for data now instead of after the poll interval or backoff, e.g.
+     * when a session was closed or the network came back.
+     */
+    public synchronized void kick() {
+        kicked = true;
+        backoff.reset();
+        notifyAll();
+    }
+
+    /**
+     * Stops the upload thread, abandoning a batch in flight. Its files are
+     * sent again from the last acknowledged offset on the next start.
+     */
+    public void stop() {
+        final Thread stopping;
+        synchronized (this) {
+            if (!running)
+                return;
+            running = false;
+            stopping = thread;
+            notifyAll();
+        }
+        stopping.interrupt();
+        final HttpURLConnection inFlight = connection;
+        if (inFlight != null)
+            inFlight.disconnect();
+        try {
+            stopping.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void loop() {
+        while (running) {
+            long delay;
+            try {
+                delay = uploadOnce() > 0 ? 0 : pollInterval;
+            } catch (IOException e) {
+                if (!running)
+                    break;
+                failures++;
+                delay = backoff.next();
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                final long until = System.currentTimeMillis() + delay;
+                while (running && !kicked && delay > 0) {
+                    try {
+                        wait(delay);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    delay = until - System.currentTimeMillis();
+                }
+                kicked = false;
+            }
+        }
+    }
+
+    /**
+     * Sends one batch of pending data, if any.
+     *
+     * @return The number of parts the collector acknowledged, 0 if nothing was pending.
+     * @throws IOException If the collector could not be reached or refused the batch.
+     */
+    public int uploadOnce() throws IOException {
+        final List<Pending> pending = findPending();
+        if (pending.isEmpty())
+            return 0;
+
+        final UploadBatch batch = new UploadBatch();
+        final int limit = maxBatchBytes;
+        for (Pending range : pending) {
+            final long room = limit - batch.getRawBytes();
+            if (room <= 0)
+                break;
+            final int length = (int) Math.min(room, range.end - range.offset);
+            read(range.file, range.offset, length);
+            batch.add(range.name, range.offset, chunk, length, range.last && range.offset + length == range.end);
+        }
+        final byte[] body = batch.finish();
+
+        final Map<String, Long> offsets = new HashMap<String, Long>();
+        final int status = post(body, offsets);
+        sentBytes += body.length;
+        if (status == HttpURLConnection.HTTP_OK) {
+            int acknowledged = 0;
+            for (UploadBatch.Part part : batch.getParts()) {
+                final Long offset = offsets.get(part.name);
+                if (offset == null)
+                    continue;
+                log.acknowledge(part.name, offset, part.last && offset == part.getEnd());
+                acknowledged++;
+            }
+            batches++;
+            rawBytes += batch.getRawBytes();
+            backoff.reset();
+            if (acknowledged == 0)
+                throw new IOException("Collector acknowledged no part");
+            return acknowledged;
+        }
+        if (status == STATUS_CONFLICT) {
+            conflicts++;
+            boolean moved = false;
+            for (UploadBatch.Part part : batch.getParts()) {
+                final Long offset = offsets.get(part.name);
+                if (offset != null && offset != log.getOffset(part.name)) {
+                    log.acknowledge(part.name, offset, false);
+                    moved = true;
+                }
+            }
+            // Resend from the collector's offsets right away, unless they did not change
+            if (moved)
+                return batch.getParts().size();
+        }
+        throw new IOException("Collector answered " + status);
+    }
+
+    /**
+     * @return The unsent ranges of all sessions, oldest session first.
+     */
+    List<Pending> findPending() throws IOException {
+        final List<Pending> pending = new ArrayList<Pending>();
+        final File directory = catalog.getDirectory();
+        final boolean includeOpen = live;
+        for (SessionInfo info : catalog.list()) {
+            final boolean open = info.isOpen();
+            if (open && !includeOpen)
+                continue;
+            for (File file : sessionFiles(directory, info)) {
+                final String name = file.getName();
+                if (log.isComplete(name))
+                    continue;
+                final long offset = log.getOffset(name);
+                final long end = stableLength(file, open);
+                if (end > offset)
+                    pending.add(new Pending(name, file, offset, end, !open));
+                else if (!open)
+                    // All sent while open, only the end of the file is left to confirm
+                    pending.add(new Pending(name, file, offset, offset, true));
+            }
+        }
+        return pending;
+    }
+
+    private static List<File> sessionFiles(File directory, SessionInfo info) {
+        final List<File> files = new ArrayList<File>(4);
+        for (String prefix : new String[] {SessionFiles.PREFIX_HEART_RATE, SessionFiles.PREFIX_RR}) {
+            File file = new File(directory, info.getFileName(prefix));
+            if (!file.exists())
+                file = new File(directory, info.getFileName(prefix, SessionFiles.SERIES_EXTENSION));
+            if (file.exists())
+                files.add(file);
+        }
+        for (String prefix : new String[] {SessionFiles.PREFIX_CONTACT, SessionFiles.PREFIX_ENERGY}) {
+            final File file = new File(directory, info.getFileName(prefix));
+            if (file.exists())
+                files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * @param open Whether the file may still be written.
+     * @return The length of the part of the file that will not change any more.
+     */
+    static long stableLength(File file, boolean open) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long length = raf.length();
+            if (!open)
+                return length;
+            if (SessionFiles.isSeries(file.getName())) {
+                if (length < SeriesWriter.FILE_HEADER_SIZE)
+                    return 0;
+                raf.seek(8);
+                final int blockSize = raf.readInt();
+                if (blockSize <= 0)
+                    return 0;
+                // The last block is rewritten until the next one is started
+                final long blocks = (length - SeriesWriter.FILE_HEADER_SIZE) / blockSize;
+                return SeriesWriter.FILE_HEADER_SIZE + Math.max(0, blocks - 1) * blockSize;
+            }
+            final int tail = (int) Math.min(length, MAX_LINE_SEARCH);
+            final byte[] bytes = new byte[tail];
+            raf.seek(length - tail);
+            raf.readFully(bytes);
+            for (int i = tail - 1; i >= 0; i--) {
+                if (bytes[i] == '\n')
+                    return length - tail + i + 1;
+            }
+            return 0;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void read(File file, long offset, int length) throws IOException {
+        if (chunk.length < length)
+            chunk = new byte[Math.max(length, Math.min(maxBatchBytes, 1 << 20))];
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset);
+            raf.readFully(chunk, 0, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * POSTs body and collects the offsets of the answer.
+     *
+     * @return The HTTP status.
+     */
+    private int post(byte[] body, Map<String, Long> offsets) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        this.connection = connection;
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", UploadBatch.CONTENT_TYPE);
+            final OutputStream out = new ThrottledOutputStream(connection.getOutputStream(), bytesPerSecond);
+            out.write(body);
+            out.close();
+
+            final int status = connection.getResponseCode();
+            final InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (in != null)
+                readOffsets(in, offsets);
+            return status;
+        } finally {
+            this.connection = null;
+            connection.disconnect();
+        }
+    }
+
+    static void readOffsets(InputStream in, Map<String, Long> offsets) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int space = line.lastIndexOf(' ');
+                if (space <= 0)
+                    continue;
+                try {
+                    offsets.put(line.substring(0, space), Long.parseLong(line.substring(space + 1).trim()));
+                } catch (NumberFormatException e) {
+                    // Not an offset line
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "upload batches=" + batches + " raw=" + rawBytes + " sent=" + sentBytes
+                + " failures=" + failures + " conflicts=" + conflicts;
+    }
+}
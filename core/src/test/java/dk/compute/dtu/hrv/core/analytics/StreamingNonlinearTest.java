@@ -0,0 +1,129 @@
+package dk.compute.dtu.hrv.core.analytics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link WindowedEntropy} and {@link StreamingDfa} give the values
+ * of the naive {@link NonlinearHrv} versions over the same window of a
+ * synthetic RR stream.
+ *
+ * The streaming DFA aligns its boxes to the start of the stream, so each size
+ * is compared with the naive F(n) over the same most recent boxes.
+ */
+public class StreamingNonlinearTest {
+
+    private static final int BEATS_PER_MINUTE = 70;
+    private static final int M = 2;
+    // Tolerance in ms
+    private static final double R = 20;
+    private static final double TOLERANCE = 1e-9;
+
+    @Test
+    public void entropyMatchesNaiveOverFiveMinutes() {
+        assertEntropyMatches(5 * BEATS_PER_MINUTE, 7);
+    }
+
+    @Test
+    public void entropyMatchesNaiveOnEveryBeatOfShortWindow() {
+        assertEntropyMatches(40, 1);
+    }
+
+    @Test
+    public void dfaMatchesNaiveOverFiveMinutes() {
+        assertDfaMatches(5 * BEATS_PER_MINUTE, 7);
+    }
+
+    @Test
+    public void dfaMatchesNaiveOnEveryBeatOfShortWindow() {
+        // Shorter than the largest boxes, which then keep a single one
+        assertDfaMatches(100, 1);
+    }
+
+    @Test
+    public void resetStartsOver() {
+        final int window = 5 * BEATS_PER_MINUTE;
+        final int[] x = generate(2 * window);
+        final WindowedEntropy entropy = new WindowedEntropy(window - M, M, R);
+        final StreamingDfa dfa = new StreamingDfa(window, StreamingDfa.defaultSizes());
+        for (int value : generate(window + 13))
+            dfa.add(value + 100);
+        dfa.reset();
+        for (int i = 0; i < x.length; i++) {
+            entropy.add(x[i]);
+            dfa.add(x[i]);
+        }
+        assertEquals(NonlinearHrv.sampleEntropy(x, x.length - window, window, M, R), entropy.sampleEntropy(),
+                TOLERANCE);
+        assertEquals(naiveAlpha(x, x.length, window, dfa.getSizes(), StreamingDfa.SHORT_TERM_MIN,
+                StreamingDfa.SHORT_TERM_MAX), dfa.alpha1(), TOLERANCE);
+    }
+
+    private static void assertEntropyMatches(int window, int step) {
+        final int[] x = generate(4 * window);
+        final WindowedEntropy entropy = new WindowedEntropy(window - M, M, R);
+        for (int i = 0; i < x.length; i++) {
+            entropy.add(x[i]);
+            if (i + 1 < window || (i + 1 - window) % step != 0)
+                continue;
+            final int from = i + 1 - window;
+            assertEquals("SampEn at " + i, NonlinearHrv.sampleEntropy(x, from, window, M, R),
+                    entropy.sampleEntropy(), TOLERANCE);
+            assertEquals("ApEn at " + i, NonlinearHrv.approximateEntropy(x, from, window, M, R),
+                    entropy.approximateEntropy(), TOLERANCE);
+        }
+    }
+
+    private static void assertDfaMatches(int window, int step) {
+        final int[] x = generate(4 * window);
+        final int[] sizes = StreamingDfa.defaultSizes();
+        final StreamingDfa dfa = new StreamingDfa(window, sizes);
+        for (int i = 0; i < x.length; i++) {
+            dfa.add(x[i]);
+            if (i + 1 < window || (i + 1 - window) % step != 0)
+                continue;
+            assertEquals("alpha1 at " + i, naiveAlpha(x, i + 1, window, sizes, StreamingDfa.SHORT_TERM_MIN,
+                    StreamingDfa.SHORT_TERM_MAX), dfa.alpha1(), TOLERANCE);
+            assertEquals("alpha2 at " + i, naiveAlpha(x, i + 1, window, sizes, StreamingDfa.SHORT_TERM_MAX,
+                    StreamingDfa.LONG_TERM_MAX), dfa.alpha2(), TOLERANCE);
+        }
+    }
+
+    /**
+     * Naive alpha over the most recent complete boxes of each size that fit
+     * the window, on the box grid aligned to the first beat.
+     */
+    private static double naiveAlpha(int[] x, int end, int window, int[] sizes, int minSize, int maxSize) {
+        final double[] f = new double[sizes.length];
+        int from = sizes.length;
+        int to = 0;
+        for (int s = 0; s < sizes.length; s++) {
+            if (sizes[s] < minSize || sizes[s] > maxSize)
+                continue;
+            from = Math.min(from, s);
+            to = s + 1;
+            final int n = sizes[s];
+            final int boxes = Math.min(end / n, Math.max(window / n, 1));
+            final int start = (end / n - boxes) * n;
+            f[s] = NonlinearHrv.fluctuations(x, start, boxes * n, new int[] {n})[0];
+        }
+        return Dfa.slope(sizes, f, from, Math.max(from, to));
+    }
+
+    // RR in ms with a respiratory and a slow rhythm, noise and integer rounding
+    private static int[] generate(int beats) {
+        final Random random = new Random(42);
+        final int[] x = new int[beats];
+        double t = 0;
+        for (int i = 0; i < beats; i++) {
+            final double rr = 60000.0 / BEATS_PER_MINUTE + 40 * Math.sin(2 * Math.PI * 0.25 * t)
+                    + 30 * Math.sin(2 * Math.PI * 0.03 * t) + 20 * random.nextGaussian();
+            x[i] = (int) Math.round(rr);
+            t += rr / 1000;
+        }
+        return x;
+    }
+}
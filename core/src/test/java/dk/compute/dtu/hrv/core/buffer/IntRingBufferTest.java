@@ -0,0 +1,76 @@
+package dk.compute.dtu.hrv.core.buffer;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Order, overwriting and bulk access of an {@link IntRingBuffer}.
+ */
+public class IntRingBufferTest {
+
+    @Test
+    public void keepsValuesOldestFirst() {
+        final IntRingBuffer buffer = new IntRingBuffer(4);
+        assertEquals(0, buffer.size());
+        buffer.add(1);
+        buffer.add(2);
+        buffer.add(3);
+        assertEquals(3, buffer.size());
+        assertEquals(4, buffer.capacity());
+        assertEquals(1, buffer.get(0));
+        assertEquals(3, buffer.get(2));
+        assertEquals(3, buffer.newest());
+    }
+
+    @Test
+    public void overwritesOldestWhenFull() {
+        final IntRingBuffer buffer = new IntRingBuffer(3);
+        for (int i = 1; i <= 7; i++)
+            buffer.add(i);
+        assertEquals(3, buffer.size());
+        assertEquals(5, buffer.get(0));
+        assertEquals(6, buffer.get(1));
+        assertEquals(7, buffer.get(2));
+        assertEquals(7, buffer.newest());
+    }
+
+    @Test
+    public void startLocatesOldestInArray() {
+        final IntRingBuffer buffer = new IntRingBuffer(3);
+        for (int i = 1; i <= 5; i++)
+            buffer.add(i);
+        final int[] array = buffer.array();
+        for (int i = 0; i < buffer.size(); i++)
+            assertEquals(buffer.get(i), array[(buffer.start() + i) % array.length]);
+
+        final IntRingBuffer partial = new IntRingBuffer(3);
+        partial.add(9);
+        assertEquals(0, partial.start());
+    }
+
+    @Test
+    public void clearEmptiesBuffer() {
+        final IntRingBuffer buffer = new IntRingBuffer(2);
+        buffer.add(1);
+        buffer.add(2);
+        buffer.add(3);
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        buffer.add(4);
+        assertEquals(1, buffer.size());
+        assertEquals(4, buffer.get(0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsIndexBeyondSize() {
+        final IntRingBuffer buffer = new IntRingBuffer(4);
+        buffer.add(1);
+        buffer.get(1);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsNewestOfEmptyBuffer() {
+        new IntRingBuffer(4).newest();
+    }
+}
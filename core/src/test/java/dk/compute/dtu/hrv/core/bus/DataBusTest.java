@@ -0,0 +1,76 @@
+package dk.compute.dtu.hrv.core.bus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Producers of a {@link DataBus} keep going when a blocking consumer dies or
+ * hangs, and a stalled consumer blocks again once it caught up.
+ */
+public class DataBusTest {
+
+    private static final int CAPACITY = 16;
+
+    @Test(timeout = 10000)
+    public void failedConsumerIsUnsubscribed() throws InterruptedException {
+        final DataBus bus = new DataBus(CAPACITY);
+        final BusConsumerThread consumer = new BusConsumerThread(bus.subscribe("failing", Subscription.BLOCK),
+                new EventHandler() {
+                    @Override
+                    public void onEvent(DataEvent event, long sequence, boolean endOfBatch) {
+                        throw new IllegalStateException("Handler bug");
+                    }
+                });
+        consumer.start();
+        bus.publishContact("a", 0, 1);
+        consumer.join();
+        assertEquals(0, bus.getSubscriptions().length);
+
+        // Nothing gates the producers any more
+        final long start = System.nanoTime();
+        for (int i = 0; i < 4 * CAPACITY; i++)
+            bus.publishContact("a", i, 1);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < DataBus.BLOCK_TIMEOUT_MS);
+    }
+
+    @Test(timeout = 10000)
+    public void hungConsumerStallsOnceAndCatchesUp() throws InterruptedException {
+        final DataBus bus = new DataBus(CAPACITY);
+        final Subscription subscription = bus.subscribe("hung", Subscription.BLOCK);
+        final CountDownLatch release = new CountDownLatch(1);
+        final long[] handled = new long[1];
+        final BusConsumerThread consumer = new BusConsumerThread(subscription, new EventHandler() {
+            @Override
+            public void onEvent(DataEvent event, long sequence, boolean endOfBatch) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                handled[0]++;
+            }
+        });
+        consumer.start();
+
+        // The producer waits once for the hung consumer, then overruns it
+        final long start = System.nanoTime();
+        for (int i = 0; i < 4 * CAPACITY; i++)
+            bus.publishContact("a", i, 1);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2 * DataBus.BLOCK_TIMEOUT_MS);
+        assertEquals(1, subscription.getStalls());
+
+        release.countDown();
+        while (subscription.getLag() > 0)
+            Thread.sleep(10);
+        assertTrue(subscription.getDropped() > 0);
+        assertTrue(subscription.isGating());
+        assertEquals(4 * CAPACITY, handled[0] + subscription.getDropped());
+        consumer.shutdown();
+        consumer.join();
+    }
+}
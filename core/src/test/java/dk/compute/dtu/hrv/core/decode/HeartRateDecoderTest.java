@@ -0,0 +1,158 @@
+package dk.compute.dtu.hrv.core.decode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Decodes Heart Rate Measurement values as the strap sends them, with the
+ * fields selected by the flags of the first byte.
+ */
+public class HeartRateDecoderTest {
+
+    private final HeartRateSample sample = new HeartRateSample();
+
+    @Test
+    public void decodesUint8HeartRate() {
+        assertTrue(HeartRateDecoder.decode(bytes(0x00, 72), sample));
+        assertEquals(72, sample.heartRate);
+        assertEquals(0, sample.rrCount);
+        assertEquals(HeartRateSample.CONTACT_UNSUPPORTED, sample.contact);
+        assertEquals(HeartRateSample.ENERGY_ABSENT, sample.energyExpended);
+    }
+
+    @Test
+    public void decodesUint8HeartRateAbove127() {
+        assertTrue(HeartRateDecoder.decode(bytes(0x00, 0xc8), sample));
+        assertEquals(200, sample.heartRate);
+    }
+
+    @Test
+    public void decodesUint16HeartRate() {
+        assertTrue(HeartRateDecoder.decode(bytes(HeartRateDecoder.FLAG_HEART_RATE_UINT16, 0x2c, 0x01), sample));
+        assertEquals(300, sample.heartRate);
+    }
+
+    @Test
+    public void decodesRrIntervals() {
+        // 1024 and 512, little endian
+        assertTrue(HeartRateDecoder.decode(bytes(HeartRateDecoder.FLAG_RR_INTERVALS, 60, 0x00, 0x04, 0x00, 0x02),
+                sample));
+        assertEquals(60, sample.heartRate);
+        assertEquals(2, sample.rrCount);
+        assertEquals(HeartRateSample.RR_UNITS_PER_SECOND, sample.rr[0]);
+        assertEquals(512, sample.rr[1]);
+        assertArrayEquals(new int[] {60, 1024, 512}, sample.toArray());
+    }
+
+    @Test
+    public void decodesRrIntervalsAfterUint16HeartRate() {
+        final int flags = HeartRateDecoder.FLAG_HEART_RATE_UINT16 | HeartRateDecoder.FLAG_RR_INTERVALS;
+        assertTrue(HeartRateDecoder.decode(bytes(flags, 60, 0x00, 0xff, 0x03), sample));
+        assertEquals(60, sample.heartRate);
+        assertEquals(1, sample.rrCount);
+        assertEquals(1023, sample.rr[0]);
+    }
+
+    @Test
+    public void growsBeyondNineIntervals() {
+        final byte[] value = new byte[2 + 2 * 12];
+        value[0] = HeartRateDecoder.FLAG_RR_INTERVALS;
+        value[1] = 60;
+        for (int i = 0; i < 12; i++)
+            value[2 + 2 * i] = (byte) (i + 1);
+        assertTrue(HeartRateDecoder.decode(value, sample));
+        assertEquals(12, sample.rrCount);
+        for (int i = 0; i < 12; i++)
+            assertEquals(i + 1, sample.rr[i]);
+    }
+
+    @Test
+    public void withoutRrFlagIgnoresTrailingBytes() {
+        assertTrue(HeartRateDecoder.decode(bytes(0x00, 60, 0x00, 0x04), sample));
+        assertEquals(0, sample.rrCount);
+        assertArrayEquals(new int[] {60, -1}, sample.toArray());
+    }
+
+    @Test
+    public void decodesContact() {
+        final int supported = HeartRateDecoder.FLAG_CONTACT_SUPPORTED;
+        assertTrue(HeartRateDecoder.decode(bytes(supported | HeartRateDecoder.FLAG_CONTACT_DETECTED, 60), sample));
+        assertEquals(HeartRateSample.CONTACT_DETECTED, sample.contact);
+        assertTrue(sample.hasContact());
+
+        assertTrue(HeartRateDecoder.decode(bytes(supported, 60), sample));
+        assertEquals(HeartRateSample.CONTACT_LOST, sample.contact);
+        assertFalse(sample.hasContact());
+
+        // Detected without supported means the strap cannot tell
+        assertTrue(HeartRateDecoder.decode(bytes(HeartRateDecoder.FLAG_CONTACT_DETECTED, 60), sample));
+        assertEquals(HeartRateSample.CONTACT_UNSUPPORTED, sample.contact);
+        assertTrue(sample.hasContact());
+    }
+
+    @Test
+    public void decodesEnergyBeforeRrIntervals() {
+        final int flags = HeartRateDecoder.FLAG_ENERGY_EXPENDED | HeartRateDecoder.FLAG_RR_INTERVALS;
+        assertTrue(HeartRateDecoder.decode(bytes(flags, 60, 0xe8, 0x03, 0x00, 0x04), sample));
+        assertEquals(1000, sample.energyExpended);
+        assertEquals(1, sample.rrCount);
+        assertEquals(1024, sample.rr[0]);
+    }
+
+    @Test
+    public void truncatedEnergyIsAbsent() {
+        assertTrue(HeartRateDecoder.decode(bytes(HeartRateDecoder.FLAG_ENERGY_EXPENDED, 60, 0xe8), sample));
+        assertEquals(HeartRateSample.ENERGY_ABSENT, sample.energyExpended);
+    }
+
+    @Test
+    public void dropsOddTrailingRrByte() {
+        assertTrue(HeartRateDecoder.decode(bytes(HeartRateDecoder.FLAG_RR_INTERVALS, 60, 0x00, 0x04, 0x01), sample));
+        assertEquals(1, sample.rrCount);
+    }
+
+    @Test
+    public void rejectsShortValues() {
+        assertFalse(HeartRateDecoder.decode(null, sample));
+        assertFalse(HeartRateDecoder.decode(bytes(), sample));
+        assertFalse(HeartRateDecoder.decode(bytes(0x00), sample));
+        assertFalse(HeartRateDecoder.decode(bytes(HeartRateDecoder.FLAG_HEART_RATE_UINT16, 60), sample));
+    }
+
+    @Test
+    public void clearsPreviousSample() {
+        assertTrue(HeartRateDecoder.decode(bytes(HeartRateDecoder.FLAG_RR_INTERVALS
+                | HeartRateDecoder.FLAG_CONTACT_SUPPORTED, 60, 0x00, 0x04), sample));
+        assertFalse(HeartRateDecoder.decode(bytes(0x00), sample));
+        assertEquals(0, sample.heartRate);
+        assertEquals(0, sample.rrCount);
+        assertEquals(HeartRateSample.CONTACT_UNSUPPORTED, sample.contact);
+    }
+
+    @Test
+    public void decodesAtOffset() {
+        final byte[] value = bytes(0xff, 0xff, HeartRateDecoder.FLAG_RR_INTERVALS, 60, 0x00, 0x04, 0xff);
+        assertTrue(HeartRateDecoder.decode(value, 2, 4, sample));
+        assertEquals(60, sample.heartRate);
+        assertEquals(1, sample.rrCount);
+        assertEquals(1024, sample.rr[0]);
+    }
+
+    @Test
+    public void decodesBodyLocation() {
+        assertEquals(1, HeartRateDecoder.decodeBodyLocation(bytes(1)));
+        assertEquals(-1, HeartRateDecoder.decodeBodyLocation(bytes()));
+        assertEquals(-1, HeartRateDecoder.decodeBodyLocation(null));
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            result[i] = (byte) values[i];
+        return result;
+    }
+}
@@ -0,0 +1,91 @@
+package dk.compute.dtu.hrv.core.gatt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Runs actions of a {@link GattActionQueue} against a list that records
+ * which of them executed.
+ */
+public class GattActionQueueTest {
+
+    private final GattActionQueue<List<String>> queue = new GattActionQueue<>();
+    private final List<String> executed = new ArrayList<>();
+
+    @Test
+    public void runsInstantActionsInOrder() {
+        queue.add(action("a", true));
+        queue.add(action("b", true));
+        assertFalse(queue.isIdle());
+        queue.execute(executed);
+        assertEquals(2, executed.size());
+        assertEquals("a", executed.get(0));
+        assertEquals("b", executed.get(1));
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void holdsQueueUntilFeedback() {
+        queue.add(action("write", false));
+        queue.add(action("read", true));
+        queue.execute(executed);
+        assertEquals(1, executed.size());
+        assertFalse(queue.isIdle());
+
+        // Nothing runs while the write is outstanding
+        queue.execute(executed);
+        assertEquals(1, executed.size());
+
+        queue.onActionCompleted(executed);
+        assertEquals(2, executed.size());
+        assertEquals("read", executed.get(1));
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void waitsAgainAfterFeedback() {
+        queue.add(action("first", false));
+        queue.add(action("second", false));
+        queue.execute(executed);
+        queue.onActionCompleted(executed);
+        assertEquals(2, executed.size());
+        assertFalse(queue.isIdle());
+        queue.onActionCompleted(executed);
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void clearDropsPendingActions() {
+        queue.add(action("write", false));
+        queue.add(action("dropped", true));
+        queue.execute(executed);
+        queue.clear();
+        queue.onActionCompleted(executed);
+        assertEquals(1, executed.size());
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void emptyQueueIsIdle() {
+        assertTrue(queue.isIdle());
+        queue.execute(executed);
+        queue.onActionCompleted(executed);
+        assertTrue(executed.isEmpty());
+    }
+
+    private static GattActionQueue.Action<List<String>> action(final String name, final boolean instant) {
+        return new GattActionQueue.Action<List<String>>() {
+            @Override
+            public boolean execute(List<String> gatt) {
+                gatt.add(name);
+                return instant;
+            }
+        };
+    }
+}
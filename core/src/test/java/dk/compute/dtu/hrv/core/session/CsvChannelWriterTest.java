@@ -0,0 +1,117 @@
+package dk.compute.dtu.hrv.core.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the files of {@link CsvChannelWriter} byte for byte with the
+ * {@code String.format("%d")} lines SessionWriter wrote before it.
+ */
+public class CsvChannelWriterTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("channel", SessionFiles.EXTENSION);
+    }
+
+    @After
+    public void deleteFile() {
+        if (!file.delete())
+            file.deleteOnExit();
+    }
+
+    @Test
+    public void writesExtremes() throws IOException {
+        assertSameAsFormat(
+                new long[] {0, 9, 10, -1, -9, -10, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1, 1445000000000L},
+                new int[] {0, 99, 100, -1, -100, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE + 1, 1, -1});
+    }
+
+    @Test
+    public void writesEveryPowerOfTen() throws IOException {
+        final long[] timestamps = new long[4 * 19];
+        final int[] values = new int[timestamps.length];
+        long power = 1;
+        for (int i = 0; i < 19; i++, power *= 10) {
+            timestamps[4 * i] = power;
+            timestamps[4 * i + 1] = power - 1;
+            timestamps[4 * i + 2] = -power;
+            timestamps[4 * i + 3] = -power + 1;
+            values[4 * i] = (int) Math.min(power, Integer.MAX_VALUE);
+            values[4 * i + 1] = (int) Math.min(power - 1, Integer.MAX_VALUE);
+            values[4 * i + 2] = (int) Math.max(-power, Integer.MIN_VALUE);
+            values[4 * i + 3] = (int) Math.max(-power + 1, Integer.MIN_VALUE);
+        }
+        assertSameAsFormat(timestamps, values);
+    }
+
+    @Test
+    public void writesRecordingAcrossBuffers() throws IOException {
+        // Far beyond BUFFER_SIZE, with the -1 of notifications without intervals
+        final Random random = new Random(42);
+        final long[] timestamps = new long[5000];
+        final int[] values = new int[timestamps.length];
+        long time = 1445000000000L;
+        for (int i = 0; i < timestamps.length; i++) {
+            time += random.nextInt(1100);
+            timestamps[i] = time;
+            final int kind = random.nextInt(3);
+            values[i] = kind == 0 ? 40 + random.nextInt(160) : kind == 1 ? 300 + random.nextInt(1700) : -1;
+        }
+        assertSameAsFormat(timestamps, values);
+    }
+
+    @Test
+    public void smallBufferHoldsLongestLine() throws IOException {
+        final CsvChannelWriter writer = new CsvChannelWriter(file, 1);
+        try {
+            writer.write(Long.MIN_VALUE, Integer.MIN_VALUE);
+            writer.write(Long.MIN_VALUE, Integer.MIN_VALUE);
+        } finally {
+            writer.close();
+        }
+        final String line = Long.MIN_VALUE + ";" + Integer.MIN_VALUE + "\n";
+        assertEquals(CsvChannelWriter.MAX_LINE, line.length());
+        assertArrayEquals((line + line).getBytes(ASCII), read(file));
+    }
+
+    private void assertSameAsFormat(long[] timestamps, int[] values) throws IOException {
+        final StringBuilder expected = new StringBuilder();
+        final CsvChannelWriter writer = new CsvChannelWriter(file);
+        try {
+            for (int i = 0; i < timestamps.length; i++) {
+                final String line = String.format("%d", timestamps[i]) + String.format(";%d", values[i]) + "\n";
+                expected.append(line);
+                assertEquals(line.length(), writer.write(timestamps[i], values[i]));
+            }
+        } finally {
+            writer.close();
+        }
+        assertArrayEquals(expected.toString().getBytes(ASCII), read(file));
+    }
+
+    private static byte[] read(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+}
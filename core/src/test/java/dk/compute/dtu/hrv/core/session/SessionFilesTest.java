@@ -0,0 +1,75 @@
+package dk.compute.dtu.hrv.core.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import org.junit.Test;
+
+/**
+ * Names of the recorded files and their parsing back into the session they
+ * belong to.
+ */
+public class SessionFilesTest {
+
+    private static final String DEVICE = "00:22:D0:AA:BB:CC";
+
+    @Test
+    public void namesFilesByPrefixAddressAndStart() {
+        final Date start = date("20151016_143005");
+        assertEquals("hr_0022D0AABBCC_20151016_143005.csv",
+                SessionFiles.fileName(SessionFiles.PREFIX_HEART_RATE, DEVICE, start));
+        assertEquals("raw_0022D0AABBCC_20151016_143005.bin",
+                SessionFiles.fileName(SessionFiles.PREFIX_RAW, DEVICE, start, SessionFiles.RAW_EXTENSION));
+        assertEquals("trace_20151016_143005.json", SessionFiles.traceFileName(start));
+    }
+
+    @Test
+    public void parsesEveryExtension() {
+        final Date start = date("20151016_143005");
+        for (String extension : new String[] {SessionFiles.EXTENSION, SessionFiles.RAW_EXTENSION,
+                SessionFiles.SERIES_EXTENSION}) {
+            final SessionFileName name = SessionFiles.parse(
+                    SessionFiles.fileName(SessionFiles.PREFIX_RR, DEVICE, start, extension));
+            assertEquals(SessionFiles.PREFIX_RR, name.prefix);
+            assertEquals("0022D0AABBCC", name.deviceAddress);
+            assertEquals(start.getTime(), name.start);
+        }
+    }
+
+    @Test
+    public void rejectsOtherNames() {
+        assertNull(SessionFiles.parse("hr_0022D0AABBCC_20151016_143005.txt"));
+        assertNull(SessionFiles.parse("hr_0022D0AABBCC.csv"));
+        assertNull(SessionFiles.parse("hr_0022D0AABBCC_yesterday_noon.csv"));
+        assertNull(SessionFiles.parse("trace_20151016_143005.json"));
+    }
+
+    @Test
+    public void findsSiblingOfEitherFormat() {
+        assertEquals("ct_0022D0AABBCC_20151016_143005.csv",
+                SessionFiles.sibling("rr_0022D0AABBCC_20151016_143005.csv", SessionFiles.PREFIX_CONTACT));
+        assertEquals("ee_0022D0AABBCC_20151016_143005.csv",
+                SessionFiles.sibling("rr_0022D0AABBCC_20151016_143005.series", SessionFiles.PREFIX_ENERGY));
+    }
+
+    @Test
+    public void recognisesSeriesFiles() {
+        assertTrue(SessionFiles.isSeries("rr_0022D0AABBCC_20151016_143005.series"));
+        assertFalse(SessionFiles.isSeries("rr_0022D0AABBCC_20151016_143005.csv"));
+    }
+
+    private static Date date(String text) {
+        try {
+            return new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.GERMANY).parse(text);
+        } catch (ParseException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
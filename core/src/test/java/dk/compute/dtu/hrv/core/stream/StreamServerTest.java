@@ -0,0 +1,210 @@
+package dk.compute.dtu.hrv.core.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.Test;
+
+import dk.compute.dtu.hrv.core.bus.DataEvent;
+import dk.compute.dtu.hrv.core.decode.HeartRateSample;
+
+/**
+ * Round trips through a {@link StreamServer} on localhost, as a plain HTTP
+ * client and as a WebSocket client.
+ */
+public class StreamServerTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String DEVICE = "00:22:D0:AA:BB:CC";
+    private static final int TIMEOUT = 5000;
+
+    private StreamServer server;
+
+    @After
+    public void stopServer() {
+        if (server != null)
+            server.stop();
+    }
+
+    @Test
+    public void listensOnLoopbackByDefault() throws IOException {
+        server = start(StreamServer.DEFAULT_CLIENT_BUFFER);
+        assertTrue(server.getAddress().isLoopbackAddress());
+    }
+
+    @Test
+    public void listensOnAllInterfacesOnlyWhenAsked() throws IOException {
+        server = new StreamServer(StreamServer.anyAddress(), 0);
+        server.start();
+        assertTrue(server.getAddress().isAnyLocalAddress());
+    }
+
+    @Test(timeout = 10000)
+    public void streamsLinesAsHttpBody() throws IOException {
+        server = start(StreamServer.DEFAULT_CLIENT_BUFFER);
+        final Socket socket = connect();
+        try {
+            final String headers = request(socket, "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(headers, headers.startsWith("HTTP/1.1 200 OK"));
+            assertTrue(headers, headers.contains("Content-Type: application/x-ndjson"));
+            assertFalse(headers, headers.contains("Access-Control-Allow-Origin"));
+
+            final StreamPublisher publisher = new StreamPublisher(server, 30);
+            publisher.onEvent(event(DataEvent.TYPE_HEART_RATE, 1000, 62), 0, false);
+            publisher.onEvent(event(DataEvent.TYPE_RR, 1000, HeartRateSample.RR_UNITS_PER_SECOND), 1, false);
+            publisher.onEvent(event(DataEvent.TYPE_RR, 2000, 512), 2, false);
+            publisher.onEvent(event(DataEvent.TYPE_RR, 2000, HeartRateSample.RR_UNITS_PER_SECOND), 3, true);
+
+            final InputStream in = socket.getInputStream();
+            assertEquals("{\"type\":\"hr\",\"device\":\"" + DEVICE + "\",\"t\":1000,\"hr\":62,\"contact\":1}",
+                    readLine(in));
+            assertEquals("{\"type\":\"rr\",\"device\":\"" + DEVICE + "\",\"t\":1000,\"rr\":1000.0}", readLine(in));
+            assertEquals("{\"type\":\"rr\",\"device\":\"" + DEVICE + "\",\"t\":2000,\"rr\":500.0}", readLine(in));
+            // Two successive differences of 500 ms
+            assertEquals("{\"type\":\"rr\",\"device\":\"" + DEVICE + "\",\"t\":2000,\"rr\":1000.0,\"rmssd\":500.0}",
+                    readLine(in));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void streamsBatchesAsWebSocketFrames() throws IOException {
+        server = start(StreamServer.DEFAULT_CLIENT_BUFFER);
+        final Socket socket = connect();
+        try {
+            final String headers = request(socket, "GET /stream HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Upgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n");
+            assertTrue(headers, headers.startsWith("HTTP/1.1 101 Switching Protocols"));
+            // The example of RFC 6455
+            assertTrue(headers, headers.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo="));
+
+            final byte[] small = "{\"type\":\"connected\"}\n".getBytes(ASCII);
+            server.send(small, small.length);
+            assertEquals(new String(small, ASCII), readTextFrame(socket.getInputStream()));
+
+            // Beyond 125 bytes the length takes two more bytes
+            final StringBuilder lines = new StringBuilder();
+            while (lines.length() < 1000)
+                lines.append("{\"type\":\"hr\",\"hr\":62}\n");
+            final byte[] large = lines.toString().getBytes(ASCII);
+            server.send(large, large.length);
+            assertEquals(lines.toString(), readTextFrame(socket.getInputStream()));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void slowClientDoesNotHoldBackOthers() throws IOException, InterruptedException {
+        server = start(4096);
+        final Socket stalled = connect();
+        final Socket reader = connect();
+        try {
+            request(stalled, "GET / HTTP/1.1\r\n\r\n");
+            request(reader, "GET / HTTP/1.1\r\n\r\n");
+
+            final byte[] line = new byte[1024];
+            for (int i = 0; i < line.length - 1; i++)
+                line[i] = 'x';
+            line[line.length - 1] = '\n';
+            final long start = System.nanoTime();
+            for (int i = 0; i < 10000; i++)
+                server.send(line, line.length);
+            // Far less than the stalled client would take to read 10 MB it never reads
+            assertTrue((System.nanoTime() - start) / 1000000 < 2000);
+
+            // The reader gets what fit its queue, then a notice of the dropped frames with the next one
+            Thread.sleep(200);
+            final InputStream in = reader.getInputStream();
+            final byte[] last = "{\"type\":\"last\"}\n".getBytes(ASCII);
+            server.send(last, last.length);
+            String received;
+            do {
+                received = readLine(in);
+            } while (!received.contains("last"));
+            assertEquals("{\"type\":\"last\"}", received);
+        } finally {
+            stalled.close();
+            reader.close();
+        }
+    }
+
+    private StreamServer start(int clientBuffer) throws IOException {
+        final StreamServer started = new StreamServer(null, 0, clientBuffer);
+        started.start();
+        return started;
+    }
+
+    private Socket connect() throws IOException {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoTimeout(TIMEOUT);
+        return socket;
+    }
+
+    /**
+     * Sends the request and reads the response headers, after which the
+     * server streams to the client.
+     */
+    private static String request(Socket socket, String request) throws IOException {
+        final OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes(ASCII));
+        out.flush();
+        final InputStream in = socket.getInputStream();
+        final StringBuilder headers = new StringBuilder();
+        while (headers.length() < 4 || !headers.substring(headers.length() - 4).equals("\r\n\r\n"))
+            headers.append((char) read(in));
+        return headers.toString();
+    }
+
+    private static DataEvent event(int type, long timestamp, int value) {
+        final DataEvent event = new DataEvent();
+        event.type = type;
+        event.deviceAddress = DEVICE;
+        event.timestamp = timestamp;
+        event.value = value;
+        event.contact = HeartRateSample.CONTACT_DETECTED;
+        event.energy = HeartRateSample.ENERGY_ABSENT;
+        return event;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = read(in)) != '\n')
+            line.write(b);
+        return new String(line.toByteArray(), ASCII);
+    }
+
+    // Server frames are unmasked and, for these sizes, unfragmented
+    private static String readTextFrame(InputStream in) throws IOException {
+        assertEquals(0x81, read(in));
+        int length = read(in);
+        assertEquals(0, length & 0x80);
+        if (length == 126)
+            length = read(in) << 8 | read(in);
+        final byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++)
+            payload[i] = (byte) read(in);
+        return new String(payload, ASCII);
+    }
+
+    private static int read(InputStream in) throws IOException {
+        final int b = in.read();
+        if (b < 0)
+            throw new EOFException();
+        return b;
+    }
+}
@@ -0,0 +1,224 @@
+package dk.compute.dtu.hrv.core.synchrony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the sliding window correlations of a {@link SynchronyEngine} against
+ * a brute force Pearson correlation over the same ticks of the resampled
+ * series, through gaps that restart a series and devices that leave.
+ */
+public class SynchronyEngineTest {
+
+    private static final long PERIOD = 250;
+    private static final int WINDOW = 40;
+    private static final int MAX_LAG = 5;
+    private static final double TOLERANCE = 1e-9;
+    // Notifications, and updates, once per second as sent by the straps
+    private static final long NOTIFICATION_INTERVAL = 1000;
+
+    @Test
+    public void matchesBruteForcePearson() {
+        final Streams streams = new Streams(4, 7);
+        final SynchronyEngine engine = new SynchronyEngine(PERIOD, WINDOW, MAX_LAG, 1);
+        int checks = 0;
+        for (int second = 0; second < 120; second++) {
+            streams.feed(engine, second);
+            engine.update();
+            checks += assertMatches(engine);
+        }
+        assertTrue(checks > 100);
+        assertFalse(Double.isNaN(engine.getGroupSynchrony()));
+    }
+
+    @Test
+    public void matchesBruteForcePearsonAcrossGapsAndRemoval() {
+        final Streams streams = new Streams(4, 11);
+        final SynchronyEngine engine = new SynchronyEngine(PERIOD, WINDOW, MAX_LAG, 1);
+        for (int second = 0; second < 180; second++) {
+            // Device 1 is silent long enough to restart, device 3 leaves
+            if (second < 40 || second > 50)
+                streams.feed(engine, second, 1);
+            else
+                streams.skip(second, 1);
+            streams.feed(engine, second, 0);
+            streams.feed(engine, second, 2);
+            if (second < 100)
+                streams.feed(engine, second, 3);
+            else if (second == 100)
+                engine.removeDevice(streams.addresses[3]);
+            engine.update();
+            assertMatches(engine);
+        }
+        assertEquals(3, engine.getDeviceCount());
+        assertEquals(3, engine.getPairs().size());
+    }
+
+    @Test
+    public void parallelUpdateMatchesSequential() {
+        // Enough pairs for the pool
+        final int devices = 10;
+        final Streams streams = new Streams(devices, 13);
+        final SynchronyEngine sequential = new SynchronyEngine(PERIOD, WINDOW, MAX_LAG, 1);
+        final SynchronyEngine parallel = new SynchronyEngine(PERIOD, WINDOW, MAX_LAG, 4);
+        try {
+            for (int second = 0; second < 60; second++) {
+                streams.feed(sequential, parallel, second);
+                sequential.update();
+                parallel.update();
+            }
+            final List<SynchronyEngine.Pair> expected = sequential.getPairs();
+            final List<SynchronyEngine.Pair> actual = parallel.getPairs();
+            assertEquals(devices * (devices - 1) / 2, actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getCoherence(), actual.get(i).getCoherence(), 0);
+                assertEquals(expected.get(i).getCoherenceLag(), actual.get(i).getCoherenceLag());
+            }
+            assertEquals(sequential.getGroupSynchrony(), parallel.getGroupSynchrony(), 0);
+        } finally {
+            parallel.shutdown();
+        }
+    }
+
+    @Test
+    public void updatesOnCallerAfterShutdown() {
+        final Streams streams = new Streams(10, 17);
+        final SynchronyEngine engine = new SynchronyEngine(PERIOD, WINDOW, MAX_LAG, 4);
+        engine.shutdown();
+        for (int second = 0; second < 30; second++) {
+            streams.feed(engine, second);
+            engine.update();
+        }
+        assertMatches(engine);
+    }
+
+    /**
+     * @return The number of pairs checked, those with at least two ticks.
+     */
+    private static int assertMatches(SynchronyEngine engine) {
+        int checks = 0;
+        for (SynchronyEngine.Pair pair : engine.getPairs()) {
+            final int n = pair.getCount();
+            if (n < 2) {
+                assertTrue(Double.isNaN(pair.getCoherence()));
+                continue;
+            }
+            final long next = Math.min(pair.a.getEnd(), pair.b.getEnd() - MAX_LAG);
+            final int lag = (int) (pair.getCoherenceLag() / PERIOD);
+            assertEquals(pearson(pair.a, pair.b, next - n, next, 0), pair.getCorrelation(), TOLERANCE);
+            assertEquals(pearson(pair.a, pair.b, next - n, next, lag), pair.getCoherence(), TOLERANCE);
+            // Lags that tie within rounding, e.g. all of them over two ticks, may give the peak either way
+            for (int k = -MAX_LAG; k <= MAX_LAG; k++)
+                assertTrue(Math.abs(pearson(pair.a, pair.b, next - n, next, k))
+                        <= Math.abs(pair.getCoherence()) + TOLERANCE);
+            checks++;
+        }
+        return checks;
+    }
+
+    // Correlation of a(t) and b(t - lag) over ticks [from, to), 0 for a constant series
+    private static double pearson(RrSeries a, RrSeries b, long from, long to, int lag) {
+        final int n = (int) (to - from);
+        double meanX = 0;
+        double meanY = 0;
+        for (long t = from; t < to; t++) {
+            meanX += a.get(t);
+            meanY += b.get(t - lag);
+        }
+        meanX /= n;
+        meanY /= n;
+        double sxy = 0;
+        double sxx = 0;
+        double syy = 0;
+        for (long t = from; t < to; t++) {
+            final double x = a.get(t) - meanX;
+            final double y = b.get(t - lag) - meanY;
+            sxy += x * y;
+            sxx += x * x;
+            syy += y * y;
+        }
+        return sxx <= 0 || syy <= 0 ? 0 : sxy / Math.sqrt(sxx * syy);
+    }
+
+    /**
+     * Partly coupled RR streams: a shared slow rhythm with a lag and weight
+     * per device, plus respiration and noise of its own.
+     */
+    private static class Streams {
+        final String[] addresses;
+        private final double[] lags;
+        private final double[] weights;
+        private final double[] breathing;
+        private final double[] beats;
+        private final Random random;
+
+        Streams(int devices, long seed) {
+            random = new Random(seed);
+            addresses = new String[devices];
+            lags = new double[devices];
+            weights = new double[devices];
+            breathing = new double[devices];
+            beats = new double[devices];
+            for (int i = 0; i < devices; i++) {
+                addresses[i] = String.format("00:22:D0:00:00:%02X", i);
+                lags[i] = random.nextDouble() * 1500;
+                weights[i] = 0.3 + 0.7 * random.nextDouble();
+                breathing[i] = 0.2 + 0.1 * random.nextDouble();
+                beats[i] = random.nextDouble() * 1000;
+            }
+        }
+
+        void feed(SynchronyEngine engine, int second) {
+            for (int i = 0; i < addresses.length; i++)
+                feed(engine, second, i);
+        }
+
+        void feed(SynchronyEngine first, SynchronyEngine second, int time) {
+            for (int i = 0; i < addresses.length; i++) {
+                final int[] intervals = beats(time, i);
+                final long now = (time + 1) * NOTIFICATION_INTERVAL;
+                for (int interval : intervals) {
+                    first.addInterval(addresses[i], now, interval);
+                    second.addInterval(addresses[i], now, interval);
+                }
+            }
+        }
+
+        /**
+         * Adds the beats of a device that ended during the second.
+         */
+        void feed(SynchronyEngine engine, int second, int device) {
+            final long now = (second + 1) * NOTIFICATION_INTERVAL;
+            for (int interval : beats(second, device))
+                engine.addInterval(addresses[device], now, interval);
+        }
+
+        // Drops the beats of the second, as of a strap out of range
+        void skip(int second, int device) {
+            beats(second, device);
+        }
+
+        // Intervals in 1/1024 s of the beats that ended since the last notification
+        private int[] beats(int second, int device) {
+            final long now = (second + 1) * NOTIFICATION_INTERVAL;
+            int[] intervals = new int[0];
+            while (true) {
+                final double t = (beats[device] - lags[device]) / 1000;
+                final double rr = 850 + 60 * weights[device] * Math.sin(2 * Math.PI * 0.05 * t)
+                        + 25 * Math.sin(2 * Math.PI * breathing[device] * t) + 15 * random.nextGaussian();
+                if (beats[device] + rr > now)
+                    return intervals;
+                beats[device] += rr;
+                intervals = Arrays.copyOf(intervals, intervals.length + 1);
+                intervals[intervals.length - 1] = (int) Math.round(rr * 1024 / 1000);
+            }
+        }
+    }
+}
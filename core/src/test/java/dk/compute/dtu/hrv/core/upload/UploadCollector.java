@@ -0,0 +1,226 @@
+package dk.compute.dtu.hrv.core.upload;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Minimal collector for the batches of an {@link UploadQueue}, storing the
+ * files under one directory. Stands in for the real collection server in
+ * UploadQueueTest and, through its main, when trying out uploads from a
+ * phone or a desktop.
+ *
+ * A part is written at its offset when it does not leave a gap in the stored
+ * file. The answer lists the stored length of every file in the batch, with
+ * status 409 if any part started past the end of its file.
+ */
+public class UploadCollector {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int MAX_BODY = 64 << 20;
+
+    private final File directory;
+    private ServerSocket server;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    private volatile long batches = 0;
+    private volatile long bytes = 0;
+    private volatile long conflicts = 0;
+    private volatile long completed = 0;
+
+    public UploadCollector(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Listens on the loopback interface.
+     *
+     * @param port Port to listen on, 0 for any free port.
+     */
+    public synchronized void start(int port) throws IOException {
+        if (running)
+            return;
+        if (!directory.mkdirs() && !directory.isDirectory())
+            throw new IOException("Cannot create " + directory);
+        server = new ServerSocket(port, 16, InetAddress.getByName(null));
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "uploadCollector");
+        thread.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public void stop() {
+        final Thread stopping;
+        synchronized (this) {
+            if (!running)
+                return;
+            running = false;
+            stopping = thread;
+            try {
+                server.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            stopping.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                final Socket socket = server.accept();
+                try {
+                    handle(socket);
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                if (running)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    // One request per connection
+    private void handle(Socket socket) throws IOException {
+        final InputStream in = new BufferedInputStream(socket.getInputStream());
+        final String request = readLine(in);
+        int length = -1;
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Length"))
+                length = Integer.parseInt(line.substring(colon + 1).trim());
+        }
+        final OutputStream out = socket.getOutputStream();
+        if (request == null || !request.startsWith("POST ") || length < 0 || length > MAX_BODY) {
+            respond(out, 400, "Bad Request", "");
+            return;
+        }
+        final byte[] body = new byte[length];
+        new DataInputStream(in).readFully(body);
+
+        final Map<String, Long> stored = new LinkedHashMap<String, Long>();
+        final boolean[] conflict = {false};
+        try {
+            UploadBatch.read(new ByteArrayInputStream(body), new UploadBatch.Visitor() {
+                @Override
+                public void onPart(UploadBatch.Part part, byte[] data) throws IOException {
+                    final long end = store(part, data);
+                    if (end < part.offset)
+                        conflict[0] = true;
+                    else if (part.last && end == part.getEnd())
+                        completed++;
+                    stored.put(part.name, end);
+                }
+            });
+        } catch (IOException e) {
+            respond(out, 400, "Bad Request", "");
+            return;
+        }
+        final StringBuilder answer = new StringBuilder();
+        for (Map.Entry<String, Long> entry : stored.entrySet())
+            answer.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        batches++;
+        if (conflict[0]) {
+            conflicts++;
+            respond(out, UploadQueue.STATUS_CONFLICT, "Conflict", answer.toString());
+        } else {
+            respond(out, 200, "OK", answer.toString());
+        }
+    }
+
+    /**
+     * @return The stored length of the file after the part.
+     */
+    private long store(UploadBatch.Part part, byte[] data) throws IOException {
+        if (part.name.indexOf('/') >= 0 || part.name.indexOf('\\') >= 0 || part.name.startsWith("."))
+            throw new IOException("Bad name " + part.name);
+        final RandomAccessFile file = new RandomAccessFile(new File(directory, part.name), "rw");
+        try {
+            final long length = file.length();
+            if (part.offset > length)
+                return length;
+            file.seek(part.offset);
+            file.write(data, 0, part.length);
+            bytes += part.length;
+            return Math.max(length, part.getEnd());
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void respond(OutputStream out, int status, String reason, String body) throws IOException {
+        final byte[] content = body.getBytes(ASCII);
+        final String header = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(header.getBytes(ASCII));
+        out.write(content);
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n')
+                return line.toString();
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    /**
+     * @return Bytes of file content stored, resent ranges included.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getConflicts() {
+        return conflicts;
+    }
+
+    @Override
+    public String toString() {
+        return "collector batches=" + batches + " bytes=" + bytes + " conflicts=" + conflicts
+                + " completed=" + completed;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: UploadCollector <directory> <port>");
+            return;
+        }
+        final UploadCollector collector = new UploadCollector(new File(args[0]));
+        collector.start(Integer.parseInt(args[1]));
+        System.out.println("Collecting on port " + collector.getPort() + " into " + args[0]);
+    }
+}
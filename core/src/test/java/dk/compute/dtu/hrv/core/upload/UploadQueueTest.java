@@ -0,0 +1,239 @@
+package dk.compute.dtu.hrv.core.upload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.compute.dtu.hrv.core.session.SessionCatalog;
+import dk.compute.dtu.hrv.core.session.SessionFiles;
+import dk.compute.dtu.hrv.core.session.SessionInfo;
+
+/**
+ * Uploads a closed session to an {@link UploadCollector} on localhost:
+ * retries while it is down, resumes from the offsets of a reopened
+ * {@link UploadLog}, and copes with acknowledgements it already had and with
+ * a collector behind the log.
+ */
+public class UploadQueueTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String DEVICE = "00:22:D0:AA:BB:CC";
+    private static final long START = 1445000000000L;
+    private static final int MAX_BATCHES = 1000;
+
+    private File root;
+    private File sessions;
+    private File collected;
+    private SessionCatalog catalog;
+    private UploadLog log;
+    private UploadCollector collector;
+    private UploadQueue queue;
+    private File[] files;
+
+    @Before
+    public void createSession() throws IOException {
+        root = File.createTempFile("upload", "");
+        if (!root.delete() || !root.mkdirs())
+            throw new IOException("Cannot create " + root);
+        sessions = new File(root, "sessions");
+        collected = new File(root, "collected");
+        catalog = SessionCatalog.open(sessions);
+        final SessionInfo info = catalog.beginSession(DEVICE, START);
+        files = new File[] {
+                write(new File(sessions, info.getFileName(SessionFiles.PREFIX_HEART_RATE)), 60, 200),
+                write(new File(sessions, info.getFileName(SessionFiles.PREFIX_RR)), 700, 300)
+        };
+        catalog.endSession(info.close(START + 300000, 300, 200, 60, 80, 14000, files[1].length(),
+                files[0].length()));
+        log = UploadLog.open(sessions);
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        if (queue != null)
+            queue.stop();
+        if (collector != null)
+            collector.stop();
+        log.close();
+        catalog.close();
+        delete(root);
+    }
+
+    @Test
+    public void uploadsClosedSessionInFull() throws IOException {
+        collector = startCollector(0);
+        queue = new UploadQueue(catalog, log, url(collector.getPort()));
+        uploadAll(queue);
+        assertCollected();
+        assertEquals(totalBytes(), collector.getBytes());
+    }
+
+    @Test(timeout = 20000)
+    public void retriesUntilCollectorIsUp() throws IOException, InterruptedException {
+        final int port = freePort();
+        queue = new UploadQueue(catalog, log, url(port));
+        try {
+            queue.uploadOnce();
+            fail("Uploaded without a collector");
+        } catch (IOException e) {
+            // Connection refused
+        }
+        assertEquals(0, log.getOffset(files[0].getName()));
+
+        // The first retry of the queue thread comes after a second
+        queue.start();
+        Thread.sleep(200);
+        collector = startCollector(port);
+        while (!log.isComplete(files[0].getName()) || !log.isComplete(files[1].getName()))
+            Thread.sleep(50);
+        queue.stop();
+        assertCollected();
+    }
+
+    @Test
+    public void resumesFromReopenedLog() throws IOException {
+        collector = startCollector(0);
+        queue = new UploadQueue(catalog, log, url(collector.getPort()));
+        queue.setMaxBatchBytes(1000);
+        assertEquals(1, queue.uploadOnce());
+        assertEquals(1000, log.getOffset(files[0].getName()));
+
+        // As after a restart of the app
+        log.close();
+        log = UploadLog.open(sessions);
+        assertEquals(1000, log.getOffset(files[0].getName()));
+        queue = new UploadQueue(catalog, log, url(collector.getPort()));
+        queue.setMaxBatchBytes(1000);
+        uploadAll(queue);
+        assertCollected();
+        // Nothing acknowledged was sent twice
+        assertEquals(totalBytes(), collector.getBytes());
+    }
+
+    @Test
+    public void repeatedAcknowledgementsKeepFilesIntact() throws IOException {
+        collector = startCollector(0);
+        queue = new UploadQueue(catalog, log, url(collector.getPort()));
+        uploadAll(queue);
+
+        // A repeated acknowledgement adds no record to the log
+        final File logFile = new File(sessions, UploadLog.FILE_NAME);
+        final long logLength = logFile.length();
+        log.acknowledge(files[0].getName(), files[0].length(), true);
+        assertEquals(logLength, logFile.length());
+
+        // Acknowledgements lost on the way: everything is sent again and stored over itself
+        final File otherLog = new File(root, "other");
+        final UploadLog fresh = UploadLog.open(otherLog);
+        try {
+            uploadAll(new UploadQueue(catalog, fresh, url(collector.getPort())));
+            assertTrue(fresh.isComplete(files[0].getName()));
+            assertTrue(fresh.isComplete(files[1].getName()));
+        } finally {
+            fresh.close();
+        }
+        assertCollected();
+        assertEquals(2 * totalBytes(), collector.getBytes());
+    }
+
+    @Test
+    public void takesOverOffsetOfCollectorBehindLog() throws IOException {
+        collector = startCollector(0);
+        log.acknowledge(files[0].getName(), 500, false);
+        queue = new UploadQueue(catalog, log, url(collector.getPort()));
+        assertEquals(2, queue.uploadOnce());
+        assertEquals(1, collector.getConflicts());
+        assertEquals(0, log.getOffset(files[0].getName()));
+        uploadAll(queue);
+        assertCollected();
+    }
+
+    private UploadCollector startCollector(int port) throws IOException {
+        final UploadCollector started = new UploadCollector(collected);
+        started.start(port);
+        return started;
+    }
+
+    private static URL url(int port) throws IOException {
+        return new URL("http://localhost:" + port + "/upload");
+    }
+
+    private static int freePort() throws IOException {
+        final ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void uploadAll(UploadQueue queue) throws IOException {
+        for (int i = 0; i < MAX_BATCHES; i++) {
+            if (queue.uploadOnce() == 0)
+                return;
+        }
+        fail("Still pending after " + MAX_BATCHES + " batches");
+    }
+
+    private void assertCollected() throws IOException {
+        for (File file : files) {
+            assertTrue(file.getName(), log.isComplete(file.getName()));
+            assertArrayEquals(read(file), read(new File(collected, file.getName())));
+        }
+    }
+
+    private long totalBytes() {
+        long total = 0;
+        for (File file : files)
+            total += file.length();
+        return total;
+    }
+
+    // CSV lines of increasing timestamps around value
+    private static File write(File file, int value, int lines) throws IOException {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++)
+            text.append(START + i * 1000L).append(';').append(value + i % 20).append('\n');
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.toString().getBytes(ASCII));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        if (!file.delete())
+            file.deleteOnExit();
+    }
+}